@@ -0,0 +1,96 @@
+package igi;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits Java Flight Recorder events for CG solves.
+ * When added as a listener to a solver, emits one event for each 
+ * iteration and one for each solve. Iteration events are emitted only 
+ * when enabled in the recording, because they are many; solve events 
+ * include the times spent in operators, preconditioners and vector 
+ * operations. This class requires a JVM with the jdk.jfr module. It is
+ * in the directory jfr, compiled only with JDK 11 or later, so that other
+ * classes may still be compiled for Java 8.
+ */
+public class CgSolverEvents implements CgSolver.Listener {
+
+  /**
+   * An event for one CG iteration.
+   */
+  @Name("igi.CgIteration")
+  @Label("CG Iteration")
+  @Category({"igi","CG Solver"})
+  public static class Iteration extends Event {
+    @Label("Iteration")
+    public int iter;
+    @Label("Residual Norm")
+    public double rnorm;
+    @Label("Preconditioned Residual Product")
+    public double rsnorm;
+  }
+
+  /**
+   * An event for one CG solve.
+   */
+  @Name("igi.CgSolve")
+  @Label("CG Solve")
+  @Category({"igi","CG Solver"})
+  public static class Solve extends Event {
+    @Label("Stop")
+    public String stop;
+    @Label("Iterations")
+    public int niter;
+    @Label("Residual Norm")
+    public double rnorm;
+    @Label("Cells")
+    public long cells;
+    @Label("Total Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long total;
+    @Label("Operator Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long apply;
+    @Label("Preconditioner Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long precondition;
+    @Label("Vector Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long vector;
+  }
+
+  public void iterate(int iter, double rnorm, double rsnorm) {
+    if (_iteration.isEnabled()) {
+      Iteration event = new Iteration();
+      event.iter = iter;
+      event.rnorm = rnorm;
+      event.rsnorm = rsnorm;
+      event.commit();
+    }
+  }
+
+  public void done(CgSolver.Info info, CgSolver.Times times) {
+    if (_solve.isEnabled()) {
+      Solve event = new Solve();
+      event.stop = info.stop.name();
+      event.niter = info.niter;
+      event.rnorm = info.rnorm;
+      event.cells = times.cells;
+      event.total = times.total;
+      event.apply = times.apply;
+      event.precondition = times.precondition;
+      event.vector = times.vector();
+      event.commit();
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Unused events, only for checking whether events are enabled.
+  private Iteration _iteration = new Iteration();
+  private Solve _solve = new Solve();
+}
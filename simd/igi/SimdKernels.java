@@ -0,0 +1,185 @@
+package igi;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels with explicit SIMD loops for the incubating JDK Vector API.
+ * Requires JDK 16 or later, with the module jdk.incubator.vector.
+ * <p>
+ * In the laplacian kernels, each cell updates samples i1 and i1-1 of
+ * rows of the output image. For each vector of cells, samples i1 are
+ * updated before samples i1-1, as in the scalar loop, so that results
+ * are the same as for the scalar kernels. Dot products are summed in
+ * vectors of floats for short blocks of elements, and then in doubles.
+ */
+class SimdKernels extends Kernels {
+
+  SimdKernels() {
+    if (L<4)
+      throw new UnsupportedOperationException("vectors too short for SIMD");
+  }
+
+  void applyLhsRow2(
+    float[][] d, int k, float[] x0, float[] x1, float[] y0, float[] y1)
+  {
+    float[] d11 = d[0];
+    float[] d12 = d[1];
+    float[] d22 = d[2];
+    int n1 = x0.length;
+    int i1 = 1;
+    for (int m1=n1-L; i1<=m1; i1+=L) {
+      int i1m = i1-1;
+      int j = k+i1;
+      FloatVector xa = load(x0,i1).sub(load(x1,i1m));
+      FloatVector xb = load(x1,i1).sub(load(x0,i1m));
+      FloatVector xs1 = xa.add(xb).mul(0.5f);
+      FloatVector xs2 = xa.sub(xb).mul(0.5f);
+      FloatVector e11 = load(d11,j);
+      FloatVector e12 = load(d12,j);
+      FloatVector e22 = load(d22,j);
+      FloatVector ys1 = e11.mul(xs1).add(e12.mul(xs2));
+      FloatVector ys2 = e12.mul(xs1).add(e22.mul(xs2));
+      FloatVector ya = ys1.add(ys2).mul(0.5f);
+      FloatVector yb = ys1.sub(ys2).mul(0.5f);
+      update(y0,i1,ya,yb);
+      update(y1,i1,yb,ya);
+    }
+    applyLhsRow2(i1,d,k,x0,x1,y0,y1);
+  }
+
+  void applyLhsRow3(float[][] d, int k,
+    float[] x00, float[] x01, float[] x10, float[] x11,
+    float[] y00, float[] y01, float[] y10, float[] y11)
+  {
+    float[] d11 = d[0];
+    float[] d12 = d[1];
+    float[] d13 = d[2];
+    float[] d22 = d[3];
+    float[] d23 = d[4];
+    float[] d33 = d[5];
+    int n1 = x00.length;
+    int i1 = 1;
+    for (int m1=n1-L; i1<=m1; i1+=L) {
+      int i1m = i1-1;
+      int j = k+i1;
+      FloatVector xa = load(x00,i1).sub(load(x11,i1m));
+      FloatVector xb = load(x01,i1).sub(load(x10,i1m));
+      FloatVector xc = load(x10,i1).sub(load(x01,i1m));
+      FloatVector xd = load(x11,i1).sub(load(x00,i1m));
+      FloatVector xs1 = xa.add(xb).add(xc).add(xd).mul(0.25f);
+      FloatVector xs2 = xa.sub(xb).add(xc).sub(xd).mul(0.25f);
+      FloatVector xs3 = xa.add(xb).sub(xc).sub(xd).mul(0.25f);
+      FloatVector e12 = load(d12,j);
+      FloatVector e13 = load(d13,j);
+      FloatVector e23 = load(d23,j);
+      FloatVector ys1 = load(d11,j).mul(xs1).add(e12.mul(xs2))
+                                            .add(e13.mul(xs3));
+      FloatVector ys2 = e12.mul(xs1).add(load(d22,j).mul(xs2))
+                                    .add(e23.mul(xs3));
+      FloatVector ys3 = e13.mul(xs1).add(e23.mul(xs2))
+                                    .add(load(d33,j).mul(xs3));
+      FloatVector ya = ys1.add(ys2).add(ys3).mul(0.25f);
+      FloatVector yb = ys1.sub(ys2).add(ys3).mul(0.25f);
+      FloatVector yc = ys1.add(ys2).sub(ys3).mul(0.25f);
+      FloatVector yd = ys1.sub(ys2).sub(ys3).mul(0.25f);
+      update(y00,i1,ya,yd);
+      update(y01,i1,yb,yc);
+      update(y10,i1,yc,yb);
+      update(y11,i1,yd,ya);
+    }
+    applyLhsRow3(i1,d,k,x00,x01,x10,x11,y00,y01,y10,y11);
+  }
+
+  double dot(float[] x, float[] y) {
+    int n1 = x.length;
+    int m1 = S.loopBound(n1);
+    double d = 0.0;
+    int i1 = 0;
+    while (i1<m1) {
+      FloatVector s = FloatVector.zero(S);
+      for (int j1=Math.min(i1+NSUM,m1); i1<j1; i1+=L)
+        s = s.add(load(x,i1).mul(load(y,i1)));
+      d += s.reduceLanes(VectorOperators.ADD);
+    }
+    for (; i1<n1; ++i1)
+      d += x[i1]*y[i1];
+    return d;
+  }
+
+  void axpy(float a, float[] x, float[] y) {
+    int n1 = x.length;
+    int m1 = S.loopBound(n1);
+    int i1 = 0;
+    for (; i1<m1; i1+=L)
+      load(y,i1).add(load(x,i1).mul(a)).intoArray(y,i1);
+    for (; i1<n1; ++i1)
+      y[i1] += a*x[i1];
+  }
+
+  void xpay(float a, float[] x, float[] y) {
+    int n1 = x.length;
+    int m1 = S.loopBound(n1);
+    int i1 = 0;
+    for (; i1<m1; i1+=L)
+      load(y,i1).mul(a).add(load(x,i1)).intoArray(y,i1);
+    for (; i1<n1; ++i1)
+      y[i1] = a*y[i1]+x[i1];
+  }
+
+  void axpby(float a, float[] x, float b, float[] y) {
+    int n1 = x.length;
+    int m1 = S.loopBound(n1);
+    int i1 = 0;
+    for (; i1<m1; i1+=L)
+      load(x,i1).mul(a).add(load(y,i1).mul(b)).intoArray(y,i1);
+    for (; i1<n1; ++i1)
+      y[i1] = a*x[i1]+b*y[i1];
+  }
+
+  // Because a*x+b*y is exactly y+a*x when b is one, and x+b*y when a is
+  // one, this method need not handle those cases separately.
+  double axpbyDot(float a, float[] x, float b, float[] y, float[] z) {
+    int n1 = x.length;
+    int m1 = S.loopBound(n1);
+    double d = 0.0;
+    int i1 = 0;
+    while (i1<m1) {
+      FloatVector s = FloatVector.zero(S);
+      for (int j1=Math.min(i1+NSUM,m1); i1<j1; i1+=L) {
+        FloatVector yi = load(x,i1).mul(a).add(load(y,i1).mul(b));
+        yi.intoArray(y,i1);
+        s = s.add(yi.mul(load(z,i1)));
+      }
+      d += s.reduceLanes(VectorOperators.ADD);
+    }
+    for (; i1<n1; ++i1) {
+      float yi = a*x[i1]+b*y[i1];
+      y[i1] = yi;
+      d += yi*z[i1];
+    }
+    return d;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final VectorSpecies<Float> S = 
+    FloatVector.SPECIES_PREFERRED;
+  private static final int L = S.length(); // number of lanes
+  private static final int NSUM = 16*L; // elements summed in floats
+
+  private static FloatVector load(float[] a, int i) {
+    return FloatVector.fromArray(S,a,i);
+  }
+
+  // Computes y[i] += yp and then y[i-1] -= ym, for L lanes beginning
+  // with index i.
+  private static void update(
+    float[] y, int i, FloatVector yp, FloatVector ym) 
+  {
+    load(y,i).add(yp).intoArray(y,i);
+    load(y,i-1).sub(ym).intoArray(y,i-1);
+  }
+}
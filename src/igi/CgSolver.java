@@ -8,6 +8,7 @@ package igi;
 
 import java.io.IOException;
 import edu.mines.jtk.io.ArrayFile;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -40,11 +41,14 @@ public class CgSolver {
    * Information returned by this iterative solver.
    */
   public static class Info {
-    private Info(Stop stop, int niter, double bnorm, double rnorm) {
+    private Info(
+      Stop stop, int niter, double bnorm, double rnorm, double rmnorm) 
+    {
       this.stop = stop;
       this.niter = niter;
       this.bnorm = bnorm;
       this.rnorm = rnorm;
+      this.rmnorm = rmnorm;
     }
     /** 
      * The condition that caused iterations to stop. 
@@ -62,6 +66,13 @@ public class CgSolver {
      * The L2 norm ||r|| of the residuals r = b-Ax.
      */
     public double rnorm;
+    /**
+     * The norm sqrt(r'Mr) of the residuals r = b-Ax, for a preconditioner
+     * M. Without a preconditioner, this norm equals ||r||. With constraints 
+     * enforced by the preconditioner, this norm excludes residuals for the 
+     * constrained elements of x, which need not be small.
+     */
+    public double rmnorm;
   }
 
   /**
@@ -77,6 +88,38 @@ public class CgSolver {
     public void apply(Vec x, Vec y);
   }
 
+  /**
+   * Abstract linear operator A with a fused dot product. The product
+   * x'Ax is computed while applying the operator, in the same pass over 
+   * vector elements. Solvers use this operation when an operator 
+   * implements this interface, and otherwise apply the operator and 
+   * then compute the dot product.
+   */
+  public interface FusedA extends A {
+
+    /**
+     * Accumulates the matrix-vector product y = Ax, and returns the dot 
+     * product x'y.
+     * @param x the input vector x.
+     * @param y the output vector y.
+     * @return the dot product x'y.
+     */
+    public double applyDot(Vec x, Vec y);
+  }
+
+  /**
+   * Abstract linear operator A applied to a block of vectors.
+   */
+  public interface BlockA {
+
+    /**
+     * Accumulates the matrix-vector products y[k] = Ax[k] for all k.
+     * @param x array of input vectors x.
+     * @param y array of output vectors y.
+     */
+    public void apply(Vec[] x, Vec[] y);
+  }
+
   /**
    * Determines if a user wants to stop this solver.
    */
@@ -91,6 +134,61 @@ public class CgSolver {
     public boolean stop(Info info);
   }
 
+  /**
+   * A listener notified of the progress of this solver. Listeners are
+   * notified in the thread that calls the solver. While no listener is
+   * attached, solves neither measure times nor notify anything.
+   */
+  public interface Listener {
+
+    /**
+     * Called at the beginning of each iteration.
+     * @param iter the iteration number, beginning with zero.
+     * @param rnorm the norm ||r|| of the residuals r = b-Ax.
+     * @param rsnorm the product r'Mr, for a preconditioner M; r'r, 
+     *  without a preconditioner; the trace of R'MR, for blocks.
+     */
+    public void iterate(int iter, double rnorm, double rsnorm);
+
+    /**
+     * Called when a solve is complete.
+     * @param info information about the solve.
+     * @param times times spent in the solve; valid only during this call.
+     */
+    public void done(Info info, Times times);
+  }
+
+  /**
+   * Wall-clock times spent in one solve, in nanoseconds.
+   */
+  public static class Times {
+    /**
+     * The total time spent in the solve.
+     */
+    public long total;
+    /**
+     * The time spent in applying the operator A.
+     */
+    public long apply;
+    /**
+     * The time spent in applying the preconditioner M.
+     */
+    public long precondition;
+    /**
+     * The number of elements (cells) in the solution vector x, summed
+     * over all vectors in a block; zero, if unknown.
+     */
+    public long cells;
+    /**
+     * Returns the time spent in vector operations, which is all time
+     * not spent in applying the operator A or the preconditioner M.
+     * @return the time spent in vector operations.
+     */
+    public long vector() {
+      return total-apply-precondition;
+    }
+  }
+
   /**
    * Constructs a solver with specified parameters.
    * @param tiny threshold for ratio of residuals ||r||/||b||
@@ -101,6 +199,109 @@ public class CgSolver {
     _maxi = maxi;
   }
 
+  /**
+   * Adds a listener to be notified of the progress of this solver.
+   * @param listener the listener.
+   */
+  public void addListener(Listener listener) {
+    int nl = _listeners.length;
+    Listener[] listeners = java.util.Arrays.copyOf(_listeners,nl+1);
+    listeners[nl] = listener;
+    _listeners = listeners;
+  }
+
+  /**
+   * Removes a listener from this solver.
+   * @param listener the listener.
+   */
+  public void removeListener(Listener listener) {
+    int nl = _listeners.length;
+    for (int il=0; il<nl; ++il) {
+      if (_listeners[il]==listener) {
+        Listener[] listeners = new Listener[nl-1];
+        System.arraycopy(_listeners,0,listeners,0,il);
+        System.arraycopy(_listeners,il+1,listeners,il,nl-il-1);
+        _listeners = listeners;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sets whether this solver keeps its work vectors between solves.
+   * If true, work vectors allocated in one solve are reused in later 
+   * solves, so that repeated solves allocate no new work vectors. All 
+   * such solves must then use vectors of the same type and size. This
+   * setting does not apply to solves with blocks of vectors.
+   * The default is false.
+   * @param reuse true, to reuse work vectors; false, otherwise.
+   */
+  public void setReuseWork(boolean reuse) {
+    _reuse = reuse;
+    _work = new Vec[4];
+  }
+
+  /**
+   * Sets the numbers of vectors used to recycle Krylov subspaces.
+   * With recycling, preconditioned solves keep approximate eigenvectors
+   * for the smallest eigenvalues of the preconditioned operator, and 
+   * deflate those vectors from later solves with the same operator, 
+   * which then typically require fewer iterations. 
+   * <p>
+   * During each solve, the first nlan Lanczos vectors, which are scaled 
+   * preconditioned residuals, are stored. When the solve is complete, 
+   * Ritz vectors computed from those Lanczos vectors and from the CG
+   * coefficients alpha and beta are added to the recycled vectors, until 
+   * nvec vectors are kept. Recycled vectors are not changed by solves in
+   * which no vectors are added. The default nvec is zero.
+   * <p>
+   * Recycled vectors may be used for any operator, but reduce the number
+   * of iterations only for operators like the one used to compute them.
+   * If the preconditioner constrains some elements of the solution x to
+   * equal their initial values, then recycled vectors must be zero for 
+   * those elements; callers may ensure this for the recycled vectors 
+   * returned by {@link #getRecycledVectors()}.
+   * @param nvec maximum number of recycled vectors.
+   * @param nlan number of Lanczos vectors stored in each solve.
+   */
+  public void setRecycling(int nvec, int nlan) {
+    _nvec = nvec;
+    _nlan = nlan;
+    if (_w.length>nvec)
+      _w = java.util.Arrays.copyOf(_w,nvec);
+  }
+
+  /**
+   * Gets the recycled vectors kept by this solver.
+   * @return array of recycled vectors; by reference, not by copy.
+   */
+  public Vec[] getRecycledVectors() {
+    return _w;
+  }
+
+  /**
+   * Discards all recycled vectors kept by this solver.
+   * Recycled vectors should be discarded when the operator A changes.
+   */
+  public void clearRecycledVectors() {
+    _w = new Vec[0];
+  }
+
+  /**
+   * Sets whether this solver uses mixed precision.
+   * In mixed precision, preconditioned CG iterations store the search 
+   * direction d and the preconditioned residual s = Mr in 16-bit floats,
+   * when the right-hand-side vector b is a {@link VecArrayFloat3}; 
+   * other vectors remain in full precision. Residuals r = b-Ax are then 
+   * recomputed whenever their preconditioned norm sqrt(r'Mr) has been 
+   * reduced by a factor of ten since they were last recomputed, and at 
+   * least every 50 iterations. The default is false.
+   * @param mixed true, for mixed precision; false, otherwise.
+   */
+  public void setMixedPrecision(boolean mixed) {
+    _mixed = mixed;
+  }
+
   /**
    * Solves the system of equation Ax = b with CG iterations.
    * @param a the linear operator that represents the matrix A.
@@ -154,39 +355,41 @@ public class CgSolver {
    * @param x the solution vector.
    */
   public Info solve(Stopper stopper, double anorm, A a, Vec b, Vec x) {
-    Vec q = b.clone();
-    a.apply(x,q); // q = Ax
-    Vec r = b.clone();
+    begin();
+    Vec q = work(0,b);
+    apply(a,x,q); // q = Ax
+    Vec r = work(1,b);
     r.add(1.0,q,-1.0); // r = b-Ax
-    Vec d = r.clone();
+    Vec d = work(2,r);
     double bnorm = b.norm2();
     double rnorm = r.norm2();
     double xnorm = x.norm2();
     double rrnorm = rnorm*rnorm;
     logInit(bnorm,rnorm);
     Info info = null;
+    Info user = userInfo(stopper); // updated for the stopper, if any
     int iter;
     for (iter=0;
          iter<_maxi
            && rnorm>_tiny*(anorm*xnorm+bnorm)
-           && (info=userStop(stopper,iter,bnorm,rnorm))==null;
+           && (info=userStop(stopper,user,iter,bnorm,rnorm,rnorm))==null;
          ++iter) {
-      logIter(iter,rnorm);
-      a.apply(d,q);
-      double dq = d.dot(q);
+      logIter(iter,rnorm,rrnorm);
+      double dq = applyDot(a,d,q); // q = Ad, d'q
       double alpha = rrnorm/dq;
-      x.add(1.0,d,alpha);
-      if (anorm>0.0)
-        xnorm = x.norm2();
+      if (anorm>0.0) {
+        xnorm = addNorm2(x,1.0,d,alpha); // x += alpha*d, ||x||
+      } else {
+        x.add(1.0,d,alpha); // x += alpha*d
+      }
       if (iter%50==49) { // if accumulated rounding error may be large, ...
-        a.apply(x,q); // q = Ax
+        apply(a,x,q); // q = Ax
         r.add(0.0,b,1.0); // r = b
-        r.add(1.0,q,-1.0); // r = b-Ax
+        rnorm = addNorm2(r,1.0,q,-1.0); // r = b-Ax, ||r||
       } else { // otherwise, use shortcut to update residual
-        r.add(1.0,q,-alpha); // r -= alpha*q
+        rnorm = addNorm2(r,1.0,q,-alpha); // r -= alpha*q, ||r||
       }
       double rrnormOld = rrnorm;
-      rnorm = r.norm2();
       rrnorm = rnorm*rnorm;
       double beta = rrnorm/rrnormOld;
       d.add(beta,r,1.0);
@@ -200,12 +403,12 @@ public class CgSolver {
       }
       */
     }
-    logDone(iter, rnorm);
+    logDone(iter,rnorm);
     if (info==null) {
       Stop stop = (iter<_maxi) ? Stop.TINY : Stop.MAXI;
-      info = new Info(stop,iter,bnorm,rnorm);
+      info = new Info(stop,iter,bnorm,rnorm,rnorm);
     }
-    return info;
+    return done(info,x);
   }
 
   /**
@@ -218,51 +421,236 @@ public class CgSolver {
    * @param x the solution vector.
    */
   public Info solve(Stopper stopper, double anorm, A a, A m, Vec b, Vec x) {
-    Vec q = b.clone();
-    a.apply(x,q); // q = Ax
-    Vec r = b.clone();
+    begin();
+    Vec q = work(0,b);
+    apply(a,x,q); // q = Ax
+    Vec r = work(1,b);
     r.add(1.0,q,-1.0); // r = r-q = b-Ax
-    Vec s = r.clone();
-    m.apply(r,s); // s = Mr
-    Vec d = s.clone(); // d = s
+    Vec[] w = _w; // recycled vectors W
+    Vec[] aw = new Vec[w.length]; // AW
+    double[][] waw = null; // W'AW
+    if (w.length>0) { // deflate W from x and r
+      for (int iw=0; iw<w.length; ++iw) {
+        aw[iw] = q.clone();
+        apply(a,w[iw],aw[iw]);
+      }
+      waw = dot(w,aw);
+      double[][] mu = solveSym(waw,dot(w,r)); // mu = inv(W'AW)*W'r
+      add(x,w,mu,1.0); // x = x+W*mu
+      add(r,aw,mu,-1.0); // r = r-AW*mu
+    }
+    Vec s = (_mixed)?compact(r):work(2,r);
+    precondition(m,r,s); // s = Mr
+    deflate(w,aw,waw,s); // s = s-W*inv(W'AW)*(AW)'s
+    Vec d = (_mixed)?s.clone():work(3,s); // d = s
     double rsnorm = r.dot(s); // r's = r'Mr
+    int nlan = (w.length<_nvec)?_nlan:0; // number of Lanczos vectors
+    Vec[] vlan = new Vec[nlan]; // Lanczos vectors s/sqrt(r's)
+    double[] alan = new double[nlan]; // CG coefficients alpha
+    double[] blan = new double[nlan]; // CG coefficients beta
+    int mlan = lanczos(vlan,0,s,rsnorm); // number of Lanczos vectors stored
     double bnorm = b.norm2();
     double rnorm = r.norm2();
     double xnorm = x.norm2();
+    double rmmax = rmnorm(rsnorm); // max sqrt(r'Mr) since r = b-Ax
+    int irefresh = -1; // iteration in which r = b-Ax
     logInit(bnorm,rnorm);
     int iter;
     Info info = null;
+    Info user = userInfo(stopper); // updated for the stopper, if any
     for (iter=0;
          iter<_maxi
            && rnorm>_tiny*(anorm*xnorm+bnorm)
-           && (info=userStop(stopper,iter,bnorm,rnorm))==null;
+           && (info=userStop(stopper,user,
+                             iter,bnorm,rnorm,rmnorm(rsnorm)))==null;
          ++iter) {
-      logIter(iter,rnorm);
-      a.apply(d, q); // q = Ad
-      double dq = d.dot(q); // d'q
+      logIter(iter,rnorm,rsnorm);
+      double dq = applyDot(a,d,q); // q = Ad, d'q
       double alpha = rsnorm/dq; // alpha = r'Mr/d'q
-      x.add(1.0,d, alpha); // x = x+alpha*d
-      xnorm = x.norm2(); // ||x||
-      if (iter%50==49) { // if accumulated rounding error may be large, ...
-        a.apply(x,q); // q = Ax
+      if (iter<nlan)
+        alan[iter] = alpha;
+      if (anorm>0.0) {
+        xnorm = addNorm2(x,1.0,d,alpha); // x = x+alpha*d, ||x||
+      } else {
+        x.add(1.0,d,alpha); // x = x+alpha*d
+      }
+      boolean refresh = (_mixed) ?
+        iter-irefresh>=50 || rmnorm(rsnorm)<0.1*rmmax :
+        iter%50==49;
+      if (refresh) { // if accumulated rounding error may be large, ...
+        apply(a,x,q); // q = Ax
         r.add(0.0,b,1.0); // r = b
-        r.add(1.0,q,-1.0); // r = b-Ax
+        rnorm = addNorm2(r,1.0,q,-1.0); // r = b-Ax, ||r||
+        irefresh = iter;
+        rmmax = 0.0;
       } else { // otherwise, use shortcut to update residual
-        r.add(1.0,q,-alpha); // r = r-alpha*q
+        rnorm = addNorm2(r,1.0,q,-alpha); // r = r-alpha*q, ||r||
       }
-      rnorm = r.norm2(); // ||r||
-      m.apply(r,s); // s = Mr
+      precondition(m,r,s); // s = Mr
+      deflate(w,aw,waw,s); // s = s-W*inv(W'AW)*(AW)'s
       double rsnormOld = rsnorm;
       rsnorm = r.dot(s); // r's = r'Mr
+      rmmax = Math.max(rmmax,rmnorm(rsnorm));
       double beta = rsnorm/rsnormOld;
+      if (iter<nlan)
+        blan[iter] = beta;
+      if (mlan==iter+1)
+        mlan = lanczos(vlan,mlan,s,rsnorm);
       d.add(beta,s,1.0); // d = s+beta*d
     }
+    recycle(vlan,alan,blan,Math.min(mlan,iter));
     logDone(iter,rnorm);
     if (info==null) {
       Stop stop = (iter<_maxi) ? Stop.TINY : Stop.MAXI;
-      info = new Info(stop, iter, bnorm, rnorm);
+      info = new Info(stop,iter,bnorm,rnorm,rmnorm(rsnorm));
     }
-    return info;
+    return done(info,x);
+  }
+
+  /**
+   * Solves the systems of equations Ax = b for a block of right-hand-side
+   * vectors with preconditioned block CG iterations.
+   * @param a the linear operator that represents the matrix A.
+   * @param m the preconditioner that approximates the inverse of A.
+   * @param b array of right-hand-side vectors.
+   * @param x array of solution vectors.
+   */
+  public Info solve(BlockA a, BlockA m, Vec[] b, Vec[] x) {
+    return solve(null,0.0,a,m,b,x);
+  }
+
+  /**
+   * Solves the systems of equations Ax = b for a block of right-hand-side
+   * vectors with preconditioned block CG iterations.
+   * <p>
+   * Block CG iterations update all solution vectors together, with search 
+   * directions computed from the block of all residuals. Iterations stop 
+   * when the residuals for all right-hand-side vectors are small. Norms
+   * reported in the returned information are Frobenius norms of the 
+   * blocks of vectors.
+   * @param stopper if not null, can stop iterations.
+   * @param anorm estimate for norm ||A|| of linear operator A.
+   * @param a the linear operator that represents the matrix A.
+   * @param m the preconditioner that approximates the inverse of A.
+   * @param b array of right-hand-side vectors.
+   * @param x array of solution vectors.
+   */
+  public Info solve(
+    Stopper stopper, double anorm, BlockA a, BlockA m, Vec[] b, Vec[] x) 
+  {
+    begin();
+    int nk = b.length;
+    Vec[] q = clone(b);
+    apply(a,x,q); // Q = AX
+    Vec[] r = clone(b);
+    for (int ik=0; ik<nk; ++ik)
+      r[ik].add(1.0,q[ik],-1.0); // R = B-AX
+    Vec[] s = clone(r);
+    precondition(m,r,s); // S = MR
+    Vec[] d = clone(s); // D = S
+    Vec[] t = clone(s); // work block for updating D
+    double[][] rs = dot(r,s); // R'S = R'MR
+    double[] bnorms = norm2(b);
+    double[] rnorms = norm2(r);
+    double[] xnorms = norm2(x);
+    double bnorm = norm2(bnorms);
+    double rnorm = norm2(rnorms);
+    logInit(bnorm,rnorm);
+    int iter;
+    Info info = null;
+    Info user = userInfo(stopper); // updated for the stopper, if any
+    for (iter=0;
+         iter<_maxi
+           && !small(anorm,bnorms,rnorms,xnorms)
+           && (info=userStop(stopper,user,
+                             iter,bnorm,rnorm,rmnorm(rs)))==null;
+         ++iter) {
+      logIter(iter,rnorm,trace(rs));
+      apply(a,d,q); // Q = AD
+      double[][] dq = dot(d,q); // D'Q
+      double[][] alpha = solveSym(dq,rs); // alpha = inv(D'Q)*R'MR
+      add(x,d,alpha,1.0); // X = X+D*alpha
+      if (anorm>0.0)
+        xnorms = norm2(x); // ||X||
+      if (iter%50==49) { // if accumulated rounding error may be large, ...
+        apply(a,x,q); // Q = AX
+        for (int ik=0; ik<nk; ++ik) {
+          r[ik].add(0.0,b[ik],1.0); // R = B
+          r[ik].add(1.0,q[ik],-1.0); // R = B-AX
+        }
+      } else { // otherwise, use shortcut to update residuals
+        add(r,q,alpha,-1.0); // R = R-Q*alpha
+      }
+      rnorms = norm2(r); // ||R||
+      rnorm = norm2(rnorms);
+      precondition(m,r,s); // S = MR
+      double[][] rsOld = rs;
+      rs = dot(r,s); // R'S = R'MR
+      double[][] beta = solveSym(rsOld,rs); // beta = inv(R'MR old)*R'MR
+      for (int ik=0; ik<nk; ++ik)
+        t[ik].add(0.0,s[ik],1.0); // T = S
+      add(t,d,beta,1.0); // T = S+D*beta
+      Vec[] dt = d; d = t; t = dt; // D = T
+    }
+    logDone(iter,rnorm);
+    if (info==null) {
+      Stop stop = (iter<_maxi) ? Stop.TINY : Stop.MAXI;
+      info = new Info(stop,iter,bnorm,rnorm,rmnorm(rs));
+    }
+    return done(info,x);
+  }
+
+  /**
+   * Estimates the smallest and largest eigenvalues of the preconditioned
+   * operator MA. Estimates are the extreme eigenvalues of the Lanczos
+   * tridiagonal matrix computed from the coefficients alpha and beta of
+   * a few preconditioned CG iterations for Ax = b, beginning with x = 0.
+   * The largest eigenvalue is typically well estimated after only a few 
+   * iterations, and the smallest eigenvalue is overestimated.
+   * @param a the linear operator that represents the matrix A.
+   * @param m the preconditioner; null, for none.
+   * @param b the right-hand-side vector, which is not changed.
+   * @param niter maximum number of iterations.
+   * @return array {emin,emax} of estimated eigenvalues; zeros, if none
+   *  can be estimated, as when b = 0.
+   */
+  public static double[] estimateEigenvalues(A a, A m, Vec b, int niter) {
+    Vec r = b.clone();
+    Vec s = (m!=null)?b.clone():r;
+    if (m!=null)
+      m.apply(r,s); // s = Mr
+    Vec d = s.clone();
+    Vec q = b.clone();
+    double rsnorm = r.dot(s);
+    double[] alpha = new double[niter];
+    double[] beta = new double[niter];
+    int iter;
+    for (iter=0; iter<niter && rsnorm>0.0; ++iter) {
+      a.apply(d,q); // q = Ad
+      double dq = d.dot(q);
+      if (!(dq>0.0))
+        break;
+      alpha[iter] = rsnorm/dq;
+      r.add(1.0,q,-alpha[iter]); // r = r-alpha*q
+      if (m!=null)
+        m.apply(r,s); // s = Mr
+      double rsnormOld = rsnorm;
+      rsnorm = r.dot(s);
+      beta[iter] = rsnorm/rsnormOld;
+      d.add(beta[iter],s,1.0); // d = s+beta*d
+    }
+    double[][] t = tridiagonal(alpha,beta,iter);
+    if (t==null)
+      return new double[]{0.0,0.0};
+    double[] e = new double[iter];
+    eigenSym(t,new double[iter][iter],e);
+    double emin = e[0];
+    double emax = e[0];
+    for (int i=1; i<iter; ++i) {
+      emin = Math.min(emin,e[i]);
+      emax = Math.max(emax,e[i]);
+    }
+    return new double[]{emin,emax};
   }
  
   ///////////////////////////////////////////////////////////////////////////
@@ -270,34 +658,438 @@ public class CgSolver {
 
   private double _tiny; // converged: norm(r)<tiny*(norm(A)*norm(x)+norm(b))
   private int _maxi; // upper limit on number of iterations
+  private boolean _mixed; // true, if using mixed precision
+  private Listener[] _listeners = new Listener[0]; // progress listeners
+  private Times _times = new Times(); // times for the current solve
+  private int _nvec; // maximum number of recycled vectors
+  private int _nlan; // number of Lanczos vectors stored in each solve
+  private Vec[] _w = new Vec[0]; // recycled vectors
+  private boolean _reuse; // true, if work vectors are kept between solves
+  private Vec[] _work; // work vectors kept between solves
+
+  // Returns the work vector with specified index, with elements equal to
+  // those of the vector x. If reusing work vectors, copies x into a work 
+  // vector kept from a previous solve; otherwise, returns a clone of x.
+  private Vec work(int index, Vec x) {
+    if (!_reuse)
+      return x.clone();
+    if (_work[index]==null) {
+      _work[index] = x.clone();
+    } else {
+      _work[index].add(0.0,x,1.0);
+    }
+    return _work[index];
+  }
+
+  // Deflates recycled vectors W from a preconditioned residual s, by 
+  // computing s = s-W*inv(W'AW)*(AW)'s, so that s is A-orthogonal to W.
+  private static void deflate(Vec[] w, Vec[] aw, double[][] waw, Vec s) {
+    if (w.length>0) {
+      double[][] mu = solveSym(waw,dot(aw,s));
+      add(s,w,mu,-1.0);
+    }
+  }
+
+  // Stores the Lanczos vector s/sqrt(r's) with specified index, if that 
+  // index is valid, and returns the number of Lanczos vectors stored.
+  private static int lanczos(Vec[] v, int index, Vec s, double rsnorm) {
+    if (index>=v.length || !(rsnorm>0.0))
+      return index;
+    v[index] = s.clone();
+    v[index].scale(1.0/Math.sqrt(rsnorm));
+    return index+1;
+  }
+
+  // Returns the m-by-m Lanczos tridiagonal matrix T computed from CG
+  // coefficients alpha and beta, or null if any coefficient is invalid.
+  // T has diagonal elements 1/alpha[j]+beta[j-1]/alpha[j-1] and 
+  // off-diagonal elements -sqrt(beta[j])/alpha[j].
+  private static double[][] tridiagonal(
+    double[] alpha, double[] beta, int m) 
+  {
+    if (m<1)
+      return null;
+    double[][] t = new double[m][m];
+    for (int j=0; j<m; ++j) {
+      if (!(alpha[j]>0.0) || (j<m-1 && !(beta[j]>0.0)))
+        return null;
+      t[j][j] = 1.0/alpha[j];
+      if (j>0)
+        t[j][j] += beta[j-1]/alpha[j-1];
+      if (j<m-1) {
+        t[j][j+1] = -Math.sqrt(beta[j])/alpha[j];
+        t[j+1][j] = t[j][j+1];
+      }
+    }
+    return t;
+  }
+
+  // Adds Ritz vectors computed from m Lanczos vectors v to the recycled
+  // vectors. Recycled vectors are Ritz vectors Vy for eigenvectors y of 
+  // the Lanczos tridiagonal matrix T with the smallest eigenvalues.
+  private void recycle(Vec[] v, double[] alpha, double[] beta, int m) {
+    int nw = _w.length;
+    int nadd = Math.min(_nvec-nw,Math.max(1,m/4));
+    if (m<2 || nadd<=0)
+      return;
+    double[][] t = tridiagonal(alpha,beta,m);
+    if (t==null)
+      return;
+    double[][] y = new double[m][m];
+    double[] e = new double[m];
+    eigenSym(t,y,e);
+    Vec[] w = java.util.Arrays.copyOf(_w,nw+nadd);
+    boolean[] used = new boolean[m];
+    for (int iadd=0; iadd<nadd; ++iadd) {
+      int k = -1;
+      for (int j=0; j<m; ++j) {
+        if (!used[j] && (k<0 || e[j]<e[k]))
+          k = j;
+      }
+      used[k] = true;
+      Vec u = v[0].clone();
+      u.scale(y[0][k]);
+      for (int j=1; j<m; ++j)
+        u.add(1.0,v[j],y[j][k]);
+      u.scale(1.0/u.norm2());
+      w[nw+iadd] = u;
+    }
+    _w = w;
+  }
+
+  // Returns the dot products of all vectors in the block x with y.
+  private static double[][] dot(Vec[] x, Vec y) {
+    int nk = x.length;
+    double[][] xy = new double[nk][1];
+    for (int ik=0; ik<nk; ++ik)
+      xy[ik][0] = x[ik].dot(y);
+    return xy;
+  }
+
+  // Updates the vector y = y+x*c*s, for a block x and coefficients c.
+  private static void add(Vec y, Vec[] x, double[][] c, double s) {
+    int nk = x.length;
+    for (int ik=0; ik<nk; ++ik)
+      y.add(1.0,x[ik],c[ik][0]*s);
+  }
+
+  // Returns a copy of the vector x stored in 16-bit floats, if possible.
+  private static Vec compact(Vec x) {
+    if (x instanceof VecArrayFloat3)
+      return new VecArrayHalf3((VecArrayFloat3)x);
+    return x.clone();
+  }
+
+  // Computes x = x*sx+y*sy and returns the L2 norm ||x|| of the updated x.
+  // Uses a single pass over vector elements if x supports fused operations.
+  private static double addNorm2(Vec x, double sx, Vec y, double sy) {
+    if (x instanceof VecFused)
+      return ((VecFused)x).addNorm2(sx,y,sy);
+    x.add(sx,y,sy);
+    return x.norm2();
+  }
+
+  // Returns clones of all vectors in the block x.
+  private static Vec[] clone(Vec[] x) {
+    int nk = x.length;
+    Vec[] y = new Vec[nk];
+    for (int ik=0; ik<nk; ++ik)
+      y[ik] = x[ik].clone();
+    return y;
+  }
+
+  // Returns the L2 norms of all vectors in the block x.
+  private static double[] norm2(Vec[] x) {
+    int nk = x.length;
+    double[] xnorms = new double[nk];
+    for (int ik=0; ik<nk; ++ik)
+      xnorms[ik] = x[ik].norm2();
+    return xnorms;
+  }
+
+  // Returns the square root of the sum of squared norms.
+  private static double norm2(double[] xnorms) {
+    double sum = 0.0;
+    for (double xnorm:xnorms)
+      sum += xnorm*xnorm;
+    return Math.sqrt(sum);
+  }
+
+  // Returns the symmetric matrix of dot products x'y, where the product
+  // y'x is assumed to equal x'y, as when y = Ax for symmetric A.
+  private static double[][] dot(Vec[] x, Vec[] y) {
+    int nk = x.length;
+    double[][] xy = new double[nk][nk];
+    for (int ik=0; ik<nk; ++ik) {
+      for (int jk=ik; jk<nk; ++jk) {
+        xy[ik][jk] = x[ik].dot(y[jk]);
+        xy[jk][ik] = xy[ik][jk];
+      }
+    }
+    return xy;
+  }
+
+  // Updates the block y = y+x*c*s, for a small matrix c and scale factor s.
+  private static void add(Vec[] y, Vec[] x, double[][] c, double s) {
+    int nk = y.length;
+    for (int jk=0; jk<nk; ++jk)
+      for (int ik=0; ik<nk; ++ik)
+        y[jk].add(1.0,x[ik],c[ik][jk]*s);
+  }
+
+  // Returns true if residuals are small for all vectors in a block.
+  private boolean small(
+    double anorm, double[] bnorms, double[] rnorms, double[] xnorms) 
+  {
+    int nk = bnorms.length;
+    for (int ik=0; ik<nk; ++ik) {
+      if (rnorms[ik]>_tiny*(anorm*xnorms[ik]+bnorms[ik]))
+        return false;
+    }
+    return true;
+  }
+
+  // Returns the solution x of the small symmetric system ax = b. If the
+  // matrix a is singular or nearly so, as when search directions in block 
+  // CG become linearly dependent, returns the minimum-norm solution.
+  private static double[][] solveSym(double[][] a, double[][] b) {
+    int n = a.length;
+    int m = b[0].length;
+    double[][] v = new double[n][n];
+    double[] e = new double[n];
+    eigenSym(a,v,e);
+    double emax = 0.0;
+    for (int i=0; i<n; ++i)
+      emax = Math.max(emax,Math.abs(e[i]));
+    double etiny = 1.0e-6*emax;
+    double[][] x = new double[n][m];
+    for (int k=0; k<n; ++k) {
+      if (Math.abs(e[k])<=etiny) continue;
+      for (int j=0; j<m; ++j) {
+        double vb = 0.0;
+        for (int i=0; i<n; ++i)
+          vb += v[i][k]*b[i][j];
+        vb /= e[k];
+        for (int i=0; i<n; ++i)
+          x[i][j] += v[i][k]*vb;
+      }
+    }
+    return x;
+  }
+
+  // Computes eigenvectors v and eigenvalues e of a small symmetric matrix 
+  // a, using cyclic Jacobi rotations. Eigenvectors are the columns of v.
+  static void eigenSym(double[][] a, double[][] v, double[] e) {
+    int n = a.length;
+    double[][] b = new double[n][];
+    for (int i=0; i<n; ++i) {
+      b[i] = a[i].clone();
+      for (int j=0; j<n; ++j)
+        v[i][j] = (i==j)?1.0:0.0;
+    }
+    for (int sweep=0; sweep<50; ++sweep) {
+      double off = 0.0;
+      for (int i=0; i<n; ++i)
+        for (int j=i+1; j<n; ++j)
+          off += b[i][j]*b[i][j];
+      if (off==0.0) break;
+      for (int p=0; p<n; ++p) {
+        for (int q=p+1; q<n; ++q) {
+          double bpq = b[p][q];
+          if (bpq==0.0) continue;
+          double theta = 0.5*(b[q][q]-b[p][p])/bpq;
+          double t = 1.0/(Math.abs(theta)+Math.sqrt(theta*theta+1.0));
+          if (theta<0.0) t = -t;
+          double c = 1.0/Math.sqrt(t*t+1.0);
+          double s = t*c;
+          for (int k=0; k<n; ++k) {
+            double bkp = b[k][p];
+            double bkq = b[k][q];
+            b[k][p] = c*bkp-s*bkq;
+            b[k][q] = s*bkp+c*bkq;
+          }
+          for (int k=0; k<n; ++k) {
+            double bpk = b[p][k];
+            double bqk = b[q][k];
+            b[p][k] = c*bpk-s*bqk;
+            b[q][k] = s*bpk+c*bqk;
+          }
+          for (int k=0; k<n; ++k) {
+            double vkp = v[k][p];
+            double vkq = v[k][q];
+            v[k][p] = c*vkp-s*vkq;
+            v[k][q] = s*vkp+c*vkq;
+          }
+        }
+      }
+    }
+    for (int i=0; i<n; ++i)
+      e[i] = b[i][i];
+  }
+
+  // Returns the norm sqrt(r'Mr) for the dot product r's = r'Mr.
+  private static double rmnorm(double rsnorm) {
+    return Math.sqrt(Math.max(0.0,rsnorm));
+  }
+
+  // Returns the Frobenius norm sqrt(trace(R'MR)) for the matrix R'S = R'MR.
+  private static double rmnorm(double[][] rs) {
+    return rmnorm(trace(rs));
+  }
+
+  // Returns info updated by userStop in each iteration, if a stopper is
+  // specified, so that iterations allocate no info; null, otherwise.
+  private static Info userInfo(Stopper stopper) {
+    return (stopper!=null)?new Info(Stop.USER,0,0.0,0.0,0.0):null;
+  }
 
   // Returns non-null info if user stops CG iterations.
-  private Info userStop(
-    Stopper stopper, int iter, double bnorm, double rnorm)
+  private static Info userStop(
+    Stopper stopper, Info info, 
+    int iter, double bnorm, double rnorm, double rmnorm)
   {
-    Info info = null;
-    if (stopper!=null) {
-      info = new Info(Stop.USER,iter,bnorm,rnorm);
-      if (!stopper.stop(info))
-        info = null;
+    if (stopper==null)
+      return null;
+    info.niter = iter;
+    info.bnorm = bnorm;
+    info.rnorm = rnorm;
+    info.rmnorm = rmnorm;
+    return (stopper.stop(info))?info:null;
+  }
+
+  // Returns the trace of the matrix R'S = R'MR.
+  private static double trace(double[][] rs) {
+    double sum = 0.0;
+    for (int ik=0; ik<rs.length; ++ik)
+      sum += rs[ik][ik];
+    return sum;
+  }
+
+  // Applies the operator A, timing it if any listener is attached.
+  private void apply(A a, Vec x, Vec y) {
+    if (_listeners.length==0) {
+      a.apply(x,y);
+    } else {
+      long t = System.nanoTime();
+      a.apply(x,y);
+      _times.apply += System.nanoTime()-t;
+    }
+  }
+  private void apply(BlockA a, Vec[] x, Vec[] y) {
+    if (_listeners.length==0) {
+      a.apply(x,y);
+    } else {
+      long t = System.nanoTime();
+      a.apply(x,y);
+      _times.apply += System.nanoTime()-t;
+    }
+  }
+
+  // Computes y = Ax and returns x'y. Uses a single pass over vector 
+  // elements if A supports the fused dot product.
+  private double applyDot(A a, Vec x, Vec y) {
+    if (!(a instanceof FusedA)) {
+      apply(a,x,y);
+      return x.dot(y);
+    }
+    FusedA fa = (FusedA)a;
+    if (_listeners.length==0)
+      return fa.applyDot(x,y);
+    long t = System.nanoTime();
+    double xy = fa.applyDot(x,y);
+    _times.apply += System.nanoTime()-t;
+    return xy;
+  }
+
+  // Applies the preconditioner M, timing it if any listener is attached.
+  private void precondition(A m, Vec x, Vec y) {
+    if (_listeners.length==0) {
+      m.apply(x,y);
+    } else {
+      long t = System.nanoTime();
+      m.apply(x,y);
+      _times.precondition += System.nanoTime()-t;
     }
+  }
+  private void precondition(BlockA m, Vec[] x, Vec[] y) {
+    if (_listeners.length==0) {
+      m.apply(x,y);
+    } else {
+      long t = System.nanoTime();
+      m.apply(x,y);
+      _times.precondition += System.nanoTime()-t;
+    }
+  }
+
+  // Returns the number of elements in a vector; zero, if unknown.
+  private static long cells(Vec x) {
+    if (x instanceof VecArrayFloat2) {
+      VecArrayFloat2 v = (VecArrayFloat2)x;
+      return (long)v.getN1()*v.getN2();
+    } else if (x instanceof VecArrayFloat3) {
+      VecArrayFloat3 v = (VecArrayFloat3)x;
+      return (long)v.getN1()*v.getN2()*v.getN3();
+    } else if (x instanceof VecBufferFloat3) {
+      return ((VecBufferFloat3)x).getSize();
+    } else {
+      return 0L;
+    }
+  }
+  private static long cells(Vec[] x) {
+    long n = 0L;
+    for (Vec xk:x)
+      n += cells(xk);
+    return n;
+  }
+
+  // Notification of listeners.
+  private void begin() {
+    if (_listeners.length>0) {
+      _times.total = System.nanoTime();
+      _times.apply = 0L;
+      _times.precondition = 0L;
+    }
+  }
+  private Info done(Info info, Vec x) {
+    if (_listeners.length>0)
+      done(info,cells(x));
     return info;
   }
+  private Info done(Info info, Vec[] x) {
+    if (_listeners.length>0)
+      done(info,cells(x));
+    return info;
+  }
+  private void done(Info info, long cells) {
+    _times.total = System.nanoTime()-_times.total;
+    _times.cells = cells;
+    for (Listener listener:_listeners)
+      listener.done(info,_times);
+  }
 
   // Logging.
   private static Logger _log = 
     Logger.getLogger(CgSolver.class.getName());
   private static void logInit(double bnorm, double rnorm) {
-    String s = String.format("begin: bnorm=%1.8g rnorm=%1.8g%n",bnorm,rnorm);
-    _log.fine(s);
+    if (_log.isLoggable(Level.FINE)) {
+      String s = 
+        String.format("begin: bnorm=%1.8g rnorm=%1.8g%n",bnorm,rnorm);
+      _log.fine(s);
+    }
   }
-  private static void logIter(int iter, double rnorm) {
-    String s = String.format("iter=%d rnorm=%1.8g%n",iter,rnorm);
-    _log.finer(s);
+  private void logIter(int iter, double rnorm, double rsnorm) {
+    for (Listener listener:_listeners)
+      listener.iterate(iter,rnorm,rsnorm);
+    if (_log.isLoggable(Level.FINER)) {
+      String s = String.format("iter=%d rnorm=%1.8g%n",iter,rnorm);
+      _log.finer(s);
+    }
   }
   private static void logDone(int iter, double rnorm) {
-    String s = String.format("end: iter=%d rnorm=%1.8g%n",iter,rnorm);
-    _log.fine(s);
+    if (_log.isLoggable(Level.FINE)) {
+      String s = String.format("end: iter=%d rnorm=%1.8g%n",iter,rnorm);
+      _log.fine(s);
+    }
   }
 
   private static void writeFile(String filename, float[][][] f) {
@@ -0,0 +1,133 @@
+package igi;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of CG solves, aggregated for monitoring with JMX.
+ * Statistics may be collected for any number of solvers, in any number 
+ * of threads, by adding the same instance as a listener to each solver.
+ * <p>
+ * Example: 
+ * <pre><code>
+ * CgSolverStats stats = new CgSolverStats();
+ * stats.register("interp");
+ * cg.addListener(stats);
+ * </code></pre>
+ */
+public class CgSolverStats implements CgSolverStatsMBean, CgSolver.Listener {
+
+  /**
+   * Registers these statistics with the platform MBean server, with
+   * object name "igi:type=CgSolverStats,name=" followed by the specified
+   * name.
+   * @param name the name of these statistics.
+   */
+  public void register(String name) {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      mbs.registerMBean(this,objectName(name));
+    } catch (JMException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Unregisters these statistics from the platform MBean server.
+   * @param name the name with which these statistics were registered.
+   */
+  public void unregister(String name) {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      mbs.unregisterMBean(objectName(name));
+    } catch (JMException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public void iterate(int iter, double rnorm, double rsnorm) {
+  }
+
+  public synchronized void done(CgSolver.Info info, CgSolver.Times times) {
+    int niter = info.niter;
+    ++_nsolve;
+    _niter += niter;
+    ++_hist[bin(niter)];
+    _total += times.total;
+    _apply += times.apply;
+    _precondition += times.precondition;
+    if (times.cells>0) {
+      _cells += times.cells*niter;
+      _cellsTotal += times.total;
+    }
+  }
+
+  public synchronized long getSolveCount() {
+    return _nsolve;
+  }
+
+  public synchronized long getIterationCount() {
+    return _niter;
+  }
+
+  public synchronized long[] getIterationHistogram() {
+    return _hist.clone();
+  }
+
+  public synchronized double getTotalSeconds() {
+    return _total*1.0e-9;
+  }
+
+  public synchronized double getApplySeconds() {
+    return _apply*1.0e-9;
+  }
+
+  public synchronized double getPreconditionSeconds() {
+    return _precondition*1.0e-9;
+  }
+
+  public synchronized double getVectorSeconds() {
+    return (_total-_apply-_precondition)*1.0e-9;
+  }
+
+  public synchronized double getCellsPerSecond() {
+    return (_cellsTotal>0)?_cells/(_cellsTotal*1.0e-9):0.0;
+  }
+
+  public synchronized void reset() {
+    _nsolve = 0;
+    _niter = 0;
+    _hist = new long[NBIN];
+    _total = 0;
+    _apply = 0;
+    _precondition = 0;
+    _cells = 0;
+    _cellsTotal = 0;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NBIN = 16; // number of histogram bins
+
+  private long _nsolve; // number of solves
+  private long _niter; // number of iterations
+  private long[] _hist = new long[NBIN]; // histogram of iterations
+  private long _total; // total nanoseconds
+  private long _apply; // nanoseconds in operators A
+  private long _precondition; // nanoseconds in preconditioners M
+  private long _cells; // cells updated in solves of known size
+  private long _cellsTotal; // nanoseconds in solves of known size
+
+  // Returns the histogram bin for a number of iterations.
+  private static int bin(int niter) {
+    int ibin = 32-Integer.numberOfLeadingZeros(niter);
+    return Math.min(ibin,NBIN-1);
+  }
+
+  private static ObjectName objectName(String name) throws JMException {
+    return new ObjectName("igi:type=CgSolverStats,name="+name);
+  }
+}
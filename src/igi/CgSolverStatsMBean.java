@@ -0,0 +1,65 @@
+package igi;
+
+/**
+ * Management interface for statistics of CG solves.
+ */
+public interface CgSolverStatsMBean {
+
+  /**
+   * Gets the number of solves completed.
+   * @return the number of solves.
+   */
+  public long getSolveCount();
+
+  /**
+   * Gets the total number of iterations in all solves.
+   * @return the number of iterations.
+   */
+  public long getIterationCount();
+
+  /**
+   * Gets the histogram of iterations per solve. Bin 0 counts solves 
+   * with zero iterations, and bin i &gt; 0 counts solves with at least 
+   * 2^(i-1) and less than 2^i iterations. The last bin counts all solves
+   * with more iterations.
+   * @return array of counts.
+   */
+  public long[] getIterationHistogram();
+
+  /**
+   * Gets the total time spent in solves, in seconds.
+   * @return the total time.
+   */
+  public double getTotalSeconds();
+
+  /**
+   * Gets the time spent in applying operators A, in seconds.
+   * @return the time spent in operators.
+   */
+  public double getApplySeconds();
+
+  /**
+   * Gets the time spent in applying preconditioners M, in seconds.
+   * @return the time spent in preconditioners.
+   */
+  public double getPreconditionSeconds();
+
+  /**
+   * Gets the time spent in vector operations, in seconds.
+   * @return the time spent in vector operations.
+   */
+  public double getVectorSeconds();
+
+  /**
+   * Gets the throughput, in cells updated per second. Each iteration 
+   * updates all cells of the solution vector. Solves for vectors of 
+   * unknown size are excluded.
+   * @return the throughput.
+   */
+  public double getCellsPerSecond();
+
+  /**
+   * Resets all statistics to zero.
+   */
+  public void reset();
+}
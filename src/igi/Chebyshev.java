@@ -0,0 +1,198 @@
+package igi;
+
+/**
+ * Chebyshev polynomial preconditioner. Each application of this
+ * preconditioner computes y = p(MA)Mx, where A is a symmetric positive
+ * definite operator, M is a simple inner preconditioner, and p is the
+ * polynomial of specified degree for which p(e)e best approximates one,
+ * in the Chebyshev sense, for eigenvalues e of MA in an interval [emin,emax].
+ * The polynomial is evaluated with the three-term recurrence of Chebyshev
+ * iterations, beginning with y = 0, so that each application requires
+ * degree applications of A and degree+1 applications of M, but no dot
+ * products or other global reductions. The cost of each application is
+ * therefore fixed, and parallel scaling is that of the operators A and M.
+ * <p>
+ * For image-guided interpolation, A is the interpolation operator and M
+ * zeros values at known points, so that p(MA)M is symmetric and positive
+ * definite for vectors with zeros at known points, as required for
+ * preconditioning in a CG solver.
+ * <p>
+ * Unless specified, the interval [emin,emax] is estimated when this
+ * preconditioner is first applied, with a few CG iterations for A and M
+ * that begin with the input vector. To ensure that the preconditioner
+ * is positive definite, the upper bound emax is the largest estimated
+ * eigenvalue increased by ten percent.
+ * <p>
+ * For a block of vectors, if A and M are also block operators, each step
+ * of the recurrence is applied to all vectors together, so that A and M
+ * may use each coefficient for all vectors in one pass.
+ */
+public class Chebyshev implements CgSolver.A, CgSolver.BlockA {
+
+  /**
+   * Constructs a preconditioner.
+   * @param a the operator A.
+   * @param m the inner preconditioner M; null, for none.
+   * @param degree the degree of the polynomial.
+   */
+  public Chebyshev(CgSolver.A a, CgSolver.A m, int degree) {
+    _a = a;
+    _m = m;
+    _degree = degree;
+  }
+
+  /**
+   * Sets the number of CG iterations used to estimate eigenvalues.
+   * The default is 10.
+   * @param niter number of iterations.
+   */
+  public void setLanczosIterations(int niter) {
+    _nlanczos = niter;
+  }
+
+  /**
+   * Sets the interval of eigenvalues of MA for this preconditioner.
+   * The polynomial is positive for all eigenvalues less than emax, and
+   * is therefore positive definite only if emax is no less than the
+   * largest eigenvalue.
+   * @param emin lower bound, which must be positive.
+   * @param emax upper bound, which must exceed the lower bound.
+   */
+  public void setBounds(double emin, double emax) {
+    _emin = emin;
+    _emax = emax;
+  }
+
+  /**
+   * Gets the interval of eigenvalues of MA for this preconditioner.
+   * @return array {emin,emax}; zeros, if not yet specified or estimated.
+   */
+  public double[] getBounds() {
+    return new double[]{_emin,_emax};
+  }
+
+  public void apply(Vec vx, Vec vy) {
+    if (_emax==0.0)
+      estimateBounds(vx);
+    if (!(_emax>0.0)) {
+      precondition(vx,vy);
+      return;
+    }
+    if (_r==null) {
+      _r = vx.clone();
+      _z = vx.clone();
+      _d = vx.clone();
+      _q = vx.clone();
+    }
+    boolean half = vy instanceof VecArrayHalf3;
+    if (half && _y==null)
+      _y = vx.clone();
+    Vec y = (half)?_y:vy;
+    double theta = 0.5*(_emax+_emin); // center of interval
+    double delta = 0.5*(_emax-_emin); // half-width of interval
+    double sigma = theta/delta;
+    double rho = 1.0/sigma;
+    _r.add(0.0,vx,1.0); // r = x
+    precondition(_r,_z); // z = Mr
+    _d.add(0.0,_z,1.0/theta); // d = z/theta
+    y.add(0.0,_d,1.0); // y = d
+    for (int k=0; k<_degree; ++k) {
+      _a.apply(_d,_q); // q = Ad
+      _r.add(1.0,_q,-1.0); // r = r-Ad = x-Ay
+      precondition(_r,_z); // z = Mr
+      double rhoNew = 1.0/(2.0*sigma-rho);
+      _d.add(rhoNew*rho,_z,2.0*rhoNew/delta); // next search direction
+      y.add(1.0,_d,1.0); // y = y+d
+      rho = rhoNew;
+    }
+    if (half)
+      vy.add(0.0,y,1.0);
+  }
+
+  public void apply(Vec[] vx, Vec[] vy) {
+    int nk = vx.length;
+    if (!(_a instanceof CgSolver.BlockA) || 
+        _m!=null && !(_m instanceof CgSolver.BlockA)) {
+      for (int ik=0; ik<nk; ++ik)
+        apply(vx[ik],vy[ik]);
+      return;
+    }
+    if (_emax==0.0)
+      estimateBounds(vx[0]);
+    if (!(_emax>0.0)) {
+      precondition(vx,vy);
+      return;
+    }
+    if (_rk==null || _rk.length!=nk) {
+      _rk = new Vec[nk];
+      _zk = new Vec[nk];
+      _dk = new Vec[nk];
+      _qk = new Vec[nk];
+      for (int ik=0; ik<nk; ++ik) {
+        _rk[ik] = vx[ik].clone();
+        _zk[ik] = vx[ik].clone();
+        _dk[ik] = vx[ik].clone();
+        _qk[ik] = vx[ik].clone();
+      }
+    }
+    double theta = 0.5*(_emax+_emin); // center of interval
+    double delta = 0.5*(_emax-_emin); // half-width of interval
+    double sigma = theta/delta;
+    double rho = 1.0/sigma;
+    for (int ik=0; ik<nk; ++ik)
+      _rk[ik].add(0.0,vx[ik],1.0); // r = x
+    precondition(_rk,_zk); // z = Mr
+    for (int ik=0; ik<nk; ++ik) {
+      _dk[ik].add(0.0,_zk[ik],1.0/theta); // d = z/theta
+      vy[ik].add(0.0,_dk[ik],1.0); // y = d
+    }
+    for (int k=0; k<_degree; ++k) {
+      ((CgSolver.BlockA)_a).apply(_dk,_qk); // q = Ad
+      for (int ik=0; ik<nk; ++ik)
+        _rk[ik].add(1.0,_qk[ik],-1.0); // r = r-Ad = x-Ay
+      precondition(_rk,_zk); // z = Mr
+      double rhoNew = 1.0/(2.0*sigma-rho);
+      for (int ik=0; ik<nk; ++ik) {
+        _dk[ik].add(rhoNew*rho,_zk[ik],2.0*rhoNew/delta); // next direction
+        vy[ik].add(1.0,_dk[ik],1.0); // y = y+d
+      }
+      rho = rhoNew;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final double EMAX_SCALE = 1.1; // safety for upper bound
+
+  private CgSolver.A _a; // the operator A
+  private CgSolver.A _m; // the inner preconditioner M; null, for none
+  private int _degree; // degree of polynomial
+  private int _nlanczos = 10; // CG iterations for eigenvalue estimates
+  private double _emin,_emax; // bounds of interval of eigenvalues
+  private Vec _r,_z,_d,_q,_y; // work vectors
+  private Vec[] _rk,_zk,_dk,_qk; // work vectors for a block
+
+  private void precondition(Vec r, Vec z) {
+    if (_m!=null) {
+      _m.apply(r,z);
+    } else {
+      z.add(0.0,r,1.0);
+    }
+  }
+  private void precondition(Vec[] r, Vec[] z) {
+    if (_m!=null) {
+      ((CgSolver.BlockA)_m).apply(r,z);
+    } else {
+      for (int ik=0; ik<r.length; ++ik)
+        z[ik].add(0.0,r[ik],1.0);
+    }
+  }
+
+  // Estimates eigenvalue bounds with CG iterations beginning with x.
+  private void estimateBounds(Vec x) {
+    double[] e = CgSolver.estimateEigenvalues(_a,_m,x,_nlanczos);
+    _emax = EMAX_SCALE*e[1];
+    _emin = Math.min(e[0],0.5*_emax);
+  }
+}
@@ -0,0 +1,366 @@
+package igi;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * Exact Euclidean distance transforms for initial guesses of interpolation.
+ * For each sample of an image, the transform finds the nearest sample with
+ * known points, so that the image can begin with the values of the nearest
+ * known points.
+ * <p>
+ * The transform is separable, with one pass for each dimension. Each pass
+ * computes, for every line of samples in that dimension, the lower envelope
+ * of parabolas centered on samples with finite squared distances from the
+ * previous pass, as described by Felzenszwalb and Huttenlocher (2012,
+ * Distance transforms of sampled functions). Each pass is linear in the
+ * number of samples, and lines are processed in parallel. The nearest
+ * sample is carried with squared distances, so that one transform serves
+ * any number of properties known at the same points.
+ * <p>
+ * If weights are specified, samples with zero weights and no known points
+ * are barriers. Lines in each pass are then split into segments between
+ * barriers, so that values do not propagate across faults along the
+ * dimensions of the passes. Samples not reached by any known point are
+ * assigned the nearest known point without barriers.
+ */
+class DistanceTransform {
+
+  /**
+   * Returns an image of values of the nearest known points in 2D.
+   * @param kp the index of known points.
+   * @param fx values at the known points.
+   * @param w weights; zeros for barriers; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @return array[n2][n1] of values.
+   */
+  static float[][] nearest(
+    KnownPoints kp, float[] fx, float[][] w, int n1, int n2)
+  {
+    float[][] y = new float[n2][n1];
+    values(kp,fx,features(kp,w,n1,n2),y);
+    return y;
+  }
+
+  /**
+   * Returns an image of values of the nearest known points in 3D.
+   * @param kp the index of known points.
+   * @param fx values at the known points.
+   * @param w weights; zeros for barriers; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   * @return array[n3][n2][n1] of values.
+   */
+  static float[][][] nearest(
+    KnownPoints kp, float[] fx, float[][][] w, int n1, int n2, int n3)
+  {
+    float[][][] y = new float[n3][n2][n1];
+    values(kp,fx,features(kp,w,n1,n2,n3),y);
+    return y;
+  }
+
+  /**
+   * Returns the nearest samples with known points in 2D.
+   * @param kp the index of known points.
+   * @param w weights; zeros for barriers; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @return array[n2][n1] of indices of samples with known points, in
+   *  the order of the index; -1, if there are no known points.
+   */
+  static int[][] features(KnownPoints kp, float[][] w, int n1, int n2) {
+    double[][] d = new double[n2][n1];
+    int[][] g = seeds(kp,n1,n2);
+    transform(w,d,g);
+    if (w!=null && kp.getSampleCount()>0 && min(g)<0) {
+      int[][] h = seeds(kp,n1,n2);
+      transform(null,d,h);
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          if (g[i2][i1]<0)
+            g[i2][i1] = h[i2][i1];
+        }
+      }
+    }
+    return g;
+  }
+
+  /**
+   * Returns the nearest samples with known points in 3D.
+   * @param kp the index of known points.
+   * @param w weights; zeros for barriers; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   * @return array[n3][n2][n1] of indices of samples with known points,
+   *  in the order of the index; -1, if there are no known points.
+   */
+  static int[][][] features(
+    KnownPoints kp, float[][][] w, int n1, int n2, int n3)
+  {
+    double[][][] d = new double[n3][n2][n1];
+    int[][][] g = seeds(kp,n1,n2,n3);
+    transform(w,d,g);
+    if (w!=null && kp.getSampleCount()>0 && min(g)<0) {
+      int[][][] h = seeds(kp,n1,n2,n3);
+      transform(null,d,h);
+      for (int i3=0; i3<n3; ++i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          for (int i1=0; i1<n1; ++i1) {
+            if (g[i3][i2][i1]<0)
+              g[i3][i2][i1] = h[i3][i2][i1];
+          }
+        }
+      }
+    }
+    return g;
+  }
+
+  /**
+   * Sets values of the nearest known points in a 2D image.
+   * @param kp the index of known points.
+   * @param fx values at the known points.
+   * @param g nearest samples with known points.
+   * @param y the image; zero where there are no known points.
+   */
+  static void values(
+    KnownPoints kp, float[] fx, final int[][] g, final float[][] y)
+  {
+    final float[] fs = kp.merge(fx);
+    int n2 = y.length;
+    loop(n2,new LoopInt() {
+    public void compute(int i2) {
+      values(fs,g[i2],y[i2]);
+    }});
+  }
+
+  /**
+   * Sets values of the nearest known points in a 3D image.
+   * @param kp the index of known points.
+   * @param fx values at the known points.
+   * @param g nearest samples with known points.
+   * @param y the image; zero where there are no known points.
+   */
+  static void values(
+    KnownPoints kp, float[] fx, final int[][][] g, final float[][][] y)
+  {
+    final float[] fs = kp.merge(fx);
+    final int n2 = y[0].length;
+    int n3 = y.length;
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2)
+        values(fs,g[i3][i2],y[i3][i2]);
+    }});
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Squared distances are doubles, which represent exactly all squared
+  // distances between samples of images with fewer than 2^26 samples in
+  // each dimension; floats would be exact only for distances less than
+  // 2^12 samples.
+  private static final double INF = Double.POSITIVE_INFINITY;
+
+  // Work arrays for lines of n samples.
+  private static class Line {
+    Line(int n) {
+      f = new double[n];
+      h = new double[n];
+      g = new int[n];
+      e = new int[n];
+      v = new int[n];
+      z = new double[n+1];
+      b = new boolean[n];
+    }
+    double[] f,h; // squared distances, before and after
+    int[] g,e; // nearest samples, before and after
+    int[] v; // centers of parabolas in the lower envelope
+    double[] z; // boundaries of parabolas in the lower envelope
+    boolean[] b; // true, for barriers
+  }
+
+  // Sets values for one line of samples.
+  private static void values(float[] fs, int[] g, float[] y) {
+    int n = y.length;
+    for (int i=0; i<n; ++i)
+      y[i] = (g[i]>=0)?fs[g[i]]:0.0f;
+  }
+
+  // Returns nearest samples, -1 except at samples with known points.
+  private static int[][] seeds(KnownPoints kp, int n1, int n2) {
+    int[][] g = fillint(-1,n1,n2);
+    int[][] k = kp.getSampleIndices();
+    int ns = kp.getSampleCount();
+    for (int is=0; is<ns; ++is)
+      g[k[1][is]][k[0][is]] = is;
+    return g;
+  }
+  private static int[][][] seeds(KnownPoints kp, int n1, int n2, int n3) {
+    int[][][] g = fillint(-1,n1,n2,n3);
+    int[][] k = kp.getSampleIndices();
+    int ns = kp.getSampleCount();
+    for (int is=0; is<ns; ++is)
+      g[k[2][is]][k[1][is]][k[0][is]] = is;
+    return g;
+  }
+
+  // Transform of a 2D image with seeds g; on return, d contains squared
+  // distances and g the nearest seeds.
+  private static void transform(
+    final float[][] w, final double[][] d, final int[][] g)
+  {
+    final int n2 = g.length;
+    final int n1 = g[0].length;
+    loop(n2,new LoopInt() {
+    public void compute(int i2) {
+      Line l = new Line(n1);
+      for (int i1=0; i1<n1; ++i1) {
+        l.g[i1] = g[i2][i1];
+        l.f[i1] = (l.g[i1]>=0)?0.0:INF;
+        l.b[i1] = w!=null && w[i2][i1]<=0.0f && l.g[i1]<0;
+      }
+      envelope(n1,l);
+      copy(l.h,d[i2]);
+      copy(l.e,g[i2]);
+    }});
+    int nc = (n1+NCOLUMN-1)/NCOLUMN;
+    loop(nc,new LoopInt() {
+    public void compute(int ic) {
+      Line l = new Line(n2);
+      for (int i1=ic*NCOLUMN; i1<min(n1,(ic+1)*NCOLUMN); ++i1) {
+        for (int i2=0; i2<n2; ++i2) {
+          l.f[i2] = d[i2][i1];
+          l.g[i2] = g[i2][i1];
+          l.b[i2] = w!=null && w[i2][i1]<=0.0f && l.f[i2]!=0.0;
+        }
+        envelope(n2,l);
+        for (int i2=0; i2<n2; ++i2) {
+          d[i2][i1] = l.h[i2];
+          g[i2][i1] = l.e[i2];
+        }
+      }
+    }});
+  }
+
+  // Transform of a 3D image with seeds g; on return, d contains squared
+  // distances and g the nearest seeds.
+  private static void transform(
+    final float[][][] w, final double[][][] d, final int[][][] g)
+  {
+    final int n3 = g.length;
+    final int n2 = g[0].length;
+    final int n1 = g[0][0].length;
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      Line l1 = new Line(n1);
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          l1.g[i1] = g[i3][i2][i1];
+          l1.f[i1] = (l1.g[i1]>=0)?0.0:INF;
+          l1.b[i1] = w!=null && w[i3][i2][i1]<=0.0f && l1.g[i1]<0;
+        }
+        envelope(n1,l1);
+        copy(l1.h,d[i3][i2]);
+        copy(l1.e,g[i3][i2]);
+      }
+      Line l2 = new Line(n2);
+      for (int i1=0; i1<n1; ++i1) {
+        for (int i2=0; i2<n2; ++i2) {
+          l2.f[i2] = d[i3][i2][i1];
+          l2.g[i2] = g[i3][i2][i1];
+          l2.b[i2] = w!=null && w[i3][i2][i1]<=0.0f && l2.f[i2]!=0.0;
+        }
+        envelope(n2,l2);
+        for (int i2=0; i2<n2; ++i2) {
+          d[i3][i2][i1] = l2.h[i2];
+          g[i3][i2][i1] = l2.e[i2];
+        }
+      }
+    }});
+    loop(n2,new LoopInt() {
+    public void compute(int i2) {
+      Line l = new Line(n3);
+      for (int i1=0; i1<n1; ++i1) {
+        for (int i3=0; i3<n3; ++i3) {
+          l.f[i3] = d[i3][i2][i1];
+          l.g[i3] = g[i3][i2][i1];
+          l.b[i3] = w!=null && w[i3][i2][i1]<=0.0f && l.f[i3]!=0.0;
+        }
+        envelope(n3,l);
+        for (int i3=0; i3<n3; ++i3) {
+          d[i3][i2][i1] = l.h[i3];
+          g[i3][i2][i1] = l.e[i3];
+        }
+      }
+    }});
+  }
+
+  private static final int NCOLUMN = 64; // columns per task in 2D
+
+  // Lower envelope of parabolas for one line of n samples. For each
+  // sample q, computes h[q] = min (q-p)^2+f[p] over samples p in the same
+  // segment between barriers, and e[q] = g[p] for the minimizing p.
+  // Barriers keep their squared distances and nearest samples.
+  private static void envelope(int n, Line l) {
+    double[] f = l.f, h = l.h;
+    int[] g = l.g, e = l.e, v = l.v;
+    double[] z = l.z;
+    boolean[] b = l.b;
+    for (int a=0,c; a<n; a=c) {
+      if (b[a]) {
+        h[a] = f[a];
+        e[a] = g[a];
+        c = a+1;
+        continue;
+      }
+      for (c=a+1; c<n && !b[c]; ++c);
+      int k = -1;
+      for (int q=a; q<c; ++q) {
+        if (f[q]==INF)
+          continue;
+        if (k<0) {
+          k = 0;
+          v[0] = q;
+          z[0] = Double.NEGATIVE_INFINITY;
+          z[1] = Double.POSITIVE_INFINITY;
+          continue;
+        }
+        double fq = f[q]+(double)q*q;
+        double s = intersect(fq,q,f,v[k]);
+        while (s<=z[k]) {
+          --k;
+          s = intersect(fq,q,f,v[k]);
+        }
+        ++k;
+        v[k] = q;
+        z[k] = s;
+        z[k+1] = Double.POSITIVE_INFINITY;
+      }
+      if (k<0) {
+        for (int q=a; q<c; ++q) {
+          h[q] = INF;
+          e[q] = -1;
+        }
+      } else {
+        k = 0;
+        for (int q=a; q<c; ++q) {
+          while (z[k+1]<q)
+            ++k;
+          int p = v[k];
+          h[q] = (double)(q-p)*(q-p)+f[p];
+          e[q] = g[p];
+        }
+      }
+    }
+  }
+
+  // Intersection of the parabola centered at q, with fq = f[q]+q*q, and
+  // the parabola centered at p < q.
+  private static double intersect(double fq, int q, double[] f, int p) {
+    return (fq-(f[p]+(double)p*p))/(2.0*(q-p));
+  }
+}
@@ -1,14 +1,24 @@
 package igi;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
 import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.util.*;
-import edu.mines.jtk.interp.*;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
  * Fast image-guided interpolation across faults by solving 
  * weighted anisotropic harmonic (Gaussian operator) 
  * and bi-harmonic (Laplacian operator) interpolation.
+ * <p>
+ * Each interpolator keeps its own known points and parameters, so that 
+ * interpolators may be used concurrently in different threads. One
+ * interpolator may also be used in different threads if its parameters 
+ * and listeners are not changed while interpolating.
  * @author Xinming Wu
  * @version 2015.06.07
  */
@@ -48,12 +58,22 @@ public class FastImageGuidedInterp {
    * Set balance parameter for the biharmonic/bilaplacian term.
    * use larger alpha for isotropic interpolation but 
    * smaller alpha for anisotropic interpolation.
+   * This parameter is used in 2D interpolation; the default is zero.
    * @param alpha balance parameter.
    */
   public void setBiharmonic(float alpha) {
     _alpha = alpha;
   }
 
+  /**
+   * Set balance parameter for the biharmonic/bilaplacian term in 3D 
+   * interpolation. The default is 50; zero, for harmonic interpolation.
+   * @param alpha balance parameter.
+   */
+  public void setBiharmonic3(float alpha) {
+    _alpha3 = alpha;
+  }
+
   /**
    * Set smoothing for preconditioning in a CG solver.
    * @param sigma smoother half-width.
@@ -72,6 +92,218 @@ public class FastImageGuidedInterp {
     _small = small;
   }
 
+  /**
+   * Set mixed precision for a CG solver in 3D interpolation.
+   * In mixed precision, the solver stores some vectors in 16-bit floats,
+   * to reduce memory and memory bandwidth required in 3D interpolation.
+   * @param mixed true, for mixed precision; false, otherwise.
+   */
+  public void setMixedPrecision(boolean mixed) {
+    _mixed = mixed;
+  }
+
+  /**
+   * Set multigrid preconditioning for a CG solver. With multigrid
+   * preconditioning, numbers of CG iterations grow slowly with image
+   * size, and the smoother half-width is not used.
+   * @param multigrid true, for multigrid; false, for smoothers.
+   */
+  public void setMultigrid(boolean multigrid) {
+    _multigrid = multigrid;
+  }
+
+  /**
+   * Set Chebyshev polynomial preconditioning for a CG solver. Polynomial
+   * preconditioners apply only the interpolation operator, without the 
+   * global reductions of smoothers, and each application has a fixed 
+   * cost. With Chebyshev preconditioning, the smoother half-width is not 
+   * used. Multigrid preconditioning, if set, takes precedence.
+   * The default degree is zero, for no polynomial preconditioning.
+   * @param degree degree of the Chebyshev polynomial.
+   */
+  public void setChebyshev(int degree) {
+    _chebyshev = degree;
+  }
+
+  /**
+   * Set polynomial smoothing for preconditioning with tensors or weights.
+   * With a positive degree, smoothers do not solve a linear system with
+   * a local smoothing filter in every CG iteration, but apply a fixed
+   * Chebyshev polynomial of that degree in a finite-element laplacian, so
+   * that the cost of preconditioning is bounded and predictable. Smoothers
+   * remain symmetric and positive definite for any degree. For multiple 
+   * properties, polynomial smoothing is applied to all properties together,
+   * so that each coefficient serves all properties, as in the operator; 
+   * local smoothing filters are applied to one property at a time.
+   * The default degree is zero, for local smoothing filters.
+   * @param degree degree of the polynomial; zero, for none.
+   */
+  public void setSmootherDegree(int degree) {
+    _sdegree = degree;
+  }
+
+  /**
+   * Set caching of tensor coefficients for the interpolation operator. 
+   * With caching, weighted tensor coefficients are computed once for each 
+   * solve and stored in packed arrays, in the order in which they are used
+   * in applying the operator, instead of being computed from tensors and
+   * weights in every CG iteration. Caching requires memory for three floats
+   * per sample in 2D and six floats per sample in 3D. In 3D, coefficients
+   * of polynomial smoothers are then also cached, which requires memory 
+   * for six more floats per sample; see {@link #setSmootherDegree(int)}.
+   * The default is false, for no caching.
+   * @param cache true, to cache coefficients; false, otherwise.
+   */
+  public void setCoefficientCache(boolean cache) {
+    _cache = cache;
+  }
+
+  /**
+   * Set off-heap vectors for 3D interpolation of single images. Vectors 
+   * used by the CG solver are then stored contiguously outside the Java 
+   * heap, so that images may be larger than the heap and need not have 
+   * fewer than 2^31 samples; only the input and output images remain on 
+   * the heap. Off-heap vectors are not used with multigrid, Schwarz or 
+   * cascadic solves. Because weights are always specified in 3D, 
+   * interpolation with off-heap vectors requires a polynomial smoother 
+   * or Chebyshev preconditioning; see {@link #setSmootherDegree(int)} and
+   * {@link #setChebyshev(int)}. Coefficients, which would be stored on
+   * the heap, must not be cached; see {@link #setCoefficientCache(boolean)}.
+   * Solves begin with known values and zeros elsewhere, not with nearest
+   * known values, for which a distance transform would require volumes on
+   * the heap.
+   * The default is false, for vectors of arrays on the heap.
+   * @param offHeap true, for vectors off heap; false, otherwise.
+   */
+  public void setOffHeap(boolean offHeap) {
+    _offHeap = offHeap;
+  }
+
+  /**
+   * Set out-of-core 3D interpolation of single images. Vectors used by 
+   * the CG solver and preconditioner are then stored off heap, as for 
+   * {@link #setOffHeap(boolean)}, and in temporary files mapped into 
+   * memory if their total size exceeds the specified threshold. Operators,
+   * preconditioners and vector operations access slices of these files in 
+   * order, so that pages are read ahead and written behind, and speed 
+   * depends on the bandwidth of the disk that contains the directory. 
+   * <p>
+   * The threshold only chooses between memory and files for all vectors;
+   * it does not bound the memory used. Pages of mapped files are kept in 
+   * memory by the operating system while memory is available, and the 
+   * weights, tensors and output image remain on the heap. As for off-heap
+   * vectors, a polynomial smoother or Chebyshev preconditioning is
+   * required, and coefficients must not be cached.
+   * The default directory is null, for no out-of-core interpolation.
+   * @param dir directory for temporary files; null, for none.
+   * @param threshold number of bytes of vectors above which vectors are
+   *  stored in files.
+   */
+  public void setOutOfCore(File dir, long threshold) {
+    _dir = dir;
+    _threshold = threshold;
+  }
+
+  /**
+   * Set overlapping domain decomposition for preconditioning a CG solver.
+   * The grid is split into subdomains that overlap their neighbors, and 
+   * subdomains are solved independently in parallel, with a coarse-grid 
+   * correction, in an additive Schwarz preconditioner; see 
+   * {@link Schwarz2} and {@link Schwarz3}. Domain decomposition takes 
+   * precedence over multigrid preconditioning.
+   * The default size is zero, for no domain decomposition.
+   * @param size number of samples in each dimension of subdomains, not 
+   *  including overlaps; zero, for no domain decomposition.
+   * @param overlap number of samples by which subdomains are extended on 
+   *  each side into their neighbors.
+   */
+  public void setDomainDecomposition(int size, int overlap) {
+    _dsize = size;
+    _doverlap = overlap;
+  }
+
+  /**
+   * Set the number of threads used in interpolation. Interpolation then
+   * runs in a pool of threads kept by this interpolator, and all parallel 
+   * loops in interpolation use only the threads in that pool.
+   * The default is zero, for parallel loops that use all processors.
+   * A pool with a different number of threads replaces the pool kept, 
+   * which is then shut down.
+   * @param nthread number of threads; zero, for all processors.
+   */
+  public void setThreads(int nthread) {
+    ForkJoinPool pool = _pool;
+    if (pool!=null && pool.getParallelism()==nthread)
+      return;
+    _pool = (nthread>0)?new ForkJoinPool(nthread):null;
+    if (pool!=null)
+      pool.shutdown();
+  }
+
+  /**
+   * Set cascadic solves, from coarse to fine grids. Each coarser grid has
+   * every other sample of the next finer grid in each dimension, with
+   * known points moved to the nearest samples. The result for each grid, 
+   * prolonged by linear interpolation, is the initial image for the next 
+   * finer grid. On the finest grid, CG iterations stop when residuals are 
+   * reduced by the fraction specified with {@link #setIters(int,float)} 
+   * of those for the initial image used without cascadic solves; and on
+   * coarser grids, when reduced by the fraction specified here. 
+   * Cascadic solves are used only for interpolation of single images.
+   * The default nlevel is zero, for no cascadic solves.
+   * @param nlevel maximum number of coarser grids.
+   * @param small stop iterations on coarser grids when residuals are 
+   *  reduced by this fraction.
+   */
+  public void setCascade(int nlevel, float small) {
+    _ncascade = nlevel;
+    _csmall = small;
+  }
+
+  /**
+   * Adds a listener to be notified of the progress of CG solvers.
+   * @param listener the listener.
+   */
+  public void addListener(CgSolver.Listener listener) {
+    _listeners.add(listener);
+  }
+
+  /**
+   * Removes a listener of CG solvers.
+   * @param listener the listener.
+   */
+  public void removeListener(CgSolver.Listener listener) {
+    _listeners.remove(listener);
+  }
+
+  /**
+   * Sets a stopper that can stop CG solvers in interpolation; for example,
+   * to cancel interpolation from another thread. If stopped, interpolation
+   * returns the image computed by the iterations completed. The stopper is
+   * not used in distributed interpolation, for which all processes must
+   * stop together. The default is null, for no stopper.
+   * @param stopper the stopper; null, for none.
+   */
+  public void setStopper(CgSolver.Stopper stopper) {
+    _stopper = stopper;
+  }
+
+  // Gets the stopper of CG solvers; null, if none.
+  CgSolver.Stopper getStopper() {
+    return _stopper;
+  }
+
+  // Returns an estimate of the bytes of memory used to interpolate one 
+  // image with n1*n2*n3 samples, excluding weights and tensors: vectors
+  // of the solver, including the output image, the work array of the 
+  // smoother, and packed coefficients, if cached. Polynomial smoothers
+  // also have coefficients, in 3D only if cached, and more work arrays.
+  long estimateBytes(int n1, int n2, int n3) {
+    int nc = (!_cache)?0:(n3>1)?6:3;
+    int ns = (_sdegree<=0)?0:(n3==1)?5:(_cache)?7:1;
+    return 4L*n1*n2*n3*(SOLVER_VECTORS+nc+ns);
+  }
+
   /**
    * Set 2D structure tensors for 2D image-guided interpolation.
    * @param d2 2D structure tensor field.
@@ -94,109 +326,330 @@ public class FastImageGuidedInterp {
    * @param s2 sampling in the 2nd (lateral) dimension.
    * @return array of the interpolated image.
    */
-  public float[][] grid(Sampling s1, Sampling s2) {
+  public float[][] grid(final Sampling s1, final Sampling s2) {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][]>() {
+      protected float[][] compute() {
+        return grid(s1,s2);
+      }});
     int n1 = s1.getCount();
     int n2 = s2.getCount();
+    if (_ncascade>0) {
+      float[][] wp = fillfloat(1f,n1,n2);
+      return cascade(s1,s2,_d2,wp,_alpha,_sigma,_small,_ncascade,false);
+    }
     //float[][] r = applyForInitial(s1,s2);
     float[][] r = fillfloat(0f,n1,n2);
     float[][] wp = fillfloat(1f,n1,n2);
-    int np = _x1.length;
-    for (int ip=0; ip<np; ++ip) {
-      _x1[ip] = (float)s1.indexOfNearest(_x1[ip]);
-      _x2[ip] = (float)s2.indexOfNearest(_x2[ip]);
-    }
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
     float[][] b = new float[n2][n1];
-    setInitial(r);
+    kp.setValues(_fx,r);
     VecArrayFloat2 vb = new VecArrayFloat2(b);
     VecArrayFloat2 vr = new VecArrayFloat2(r);
-    Smoother2 sm2 = new Smoother2(_sigma,null,_d2);
-    CgSolver cg = new CgSolver(_small,_niter);
-    A2 a2 = new A2(_alpha,_d2,wp);
-    M2 m2 = new M2(_x1,_x2,sm2);
+    CgSolver cg = makeSolver();
+    A2 a2 = new A2(_alpha,_d2,wp,_cache);
+    CgSolver.A m2 = (_dsize>0) ?
+      new Schwarz2(n1,n2,_alpha,_d2,null,k1,k2,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid2(n1,n2,_alpha,_d2,null,k1,k2) :
+      (_chebyshev>0) ?
+      new Chebyshev(a2,new M2(kp,null),_chebyshev) :
+      new M2(kp,smoother2(_sigma,null,_d2));
     vb.zero();
-    cg.solve(a2,m2,vb,vr);
+    cg.solve(_stopper,a2,m2,vb,vr);
     return r;
   }
 
   /**
-   * Apply for 2D image-guided and weighted interpolation.
+   * Apply for 2D image-guided and weighted interpolation. Interpolation
+   * begins with values of the nearest known points, which do not cross
+   * samples with zero weights.
    * @param s1 sampling in the 1st (vertical) dimension.
    * @param s2 sampling in the 2nd (lateral) dimension.
    * @param wp weights, low values near faults, high values elsewhere.
    * @return array of the interpolated image.
    */
-  public float[][] grid(Sampling s1, Sampling s2, float[][] wp) {
+  public float[][] grid(
+    final Sampling s1, final Sampling s2, final float[][] wp) 
+  {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][]>() {
+      protected float[][] compute() {
+        return grid(s1,s2,wp);
+      }});
+    if (_ncascade>0)
+      return cascade(s1,s2,_d2,wp,_alpha,_sigma,_small,_ncascade,true);
     int n1 = s1.getCount();
     int n2 = s2.getCount();
-    float[][] r = applyForInitial(s1,s2);
-    int np = _x1.length;
-    for (int ip=0; ip<np; ++ip) {
-      _x1[ip] = (float)s1.indexOfNearest(_x1[ip]);
-      _x2[ip] = (float)s2.indexOfNearest(_x2[ip]);
-    }
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
     float[][] b = new float[n2][n1];
-    setInitial(r);
+    float[][] r = DistanceTransform.nearest(kp,_fx,wp,n1,n2);
     VecArrayFloat2 vb = new VecArrayFloat2(b);
     VecArrayFloat2 vr = new VecArrayFloat2(r);
-    Smoother2 sm2 = new Smoother2(_sigma,wp,_d2);
-    CgSolver cg = new CgSolver(_small,_niter);
-    A2 a2 = new A2(_alpha,_d2,wp);
-    M2 m2 = new M2(_x1,_x2,sm2);
+    CgSolver cg = makeSolver();
+    A2 a2 = new A2(_alpha,_d2,wp,_cache);
+    CgSolver.A m2 = (_dsize>0) ?
+      new Schwarz2(n1,n2,_alpha,_d2,wp,k1,k2,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid2(n1,n2,_alpha,_d2,wp,k1,k2) :
+      (_chebyshev>0) ?
+      new Chebyshev(a2,new M2(kp,null),_chebyshev) :
+      new M2(kp,smoother2(_sigma,wp,_d2));
     vb.zero();
-    cg.solve(a2,m2,vb,vr);
+    cg.solve(_stopper,a2,m2,vb,vr);
     return r;
   }
 
   /**
-   * Apply for 3D image-guided interpolation.
+   * Apply for 3D image-guided interpolation. Without cascadic solves, and
+   * unless off heap, interpolation begins with values of the nearest known
+   * points on the same sides of faults.
    * @param sp screen points on faults.
    * @param wp weights, zeros on faults, ones elsewhere.
    * @return array of the interpolated image.
    */
   public float[][][] apply(
-    float[][][] sp, float[][][] wp) {
+    final float[][][] sp, final float[][][] wp) 
+  {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][][]>() {
+      protected float[][][] compute() {
+        return apply(sp,wp);
+      }});
+    if (_ncascade>0)
+      return cascade(sp,wp,_d3,_x1,_x2,_x3,_alpha3,_sigma,
+        _small,_ncascade);
     int n3 = wp.length;
     int n2 = wp[0].length;
     int n1 = wp[0][0].length;
+    if ((_offHeap || _dir!=null) && !_multigrid && _dsize==0)
+      return applyOffHeap(sp,wp);
     float[][][] b = new float[n3][n2][n1];
-    float[][][] r = new float[n3][n2][n1];
-    setInitial(r);
+    KnownPoints kp = new KnownPoints(_x1,_x2,_x3,n1,n2,n3);
+    float[][][] r = DistanceTransform.nearest(kp,_fx,wp,n1,n2,n3);
     VecArrayFloat3 vr = new VecArrayFloat3(r);
     VecArrayFloat3 vb = new VecArrayFloat3(b);
-    Smoother3 s3 = new Smoother3(_sigma,wp,_d3);
-    CgSolver cg = new CgSolver(_small,_niter);
-    A3 a3 = new A3(_d3,sp,wp);
-    M3 m3 = new M3(_x1,_x2,_x3,s3);
+    CgSolver cg = makeSolver();
+    cg.setMixedPrecision(_mixed);
+    A3 a3 = new A3(_alpha3,_d3,sp,wp,_cache);
+    CgSolver.A m3 = (_dsize>0) ?
+      new Schwarz3(n1,n2,n3,_alpha3,_d3,wp,_x1,_x2,_x3,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid3(n1,n2,n3,_alpha3,_d3,wp,_x1,_x2,_x3) :
+      (_chebyshev>0) ?
+      new Chebyshev(a3,new M3(kp,null),_chebyshev) :
+      new M3(kp,smoother3(_sigma,wp,_d3));
     vb.zero();
-    cg.solve(a3,m3,vb,vr);
+    cg.solve(_stopper,a3,m3,vb,vr);
+    return r;
+  }
+
+  /**
+   * Apply for 2D image-guided and weighted interpolation of multiple 
+   * properties known at the same points. All properties are interpolated 
+   * together with block CG iterations, so that each tensor coefficient 
+   * used in applying the interpolation operator serves all properties.
+   * @param s1 sampling in the 1st (vertical) dimension.
+   * @param s2 sampling in the 2nd (lateral) dimension.
+   * @param wp weights, low values near faults, high values elsewhere.
+   * @param fx array[nk][np] of values for nk properties at the np known
+   *  points specified when constructing this interpolator.
+   * @return array[nk][n2][n1] of the interpolated images.
+   */
+  public float[][][] grid(
+    final Sampling s1, final Sampling s2, 
+    final float[][] wp, final float[][] fx) 
+  {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][][]>() {
+      protected float[][][] compute() {
+        return grid(s1,s2,wp,fx);
+      }});
+    int nk = fx.length;
+    int n1 = s1.getCount();
+    int n2 = s2.getCount();
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
+    int[][] g = DistanceTransform.features(kp,wp,n1,n2);
+    float[][][] r = new float[nk][n2][n1];
+    VecArrayFloat2[] vb = new VecArrayFloat2[nk];
+    VecArrayFloat2[] vr = new VecArrayFloat2[nk];
+    for (int ik=0; ik<nk; ++ik) {
+      DistanceTransform.values(kp,fx[ik],g,r[ik]);
+      vb[ik] = new VecArrayFloat2(n1,n2);
+      vr[ik] = new VecArrayFloat2(r[ik]);
+    }
+    CgSolver cg = makeSolver();
+    A2 a2 = new A2(_alpha,_d2,wp,_cache);
+    CgSolver.BlockA m2 = (_dsize>0) ?
+      new Schwarz2(n1,n2,_alpha,_d2,wp,k1,k2,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid2(n1,n2,_alpha,_d2,wp,k1,k2) :
+      (_chebyshev>0) ?
+      new Chebyshev(a2,new M2(kp,null),_chebyshev) :
+      new M2(kp,smoother2(_sigma,wp,_d2));
+    cg.solve(_stopper,0.0,a2,m2,vb,vr);
+    return r;
+  }
+
+  /**
+   * Apply for 3D image-guided interpolation of multiple properties 
+   * known at the same points. All properties are interpolated together 
+   * with block CG iterations, so that each tensor coefficient used in 
+   * applying the interpolation operator serves all properties.
+   * @param sp screen points on faults.
+   * @param wp weights, zeros on faults, ones elsewhere.
+   * @param fx array[nk][np] of values for nk properties at the np known
+   *  points specified when constructing this interpolator.
+   * @return array[nk][n3][n2][n1] of the interpolated images.
+   */
+  public float[][][][] apply(
+    final float[][][] sp, final float[][][] wp, final float[][] fx) 
+  {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][][][]>() {
+      protected float[][][][] compute() {
+        return apply(sp,wp,fx);
+      }});
+    int nk = fx.length;
+    int n3 = wp.length;
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    float[][][][] r = new float[nk][][][];
+    VecArrayFloat3[] vb = new VecArrayFloat3[nk];
+    VecArrayFloat3[] vr = new VecArrayFloat3[nk];
+    KnownPoints kp = new KnownPoints(_x1,_x2,_x3,n1,n2,n3);
+    int[][][] g = DistanceTransform.features(kp,wp,n1,n2,n3);
+    for (int ik=0; ik<nk; ++ik) {
+      r[ik] = new float[n3][n2][n1];
+      DistanceTransform.values(kp,fx[ik],g,r[ik]);
+      vb[ik] = new VecArrayFloat3(n1,n2,n3);
+      vr[ik] = new VecArrayFloat3(r[ik]);
+    }
+    CgSolver cg = makeSolver();
+    A3 a3 = new A3(_alpha3,_d3,sp,wp,_cache);
+    CgSolver.BlockA m3 = (_dsize>0) ?
+      new Schwarz3(n1,n2,n3,_alpha3,_d3,wp,_x1,_x2,_x3,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid3(n1,n2,n3,_alpha3,_d3,wp,_x1,_x2,_x3) :
+      (_chebyshev>0) ?
+      new Chebyshev(a3,new M3(kp,null),_chebyshev) :
+      new M3(kp,smoother3(_sigma,wp,_d3));
+    cg.solve(_stopper,0.0,a3,m3,vb,vr);
     return r;
   }
 
+  /**
+   * Apply for 3D image-guided interpolation distributed among processes.
+   * Each process owns a slab of slices with contiguous indices i3, as 
+   * specified by {@link VecDistFloat3#getOwnedRange(int,int,int)}, and
+   * all processes call this method together. Weights and tensors are 
+   * specified for the local slices of each process, which include one 
+   * halo slice on each side of its slab that is not a boundary, as 
+   * specified by {@link VecDistFloat3#getLocalRange(int,int,int)}. 
+   * Known points and screen points have global indices; each process 
+   * uses those in its local slices.
+   * <p>
+   * The preconditioner smooths only within slabs, with weights but 
+   * without tensors, or is a Chebyshev polynomial of that smoother, if 
+   * a degree is specified; other preconditioners are not supported.
+   * @param t the transport among processes.
+   * @param n3 the number of slices in all slabs.
+   * @param sp screen points on faults; pairs of points with one point in
+   *  the slab of a process must be in the local slices of that process.
+   * @param wp local weights, zeros on faults, ones elsewhere.
+   * @return array of the interpolated image for owned slices.
+   */
+  public float[][][] apply(
+    final Transport t, final int n3, 
+    final float[][][] sp, final float[][][] wp) 
+  {
+    if (outsidePool())
+      return _pool.invoke(new RecursiveTask<float[][][]>() {
+      protected float[][][] compute() {
+        return apply(t,n3,sp,wp);
+      }});
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    VecDistFloat3 vr = new VecDistFloat3(t,n1,n2,n3);
+    VecDistFloat3 vb = new VecDistFloat3(t,n1,n2,n3);
+    int i3b = vr.getOwnedBegin();
+    int i3e = vr.getOwnedEnd();
+    float[][] k = owned(_x1,_x2,_x3,_fx,i3b,i3e);
+    KnownPoints kp = new KnownPoints(k[0],k[1],k[2],n1,n2,i3e-i3b);
+    kp.setValues(k[3],vr.getOwned().getArray());
+    float[][][] wo = new float[i3e-i3b][][]; // weights for owned slices
+    for (int i3=i3b; i3<i3e; ++i3)
+      wo[i3-i3b] = wp[i3-vr.getLocalBegin()];
+    CgSolver cg = makeSolver();
+    A3Dist a3 = new A3Dist(_alpha3,_d3,sp,wp);
+    CgSolver.A m3 = (_chebyshev>0) ?
+      new Chebyshev(a3,new M3Dist(new M3(kp,null)),_chebyshev) :
+      new M3Dist(new M3(kp,smoother3(_sigma,wo,null)));
+    cg.solve(a3,m3,vb,vr);
+    return vr.getOwned().getArray();
+  }
+
+  /**
+   * Returns an initial image for 2D interpolation, with values of the
+   * known points nearest to each sample. Known points are those moved to
+   * the nearest samples, and nearest known points are found with an exact
+   * Euclidean distance transform, in time proportional to the number of
+   * samples.
+   * @param s1 sampling in the 1st (vertical) dimension.
+   * @param s2 sampling in the 2nd (lateral) dimension.
+   * @return array of the initial image.
+   */
   public float[][] applyForInitial(Sampling s1, Sampling s2) {
-    return new NearestGridder2(_fx,_x1,_x2).grid(s1,s2);
+    int n1 = s1.getCount();
+    int n2 = s2.getCount();
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
+    return DistanceTransform.nearest(kp,_fx,null,n1,n2);
   }
   
-  // begin with an initial that satisfies the known points
-  private void setInitial(float[][] x) {
-    if(_x1==null||_x2==null||_fx==null){return;}
-    int np = _x1.length;
-    for (int ip=0; ip<np; ++ip) {
-      int i1 = (int)_x1[ip];
-      int i2 = (int)_x2[ip];
-      x[i2][i1] = _fx[ip];
-    }
+  /**
+   * Returns the number of known points merged with other points in 2D
+   * interpolation, because they are nearest to the same sample. The value
+   * in a sample with more than one known point is the mean of their values.
+   * @param s1 sampling in the 1st (vertical) dimension.
+   * @param s2 sampling in the 2nd (lateral) dimension.
+   * @return the number of merged points.
+   */
+  public int getMergedCount(Sampling s1, Sampling s2) {
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    int n1 = s1.getCount();
+    int n2 = s2.getCount();
+    return new KnownPoints(k1,k2,n1,n2).getMergedCount();
   }
 
-  // begin with an initial that satisfies the known points
-  private void setInitial(float[][][] x) {
-    if(_x1==null||_x2==null||_x3==null||_fx==null){return;}
-    int np = _x1.length;
-    for (int ip=0; ip<np; ++ip) {
-      int i1 = (int)_x1[ip];
-      int i2 = (int)_x2[ip];
-      int i3 = (int)_x3[ip];
-      x[i3][i2][i1] = _fx[ip];
-    }
+  /**
+   * Returns the number of known points merged with other points in 3D
+   * interpolation, because they have the same sample indices. The value
+   * in a sample with more than one known point is the mean of their values.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   * @return the number of merged points.
+   */
+  public int getMergedCount(int n1, int n2, int n3) {
+    return new KnownPoints(_x1,_x2,_x3,n1,n2,n3).getMergedCount();
+  }
+
+  // returns indices of samples nearest to the specified coordinates
+  static float[] indexOfNearest(Sampling s, float[] x) {
+    int np = x.length;
+    float[] k = new float[np];
+    for (int ip=0; ip<np; ++ip)
+      k[ip] = (float)s.indexOfNearest(x[ip]);
+    return k;
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -204,144 +657,829 @@ public class FastImageGuidedInterp {
   private EigenTensors2 _d2=null;
   private EigenTensors3 _d3=null;
 
-  private static float[] _x1 = null; // 1st coordinates of the known points
-  private static float[] _x2 = null; // 2nd coordinates of the known points
-  private static float[] _x3 = null; // 3rd coordinates of the known points
-  private static float[] _fx = null; // known values at the known points
+  private float[] _x1 = null; // 1st coordinates of the known points
+  private float[] _x2 = null; // 2nd coordinates of the known points
+  private float[] _x3 = null; // 3rd coordinates of the known points
+  private float[] _fx = null; // known values at the known points
   private float _sigma = 10.0f; // half-width of smoother
   private float _small = 0.010f; // stop CG iterations if residuals are small
   private int _niter = 800; // maximum number of inner CG iterations
   private float _alpha = 0f;// balance parameter for biharmonic operator
+  private float _alpha3 = 50f;// balance parameter for 3D biharmonic
+  private boolean _mixed = false; // true, for mixed-precision CG solver
+  private boolean _multigrid = false; // true, for multigrid preconditioner
+  private int _dsize = 0; // size of subdomains for Schwarz preconditioner
+  private int _doverlap = 8; // overlap of subdomains
+  private int _chebyshev = 0; // degree of Chebyshev preconditioner
+  private int _sdegree = 0; // degree of polynomial smoothers
+  private boolean _cache = false; // true, to cache tensor coefficients
+  private boolean _offHeap = false; // true, for 3D vectors off heap
+  private File _dir = null; // directory for out-of-core vectors, if any
+  private long _threshold = 0L; // bytes of vectors above which in files
+  private int _ncascade = 0; // maximum number of coarser grids in cascade
+  private float _csmall = 0.1f; // stop iterations on coarser grids
+  private ArrayList<CgSolver.Listener> _listeners = // listeners of solvers
+    new ArrayList<CgSolver.Listener>();
+  private ForkJoinPool _pool = null; // threads for interpolation, if any
+  private CgSolver.Stopper _stopper = null; // stops solvers, if not null
+
+  // Returns a 2D smoother, with polynomial smoothing, if specified.
+  private Smoother2 smoother2(float sigma, float[][] wp, EigenTensors2 et) {
+    Smoother2 s2 = new Smoother2(sigma,wp,et);
+    s2.setDegree(_sdegree);
+    return s2;
+  }
+
+  // Returns a 3D smoother, with polynomial smoothing, if specified.
+  private Smoother3 smoother3(
+    float sigma, float[][][] wp, EigenTensors3 et) 
+  {
+    Smoother3 s3 = new Smoother3(sigma,wp,et);
+    s3.setDegree(_sdegree);
+    s3.setCoefficientCache(_cache);
+    return s3;
+  }
+
+  // Returns coordinates and values {x1,x2,x3,fx} of known points in the
+  // slices i3b <= i3 < i3e, with 3rd coordinates relative to slice i3b;
+  // nulls, if no known points are specified.
+  private static float[][] owned(
+    float[] x1, float[] x2, float[] x3, float[] fx, int i3b, int i3e)
+  {
+    if (x1==null || x2==null || x3==null || fx==null)
+      return new float[4][];
+    int np = x1.length;
+    int mp = 0;
+    for (int ip=0; ip<np; ++ip) {
+      int i3 = (int)x3[ip];
+      if (i3b<=i3 && i3<i3e)
+        ++mp;
+    }
+    float[][] k = new float[4][mp];
+    for (int ip=0,jp=0; ip<np; ++ip) {
+      int i3 = (int)x3[ip];
+      if (i3b<=i3 && i3<i3e) {
+        k[0][jp] = x1[ip];
+        k[1][jp] = x2[ip];
+        k[2][jp] = i3-i3b;
+        k[3][jp] = fx[ip];
+        ++jp;
+      }
+    }
+    return k;
+  }
+
+  // Returns true if interpolation should run in the pool of threads of 
+  // this interpolator, but the current thread is not in that pool.
+  private boolean outsidePool() {
+    return _pool!=null && ForkJoinTask.getPool()!=_pool;
+  }
+
+  // Returns a new CG solver with all listeners added.
+  private CgSolver makeSolver() {
+    CgSolver cg = new CgSolver(_small,_niter);
+    for (CgSolver.Listener listener:_listeners)
+      cg.addListener(listener);
+    return cg;
+  }
+
+  // Cascadic solve for 2D interpolation; first solves on a grid decimated 
+  // by two in each dimension, and begins with the prolonged result.
+  private float[][] cascade(
+    Sampling s1, Sampling s2, EigenTensors2 et, float[][] wp, 
+    float alpha, float sigma, float small, int nlevel, boolean nearest)
+  {
+    int n1 = s1.getCount();
+    int n2 = s2.getCount();
+    float[] k1 = indexOfNearest(s1,_x1);
+    float[] k2 = indexOfNearest(s2,_x2);
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
+    float[][] r = new float[n2][n1];
+    if (nearest)
+      DistanceTransform.values(
+        kp,_fx,DistanceTransform.features(kp,wp,n1,n2),r);
+    else
+      kp.setValues(_fx,r);
+    VecArrayFloat2 vb = new VecArrayFloat2(n1,n2);
+    VecArrayFloat2 vr = new VecArrayFloat2(r);
+    CgSolver cg = makeSolver();
+    A2 a2 = new A2(alpha,et,wp,_cache);
+    CgSolver.A m2 = (_dsize>0) ?
+      new Schwarz2(n1,n2,alpha,et,wp,k1,k2,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid2(n1,n2,alpha,et,wp,k1,k2) :
+      (_chebyshev>0) ?
+      new Chebyshev(a2,new M2(kp,null),_chebyshev) :
+      new M2(kp,smoother2(sigma,wp,et));
+    double rmnorm = rmnorm(a2,m2,vb,vr);
+    if (nlevel>0 && n1>=NCASCADE && n2>=NCASCADE) {
+      Sampling c1 = decimate(s1);
+      Sampling c2 = decimate(s2);
+      float[][] rc = cascade(c1,c2,decimate(et,c1,c2),decimate(wp),
+        0.25f*alpha,0.5f*sigma,_csmall,nlevel-1,nearest);
+      prolong(rc,r);
+      kp.setValues(_fx,r);
+    }
+    cg.solve(new Stopper(small*rmnorm,_stopper),a2,m2,vb,vr);
+    return r;
+  }
+
+  // Interpolation of a single 3D image, with vectors for the solver and
+  // preconditioner stored off heap; only the output image is stored on 
+  // the heap. For out-of-core interpolation, vectors are stored in files
+  // if their total size exceeds the threshold. Configurations that would 
+  // store volumes on the heap are rejected.
+  private float[][][] applyOffHeap(float[][][] sp, float[][][] wp) {
+    if (_chebyshev==0 && _sdegree==0)
+      throw new IllegalStateException(
+        "vectors off heap require a smoother degree or Chebyshev degree");
+    if (_cache)
+      throw new IllegalStateException(
+        "coefficients are not cached with vectors off heap");
+    int n3 = wp.length;
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    int nv = OFF_HEAP_VECTORS+((_chebyshev>0)?4:2);
+    long nbyte = 4L*n1*n2*n3*nv;
+    File dir = (_dir!=null && nbyte>_threshold)?_dir:null;
+    VecBufferFloat3 vr = new VecBufferFloat3(n1,n2,n3,dir);
+    VecBufferFloat3 vb = new VecBufferFloat3(n1,n2,n3,dir);
+    KnownPoints kp = new KnownPoints(_x1,_x2,_x3,n1,n2,n3);
+    kp.setValues(_fx,vr);
+    CgSolver cg = makeSolver();
+    cg.setMixedPrecision(_mixed);
+    A3 a3 = new A3(_alpha3,_d3,sp,wp,false);
+    CgSolver.A m3 = (_chebyshev>0) ?
+      new Chebyshev(a3,new M3(kp,null),_chebyshev) :
+      new M3(kp,smoother3(_sigma,wp,_d3));
+    cg.solve(_stopper,a3,m3,vb,vr);
+    float[][][] r = new float[n3][n2][n1];
+    vr.get(r);
+    return r;
+  }
+
+  // Number of vectors used to interpolate one image; the right-hand side,
+  // the solution, four work vectors of the solver and one of the smoother.
+  private static final int SOLVER_VECTORS = 7;
+
+  // Number of vectors off heap used by the solver for one image; the
+  // right-hand side, the solution and four work vectors. Chebyshev 
+  // preconditioners use four more, and polynomial smoothers two more.
+  private static final int OFF_HEAP_VECTORS = 6;
+
+  // Cascadic solve for 3D interpolation; first solves on a grid decimated 
+  // by two in each dimension, and begins with the prolonged result. Screen
+  // points are used only on the finest grid.
+  private float[][][] cascade(
+    float[][][] sp, float[][][] wp, EigenTensors3 et,
+    float[] k1, float[] k2, float[] k3,
+    float alpha, float sigma, float small, int nlevel)
+  {
+    int n3 = wp.length;
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    float[][][] r = new float[n3][n2][n1];
+    KnownPoints kp = new KnownPoints(k1,k2,k3,n1,n2,n3);
+    kp.setValues(_fx,r);
+    VecArrayFloat3 vb = new VecArrayFloat3(n1,n2,n3);
+    VecArrayFloat3 vr = new VecArrayFloat3(r);
+    CgSolver cg = makeSolver();
+    cg.setMixedPrecision(_mixed);
+    A3 a3 = new A3(alpha,et,sp,wp,_cache);
+    CgSolver.A m3 = (_dsize>0) ?
+      new Schwarz3(n1,n2,n3,alpha,et,wp,k1,k2,k3,_dsize,_doverlap) :
+      (_multigrid) ?
+      new Multigrid3(n1,n2,n3,alpha,et,wp,k1,k2,k3) :
+      (_chebyshev>0) ?
+      new Chebyshev(a3,new M3(kp,null),_chebyshev) :
+      new M3(kp,smoother3(sigma,wp,et));
+    double rmnorm = rmnorm(a3,m3,vb,vr);
+    if (nlevel>0 && n1>=NCASCADE && n2>=NCASCADE && n3>=NCASCADE) {
+      float[][][] rc = cascade(null,decimate(wp),decimate(et,n1,n2,n3),
+        decimate(k1),decimate(k2),decimate(k3),
+        0.25f*alpha,0.5f*sigma,_csmall,nlevel-1);
+      prolong(rc,r);
+      kp.setValues(_fx,r);
+    }
+    cg.solve(new Stopper(small*rmnorm,_stopper),a3,m3,vb,vr);
+    return r;
+  }
+
+  private static final int NCASCADE = 9; // min samples for decimation
+
+  // Stops CG iterations when preconditioned residuals are small, or when
+  // stopped by the specified stopper, if not null.
+  private static class Stopper implements CgSolver.Stopper {
+    Stopper(double rmnorm, CgSolver.Stopper stopper) {
+      _rmnorm = rmnorm;
+      _stopper = stopper;
+    }
+    public boolean stop(CgSolver.Info info) {
+      return info.rmnorm<=_rmnorm ||
+        _stopper!=null && _stopper.stop(info);
+    }
+    private double _rmnorm;
+    private CgSolver.Stopper _stopper;
+  }
+
+  // Returns the norm sqrt(r'Mr) of residuals r = b-Ax.
+  private static double rmnorm(CgSolver.A a, CgSolver.A m, Vec b, Vec x) {
+    Vec r = b.clone();
+    Vec q = b.clone();
+    a.apply(x,q);
+    r.add(1.0,q,-1.0);
+    Vec s = r.clone();
+    m.apply(r,s);
+    return sqrt(max(0.0,r.dot(s)));
+  }
+
+  // Returns a sampling with every other sample.
+  private static Sampling decimate(Sampling s) {
+    int n = s.getCount();
+    return new Sampling(n/2+1,2.0*s.getDelta(),s.getFirst());
+  }
+
+  // Returns sample indices for a grid with every other sample.
+  private static float[] decimate(float[] k) {
+    if (k==null) return null;
+    int np = k.length;
+    float[] kc = new float[np];
+    for (int ip=0; ip<np; ++ip)
+      kc[ip] = (int)k[ip]/2;
+    return kc;
+  }
+
+  // Returns tensors at every other sample.
+  private static EigenTensors2 decimate(
+    EigenTensors2 et, Sampling c1, Sampling c2) 
+  {
+    if (et==null) return null;
+    int n1 = et.getN1();
+    int n2 = et.getN2();
+    int m1 = c1.getCount();
+    int m2 = c2.getCount();
+    EigenTensors2 ec = new EigenTensors2(m1,m2);
+    float[] a = new float[3];
+    for (int j2=0; j2<m2; ++j2) {
+      for (int j1=0; j1<m1; ++j1) {
+        et.getTensor(min(2*j1,n1-1),min(2*j2,n2-1),a);
+        ec.setTensor(j1,j2,a);
+      }
+    }
+    return ec;
+  }
+
+  // Returns tensors at every other sample.
+  private static EigenTensors3 decimate(
+    EigenTensors3 et, int n1, int n2, int n3) 
+  {
+    if (et==null) return null;
+    int m1 = n1/2+1;
+    int m2 = n2/2+1;
+    int m3 = n3/2+1;
+    EigenTensors3 ec = new EigenTensors3(m1,m2,m3,false);
+    float[] a = new float[6];
+    for (int j3=0; j3<m3; ++j3) {
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          et.getTensor(min(2*j1,n1-1),min(2*j2,n2-1),min(2*j3,n3-1),a);
+          ec.setTensor(j1,j2,j3,a);
+        }
+      }
+    }
+    return ec;
+  }
 
-  private static class A2 implements CgSolver.A {
+  // Returns weights at every other sample; each is the minimum of weights
+  // for nearby samples, so that faults are not lost in decimation.
+  private static float[][] decimate(float[][] wp) {
+    int n2 = wp.length;
+    int n1 = wp[0].length;
+    int m2 = n2/2+1;
+    int m1 = n1/2+1;
+    float[][] wc = new float[m2][m1];
+    for (int j2=0; j2<m2; ++j2) {
+      for (int j1=0; j1<m1; ++j1) {
+        float wmin = Float.MAX_VALUE;
+        for (int i2=max(2*j2-1,0); i2<=min(2*j2+1,n2-1); ++i2)
+          for (int i1=max(2*j1-1,0); i1<=min(2*j1+1,n1-1); ++i1)
+            wmin = min(wmin,wp[i2][i1]);
+        wc[j2][j1] = wmin;
+      }
+    }
+    return wc;
+  }
+
+  // Returns weights at every other sample; each is the minimum of weights
+  // for nearby samples, so that faults are not lost in decimation.
+  private static float[][][] decimate(float[][][] wp) {
+    int n3 = wp.length;
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    int m3 = n3/2+1;
+    int m2 = n2/2+1;
+    int m1 = n1/2+1;
+    float[][][] wc = new float[m3][m2][m1];
+    for (int j3=0; j3<m3; ++j3) {
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          float wmin = Float.MAX_VALUE;
+          for (int i3=max(2*j3-1,0); i3<=min(2*j3+1,n3-1); ++i3)
+            for (int i2=max(2*j2-1,0); i2<=min(2*j2+1,n2-1); ++i2)
+              for (int i1=max(2*j1-1,0); i1<=min(2*j1+1,n1-1); ++i1)
+                wmin = min(wmin,wp[i3][i2][i1]);
+          wc[j3][j2][j1] = wmin;
+        }
+      }
+    }
+    return wc;
+  }
+
+  // Linear interpolation of one row from every other sample.
+  private static void prolong(float[] xc, float[] x) {
+    int n = x.length;
+    for (int i=0; i<n; ++i) {
+      int j = i/2;
+      x[i] = (i%2==0)?xc[j]:0.5f*(xc[j]+xc[j+1]);
+    }
+  }
+
+  // Bilinear interpolation from every other sample.
+  private static void prolong(float[][] xc, float[][] x) {
+    int n2 = x.length;
+    float[] t = new float[x[0].length];
+    for (int i2=0; i2<n2; ++i2) {
+      int j2 = i2/2;
+      prolong(xc[j2],x[i2]);
+      if (i2%2==1) {
+        prolong(xc[j2+1],t);
+        for (int i1=0; i1<t.length; ++i1)
+          x[i2][i1] = 0.5f*(x[i2][i1]+t[i1]);
+      }
+    }
+  }
+
+  // Trilinear interpolation from every other sample.
+  private static void prolong(float[][][] xc, float[][][] x) {
+    int n3 = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    float[][] t = new float[n2][n1];
+    for (int i3=0; i3<n3; ++i3) {
+      int j3 = i3/2;
+      prolong(xc[j3],x[i3]);
+      if (i3%2==1) {
+        prolong(xc[j3+1],t);
+        for (int i2=0; i2<n2; ++i2)
+          for (int i1=0; i1<n1; ++i1)
+            x[i3][i2][i1] = 0.5f*(x[i3][i2][i1]+t[i2][i1]);
+      }
+    }
+  }
+
+  static class A2 implements CgSolver.A, CgSolver.BlockA {
     A2(float alpha, EigenTensors2 et, float[][] wp) 
+    {
+      this(alpha,et,wp,false);
+    }
+    A2(float alpha, EigenTensors2 et, float[][] wp, boolean cache) 
     {
       _alpha = alpha;
       _et = et;
       _wp = wp;
+      _cache = cache;
     }
     public void apply(Vec vx, Vec vy) {
-      VecArrayFloat2 v2x = (VecArrayFloat2)vx;
-      VecArrayFloat2 v2y = (VecArrayFloat2)vy;
-      float[][] x = v2x.getArray();
-      float[][] y = v2y.getArray();
-      float[][] z = copy(x);
-      float[][] t = copy(x);
-      VecArrayFloat2 v2t = new VecArrayFloat2(t);
-      v2y.zero();
-      v2t.zero();
-      applyLhs(_et,_wp,z,y);
+      _vx[0] = vx;
+      _vy[0] = vy;
+      apply(_vx,_vy);
+    }
+    public void apply(Vec[] vx, Vec[] vy) {
+      int nk = vx.length;
+      if (_x==null || _x.length!=nk) {
+        _x = new float[nk][][];
+        _y = new float[nk][][];
+      }
+      for (int ik=0; ik<nk; ++ik) {
+        _x[ik] = ((VecArrayFloat2)vx[ik]).getArray();
+        _y[ik] = ((VecArrayFloat2)vy[ik]).getArray();
+      }
       if(_alpha>0f) {
-        applyLhs(_et,_wp,y,t);
-        v2y.add(1.f,v2t,_alpha);
+        applyB();
+      } else {
+        applyL();
+      }
+    }
+
+    // Applies the fused operator L+alpha*L*L to the block of images x, 
+    // with packed coefficients, if cached, or with tensors and weights. 
+    // Rows of cells are split into bands, one for each workspace in w, and 
+    // each band streams rows of x once: the inner operator L computes rows 
+    // of L*x in a sliding window of three rows, which feeds the outer 
+    // operator L as soon as they are complete. Each band recomputes the 
+    // rows of L*x on its edges, so that bands are independent, and even and
+    // then odd bands are computed in parallel, because adjacent bands 
+    // update the same rows of y.
+    private void applyB() {
+      int nk = _y.length;
+      int n2 = _y[0].length;
+      int n1 = _y[0][0].length;
+      if (_cache && _c==null)
+        _c = coefficients(_et,_wp,n1,n2);
+      if (_w==null || _w[0].length!=nk+2)
+        _w = workspaceB2(nk,n1,n2);
+      int nb = _w.length;
+      _mb = 1+(n2-2)/nb;
+      Parallel.loop(n2,_zero);
+      Parallel.loop(0,nb,2,_bhs);
+      Parallel.loop(1,nb,2,_bhs);
+    }
+
+    // Applies the weighted laplacian to the block of images x, with 
+    // packed coefficients, if cached, for odd and then even rows of cells
+    // in parallel; or with tensors and weights, for even and then odd bands
+    // of rows of cells in parallel, with coefficients for each row of cells 
+    // computed once for all images. Rows or bands computed at the same time 
+    // update different rows of y.
+    private void applyL() {
+      int n2 = _y[0].length;
+      int n1 = _y[0][0].length;
+      Parallel.loop(n2,_zero);
+      if (_cache) {
+        if (_c==null)
+          _c = coefficients(_et,_wp,n1,n2);
+        Parallel.loop(1,n2,2,_lhsc);
+        Parallel.loop(2,n2,2,_lhsc);
+      } else {
+        if (_dr==null)
+          _dr = workspace2(n1,n2);
+        int nb = _dr.length;
+        _mb = 1+(n2-2)/nb;
+        Parallel.loop(0,nb,2,_lhs);
+        Parallel.loop(1,nb,2,_lhs);
       }
     }
 
     private float _alpha=0.0f;
     private float[][] _wp=null;
     private EigenTensors2 _et = null;
+    private boolean _cache; // true, to cache packed coefficients
+    private float[][] _c; // packed coefficients for cells
+    private float[][][] _dr; // workspace for coefficients of bands
+    private float[][][][] _w; // workspace for windows of bands
+    private float[][] _ds = new float[NBAND2][3]; // a tensor for each band
+    private int _mb; // rows of cells per band
+
+    // Vectors and arrays of the current application, and loop bodies that
+    // use them, made once so that applications allocate nothing.
+    private Vec[] _vx = new Vec[1], _vy = new Vec[1];
+    private float[][][] _x,_y;
+    private Parallel.LoopInt _zero = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        for (int ik=0; ik<_y.length; ++ik)
+          zero(_y[ik][i2]);
+      }
+    };
+    private Parallel.LoopInt _lhs = new Parallel.LoopInt() {
+      public void compute(int ib) {
+        applyLhsBand2(ib,_mb,_et,_wp,_x,_y,_dr[ib],_ds[ib]);
+      }
+    };
+    private Parallel.LoopInt _lhsc = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        applyLhsRows2(i2,i2*_y[0][0].length,_c,_x,_y);
+      }
+    };
+    private Parallel.LoopInt _bhs = new Parallel.LoopInt() {
+      public void compute(int ib) {
+        applyBhsBand2(ib,_mb,_alpha,_c,_et,_wp,_x,_y,_w[ib],_ds[ib]);
+      }
+    };
   }
 
-  // Preconditioner; includes smoothers and constraints.
-  private static class M2 implements CgSolver.A {
-    M2(float[] x1, float[] x2, Smoother2 s2) {
-      _x1 = x1;
-      _x2 = x2;
+  // Preconditioner; includes smoothers, if not null, and constraints.
+  static class M2 implements CgSolver.A, CgSolver.BlockA {
+    M2(KnownPoints kp, Smoother2 s2) {
+      _kp = kp;
       _s2 = s2;
     }
     public void apply(Vec vx, Vec vy) {
-      VecArrayFloat2 v2x = (VecArrayFloat2)vx;
-      VecArrayFloat2 v2y = (VecArrayFloat2)vy;
-      float[][] x = v2x.getArray();
-      float[][] y = v2y.getArray();
+      float[][] x = ((VecArrayFloat2)vx).getArray();
+      float[][] y = ((VecArrayFloat2)vy).getArray();
       copy(x,y);
-      constrain(_x1,_x2,y);
-      _s2.apply(y);
-      constrain(_x1,_x2,y);
+      _kp.constrain(y);
+      if (_s2!=null) {
+        _s2.apply(y);
+        _kp.constrain(y);
+      }
+    }
+    public void apply(Vec[] vx, Vec[] vy) {
+      int nk = vx.length;
+      if (_yk==null || _yk.length!=nk)
+        _yk = new float[nk][][];
+      for (int ik=0; ik<nk; ++ik) {
+        float[][] x = ((VecArrayFloat2)vx[ik]).getArray();
+        float[][] y = _yk[ik] = ((VecArrayFloat2)vy[ik]).getArray();
+        copy(x,y);
+        _kp.constrain(y);
+      }
+      if (_s2!=null) {
+        _s2.apply(_yk);
+        for (int ik=0; ik<nk; ++ik)
+          _kp.constrain(_yk[ik]);
+      }
     }
     private Smoother2 _s2;
-    private float[] _x1,_x2;
+    private KnownPoints _kp; // samples with known points
+    private float[][][] _yk; // outputs for a block of images
   }
 
-  private static class A3 implements CgSolver.A {
-    A3(EigenTensors3 et, float[][][] sp, float[][][] wp) 
+  static class A3 implements CgSolver.FusedA, CgSolver.BlockA {
+    A3(float alpha, EigenTensors3 et, float[][][] sp, float[][][] wp) 
+    {
+      this(alpha,et,sp,wp,false);
+    }
+    A3(
+      float alpha, EigenTensors3 et, float[][][] sp, float[][][] wp,
+      boolean cache) 
     {
+      _alpha = alpha;
       _et = et;
       _sp = sp;
       _wp = wp;
+      _cache = cache;
     }
     public void apply(Vec vx, Vec vy) {
-      VecArrayFloat3 v3x = (VecArrayFloat3)vx;
-      VecArrayFloat3 v3y = (VecArrayFloat3)vy;
-      float[][][] x = v3x.getArray();
-      float[][][] y = v3y.getArray();
-      float[][][] z = copy(x);
-      float[][][] t = copy(x);
-      VecArrayFloat3 v3t = new VecArrayFloat3(t);
-      v3y.zero();
-      v3t.zero();
-      applyLhs(_et,_wp,z,y);
-      applyLhs(_et,_wp,y,t);
-      v3y.add(1.f,v3t,50f);
+      apply(vx,vy,false);
+    }
+    public double applyDot(Vec vx, Vec vy) {
+      return apply(vx,vy,true);
+    }
+    public void apply(Vec[] vx, Vec[] vy) {
+      int nk = vx.length;
+      if (_xk==null || _xk.length!=nk) {
+        _xk = new float[nk][][][];
+        _yk = new float[nk][][][];
+      }
+      for (int ik=0; ik<nk; ++ik) {
+        _xk[ik] = ((VecArrayFloat3)vx[ik]).getArray();
+        _yk[ik] = ((VecArrayFloat3)vy[ik]).getArray();
+      }
+      apply(_xk,_yk,false);
       if(_sp!=null) {
-        screenLhs(_sp[0],_sp[1],_sp[3][0],z,y);
+        for (int ik=0; ik<nk; ++ik)
+          screenLhs(_sp[0],_sp[1],_sp[3][0],_xk[ik],_yk[ik]);
       }
     }
 
+    // Computes y = Ax, and returns x'y if dot is true.
+    private double apply(Vec vx, Vec vy, boolean dot) {
+      if (vx instanceof VecBufferFloat3)
+        return apply((VecBufferFloat3)vx,(VecBufferFloat3)vy,dot);
+      float[][][] y = ((VecArrayFloat3)vy).getArray();
+      float[][][] x = arrayOf(vx);
+      _x1[0] = x;
+      _y1[0] = y;
+      double xy = apply(_x1,_y1,dot);
+      if(_sp!=null) {
+        xy += screenLhs(_sp[0],_sp[1],_sp[3][0],x,y);
+      }
+      return xy;
+    }
+
+    // Applies the weighted laplacian L, or the fused operator L+alpha*L*L 
+    // if alpha>0, to a block of images, with packed coefficients, if 
+    // cached, or with tensors and weights; returns x'y if dot is true.
+    private double apply(float[][][][] x, float[][][][] y, boolean dot) {
+      int nk = y.length;
+      int n3 = y[0].length;
+      int n2 = y[0][0].length;
+      int n1 = y[0][0][0].length;
+      if (_cache && _c==null)
+        _c = coefficients(_et,_wp,n1,n2,n3);
+      if (_s==null || _s.getNk()!=nk)
+        _s = new Strips3(nk,n1,n2,_cache);
+      return _s.apply(_alpha,_c,_et,_wp,x,y,dot);
+    }
+
+    // As above, for vectors stored off heap.
+    private double apply(VecBufferFloat3 x, VecBufferFloat3 y, boolean dot) {
+      int n1 = y.getN1();
+      int n2 = y.getN2();
+      int n3 = y.getN3();
+      if (_cache && _c==null)
+        _c = coefficients(_et,_wp,n1,n2,n3);
+      if (_s==null || _s.getNk()!=1)
+        _s = new Strips3(1,n1,n2,_cache);
+      _bx[0] = x;
+      _by[0] = y;
+      double xy = _s.apply(_alpha,_c,_et,_wp,_bx,_by,dot);
+      if(_sp!=null) {
+        xy += screenLhs(_sp[0],_sp[1],_sp[3][0],x,y);
+      }
+      return xy;
+    }
+
+    // Returns the array of floats for a vector; if the vector is stored 
+    // in 16-bit floats, a workspace with values of its elements.
+    private float[][][] arrayOf(Vec vx) {
+      if (vx instanceof VecArrayHalf3) {
+        VecArrayHalf3 v3x = (VecArrayHalf3)vx;
+        if (_z==null)
+          _z = new float[v3x.getN3()][v3x.getN2()][v3x.getN1()];
+        v3x.get(_z);
+        return _z;
+      } else {
+        return ((VecArrayFloat3)vx).getArray();
+      }
+    }
+
+    private float _alpha=50.0f;
     private EigenTensors3 _et = null;
     private float[][][] _wp=null;
     private float[][][] _sp=null;
+    private boolean _cache; // true, to cache packed coefficients
+    private float[][][] _c; // packed coefficients for slices of cells
+    private float[][][] _z; // workspace for x stored in 16-bit floats
+    private Strips3 _s; // cache-blocked operator, with its workspace
+
+    // Arrays of the current application, made once so that applications 
+    // allocate nothing.
+    private float[][][][] _xk,_yk; // for a block of images
+    private float[][][][] _x1 = new float[1][][][], _y1 = new float[1][][][];
+    private VecBufferFloat3[] _bx = new VecBufferFloat3[1];
+    private VecBufferFloat3[] _by = new VecBufferFloat3[1];
   }
 
-  // Preconditioner; includes smoothers and constraints.
-  private static class M3 implements CgSolver.A {
-    M3(float[] x1, float[] x2, float[] x3, Smoother3 s3) {
-      _x1 = x1;
-      _x2 = x2;
-      _x3 = x3;
+  // Preconditioner; includes smoothers, if not null, and constraints.
+  static class M3 implements CgSolver.A, CgSolver.BlockA {
+    M3(KnownPoints kp, Smoother3 s3) {
+      _kp = kp;
       _s3 = s3;
     }
     public void apply(Vec vx, Vec vy) {
+      if (vy instanceof VecBufferFloat3) {
+        VecBufferFloat3 y = (VecBufferFloat3)vy;
+        y.add(0.0,vx,1.0);
+        _kp.constrain(y);
+        if (_s3!=null) {
+          _s3.apply(y);
+          _kp.constrain(y);
+        }
+        return;
+      }
       VecArrayFloat3 v3x = (VecArrayFloat3)vx;
-      VecArrayFloat3 v3y = (VecArrayFloat3)vy;
       float[][][] x = v3x.getArray();
-      float[][][] y = v3y.getArray();
-      copy(x,y);
-      constrain(_x1,_x2,_x3,y);
-      _s3.apply(y);
-      constrain(_x1,_x2,_x3,y);
+      if (vy instanceof VecArrayHalf3) {
+        if (_y==null)
+          _y = new float[x.length][x[0].length][x[0][0].length];
+        copy(x,_y);
+        apply(_y);
+        ((VecArrayHalf3)vy).set(_y);
+      } else {
+        float[][][] y = ((VecArrayFloat3)vy).getArray();
+        copy(x,y);
+        apply(y);
+      }
+    }
+    private void apply(float[][][] y) {
+      _kp.constrain(y);
+      if (_s3!=null) {
+        _s3.apply(y);
+        _kp.constrain(y);
+      }
+    }
+    public void apply(Vec[] vx, Vec[] vy) {
+      int nk = vx.length;
+      if (_yk==null || _yk.length!=nk)
+        _yk = new float[nk][][][];
+      for (int ik=0; ik<nk; ++ik) {
+        float[][][] x = ((VecArrayFloat3)vx[ik]).getArray();
+        float[][][] y = _yk[ik] = ((VecArrayFloat3)vy[ik]).getArray();
+        copy(x,y);
+        _kp.constrain(y);
+      }
+      if (_s3!=null) {
+        _s3.apply(_yk);
+        for (int ik=0; ik<nk; ++ik)
+          _kp.constrain(_yk[ik]);
+      }
     }
     private Smoother3 _s3;
-    private float[] _x1,_x2,_x3;
+    private KnownPoints _kp; // samples with known points
+    private float[][][] _y; // work array for output in 16-bit floats
+    private float[][][][] _yk; // outputs for a block of images
   }
 
-  private static void constrain(
-    float[] x1, float[] x2, float[][] x) 
-  {
-    if (x1!=null && x2!=null) {
-      int np = x1.length;
-      for (int ip=0; ip<np; ++ip) {
-        int i1 = (int)x1[ip]; 
-        int i2 = (int)x2[ip]; 
-        x[i2][i1] = 0.0f;
+  // Distributed operator for vectors with slabs of slices owned by 
+  // processes. Halo slices of x are exchanged before L is applied to the 
+  // local slices; for the bilaplacian, L*x is then exchanged and L is 
+  // applied again, because the fused operator would require two halo 
+  // slices. Tensors and weights are those of the local slices.
+  static class A3Dist implements CgSolver.FusedA {
+    A3Dist(float alpha, EigenTensors3 et, float[][][] sp, float[][][] wp) {
+      _alpha = alpha;
+      _et = et;
+      _sp = sp;
+      _wp = wp;
+    }
+    public void apply(Vec vx, Vec vy) {
+      apply(vx,vy,false);
+    }
+    public double applyDot(Vec vx, Vec vy) {
+      return apply(vx,vy,true);
+    }
+
+    // Computes y = Ax, and returns x'y, summed over all processes, if dot 
+    // is true; only owned slices of y are complete.
+    private double apply(Vec vx, Vec vy, boolean dot) {
+      VecDistFloat3 x = (VecDistFloat3)vx;
+      VecDistFloat3 y = (VecDistFloat3)vy;
+      float[][][] ya = y.getArray();
+      if (_s==null)
+        _s = new Strips3(1,ya[0][0].length,ya[0].length,false);
+      x.exchange();
+      if (_alpha>0.0f) {
+        if (_t==null)
+          _t = y.clone();
+        applyL(x,_t);
+        _t.exchange();
+        applyL(_t,y);
+        y.getOwned().add(_alpha,_t.getOwned(),1.0); // y = L*x+alpha*L*L*x
+      } else {
+        applyL(x,y);
+      }
+      if(_sp!=null) {
+        screenLhs(_sp[0],_sp[1],x,y);
       }
+      return (dot)?x.dot(y):0.0;
     }
-  }
 
-  private static void constrain(
-    float[] x1, float[] x2, float[] x3, float[][][] x) 
-  {
-    if (x1!=null && x2!=null && x3!=null) {
-      int np = x1.length;
-      for (int ip=0; ip<np; ++ip) {
-        int i1 = (int)x1[ip]; 
-        int i2 = (int)x2[ip]; 
-        int i3 = (int)x3[ip]; 
-        x[i3][i2][i1] = 0.0f;
+    // Computes y = L*x for local slices; only owned slices are complete.
+    private void applyL(VecDistFloat3 x, VecDistFloat3 y) {
+      _x[0] = x.getArray();
+      _y[0] = y.getArray();
+      _s.apply(0.0f,null,_et,_wp,_x,_y,false);
+    }
+
+    // Applies screens to owned samples, for pairs of points with at least
+    // one point owned.
+    private static void screenLhs(
+      float[][] cp, float[][] cm, VecDistFloat3 vx, VecDistFloat3 vy)
+    {
+      float[][][] x = vx.getArray();
+      float[][][] y = vy.getArray();
+      int n3 = x.length;
+      int j3 = vx.getLocalBegin();
+      int i3b = vx.getOwnedBegin();
+      int i3e = vx.getOwnedEnd();
+      int nc = cp[0].length;
+      for (int ic=0; ic<nc; ++ic) {
+        int i3p = (int)cp[2][ic];
+        int i3m = (int)cm[2][ic];
+        boolean op = i3b<=i3p && i3p<i3e;
+        boolean om = i3b<=i3m && i3m<i3e;
+        if (!op && !om)
+          continue;
+        int k3p = i3p-j3;
+        int k3m = i3m-j3;
+        if (k3p<0 || k3p>=n3 || k3m<0 || k3m>=n3)
+          throw new IllegalStateException(
+            "screen points "+ic+" are not in local slices "+j3+
+            " to "+(j3+n3-1));
+        int i1p = (int)cp[0][ic];
+        int i2p = (int)cp[1][ic];
+        int i1m = (int)cm[0][ic];
+        int i2m = (int)cm[1][ic];
+        float dx = x[k3p][i2p][i1p]-x[k3m][i2m][i1m];
+        if (om)
+          y[k3m][i2m][i1m] -= dx;
+        if (op)
+          y[k3p][i2p][i1p] += dx;
       }
     }
+
+    private float _alpha;
+    private EigenTensors3 _et;
+    private float[][][] _wp;
+    private float[][][] _sp;
+    private Strips3 _s; // operator L for local slices
+    private VecDistFloat3 _t; // L*x, for the bilaplacian
+    private float[][][][] _x = new float[1][][][]; // local slices of x
+    private float[][][][] _y = new float[1][][][]; // local slices of y
   }
 
+  // Distributed preconditioner; applies a preconditioner to the owned 
+  // slices of each process, with known points in those slices.
+  static class M3Dist implements CgSolver.A {
+    M3Dist(M3 m3) {
+      _m3 = m3;
+    }
+    public void apply(Vec vx, Vec vy) {
+      _m3.apply(((VecDistFloat3)vx).getOwned(),((VecDistFloat3)vy).getOwned());
+    }
+    private M3 _m3;
+  }
 
   private void makeRhs(float[][] r) {
     int np = _x1.length;
@@ -353,65 +1491,192 @@ public class FastImageGuidedInterp {
 
   }
 
-  //weighted anisotropic laplacian operator
-  private static void applyLhs(
-    final EigenTensors2 d, final float[][] wp, 
-    final float[][] x, final float[][] y)
+  // 2D LHS for the band of mb rows of cells with index ib, with arrays 
+  // dr for coefficients and ds for one tensor
+  private static void applyLhsBand2(
+    int ib, int mb, EigenTensors2 d, float[][] wp, 
+    float[][][] x, float[][][] y, float[][] dr, float[] ds)
   {
-    zero(y);
-    int n2 = x.length;
-    int n1 = x[0].length;
-    float[] ds = fillfloat(1.0f,3);
+    int nk = y.length;
+    int n2 = y[0].length;
+    int i2b = 1+ib*mb;
+    int i2e = min(i2b+mb,n2);
+    for (int i2=i2b; i2<i2e; ++i2) {
+      coefficientsRow2(i2,d,wp,ds,dr);
+      for (int ik=0; ik<nk; ++ik) {
+        float[][] xk = x[ik];
+        float[][] yk = y[ik];
+        Kernels.INSTANCE.applyLhsRow2(dr,0,
+          xk[i2],xk[i2-1],yk[i2],yk[i2-1]);
+      }
+    }
+  }
+
+  // 2D fused bilaplacian for the band of mb rows of cells with index ib.
+  // For each image, the workspace w has three rows of L*x and then two 
+  // rows of L*L*x, each row i2 in the array with index i2%3 or 3+i2%2; 
+  // the last two arrays of w are coefficients for even and odd rows i2,
+  // and ds is an array for one tensor.
+  private static void applyBhsBand2(
+    int ib, int mb, float alpha, float[][] c,
+    EigenTensors2 d, float[][] wp, 
+    float[][][] x, float[][][] y, float[][][] w, float[] ds)
+  {
+    Kernels kernels = Kernels.INSTANCE;
+    int nk = y.length;
+    int n2 = y[0].length;
+    int n1 = y[0][0].length;
+    int i2b = 1+ib*mb;
+    int i2e = min(i2b+mb,n2);
+    if (i2b>=n2) return;
+    for (int ik=0; ik<nk; ++ik) {
+      float[][] wk = w[ik];
+      for (int iw=0; iw<5; ++iw)
+        zero(wk[iw]);
+    }
+
+    // Inner cells i2b-1 <= i2 <= i2e complete rows i2-1 of L*x, which 
+    // then feed outer cells j2 = i2-1 in this band. The rows of L*L*x 
+    // above j2 are then complete in this band, and are added to y.
+    for (int i2=i2b-1; i2<=i2e; ++i2) {
+      int j2 = i2-1;
+      float[][] di = null;
+      int ki = 0;
+      if (1<=i2 && i2<n2) {
+        if (c!=null) {
+          di = c;
+          ki = i2*n1;
+        } else {
+          di = w[nk+i2%2];
+          coefficientsRow2(i2,d,wp,ds,di);
+        }
+      }
+      float[][] dj = (c!=null)?c:w[nk+(j2+2)%2];
+      int kj = (c!=null)?j2*n1:0;
+      for (int ik=0; ik<nk; ++ik) {
+        float[][] xk = x[ik];
+        float[][] yk = y[ik];
+        float[][] wk = w[ik];
+        if (i2<n2)
+          zero(wk[(i2+3)%3]);
+        if (di!=null)
+          kernels.applyLhsRow2(di,ki,
+            xk[i2],xk[i2-1],wk[(i2+3)%3],wk[(i2+2)%3]);
+        if (j2>=i2b) {
+          float[] t0 = wk[3+j2%2];
+          float[] t1 = wk[3+(j2+1)%2];
+          kernels.applyLhsRow2(dj,kj,
+            wk[j2%3],wk[(j2+2)%3],t0,t1);
+          kernels.axpy(1.0f,wk[(j2+2)%3],yk[j2-1]);
+          kernels.axpy(alpha,t1,yk[j2-1]);
+          zero(t1);
+        }
+      }
+    }
+
+    // The last row of L*L*x in this band, and the last row of L*x only 
+    // in the last band, because other bands recompute that row.
+    for (int ik=0; ik<nk; ++ik) {
+      float[][] yk = y[ik];
+      float[][] wk = w[ik];
+      if (i2e==n2)
+        kernels.axpy(1.0f,wk[(i2e-1)%3],yk[i2e-1]);
+      kernels.axpy(alpha,wk[3+(i2e-1)%2],yk[i2e-1]);
+    }
+  }
+
+  // Returns a workspace for the 2D fused bilaplacian of a block of nk 
+  // images, with windows of rows for enough bands of rows of cells to 
+  // keep many processors busy. Bands are wider than for 2D LHS, because 
+  // each band recomputes two rows of cells.
+  private static float[][][][] workspaceB2(int nk, int n1, int n2) {
+    int nb = max(1,min(NBAND_B2,(n2-1)/16));
+    float[][][][] w = new float[nb][nk+2][][];
+    for (int ib=0; ib<nb; ++ib) {
+      for (int ik=0; ik<nk; ++ik)
+        w[ib][ik] = new float[5][n1];
+      w[ib][nk  ] = new float[3][n1];
+      w[ib][nk+1] = new float[3][n1];
+    }
+    return w;
+  }
+
+  // Returns a workspace for 2D LHS, with arrays of coefficients for 
+  // enough bands of rows of cells to keep many processors busy.
+  private static float[][][] workspace2(int n1, int n2) {
+    int nb = max(1,min(NBAND2,n2-1));
+    return new float[nb][3][n1];
+  }
+
+  // Numbers of bands for 2D LHS and for the 2D fused bilaplacian, and of
+  // strips for 3D. Rows shared by adjacent bands or strips are summed in
+  // an order that depends on where they begin, so these numbers do not 
+  // depend on the number of processors, so that results are the same on 
+  // all machines.
+  private static final int NBAND2 = 64;
+  private static final int NBAND_B2 = 16;
+  private static final int NSTRIP3 = 32;
+
+  // weighted tensor coefficients d11, d12 and d22 for the row of cells 
+  // with index i2; ds is an array for one tensor
+  private static void coefficientsRow2(
+    int i2, EigenTensors2 d, float[][] wp, float[] ds, float[][] dr)
+  {
+    int n1 = dr[0].length;
     ds[0] = 1.0f;
     ds[1] = 0.0f;
     ds[2] = 1.0f;
-    for (int i2=1; i2<n2; ++i2) {
-      for (int i1=1; i1<n1; ++i1) {
+    for (int i1=1; i1<n1; ++i1) {
+      if(d!=null){d.getTensor(i1,i2,ds);}
+      float wpi = (wp!=null)?wp[i2][i1]:1.0f;
+      float wps = wpi*wpi;
+      dr[0][i1] = ds[0]*wps;
+      dr[1][i1] = ds[1]*wps;
+      dr[2][i1] = ds[2]*wps;
+    }
+  }
+
+  // Returns packed weighted tensor coefficients d11, d12 and d22 for 2D 
+  // LHS, with one flat array for each coefficient, in which the element 
+  // for the cell with indices (i1,i2) is i1+i2*n1.
+  private static float[][] coefficients(
+    final EigenTensors2 d, final float[][] wp, final int n1, int n2)
+  {
+    final float[][] c = new float[3][n1*n2];
+    Parallel.loop(1,n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      float[] ds = {1.0f,0.0f,1.0f};
+      for (int i1=1,j=1+i2*n1; i1<n1; ++i1,++j) {
         if(d!=null){d.getTensor(i1,i2,ds);}
         float wpi = (wp!=null)?wp[i2][i1]:1.0f;
         float wps = wpi*wpi;
-        float d11 = ds[0]*wps;
-        float d12 = ds[1]*wps;
-        float d22 = ds[2]*wps;
-        float xa = 0.0f;
-        float xb = 0.0f;
-        xa += x[i2  ][i1  ];
-        xb -= x[i2  ][i1-1];
-        xb += x[i2-1][i1  ];
-        xa -= x[i2-1][i1-1];
-        float x1 = 0.5f*(xa+xb);
-        float x2 = 0.5f*(xa-xb);
-        float y1 = d11*x1+d12*x2;
-        float y2 = d12*x1+d22*x2;
-        float ya = 0.5f*(y1+y2);
-        float yb = 0.5f*(y1-y2);
-        y[i2  ][i1  ] += ya;
-        y[i2  ][i1-1] -= yb;
-        y[i2-1][i1  ] += yb;
-        y[i2-1][i1-1] -= ya;
-      }
-    }
-
-  }
-
-  private static void applyLhs(
-    final EigenTensors3 d, final float[][][] wp, 
-    final float[][][] x, final float[][][] y)
-  { 
-    final int n3 = y.length;
-    Parallel.loop(1,n3,2,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      applyLhsSlice3(i3,d,wp,x,y);
-    }});
-    Parallel.loop(2,n3,2,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      applyLhsSlice3(i3,d,wp,x,y);
+        c[0][j] = ds[0]*wps;
+        c[1][j] = ds[1]*wps;
+        c[2][j] = ds[2]*wps;
+      }
     }});
+    return c;
   }
 
-  private static void screenLhs(
+  // 2D LHS for the row of cells with index i2 in a block of images, with 
+  // packed coefficients c beginning at element k
+  private static void applyLhsRows2(
+    int i2, int k, float[][] c, float[][][] x, float[][][] y)
+  {
+    int nk = y.length;
+    for (int ik=0; ik<nk; ++ik) {
+      float[][] xk = x[ik];
+      float[][] yk = y[ik];
+      Kernels.INSTANCE.applyLhsRow2(c,k,xk[i2],xk[i2-1],yk[i2],yk[i2-1]);
+    }
+  }
+
+  // Applies screens between points on faults; returns the sum of squared 
+  // differences dx, which is the contribution of screens to x'y.
+  private static double screenLhs(
     float[][] cp, float[][] cm, float[] fl, float[][][] x, float[][][] y) 
   {
+    double sum = 0.0;
     int nc = cp[0].length;
     for (int ic=0; ic<nc; ++ic) {
       int i1p = (int)cp[0][ic];
@@ -431,72 +1696,364 @@ public class FastImageGuidedInterp {
 
       y[i3m][i2m][i1m] -= dx;
       y[i3p][i2p][i1p] += dx;
+      sum += dx*dx;
     }
+    return sum;
   }
 
-  // 3D LHS
-  private static void applyLhsSlice3(
-    int i3, EigenTensors3 d, float[][][] wp, float[][][] x, float[][][] y)
+  // As above, for vectors stored off heap.
+  private static double screenLhs(
+    float[][] cp, float[][] cm, float[] fl, VecBufferFloat3 x, VecBufferFloat3 y) 
   {
-    int n2 = y[0].length;
-    int n1 = y[0][0].length;
-    float[] di = fillfloat(1.0f,6);
-    for (int i2=1; i2<n2; ++i2) {
-      float[] x00 = x[i3  ][i2  ];
-      float[] x01 = x[i3  ][i2-1];
-      float[] x10 = x[i3-1][i2  ];
-      float[] x11 = x[i3-1][i2-1];
-      float[] y00 = y[i3  ][i2  ];
-      float[] y01 = y[i3  ][i2-1];
-      float[] y10 = y[i3-1][i2  ];
-      float[] y11 = y[i3-1][i2-1];
-      for (int i1=1,i1m=0; i1<n1; ++i1,++i1m) {
-        if(d!=null){d.getTensor(i1,i2,i3,di);}
-        float wpi = (wp!=null)?wp[i3][i2][i1]:1.0f;
-        float wps = wpi*wpi;
-        float d11 = di[0];
-        float d12 = di[1];
-        float d13 = di[2];
-        float d22 = di[3];
-        float d23 = di[4];
-        float d33 = di[5];
-        float xa = 0.0f;
-        float xb = 0.0f;
-        float xc = 0.0f;
-        float xd = 0.0f;
-
-        xa += x00[i1 ];
-        xd -= x00[i1m];
-        xb += x01[i1 ];
-        xc -= x01[i1m];
-        xc += x10[i1 ];
-        xb -= x10[i1m];
-        xd += x11[i1 ];
-        xa -= x11[i1m];
-
-        float x1 = 0.25f*(xa+xb+xc+xd)*wps;
-        float x2 = 0.25f*(xa-xb+xc-xd)*wps;
-        float x3 = 0.25f*(xa+xb-xc-xd)*wps;
-
-        float y1 = d11*x1+d12*x2+d13*x3;
-        float y2 = d12*x1+d22*x2+d23*x3;
-        float y3 = d13*x1+d23*x2+d33*x3;
-
-        float ya = 0.25f*(y1+y2+y3);
-        float yb = 0.25f*(y1-y2+y3);
-        float yc = 0.25f*(y1+y2-y3);
-        float yd = 0.25f*(y1-y2-y3);
-
-        y00[i1 ] += ya;
-        y00[i1m] -= yd;
-        y01[i1 ] += yb;
-        y01[i1m] -= yc;
-        y10[i1 ] += yc;
-        y10[i1m] -= yb;
-        y11[i1 ] += yd;
-        y11[i1m] -= ya;  
-      }
+    double sum = 0.0;
+    int nc = cp[0].length;
+    for (int ic=0; ic<nc; ++ic) {
+      int i1p = (int)cp[0][ic];
+      int i2p = (int)cp[1][ic];
+      int i3p = (int)cp[2][ic];
+      int i1m = (int)cm[0][ic];
+      int i2m = (int)cm[1][ic];
+      int i3m = (int)cm[2][ic];
+      float dx = x.get(i1p,i2p,i3p)-x.get(i1m,i2m,i3m);
+      y.set(i1m,i2m,i3m,y.get(i1m,i2m,i3m)-dx);
+      y.set(i1p,i2p,i3p,y.get(i1p,i2p,i3p)+dx);
+      sum += dx*dx;
+    }
+    return sum;
+  }
+
+  // weighted tensor coefficients d11, d12, d13, d22, d23 and d33 for the 
+  // row of cells with indices (i2,i3); di is an array for one tensor
+  private static void coefficientsRow3(
+    int i2, int i3, EigenTensors3 d, float[][][] wp, 
+    float[] di, float[][] dr)
+  {
+    int n1 = dr[0].length;
+    for (int i1=1; i1<n1; ++i1) {
+      if(d!=null){d.getTensor(i1,i2,i3,di);}
+      float wpi = (wp!=null)?wp[i3][i2][i1]:1.0f;
+      float wps = wpi*wpi;
+      for (int id=0; id<6; ++id)
+        dr[id][i1] = di[id]*wps;
     }
   }
 
+  // Returns packed weighted tensor coefficients d11, d12, d13, d22, d23 
+  // and d33 for 3D LHS, with one flat array for each coefficient in each 
+  // slice of cells i3>0, in which the element for the cell with indices 
+  // (i1,i2) is i1+i2*n1.
+  private static float[][][] coefficients(
+    final EigenTensors3 d, final float[][][] wp, 
+    final int n1, final int n2, int n3)
+  {
+    final float[][][] c = new float[n3][][];
+    Parallel.loop(1,n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      float[] di = fillfloat(1.0f,6);
+      float[][] ci = new float[6][n1*n2];
+      for (int i2=1; i2<n2; ++i2) {
+        for (int i1=1,j=1+i2*n1; i1<n1; ++i1,++j) {
+          if(d!=null){d.getTensor(i1,i2,i3,di);}
+          float wpi = (wp!=null)?wp[i3][i2][i1]:1.0f;
+          float wps = wpi*wpi;
+          for (int id=0; id<6; ++id)
+            ci[id][j] = di[id]*wps;
+        }
+      }
+      c[i3] = ci;
+    }});
+    return c;
+  }
+
+  // Cache-blocked 3D LHS, y = L*x or, if alpha>0, the fused bilaplacian
+  // y = L*x+alpha*L*L*x, for a block of images. Rows of cells are split 
+  // into strips of mb rows in the 2nd dimension, small enough that the 
+  // rows of one strip in a few slices fit in a level-2 cache, and each 
+  // strip streams x once through all slices. The inner operator L 
+  // computes slices of L*x in a sliding window of three slices, and the
+  // outer operator L computes slices of L*L*x in a window of two slices, 
+  // each as soon as its inputs are complete; complete slices are then 
+  // written to y, while the rows of x that they need are still in cache. 
+  // For the fused bilaplacian, each strip recomputes L*x for the rows of 
+  // cells on its edges, so that all rows of L*x that it needs are complete
+  // within the strip. Even and then odd strips are computed in parallel, 
+  // because adjacent strips share one row of y, which the even strip 
+  // writes and the odd strip updates.
+  private static class Strips3 {
+
+    Strips3(int nk, int n1, int n2, boolean cache) {
+      int nr = max(1,BLOCK_BYTES/(4*n1*(7*nk+12))); // rows in cache
+      _nk = nk;
+      _n1 = n1;
+      _n2 = n2;
+      _mb = max(MIN_ROWS,min(nr-3,1+(n2-2)/NSTRIP3));
+      _ns = (n2>1)?1+(n2-2)/_mb:0;
+      _w = new float[_ns][nk][5][_mb+3][n1];
+      _dr = (cache)?null:new float[_ns][2][_mb+3][6][n1];
+      _dots = new double[_ns];
+      _di = new float[_ns][6];
+    }
+
+    int getNk() {
+      return _nk;
+    }
+
+    // Computes y = L*x, or y = L*x+alpha*L*L*x if alpha>0, with packed
+    // coefficients c, if not null, or with tensors and weights; and, if
+    // dot is true, returns the dot product x'y, summed over all images.
+    double apply(
+      float alpha, float[][][] c, EigenTensors3 d, float[][][] wp, 
+      float[][][][] x, float[][][][] y, boolean dot)
+    {
+      if (_ns==0) {
+        for (int ik=0; ik<_nk; ++ik)
+          zero(y[ik]);
+        return 0.0;
+      }
+      _alpha = alpha;
+      _c = c;
+      _d = d;
+      _wp = wp;
+      _x = x;
+      _y = y;
+      _dot = dot;
+      Parallel.loop(0,_ns,2,_strip);
+      Parallel.loop(1,_ns,2,_strip);
+      double sum = 0.0;
+      for (int is=0; is<_ns; ++is)
+        sum += _dots[is];
+      return sum;
+    }
+
+    // As above, for vectors stored off heap. Rows of x and y are copied 
+    // to and from rows of arrays in views kept for each strip.
+    double apply(
+      float alpha, float[][][] c, EigenTensors3 d, float[][][] wp, 
+      VecBufferFloat3[] x, VecBufferFloat3[] y, boolean dot)
+    {
+      if (_ns==0) {
+        for (int ik=0; ik<_nk; ++ik)
+          y[ik].zero();
+        return 0.0;
+      }
+      int n3 = x[0].getN3();
+      if (_xv==null || _xv[0][0].length!=n3)
+        views(n3);
+      _bx = x;
+      _by = y;
+      try {
+        return apply(alpha,c,d,wp,(float[][][][])null,null,dot);
+      } finally {
+        _bx = null;
+        _by = null;
+      }
+    }
+
+    private static final int BLOCK_BYTES = 1<<20; // about a level-2 cache
+    private static final int MIN_ROWS = 8; // min rows of cells per strip
+    private int _nk,_n1,_n2; // numbers of images and samples
+    private int _mb; // rows of cells per strip
+    private int _ns; // number of strips
+    private float[][][][][] _w; // windows of rows of L*x and L*L*x
+    private float[][][][][] _dr; // rows of coefficients, if not cached
+    private double[] _dots; // dot products x'y for strips
+    private float[][] _di; // a tensor for each strip
+    private VecBufferFloat3[] _bx,_by; // vectors off heap, if any
+    private float[][][][][] _xv,_yv; // views of rows of vectors off heap
+
+    // Arguments of the current application, and the body of loops over 
+    // strips that uses them, made once so that applications allocate 
+    // nothing; a strip operator may be applied by one thread at a time.
+    private float _alpha;
+    private float[][][] _c;
+    private EigenTensors3 _d;
+    private float[][][] _wp;
+    private float[][][][] _x,_y;
+    private boolean _dot;
+    private Parallel.LoopInt _strip = new Parallel.LoopInt() {
+      public void compute(int is) {
+        _dots[is] = applyStrip(is,_alpha,_c,_d,_wp,_x,_y,_dot);
+      }
+    };
+
+    // Makes views of rows of x and y off heap, for each strip and image,
+    // with rows of x for the three most recent slices, and rows of y for 
+    // one slice. Rows not used by a strip are null.
+    private void views(int n3) {
+      _xv = new float[_ns][_nk][n3][][];
+      _yv = new float[_ns][_nk][n3][][];
+      for (int is=0; is<_ns; ++is) {
+        int i2b = 1+is*_mb;
+        int i2e = min(i2b+_mb,_n2);
+        for (int ik=0; ik<_nk; ++ik) {
+          float[][][] xr = new float[3][_n2][];
+          float[][] yr = new float[_n2][];
+          for (int i2=max(0,i2b-2); i2<=min(_n2-1,i2e); ++i2) {
+            for (int ir=0; ir<3; ++ir)
+              xr[ir][i2] = new float[_n1];
+            yr[i2] = new float[_n1];
+          }
+          for (int i3=0; i3<n3; ++i3) {
+            _xv[is][ik][i3] = xr[i3%3];
+            _yv[is][ik][i3] = yr;
+          }
+        }
+      }
+    }
+
+    // Copies rows of the slice i3 of x off heap to the views of a strip.
+    private void load(int is, int i3, float[][][][] x) {
+      int i2b = 1+is*_mb;
+      int i2e = min(i2b+_mb,_n2);
+      for (int ik=0; ik<_nk; ++ik) {
+        float[][] xr = x[ik][i3];
+        for (int i2=max(0,i2b-2); i2<=min(_n2-1,i2e); ++i2)
+          _bx[ik].getRow(i2,i3,xr[i2]);
+      }
+    }
+
+    // Streams x through all slices for the strip with index is. For each 
+    // image, the window w has three slices of rows of L*x and then two 
+    // slices of rows of L*L*x, each slice i3 in the array with index 
+    // i3%3 or 3+i3%2, and each row i2 in the array with index i2-i2b+2.
+    private double applyStrip(
+      int is, float alpha, float[][][] c, EigenTensors3 d, float[][][] wp,
+      float[][][][] x, float[][][][] y, boolean dot)
+    {
+      if (_bx!=null) {
+        x = _xv[is];
+        y = _yv[is];
+        load(is,0,x);
+      }
+      boolean outer = alpha>0.0f;
+      int n3 = y[0].length;
+      int i2b = 1+is*_mb;
+      int i2e = min(i2b+_mb,_n2);
+      int j2b = (outer)?max(1,i2b-1):i2b; // first row of inner cells
+      int j2e = (outer)?min(_n2,i2e+1):i2e; // last row of inner cells + 1
+      float[][][][] w = _w[is];
+      float[][][][] dr = (_dr!=null)?_dr[is]:null;
+      float[] di = _di[is];
+      if (d==null)
+        fill(1.0f,di);
+      for (int ik=0; ik<_nk; ++ik)
+        for (int iw=0; iw<5; ++iw)
+          zero(w[ik][iw]);
+      double sum = 0.0;
+      for (int i3=1; i3<=n3; ++i3) {
+        int j3 = i3-1;
+        if (i3<n3 && _bx!=null)
+          load(is,i3,x);
+        if (i3<n3)
+          applyInner(i3,j2b,j2e,i2b,c,d,wp,di,x,w,dr);
+        if (!outer) {
+          sum += write(is,j3,i2b,i2e,alpha,false,x,y,w,dot);
+        } else if (j3>=1) {
+          applyOuter(j3,i2b,i2e,c,w,dr);
+          sum += write(is,j3-1,i2b,i2e,alpha,true,x,y,w,dot);
+        }
+      }
+      if (outer)
+        sum += write(is,n3-1,i2b,i2e,alpha,true,x,y,w,dot);
+      return sum;
+    }
+
+    // Inner L for the rows of cells j2b <= i2 < j2e in slice i3, with an 
+    // array di for one tensor.
+    private void applyInner(
+      int i3, int j2b, int j2e, int i2b, 
+      float[][][] c, EigenTensors3 d, float[][][] wp, float[] di,
+      float[][][][] x, float[][][][] w, float[][][][] dr)
+    {
+      Kernels kernels = Kernels.INSTANCE;
+      for (int i2=j2b; i2<j2e; ++i2) {
+        int r2 = i2-i2b+2;
+        float[][] ci = (c!=null)?c[i3]:dr[i3%2][r2];
+        int k = (c!=null)?i2*_n1:0;
+        if (c==null)
+          coefficientsRow3(i2,i3,d,wp,di,ci);
+        for (int ik=0; ik<_nk; ++ik) {
+          float[][][] xk = x[ik];
+          float[][] w0 = w[ik][i3%3];
+          float[][] w1 = w[ik][(i3+2)%3];
+          kernels.applyLhsRow3(ci,k,
+            xk[i3][i2],xk[i3][i2-1],xk[i3-1][i2],xk[i3-1][i2-1],
+            w0[r2],w0[r2-1],w1[r2],w1[r2-1]);
+        }
+      }
+    }
+
+    // Outer L for the rows of cells i2b <= i2 < i2e in slice j3, with 
+    // coefficients kept from the inner L, if not cached.
+    private void applyOuter(
+      int j3, int i2b, int i2e, float[][][] c, 
+      float[][][][] w, float[][][][] dr)
+    {
+      Kernels kernels = Kernels.INSTANCE;
+      for (int i2=i2b; i2<i2e; ++i2) {
+        int r2 = i2-i2b+2;
+        float[][] cj = (c!=null)?c[j3]:dr[j3%2][r2];
+        int k = (c!=null)?i2*_n1:0;
+        for (int ik=0; ik<_nk; ++ik) {
+          float[][] w0 = w[ik][j3%3];
+          float[][] w1 = w[ik][(j3+2)%3];
+          float[][] t0 = w[ik][3+j3%2];
+          float[][] t1 = w[ik][3+(j3+1)%2];
+          kernels.applyLhsRow3(cj,k,
+            w0[r2],w0[r2-1],w1[r2],w1[r2-1],
+            t0[r2],t0[r2-1],t1[r2],t1[r2-1]);
+        }
+      }
+    }
+
+    // Writes rows i2b-1 <= i2 < i2e of the complete slice i3 to y, and 
+    // returns their contribution to x'y, if dot is true. Rows of L*x on
+    // the edges of strips for the fused bilaplacian are written by only 
+    // one strip. Then zeroes the windows of slice i3 for later slices.
+    private double write(
+      int is, int i3, int i2b, int i2e, float alpha, boolean outer, 
+      float[][][][] x, float[][][][] y, float[][][][] w, boolean dot)
+    {
+      Kernels kernels = Kernels.INSTANCE;
+      double sum = 0.0;
+      for (int ik=0; ik<_nk; ++ik) {
+        float[][] wi = w[ik][i3%3];
+        float[][] ti = w[ik][3+i3%2];
+        for (int i2=i2b-1; i2<i2e; ++i2) {
+          int r2 = i2-i2b+2;
+          boolean shared = (i2==i2b-1 && is>0) || (i2==i2e-1 && i2e<_n2);
+          boolean update = shared && is%2==1;
+          boolean lx = !outer || i2<i2e-1 || i2e==_n2;
+          float[] xr = x[ik][i3][i2];
+          float[] yr = y[ik][i3][i2];
+          if (update && _by!=null)
+            _by[ik].getRow(i2,i3,yr);
+          if (update) {
+            if (dot)
+              sum += ((lx)?kernels.dot(xr,wi[r2]):0.0)+
+                     ((outer)?alpha*kernels.dot(xr,ti[r2]):0.0);
+            if (lx)
+              kernels.axpy(1.0f,wi[r2],yr);
+            if (outer)
+              kernels.axpy(alpha,ti[r2],yr);
+          } else {
+            if (lx)
+              copy(wi[r2],yr);
+            else
+              zero(yr);
+            if (outer)
+              kernels.axpy(alpha,ti[r2],yr);
+            if (dot)
+              sum += kernels.dot(xr,yr);
+          }
+          if (_by!=null)
+            _by[ik].setRow(i2,i3,yr);
+        }
+        zero(wi);
+        if (outer)
+          zero(ti);
+      }
+      return sum;
+    }
+  }
 }
@@ -0,0 +1,235 @@
+package igi;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Check;
+
+/**
+ * A service that runs many interpolation jobs concurrently in one JVM.
+ * Each job is an interpolation with a {@link FastImageGuidedInterp}, and
+ * all jobs run in one pool with a fixed number of threads, which are also
+ * the only threads used by parallel loops within jobs, so that jobs do not
+ * together use more threads than specified.
+ * <p>
+ * Jobs are admitted in the order submitted, while the sum of estimates of
+ * memory used by running jobs is within the specified budget. A job with
+ * an estimate that exceeds the budget runs only when no other job is
+ * running. Estimates include vectors of solvers and the output images,
+ * but not the weights, tensors and known points specified for jobs.
+ * <p>
+ * Each job returns a future for its interpolated image. The future of a
+ * job that completes normally or with an exception completes after the
+ * memory of the job is released for other jobs. The future of a cancelled
+ * job completes when cancelled. A pending job is then removed and never
+ * runs, but a running job is stopped by a stopper of its CG solver, before
+ * its next iteration, and keeps its memory and its interpolator until it
+ * stops. One interpolator may be used in only one job at a time, and its
+ * number of threads must not be set.
+ */
+public class InterpService {
+
+  /**
+   * Constructs a service.
+   * @param nthread number of threads for all jobs.
+   * @param budget bytes of memory for all running jobs.
+   */
+  public InterpService(int nthread, long budget) {
+    Check.argument(nthread>0,"nthread>0");
+    _pool = new ForkJoinPool(nthread);
+    _budget = budget;
+  }
+
+  /**
+   * Submits a job for 2D interpolation.
+   * @param fi the interpolator.
+   * @param s1 sampling in the 1st (vertical) dimension.
+   * @param s2 sampling in the 2nd (lateral) dimension.
+   * @param wp weights, low values near faults, high values elsewhere.
+   * @return the future for the interpolated image.
+   * @throws RejectedExecutionException if this service is shut down.
+   * @throws IllegalStateException if the interpolator is in another job.
+   */
+  public Future<float[][]> submit(
+    final FastImageGuidedInterp fi,
+    final Sampling s1, final Sampling s2, final float[][] wp)
+  {
+    long nbyte = fi.estimateBytes(s1.getCount(),s2.getCount(),1);
+    return submit(fi,nbyte,new Callable<float[][]>() {
+      public float[][] call() {
+        return fi.grid(s1,s2,wp);
+      }
+    });
+  }
+
+  /**
+   * Submits a job for 3D interpolation.
+   * @param fi the interpolator.
+   * @param sp screen points on faults.
+   * @param wp weights, zeros on faults, ones elsewhere.
+   * @return the future for the interpolated image.
+   * @throws RejectedExecutionException if this service is shut down.
+   * @throws IllegalStateException if the interpolator is in another job.
+   */
+  public Future<float[][][]> submit(
+    final FastImageGuidedInterp fi,
+    final float[][][] sp, final float[][][] wp)
+  {
+    long nbyte = fi.estimateBytes(wp[0][0].length,wp[0].length,wp.length);
+    return submit(fi,nbyte,new Callable<float[][][]>() {
+      public float[][][] call() {
+        return fi.apply(sp,wp);
+      }
+    });
+  }
+
+  /**
+   * Gets the number of jobs running.
+   * @return the number of jobs running.
+   */
+  public synchronized int getRunningCount() {
+    return _running;
+  }
+
+  /**
+   * Gets the number of jobs waiting for memory.
+   * @return the number of jobs waiting.
+   */
+  public synchronized int getPendingCount() {
+    return _pending.size();
+  }
+
+  /**
+   * Gets the estimated bytes of memory used by running jobs.
+   * @return the estimated bytes.
+   */
+  public synchronized long getBytesInUse() {
+    return _used;
+  }
+
+  /**
+   * Shuts down this service. Jobs submitted before are completed, but no
+   * more jobs are accepted. Threads end after all jobs are done.
+   */
+  public synchronized void shutdown() {
+    _shutdown = true;
+    schedule();
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private ForkJoinPool _pool; // threads for all jobs
+  private long _budget; // bytes of memory for running jobs
+  private long _used; // estimated bytes of memory for running jobs
+  private int _running; // number of running jobs
+  private boolean _shutdown; // true, if no more jobs are accepted
+  private ArrayDeque<Job<?>> _pending = new ArrayDeque<Job<?>>();
+  private IdentityHashMap<FastImageGuidedInterp,Job<?>> _jobs = // by interp
+    new IdentityHashMap<FastImageGuidedInterp,Job<?>>();
+
+  // A job, which is also the future for its result. Unless cancelled, the
+  // future completes after the memory of the job is released for other
+  // jobs; if cancelled while running, it completes before the job stops.
+  private class Job<T> extends CompletableFuture<T> {
+    Job(FastImageGuidedInterp fi, long nbyte, Callable<T> task) {
+      _fi = fi;
+      _nbyte = nbyte;
+      _task = task;
+    }
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled)
+        cancelPending(this);
+      return cancelled;
+    }
+    void run() {
+      // A job cancelled after it was scheduled but before it started does
+      // none of its setup, and releases its memory at once.
+      if (isCancelled()) {
+        done(this);
+        return;
+      }
+      final CgSolver.Stopper stopper = _fi.getStopper();
+      _fi.setStopper(new CgSolver.Stopper() {
+        public boolean stop(CgSolver.Info info) {
+          return isCancelled() || stopper!=null && stopper.stop(info);
+        }
+      });
+      T r = null;
+      Throwable t = null;
+      try {
+        r = _task.call();
+      } catch (Throwable e) {
+        t = e;
+      } finally {
+        _fi.setStopper(stopper);
+        done(this);
+      }
+      if (t!=null) {
+        completeExceptionally(t);
+      } else {
+        complete(r);
+      }
+    }
+    FastImageGuidedInterp _fi;
+    long _nbyte;
+    Callable<T> _task;
+  }
+
+  private synchronized <T> Future<T> submit(
+    FastImageGuidedInterp fi, long nbyte, Callable<T> task)
+  {
+    if (_shutdown)
+      throw new RejectedExecutionException("service is shut down");
+    if (_jobs.containsKey(fi))
+      throw new IllegalStateException("interpolator is in another job");
+    Job<T> job = new Job<T>(fi,nbyte,task);
+    _jobs.put(fi,job);
+    _pending.add(job);
+    schedule();
+    return job;
+  }
+
+  // Starts pending jobs in the order submitted, while memory is available.
+  // After shutdown, ends threads when all jobs are done.
+  private synchronized void schedule() {
+    while (!_pending.isEmpty()) {
+      final Job<?> job = _pending.peek();
+      if (_running>0 && _used+job._nbyte>_budget)
+        break;
+      _pending.remove();
+      _used += job._nbyte;
+      ++_running;
+      _pool.execute(new Runnable() {
+        public void run() {
+          job.run();
+        }
+      });
+    }
+    if (_shutdown && _running==0 && _pending.isEmpty())
+      _pool.shutdown();
+  }
+
+  // Releases the memory of a job that is done.
+  private synchronized void done(Job<?> job) {
+    _used -= job._nbyte;
+    --_running;
+    _jobs.remove(job._fi);
+    schedule();
+  }
+
+  // Removes a cancelled job, if pending.
+  private synchronized void cancelPending(Job<?> job) {
+    if (_pending.remove(job)) {
+      _jobs.remove(job._fi);
+      schedule();
+    }
+  }
+}
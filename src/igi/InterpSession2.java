@@ -0,0 +1,229 @@
+package igi;
+
+import java.util.ArrayList;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Check;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * A reusable session for 2D image-guided interpolation.
+ * A session is constructed once for specified samplings, structure
+ * tensors and weights, and keeps the interpolation operator, the
+ * preconditioner and all work arrays between interpolations. Each
+ * interpolation may specify new known points, or only new values at the
+ * known points most recently specified.
+ * <p>
+ * With warm starts, each interpolation begins with the result of the
+ * previous interpolation, with known values replaced by new ones. CG
+ * iterations stop when residuals are reduced by the specified fraction of
+ * those for the most recent interpolation that began without a warm start.
+ * Other interpolations begin with values of the nearest known points,
+ * which do not cross faults where weights are zero. Nearest known points
+ * are found once for each set of known points.
+ */
+public class InterpSession2 {
+
+  /**
+   * Constructs a session.
+   * @param s1 sampling in the 1st (vertical) dimension.
+   * @param s2 sampling in the 2nd (lateral) dimension.
+   * @param et 2D structure tensor field; null for isotropic interpolation.
+   * @param wp weights, low values near faults, high values elsewhere;
+   *  null for no weights.
+   */
+  public InterpSession2(
+    Sampling s1, Sampling s2, EigenTensors2 et, float[][] wp)
+  {
+    _s1 = s1;
+    _s2 = s2;
+    _et = et;
+    _wp = wp;
+    int n1 = s1.getCount();
+    int n2 = s2.getCount();
+    _b = new VecArrayFloat2(n1,n2);
+    _x = new VecArrayFloat2(n1,n2);
+  }
+
+  /**
+   * Set balance parameter for the biharmonic/bilaplacian term.
+   * @param alpha balance parameter.
+   */
+  public void setBiharmonic(float alpha) {
+    _alpha = alpha;
+    _a2 = null;
+    if (_cg!=null)
+      _cg.clearRecycledVectors();
+  }
+
+  /**
+   * Set smoothing for preconditioning in a CG solver.
+   * @param sigma smoother half-width.
+   */
+  public void setSmoothings(double sigma) {
+    _sigma = (float)sigma;
+    _sm2 = null;
+  }
+
+  /**
+   * Set iterations for a CG solver.
+   * @param niter number of the maximum iterations.
+   * @param small stop iterations when error norm is reduced by this fraction.
+   */
+  public void setIters(int niter, float small) {
+    _niter = niter;
+    _small = small;
+    _cg = null;
+  }
+
+  /**
+   * Sets the numbers of vectors recycled between interpolations.
+   * Recycled vectors, approximate eigenvectors of the preconditioned
+   * operator, are computed during interpolations and then deflated from
+   * later ones, which may then require fewer iterations. Recycled vectors
+   * are zeroed at the known points most recently specified before each
+   * interpolation, and are most effective when known points change little,
+   * as for interpolations with subsets of a fixed set of known points.
+   * Each recycled vector costs the memory of two images, and each stored
+   * Lanczos vector that of one image. The default nvec is zero.
+   * @param nvec maximum number of recycled vectors.
+   * @param nlan number of Lanczos vectors stored in each interpolation.
+   */
+  public void setRecycling(int nvec, int nlan) {
+    _nvec = nvec;
+    _nlan = nlan;
+    if (_cg!=null)
+      _cg.setRecycling(nvec,nlan);
+  }
+
+  /**
+   * Adds a listener to be notified of the progress of CG solves.
+   * @param listener the listener.
+   */
+  public void addListener(CgSolver.Listener listener) {
+    _listeners.add(listener);
+    if (_cg!=null)
+      _cg.addListener(listener);
+  }
+
+  /**
+   * Removes a listener of CG solves.
+   * @param listener the listener.
+   */
+  public void removeListener(CgSolver.Listener listener) {
+    _listeners.remove(listener);
+    if (_cg!=null)
+      _cg.removeListener(listener);
+  }
+
+  /**
+   * Sets whether interpolations begin with the previous result.
+   * The default is true.
+   * @param warm true, for warm starts; false, otherwise.
+   */
+  public void setWarmStart(boolean warm) {
+    _warm = warm;
+  }
+
+  /**
+   * Interpolates new values at new known points.
+   * @param fx known values at the known points.
+   * @param x1 1st coordinates of known points.
+   * @param x2 2nd coordinates of known points.
+   * @return array of the interpolated image.
+   */
+  public float[][] grid(float[] fx, float[] x1, float[] x2) {
+    float[] k1 = FastImageGuidedInterp.indexOfNearest(_s1,x1);
+    float[] k2 = FastImageGuidedInterp.indexOfNearest(_s2,x2);
+    _kp = new KnownPoints(k1,k2,_s1.getCount(),_s2.getCount());
+    _g = null;
+    return grid(fx);
+  }
+
+  /**
+   * Interpolates new values at the known points most recently specified.
+   * @param fx known values at the known points.
+   * @return array of the interpolated image.
+   */
+  public float[][] grid(float[] fx) {
+    Check.state(_kp!=null,"known points have been specified");
+    float[][] x = _x.getArray();
+    boolean cold = !_warm || !_solved;
+    if (cold) {
+      if (_g==null)
+        _g = DistanceTransform.features(
+          _kp,_wp,_s1.getCount(),_s2.getCount());
+      DistanceTransform.values(_kp,fx,_g,x);
+    } else {
+      _kp.setValues(fx,x);
+    }
+    if (_a2==null)
+      _a2 = new FastImageGuidedInterp.A2(_alpha,_et,_wp);
+    if (_sm2==null)
+      _sm2 = new Smoother2(_sigma,_wp,_et);
+    if (_cg==null) {
+      _cg = new CgSolver(_small,_niter);
+      _cg.setReuseWork(true);
+      _cg.setRecycling(_nvec,_nlan);
+      for (CgSolver.Listener listener:_listeners)
+        _cg.addListener(listener);
+    }
+    for (Vec w:_cg.getRecycledVectors())
+      _kp.constrain(((VecArrayFloat2)w).getArray());
+    FastImageGuidedInterp.M2 m2 = 
+      new FastImageGuidedInterp.M2(_kp,_sm2);
+    _stopper.reset(cold);
+    _info = _cg.solve(_stopper,_a2,m2,_b,_x);
+    _solved = true;
+    return copy(x);
+  }
+
+  /**
+   * Gets information about the most recent CG solve in this session.
+   * @return the information; null, if no interpolation has been done.
+   */
+  public CgSolver.Info getInfo() {
+    return _info;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private Sampling _s1,_s2;
+  private EigenTensors2 _et;
+  private float[][] _wp;
+  private int[][] _g; // nearest samples with known points, if computed
+  private KnownPoints _kp; // samples with known points
+  private float _sigma = 10.0f; // half-width of smoother
+  private float _small = 0.010f; // stop CG iterations if residuals are small
+  private int _niter = 800; // maximum number of inner CG iterations
+  private float _alpha = 0f; // balance parameter for biharmonic operator
+  private int _nvec,_nlan; // numbers of recycled and Lanczos vectors
+  private boolean _warm = true; // true, if solves begin with previous result
+  private boolean _solved; // true, after the first interpolation
+  private VecArrayFloat2 _b; // zero right-hand side
+  private VecArrayFloat2 _x; // most recent interpolated image
+  private FastImageGuidedInterp.A2 _a2;
+  private Smoother2 _sm2;
+  private CgSolver _cg;
+  private ArrayList<CgSolver.Listener> _listeners = 
+    new ArrayList<CgSolver.Listener>();
+  private CgSolver.Info _info;
+  private Stopper _stopper = new Stopper();
+
+  // Stops CG iterations when preconditioned residuals, which exclude 
+  // residuals at the known points, are reduced by the specified fraction 
+  // of the initial residuals for the most recent cold start.
+  private class Stopper implements CgSolver.Stopper {
+    public boolean stop(CgSolver.Info info) {
+      if (_cold && info.niter==0)
+        _rmnorm = info.rmnorm;
+      return info.rmnorm<=_small*_rmnorm;
+    }
+    void reset(boolean cold) {
+      _cold = cold;
+    }
+    private boolean _cold;
+    private double _rmnorm;
+  }
+}
@@ -0,0 +1,234 @@
+package igi;
+
+import java.util.ArrayList;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Check;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * A reusable session for 3D image-guided interpolation.
+ * A session is constructed once for specified structure tensors, fault 
+ * screen points and weights, and keeps the interpolation operator, the 
+ * preconditioner and all work arrays between interpolations. Each 
+ * interpolation may specify new known points, or only new values at the
+ * known points most recently specified. As for 3D interpolation with
+ * {@link FastImageGuidedInterp}, coordinates of known points are 
+ * sample indices.
+ * <p>
+ * With warm starts, each interpolation begins with the result of the
+ * previous interpolation, with known values replaced by new ones. CG
+ * iterations stop when residuals are reduced by the specified fraction of
+ * those for the most recent interpolation that began without a warm start.
+ * Other interpolations begin with values of the nearest known points,
+ * which do not cross faults where weights are zero. Nearest known points
+ * are found once for each set of known points.
+ */
+public class InterpSession3 {
+
+  /**
+   * Constructs a session.
+   * @param et 3D structure tensor field; null for isotropic interpolation.
+   * @param sp screen points on faults; null for no screen points.
+   * @param wp weights, zeros on faults, ones elsewhere.
+   */
+  public InterpSession3(EigenTensors3 et, float[][][] sp, float[][][] wp) {
+    _et = et;
+    _sp = sp;
+    _wp = wp;
+    int n3 = wp.length;
+    int n2 = wp[0].length;
+    int n1 = wp[0][0].length;
+    _b = new VecArrayFloat3(n1,n2,n3);
+    _x = new VecArrayFloat3(n1,n2,n3);
+  }
+
+  /**
+   * Set balance parameter for the biharmonic/bilaplacian term, as for
+   * {@link FastImageGuidedInterp#setBiharmonic3(float)}.
+   * The default is 50.
+   * @param alpha balance parameter.
+   */
+  public void setBiharmonic(float alpha) {
+    _alpha = alpha;
+    _a3 = null;
+    if (_cg!=null)
+      _cg.clearRecycledVectors();
+  }
+
+  /**
+   * Set smoothing for preconditioning in a CG solver.
+   * @param sigma smoother half-width.
+   */
+  public void setSmoothings(double sigma) {
+    _sigma = (float)sigma;
+    _sm3 = null;
+  }
+
+  /**
+   * Set iterations for a CG solver.
+   * @param niter number of the maximum iterations.
+   * @param small stop iterations when error norm is reduced by this fraction.
+   */
+  public void setIters(int niter, float small) {
+    _niter = niter;
+    _small = small;
+    _cg = null;
+  }
+
+  /**
+   * Sets the numbers of vectors recycled between interpolations.
+   * Recycled vectors, approximate eigenvectors of the preconditioned
+   * operator, are computed during interpolations and then deflated from
+   * later ones, which may then require fewer iterations. Recycled vectors
+   * are zeroed at the known points most recently specified before each
+   * interpolation, and are most effective when known points change little,
+   * as for interpolations with subsets of a fixed set of known points.
+   * Each recycled vector costs the memory of two images, and each stored
+   * Lanczos vector that of one image. The default nvec is zero.
+   * @param nvec maximum number of recycled vectors.
+   * @param nlan number of Lanczos vectors stored in each interpolation.
+   */
+  public void setRecycling(int nvec, int nlan) {
+    _nvec = nvec;
+    _nlan = nlan;
+    if (_cg!=null)
+      _cg.setRecycling(nvec,nlan);
+  }
+
+  /**
+   * Adds a listener to be notified of the progress of CG solves.
+   * @param listener the listener.
+   */
+  public void addListener(CgSolver.Listener listener) {
+    _listeners.add(listener);
+    if (_cg!=null)
+      _cg.addListener(listener);
+  }
+
+  /**
+   * Removes a listener of CG solves.
+   * @param listener the listener.
+   */
+  public void removeListener(CgSolver.Listener listener) {
+    _listeners.remove(listener);
+    if (_cg!=null)
+      _cg.removeListener(listener);
+  }
+
+  /**
+   * Sets whether interpolations begin with the previous result.
+   * The default is true.
+   * @param warm true, for warm starts; false, otherwise.
+   */
+  public void setWarmStart(boolean warm) {
+    _warm = warm;
+  }
+
+  /**
+   * Interpolates new values at new known points.
+   * @param fx known values at the known points.
+   * @param x1 1st coordinates of known points.
+   * @param x2 2nd coordinates of known points.
+   * @param x3 3rd coordinates of known points.
+   * @return array of the interpolated image.
+   */
+  public float[][][] apply(float[] fx, float[] x1, float[] x2, float[] x3) {
+    float[][][] x = _x.getArray();
+    int n3 = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    _kp = new KnownPoints(x1,x2,x3,n1,n2,n3);
+    _g = null;
+    return apply(fx);
+  }
+
+  /**
+   * Interpolates new values at the known points most recently specified.
+   * @param fx known values at the known points.
+   * @return array of the interpolated image.
+   */
+  public float[][][] apply(float[] fx) {
+    Check.state(_kp!=null,"known points have been specified");
+    float[][][] x = _x.getArray();
+    boolean cold = !_warm || !_solved;
+    if (cold) {
+      if (_g==null)
+        _g = DistanceTransform.features(
+          _kp,_wp,x[0][0].length,x[0].length,x.length);
+      DistanceTransform.values(_kp,fx,_g,x);
+    } else {
+      _kp.setValues(fx,x);
+    }
+    if (_a3==null)
+      _a3 = new FastImageGuidedInterp.A3(_alpha,_et,_sp,_wp);
+    if (_sm3==null)
+      _sm3 = new Smoother3(_sigma,_wp,_et);
+    if (_cg==null) {
+      _cg = new CgSolver(_small,_niter);
+      _cg.setReuseWork(true);
+      _cg.setRecycling(_nvec,_nlan);
+      for (CgSolver.Listener listener:_listeners)
+        _cg.addListener(listener);
+    }
+    for (Vec w:_cg.getRecycledVectors()) {
+      float[][][] wa = ((VecArrayFloat3)w).getArray();
+      _kp.constrain(wa);
+    }
+    FastImageGuidedInterp.M3 m3 = 
+      new FastImageGuidedInterp.M3(_kp,_sm3);
+    _stopper.reset(cold);
+    _info = _cg.solve(_stopper,_a3,m3,_b,_x);
+    _solved = true;
+    return copy(x);
+  }
+
+  /**
+   * Gets information about the most recent CG solve in this session.
+   * @return the information; null, if no interpolation has been done.
+   */
+  public CgSolver.Info getInfo() {
+    return _info;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private EigenTensors3 _et;
+  private float[][][] _sp;
+  private float[][][] _wp;
+  private KnownPoints _kp; // samples with known points
+  private int[][][] _g; // nearest samples with known points, if computed
+  private float _alpha = 50f; // balance parameter for biharmonic operator
+  private float _sigma = 10.0f; // half-width of smoother
+  private float _small = 0.010f; // stop CG iterations if residuals are small
+  private int _niter = 800; // maximum number of inner CG iterations
+  private int _nvec,_nlan; // numbers of recycled and Lanczos vectors
+  private boolean _warm = true; // true, if solves begin with previous result
+  private boolean _solved; // true, after the first interpolation
+  private VecArrayFloat3 _b; // zero right-hand side
+  private VecArrayFloat3 _x; // most recent interpolated image
+  private FastImageGuidedInterp.A3 _a3;
+  private Smoother3 _sm3;
+  private CgSolver _cg;
+  private ArrayList<CgSolver.Listener> _listeners = 
+    new ArrayList<CgSolver.Listener>();
+  private CgSolver.Info _info;
+  private Stopper _stopper = new Stopper();
+
+  // Stops CG iterations when preconditioned residuals, which exclude 
+  // residuals at the known points, are reduced by the specified fraction 
+  // of the initial residuals for the most recent cold start.
+  private class Stopper implements CgSolver.Stopper {
+    public boolean stop(CgSolver.Info info) {
+      if (_cold && info.niter==0)
+        _rmnorm = info.rmnorm;
+      return info.rmnorm<=_small*_rmnorm;
+    }
+    void reset(boolean cold) {
+      _cold = cold;
+    }
+    private boolean _cold;
+    private double _rmnorm;
+  }
+}
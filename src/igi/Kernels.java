@@ -0,0 +1,179 @@
+package igi;
+
+/**
+ * Kernels for loops over the 1st dimension of arrays, in which most time
+ * is spent in image-guided interpolation: rows of cells for the weighted
+ * anisotropic laplacian and the vector operations of CG solvers.
+ * <p>
+ * This class implements the kernels with scalar loops. A subclass with
+ * explicit SIMD loops for the incubating JDK Vector API is compiled
+ * separately, with JDK 16 or later, and is used instead if present at
+ * runtime and if the JVM is started with the option
+ * --add-modules jdk.incubator.vector. The SIMD kernels may be disabled
+ * with the system property igi.simd=false. In the SIMD kernels, dot
+ * products are summed in a different order, but all other results are
+ * the same as those computed by the scalar kernels.
+ * <p>
+ * In the laplacian kernels, weighted tensor coefficients for the cell
+ * with index i1 in a row of cells are elements d[id][k+i1] of arrays
+ * d[id], for coefficients d11, d12, d22 in 2D and d11, d12, d13, d22,
+ * d23, d33 in 3D.
+ */
+class Kernels {
+
+  // The kernels used in interpolation.
+  static final Kernels INSTANCE = load();
+
+  // Computes y = y+L*x for one row of cells between rows x0 and x1 of a
+  // 2D image x, with rows y0 and y1 of the image y.
+  void applyLhsRow2(
+    float[][] d, int k, float[] x0, float[] x1, float[] y0, float[] y1)
+  {
+    applyLhsRow2(1,d,k,x0,x1,y0,y1);
+  }
+
+  // Computes y = y+L*x for one row of cells between rows x00, x01, x10
+  // and x11 of a 3D image x, with the corresponding rows of the image y.
+  void applyLhsRow3(float[][] d, int k,
+    float[] x00, float[] x01, float[] x10, float[] x11,
+    float[] y00, float[] y01, float[] y10, float[] y11)
+  {
+    applyLhsRow3(1,d,k,x00,x01,x10,x11,y00,y01,y10,y11);
+  }
+
+  // Returns the dot product x'y.
+  double dot(float[] x, float[] y) {
+    int n1 = x.length;
+    double d = 0.0;
+    for (int i1=0; i1<n1; ++i1)
+      d += x[i1]*y[i1];
+    return d;
+  }
+
+  // Computes y = y + a*x.
+  void axpy(float a, float[] x, float[] y) {
+    int n1 = x.length;
+    for (int i1=0; i1<n1; ++i1)
+      y[i1] += a*x[i1];
+  }
+
+  // Computes y = x + a*y.
+  void xpay(float a, float[] x, float[] y) {
+    int n1 = x.length;
+    for (int i1=0; i1<n1; ++i1)
+      y[i1] = a*y[i1]+x[i1];
+  }
+
+  // Computes y = a*x + b*y.
+  void axpby(float a, float[] x, float b, float[] y) {
+    int n1 = x.length;
+    for (int i1=0; i1<n1; ++i1)
+      y[i1] = a*x[i1]+b*y[i1];
+  }
+
+  // Computes y = a*x + b*y and returns the dot product y'z.
+  double axpbyDot(float a, float[] x, float b, float[] y, float[] z) {
+    int n1 = x.length;
+    double d = 0.0;
+    if (b==1.0f) {
+      for (int i1=0; i1<n1; ++i1) {
+        float yi = y[i1]+a*x[i1];
+        y[i1] = yi;
+        d += yi*z[i1];
+      }
+    } else if (a==1.0f) {
+      for (int i1=0; i1<n1; ++i1) {
+        float yi = b*y[i1]+x[i1];
+        y[i1] = yi;
+        d += yi*z[i1];
+      }
+    } else {
+      for (int i1=0; i1<n1; ++i1) {
+        float yi = a*x[i1]+b*y[i1];
+        y[i1] = yi;
+        d += yi*z[i1];
+      }
+    }
+    return d;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // protected
+
+  // 2D laplacian for cells with indices i1b <= i1 < n1.
+  protected static void applyLhsRow2(int i1b,
+    float[][] d, int k, float[] x0, float[] x1, float[] y0, float[] y1)
+  {
+    float[] d11 = d[0];
+    float[] d12 = d[1];
+    float[] d22 = d[2];
+    int n1 = x0.length;
+    for (int i1=i1b,i1m=i1b-1,j=k+i1b; i1<n1; ++i1,++i1m,++j) {
+      float xa = x0[i1]-x1[i1m];
+      float xb = x1[i1]-x0[i1m];
+      float xs1 = 0.5f*(xa+xb);
+      float xs2 = 0.5f*(xa-xb);
+      float ys1 = d11[j]*xs1+d12[j]*xs2;
+      float ys2 = d12[j]*xs1+d22[j]*xs2;
+      float ya = 0.5f*(ys1+ys2);
+      float yb = 0.5f*(ys1-ys2);
+      y0[i1 ] += ya;
+      y0[i1m] -= yb;
+      y1[i1 ] += yb;
+      y1[i1m] -= ya;
+    }
+  }
+
+  // 3D laplacian for cells with indices i1b <= i1 < n1.
+  protected static void applyLhsRow3(int i1b, float[][] d, int k,
+    float[] x00, float[] x01, float[] x10, float[] x11,
+    float[] y00, float[] y01, float[] y10, float[] y11)
+  {
+    float[] d11 = d[0];
+    float[] d12 = d[1];
+    float[] d13 = d[2];
+    float[] d22 = d[3];
+    float[] d23 = d[4];
+    float[] d33 = d[5];
+    int n1 = x00.length;
+    for (int i1=i1b,i1m=i1b-1,j=k+i1b; i1<n1; ++i1,++i1m,++j) {
+      float xa = x00[i1]-x11[i1m];
+      float xb = x01[i1]-x10[i1m];
+      float xc = x10[i1]-x01[i1m];
+      float xd = x11[i1]-x00[i1m];
+      float xs1 = 0.25f*(xa+xb+xc+xd);
+      float xs2 = 0.25f*(xa-xb+xc-xd);
+      float xs3 = 0.25f*(xa+xb-xc-xd);
+      float ys1 = d11[j]*xs1+d12[j]*xs2+d13[j]*xs3;
+      float ys2 = d12[j]*xs1+d22[j]*xs2+d23[j]*xs3;
+      float ys3 = d13[j]*xs1+d23[j]*xs2+d33[j]*xs3;
+      float ya = 0.25f*(ys1+ys2+ys3);
+      float yb = 0.25f*(ys1-ys2+ys3);
+      float yc = 0.25f*(ys1+ys2-ys3);
+      float yd = 0.25f*(ys1-ys2-ys3);
+      y00[i1 ] += ya;
+      y00[i1m] -= yd;
+      y01[i1 ] += yb;
+      y01[i1m] -= yc;
+      y10[i1 ] += yc;
+      y10[i1m] -= yb;
+      y11[i1 ] += yd;
+      y11[i1m] -= ya;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Returns SIMD kernels, if available, or scalar kernels.
+  private static Kernels load() {
+    if (!Boolean.parseBoolean(System.getProperty("igi.simd","true")))
+      return new Kernels();
+    try {
+      Class<?> c = Class.forName("igi.SimdKernels");
+      return (Kernels)c.getDeclaredConstructor().newInstance();
+    } catch (Throwable e) { // not compiled, or no Vector API in this JVM
+      return new Kernels();
+    }
+  }
+}
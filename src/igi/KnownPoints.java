@@ -0,0 +1,294 @@
+package igi;
+
+import java.util.Arrays;
+
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * An index of samples of an image at known points. Known points are
+ * specified by sample indices, which are converted to ints once, when
+ * the index is built. Each sample with known points has one linear index
+ * i1+n1*(i2+n2*i3), and samples are stored in increasing order of those
+ * indices, so that they are visited in the order in which they are stored
+ * in memory.
+ * <p>
+ * Known points in the same sample are merged. The value set in that
+ * sample is the mean of the values at those points, not the value of
+ * whichever point happens to be last. Counts of points in samples are
+ * available, so that merged points can be reported.
+ * <p>
+ * Setting values and zeroing constrained samples are parallel scatters
+ * over fixed chunks of samples, which require no conversions of
+ * coordinates and no allocation.
+ */
+class KnownPoints {
+
+  /**
+   * Constructs an index for known points in a 2D image.
+   * @param k1 1st sample indices of known points; null, for none.
+   * @param k2 2nd sample indices of known points; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   */
+  KnownPoints(float[] k1, float[] k2, int n1, int n2) {
+    this(k1,k2,(k1!=null)?new float[k1.length]:null,n1,n2,1);
+  }
+
+  /**
+   * Constructs an index for known points in a 3D image.
+   * @param k1 1st sample indices of known points; null, for none.
+   * @param k2 2nd sample indices of known points; null, for none.
+   * @param k3 3rd sample indices of known points; null, for none.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   * @throws IllegalArgumentException if a point is not in the image.
+   */
+  KnownPoints(
+    float[] k1, float[] k2, float[] k3, int n1, int n2, int n3)
+  {
+    int np = (k1!=null && k2!=null && k3!=null)?k1.length:0;
+    long[] jp = new long[np]; // linear index of each point
+    for (int ip=0; ip<np; ++ip) {
+      int i1 = (int)k1[ip];
+      int i2 = (int)k2[ip];
+      int i3 = (int)k3[ip];
+      if (i1<0 || i1>=n1 || i2<0 || i2>=n2 || i3<0 || i3>=n3)
+        throw new IllegalArgumentException(
+          "known point "+ip+" at ("+i1+","+i2+","+i3+") is not in image");
+      jp[ip] = i1+(long)n1*(i2+(long)n2*i3);
+    }
+
+    // Sorted linear indices of samples, without duplicates.
+    long[] js = copySorted(jp);
+    int ns = 0;
+    for (int ip=0; ip<np; ++ip) {
+      if (ns==0 || js[ns-1]!=js[ip])
+        js[ns++] = js[ip];
+    }
+    _j = Arrays.copyOf(js,ns);
+
+    // Points in each sample, as ranges of a permutation of points.
+    int[] is = new int[np];
+    _b = new int[ns+1];
+    for (int ip=0; ip<np; ++ip) {
+      is[ip] = Arrays.binarySearch(_j,jp[ip]);
+      ++_b[is[ip]+1];
+    }
+    for (int i=0; i<ns; ++i)
+      _b[i+1] += _b[i];
+    int[] b = Arrays.copyOf(_b,ns);
+    _p = new int[np];
+    for (int ip=0; ip<np; ++ip)
+      _p[b[is[ip]]++] = ip;
+
+    // Sample indices, converted once.
+    _i1 = new int[ns];
+    _i2 = new int[ns];
+    _i3 = new int[ns];
+    for (int i=0; i<ns; ++i) {
+      long j = _j[i];
+      _i1[i] = (int)(j%n1);
+      _i2[i] = (int)((j/n1)%n2);
+      _i3[i] = (int)(j/n1/n2);
+    }
+    _np = np;
+  }
+
+  /**
+   * Gets the number of known points, including merged points.
+   * @return the number of points.
+   */
+  int getPointCount() {
+    return _np;
+  }
+
+  /**
+   * Gets the number of samples with known points.
+   * @return the number of samples.
+   */
+  int getSampleCount() {
+    return _j.length;
+  }
+
+  /**
+   * Gets the number of known points merged with other points, because
+   * they are in the same sample.
+   * @return the number of merged points.
+   */
+  int getMergedCount() {
+    return _np-_j.length;
+  }
+
+  /**
+   * Gets the numbers of known points in samples with known points.
+   * @return array of counts, in order of linear indices of samples.
+   */
+  int[] getCounts() {
+    int ns = _j.length;
+    int[] c = new int[ns];
+    for (int i=0; i<ns; ++i)
+      c[i] = _b[i+1]-_b[i];
+    return c;
+  }
+
+  /**
+   * Gets the linear indices of samples with known points.
+   * @return array of increasing indices; by reference, not by copy.
+   */
+  long[] getIndices() {
+    return _j;
+  }
+
+  /**
+   * Gets the sample indices of samples with known points.
+   * @return array {i1,i2,i3} of arrays of indices, in order of linear
+   *  indices of samples; by reference, not by copy.
+   */
+  int[][] getSampleIndices() {
+    return new int[][]{_i1,_i2,_i3};
+  }
+
+  /**
+   * Returns mean values of known points in samples with known points.
+   * @param fx values at known points, in the order specified.
+   * @return array of values, in order of linear indices of samples.
+   */
+  float[] merge(float[] fx) {
+    int ns = _j.length;
+    float[] fs = new float[ns];
+    for (int i=0; i<ns; ++i)
+      fs[i] = mean(fx,i);
+    return fs;
+  }
+
+  /**
+   * Sets mean values of known points in a 2D image.
+   * @param fx values at known points, in the order specified.
+   * @param x the image.
+   */
+  void setValues(final float[] fx, final float[][] x) {
+    loopChunks(new LoopInt() {
+    public void compute(int ic) {
+      for (int i=begin(ic),e=end(ic); i<e; ++i)
+        x[_i2[i]][_i1[i]] = mean(fx,i);
+    }});
+  }
+
+  /**
+   * Sets mean values of known points in a 3D image.
+   * @param fx values at known points, in the order specified.
+   * @param x the image.
+   */
+  void setValues(final float[] fx, final float[][][] x) {
+    loopChunks(new LoopInt() {
+    public void compute(int ic) {
+      for (int i=begin(ic),e=end(ic); i<e; ++i)
+        x[_i3[i]][_i2[i]][_i1[i]] = mean(fx,i);
+    }});
+  }
+
+  /**
+   * Sets mean values of known points in a 3D image off heap. Samples are
+   * set serially, in the order in which they are stored.
+   * @param fx values at known points, in the order specified.
+   * @param x the image.
+   */
+  void setValues(float[] fx, VecBufferFloat3 x) {
+    int ns = _j.length;
+    for (int i=0; i<ns; ++i)
+      x.set(_i1[i],_i2[i],_i3[i],mean(fx,i));
+  }
+
+  /**
+   * Zeros samples with known points in a 2D image.
+   * @param x the image.
+   */
+  void constrain(float[][] x) {
+    _x2 = x;
+    loopChunks(_constrain2);
+  }
+
+  /**
+   * Zeros samples with known points in a 3D image.
+   * @param x the image.
+   */
+  void constrain(float[][][] x) {
+    _x3 = x;
+    loopChunks(_constrain3);
+  }
+
+  /**
+   * Zeros samples with known points in a 3D image off heap. Samples are
+   * zeroed serially, in the order in which they are stored.
+   * @param x the image.
+   */
+  void constrain(VecBufferFloat3 x) {
+    int ns = _j.length;
+    for (int i=0; i<ns; ++i)
+      x.set(_i1[i],_i2[i],_i3[i],0.0f);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NCHUNK = 4096; // samples in a chunk of scatters
+
+  private int _np; // number of known points
+  private long[] _j; // increasing linear indices of samples
+  private int[] _i1,_i2,_i3; // sample indices of samples
+  private int[] _b; // points in sample i are _p[_b[i]] to _p[_b[i+1]-1]
+  private int[] _p; // indices of points, grouped by sample
+
+  // Images constrained, and bodies of loops over chunks of samples, made
+  // once so that constraints allocate nothing; constraints may therefore
+  // be applied by only one thread at a time.
+  private float[][] _x2; // 2D image
+  private float[][][] _x3; // 3D image
+  private LoopInt _constrain2 = new LoopInt() {
+    public void compute(int ic) {
+      for (int i=begin(ic),e=end(ic); i<e; ++i)
+        _x2[_i2[i]][_i1[i]] = 0.0f;
+    }
+  };
+  private LoopInt _constrain3 = new LoopInt() {
+    public void compute(int ic) {
+      for (int i=begin(ic),e=end(ic); i<e; ++i)
+        _x3[_i3[i]][_i2[i]][_i1[i]] = 0.0f;
+    }
+  };
+
+  // Mean of values of the known points in sample i.
+  private float mean(float[] fx, int i) {
+    int b = _b[i];
+    int e = _b[i+1];
+    if (e==b+1)
+      return fx[_p[b]];
+    double s = 0.0;
+    for (int k=b; k<e; ++k)
+      s += fx[_p[k]];
+    return (float)(s/(e-b));
+  }
+
+  // Computes body in parallel for all chunks of samples, if any.
+  private void loopChunks(LoopInt body) {
+    int nc = (_j.length+NCHUNK-1)/NCHUNK;
+    if (nc>0)
+      loop(nc,body);
+  }
+
+  // The first and last+1 samples in a chunk.
+  private static int begin(int ic) {
+    return ic*NCHUNK;
+  }
+  private int end(int ic) {
+    return Math.min(_j.length,(ic+1)*NCHUNK);
+  }
+
+  // Returns a sorted copy of an array.
+  private static long[] copySorted(long[] a) {
+    long[] b = a.clone();
+    Arrays.sort(b);
+    return b;
+  }
+}
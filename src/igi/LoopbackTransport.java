@@ -0,0 +1,106 @@
+package igi;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * A transport among threads in one JVM, for testing distributed solves.
+ * Each thread uses one transport of a group, and arrays sent are copied
+ * to queues from which they are received.
+ */
+public class LoopbackTransport implements Transport {
+
+  /**
+   * Returns a group of transports, one for each thread.
+   * @param size the number of threads.
+   * @return array[size] of transports, indexed by rank.
+   */
+  public static LoopbackTransport[] group(int size) {
+    Group g = new Group(size);
+    LoopbackTransport[] t = new LoopbackTransport[size];
+    for (int rank=0; rank<size; ++rank)
+      t[rank] = new LoopbackTransport(g,rank);
+    return t;
+  }
+
+  public int getRank() {
+    return _rank;
+  }
+
+  public int getSize() {
+    return _g.size;
+  }
+
+  public void send(int rank, float[][] a) {
+    _g.q[_rank][rank].add(copy(a));
+  }
+
+  public void receive(int rank, float[][] a) {
+    try {
+      copy(_g.q[rank][_rank].take(),a);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public double sum(double v) {
+    _g.v[_rank] = v;
+    await();
+    double s = 0.0;
+    for (int rank=0; rank<_g.size; ++rank)
+      s += _g.v[rank];
+    await();
+    return s;
+  }
+
+  public void close() {
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private Group _g;
+  private int _rank;
+
+  // A queue of arrays sent from one rank to another. This class is not
+  // generic, so that arrays of queues may be constructed.
+  private static class Queue extends LinkedBlockingQueue<float[][]> {
+    private static final long serialVersionUID = 1L;
+  }
+
+  // Queues and values shared by all transports in a group.
+  private static class Group {
+    int size;
+    Queue[][] q; // queues from and to ranks
+    double[] v; // values to be summed
+    CyclicBarrier barrier;
+    Group(int size) {
+      this.size = size;
+      q = new Queue[size][size];
+      for (int i=0; i<size; ++i)
+        for (int j=0; j<size; ++j)
+          q[i][j] = new Queue();
+      v = new double[size];
+      barrier = new CyclicBarrier(size);
+    }
+  }
+
+  private LoopbackTransport(Group g, int rank) {
+    _g = g;
+    _rank = rank;
+  }
+
+  // Waits for all threads in the group.
+  private void await() {
+    try {
+      _g.barrier.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (BrokenBarrierException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
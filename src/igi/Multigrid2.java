@@ -0,0 +1,571 @@
+package igi;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * 2D geometric multigrid preconditioner for image-guided interpolation.
+ * Each application of this preconditioner is one V-cycle for the operator
+ * L+alpha*L*L, where L is the weighted anisotropic Laplacian used in 2D
+ * image-guided interpolation, with values at known points constrained.
+ * <p>
+ * Coarse grids are formed by removing every other sample in each
+ * dimension with at least five samples. Coefficients for each coarse
+ * cell are averages of tensors times squared weights for the fine cells
+ * that it covers, scaled for the coarse sampling intervals, and coarse
+ * operators are rediscretized with those coefficients. Smoothing is
+ * damped Jacobi with the exact diagonal of each operator, so that the
+ * smoother accounts for anisotropy in the tensors, and with damping
+ * computed from an estimate of the largest eigenvalue. Known points
+ * constrain all coarse samples to which they contribute, and the coarsest
+ * grids are solved directly.
+ * <p>
+ * The operator L computes gradients from differences along the two
+ * diagonals of each cell, so that L is small not only for smooth images,
+ * but also for smooth images multiplied by the checkerboard (-1)^(i1+i2).
+ * Such images have the same low energy as smooth images with tensor
+ * elements d11 and d22 exchanged. Therefore the fine grid has two coarse
+ * grids, one for smooth corrections and another for checkerboard
+ * corrections, for which the coarse operator is rediscretized with d11
+ * and d22 exchanged. Coarse operators are bilinear finite-element
+ * discretizations, which have no such checkerboard modes, so that each
+ * coarse grid has only one coarser grid. The work for all coarse grids
+ * is less than that for the fine grid.
+ * <p>
+ * Transfers between grids are bilinear, with restriction the transpose
+ * of prolongation, and the numbers of pre- and post-smoothing sweeps are
+ * equal, so that each V-cycle is symmetric and positive-definite, as
+ * required for preconditioning in a CG solver.
+ */
+public class Multigrid2 implements CgSolver.A, CgSolver.BlockA {
+
+  /**
+   * Constructs a multigrid preconditioner.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param alpha balance parameter for the biharmonic term.
+   * @param et 2D structure tensor field; null for isotropic operator.
+   * @param wp weights, low values near faults, high values elsewhere;
+   *  null for no weights.
+   * @param k1 1st sample indices of known points; null for none.
+   * @param k2 2nd sample indices of known points; null for none.
+   */
+  public Multigrid2(
+    int n1, int n2, float alpha, EigenTensors2 et, float[][] wp,
+    float[] k1, float[] k2)
+  {
+    this(n1,n2,alpha,et,wp,k1,k2,false);
+  }
+
+  // As above, but with the bilinear finite-element discretization on the
+  // finest grid if q1 is true, as for coarse grids. That discretization 
+  // has no checkerboard modes, as required for coarse-grid corrections 
+  // in other preconditioners.
+  Multigrid2(
+    int n1, int n2, float alpha, EigenTensors2 et, float[][] wp,
+    float[] k1, float[] k2, boolean q1)
+  {
+    _fine = new Level(n1,n2,alpha,coefficients(et,wp,n1,n2),k1,k2,q1);
+    _fine.coarsen();
+  }
+
+  /**
+   * Sets the number of smoothing sweeps before and after each coarse-grid
+   * correction. The default is 2.
+   * @param nsweep number of sweeps.
+   */
+  public void setSweeps(int nsweep) {
+    _nsweep = nsweep;
+  }
+
+  /**
+   * Gets the number of grids in each V-cycle, from finest to coarsest.
+   * @return the number of grids.
+   */
+  public int getLevelCount() {
+    int nlevel = 1;
+    for (Level level=_fine; level.coarse!=null; level=level.coarse[0])
+      ++nlevel;
+    return nlevel;
+  }
+
+  public void apply(Vec vx, Vec vy) {
+    float[][] x = ((VecArrayFloat2)vx).getArray();
+    float[][] y = ((VecArrayFloat2)vy).getArray();
+    copy(x,_fine.b);
+    _fine.constrain(_fine.b);
+    _fine.x = y;
+    cycle(_fine);
+  }
+
+  public void apply(Vec[] vx, Vec[] vy) {
+    int nk = vx.length;
+    for (int ik=0; ik<nk; ++ik)
+      apply(vx[ik],vy[ik]);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NDIRECT = 64; // max samples in coarsest grids
+  private static final float DAMP = 1.2f; // damping times max eigenvalue
+
+  private Level _fine; // finest grid
+  private int _nsweep = 2; // number of pre- and post-smoothing sweeps
+
+  // V-cycle beginning with the specified grid; computes x for b.
+  private void cycle(Level level) {
+    if (level.coarse==null) {
+      level.solveDirect();
+    } else {
+      zero(level.x);
+      for (int isweep=0; isweep<_nsweep; ++isweep)
+        level.sweep();
+      level.residual();
+      for (int ic=0; ic<level.coarse.length; ++ic) {
+        Level coarse = level.coarse[ic];
+        level.restrict(ic==1,level.r,coarse.b);
+        cycle(coarse);
+        level.prolong(ic==1,coarse.x,level.x);
+      }
+      level.constrain(level.x);
+      for (int isweep=0; isweep<_nsweep; ++isweep)
+        level.sweep();
+    }
+  }
+
+  // One grid, with coefficients, constraints and work arrays.
+  private static class Level {
+    int n1,n2; // numbers of samples
+    int f1,f2; // coarsening factors, 1 or 2, for coarse grids
+    float alpha; // balance parameter for biharmonic term
+    float[][][] c; // coefficients d11, d12, d22 for cells
+    float[] k1,k2; // sample indices of constrained samples
+    KnownPoints kp; // index of constrained samples
+    float[][] x,b,r,t; // solution, right-hand side and work arrays
+    float[][] dinv; // damping divided by diagonal of operator
+    double[][] l; // Cholesky factor for direct solve, on coarsest grids
+    double[] ld; // work array for direct solve
+    boolean q1; // true, for bilinear finite-element discretization
+    Level[] coarse; // grids for smooth and checkerboard corrections
+
+    Level(
+      int n1, int n2, float alpha, float[][][] c, float[] k1, float[] k2,
+      boolean q1)
+    {
+      this.q1 = q1;
+      this.n1 = n1;
+      this.n2 = n2;
+      this.alpha = alpha;
+      this.c = c;
+      this.k1 = k1;
+      this.k2 = k2;
+      this.kp = new KnownPoints(k1,k2,n1,n2);
+      b = new float[n2][n1];
+      r = new float[n2][n1];
+      t = new float[n2][n1];
+      dr = new float[n2][3][];
+    }
+
+    // Recursively constructs coarse grids, until grids are small
+    // enough to be solved directly.
+    void coarsen() {
+      if (n1*n2<=NDIRECT || n1<5 && n2<5) {
+        initDirect();
+        return;
+      }
+      initSmoother();
+      f1 = (n1>=5)?2:1;
+      f2 = (n2>=5)?2:1;
+      int m1 = (f1==2)?n1/2+1:n1;
+      int m2 = (f2==2)?n2/2+1:n2;
+      float[][][] cc = new float[3][m2][m1];
+      for (int j2=1; j2<m2; ++j2) {
+        for (int j1=1; j1<m1; ++j1) {
+          int i1l = (f1==2)?2*j1-1:j1, i1u = min(f1*j1,n1-1);
+          int i2l = (f2==2)?2*j2-1:j2, i2u = min(f2*j2,n2-1);
+          float nc = 0.0f;
+          for (int i2=i2l; i2<=i2u; ++i2) {
+            for (int i1=i1l; i1<=i1u; ++i1) {
+              for (int ic=0; ic<3; ++ic)
+                cc[ic][j2][j1] += c[ic][i2][i1];
+              nc += 1.0f;
+            }
+          }
+          for (int ic=0; ic<3; ++ic)
+            cc[ic][j2][j1] /= nc;
+        }
+      }
+      boolean[][] kc = new boolean[m2][m1];
+      int nk = (k1!=null && k2!=null)?k1.length:0;
+      for (int ik=0; ik<nk; ++ik) {
+        int i1 = (int)k1[ik];
+        int i2 = (int)k2[ik];
+        int j1 = i1/f1, j2 = i2/f2;
+        int j1u = (f1==2 && i1%2==1)?j1+1:j1;
+        int j2u = (f2==2 && i2%2==1)?j2+1:j2;
+        kc[j2][j1] = kc[j2][j1u] = kc[j2u][j1] = kc[j2u][j1u] = true;
+      }
+      int mk = 0;
+      for (int j2=0; j2<m2; ++j2)
+        for (int j1=0; j1<m1; ++j1)
+          if (kc[j2][j1]) ++mk;
+      float[] c1 = new float[mk];
+      float[] c2 = new float[mk];
+      for (int j2=0,ik=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          if (kc[j2][j1]) {
+            c1[ik] = j1;
+            c2[ik] = j2;
+            ++ik;
+          }
+        }
+      }
+      float s11 = (float)f2/f1, s22 = (float)f1/f2;
+      float[][][] cs = {mul(s11,cc[0]),cc[1],mul(s22,cc[2])};
+      float[][][] cx = {mul(s11,cc[2]),cc[1],mul(s22,cc[0])};
+      float ac = alpha/(f1*f2);
+      coarse = (q1) ?
+        new Level[]{new Level(m1,m2,ac,cs,c1,c2,true)} :
+        new Level[]{new Level(m1,m2,ac,cs,c1,c2,true),
+                    new Level(m1,m2,ac,cx,c1,c2,true)};
+      for (Level level:coarse) {
+        level.x = new float[m2][m1];
+        level.coarsen();
+      }
+    }
+
+    // Computes the damped inverse diagonal used in Jacobi sweeps. Entries
+    // of L are obtained by probing with samples that are three apart,
+    // and the damping is computed from an estimate of the largest
+    // eigenvalue of inv(D)*A, obtained by power iterations.
+    void initSmoother() {
+      float[][] d = new float[n2][n1];
+      for (int m2=0; m2<3; ++m2) {
+        for (int m1=0; m1<3; ++m1) {
+          zero(t);
+          for (int i2=m2; i2<n2; i2+=3)
+            for (int i1=m1; i1<n1; i1+=3)
+              t[i2][i1] = 1.0f;
+          applyL(t,r);
+          for (int i2=0; i2<n2; ++i2) {
+            for (int i1=0; i1<n1; ++i1) {
+              float ri = r[i2][i1];
+              d[i2][i1] += alpha*ri*ri;
+              if (i1%3==m1 && i2%3==m2)
+                d[i2][i1] += ri;
+            }
+          }
+        }
+      }
+      dinv = new float[n2][n1];
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          dinv[i2][i1] = (d[i2][i1]>0.0f)?1.0f/d[i2][i1]:0.0f;
+      constrain(dinv);
+      float[][] v = d;
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          v[i2][i1] = (float)((i1*7+i2*13)%11-5);
+      constrain(v);
+      double vnorm = sqrt(sum(mul(v,v)));
+      double emax = 0.0;
+      for (int iter=0; iter<10 && vnorm>0.0; ++iter) {
+        scale((float)(1.0/vnorm),v);
+        applyA(v,r);
+        mul(dinv,r,v);
+        vnorm = sqrt(sum(mul(v,v)));
+        emax = vnorm;
+      }
+      if (emax>0.0)
+        scale((float)(DAMP/emax),dinv);
+    }
+
+    // Computes the Cholesky factor of the operator for direct solves,
+    // with a small shift of the diagonal in case the operator is singular.
+    void initDirect() {
+      int n = n1*n2;
+      double[][] a = new double[n][n];
+      double dmax = 0.0;
+      for (int j=0; j<n; ++j) {
+        zero(t);
+        t[j/n1][j%n1] = 1.0f;
+        constrain(t);
+        applyA(t,r);
+        for (int i=0; i<n; ++i)
+          a[i][j] = r[i/n1][i%n1];
+        dmax = max(dmax,a[j][j]);
+      }
+      for (int j=0; j<n; ++j)
+        a[j][j] = (a[j][j]>0.0)?a[j][j]+1.0e-6*dmax:1.0;
+      l = cholesky(a);
+      ld = new double[n];
+    }
+
+    // Solves directly for x on this grid.
+    void solveDirect() {
+      int n = n1*n2;
+      double[] y = ld;
+      for (int i=0; i<n; ++i) {
+        double s = b[i/n1][i%n1];
+        for (int j=0; j<i; ++j)
+          s -= l[i][j]*y[j];
+        y[i] = s/l[i][i];
+      }
+      for (int i=n-1; i>=0; --i) {
+        double s = y[i];
+        for (int j=i+1; j<n; ++j)
+          s -= l[j][i]*y[j];
+        y[i] = s/l[i][i];
+      }
+      for (int i=0; i<n; ++i)
+        x[i/n1][i%n1] = (float)y[i];
+      constrain(x);
+    }
+
+    // One damped Jacobi sweep, x = x+dinv*(b-Ax).
+    void sweep() {
+      residual();
+      Parallel.loop(n2,_sweep);
+    }
+
+    // Computes residuals r = b-Ax.
+    void residual() {
+      applyA(x,r);
+      Parallel.loop(n2,_residual);
+    }
+
+    // Computes y = A*x = (L+alpha*L*L)*x, constrained.
+    void applyA(float[][] x, float[][] y) {
+      if (alpha>0.0f) {
+        applyL(x,t);
+        applyL(t,y);
+        Parallel.loop(n2,_bilaplacian);
+      } else {
+        applyL(x,y);
+      }
+      constrain(y);
+    }
+
+    // Computes y = L*x, without constraints; in parallel for odd and 
+    // then even rows of cells.
+    void applyL(float[][] x, float[][] y) {
+      _x = x;
+      _y = y;
+      Parallel.loop(n2,_zero);
+      Parallel.loop(1,n2,2,_cells);
+      Parallel.loop(2,n2,2,_cells);
+    }
+
+    // Computes y = y+L*x for the row of cells with index i2.
+    void applyL(int i2, float[][] x, float[][] y) {
+      float[][] d = dr[i2];
+      d[0] = c[0][i2];
+      d[1] = c[1][i2];
+      d[2] = c[2][i2];
+      Kernels.INSTANCE.applyLhsRow2(d,0,x[i2],x[i2-1],y[i2],y[i2-1]);
+      if (q1)
+        applyHourglass(d,x[i2],x[i2-1],y[i2],y[i2-1]);
+    }
+
+    // Restriction, y = P'x, for y on a coarse grid. For checkerboard
+    // corrections, x is multiplied by (-1)^(i1+i2) before restriction.
+    void restrict(boolean checker, float[][] x, float[][] y) {
+      _checker = checker;
+      _x = x;
+      _y = y;
+      Parallel.loop(y.length,_restrict);
+    }
+
+    // Prolongation, y = y+Px, for x on a coarse grid. For checkerboard
+    // corrections, Px is multiplied by (-1)^(i1+i2) before adding to y.
+    void prolong(boolean checker, float[][] x, float[][] y) {
+      _checker = checker;
+      _x = x;
+      _y = y;
+      Parallel.loop(n2,_prolong);
+    }
+
+    // Arguments of the current operation, and bodies of loops that use
+    // them, made once so that V-cycles allocate nothing.
+    float[][][] dr; // coefficients for each row of cells
+    private float[][] _x,_y; // input and output arrays
+    private boolean _checker; // true, for checkerboard corrections
+    private Parallel.LoopInt _sweep = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        float[] x2 = x[i2], r2 = r[i2], d2 = dinv[i2];
+        for (int i1=0; i1<n1; ++i1)
+          x2[i1] += d2[i1]*r2[i1];
+      }
+    };
+    private Parallel.LoopInt _residual = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        sub(b[i2],r[i2],r[i2]);
+      }
+    };
+    private Parallel.LoopInt _bilaplacian = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        float[] y2 = _y[i2], t2 = t[i2];
+        for (int i1=0; i1<n1; ++i1)
+          y2[i1] = t2[i1]+alpha*y2[i1];
+      }
+    };
+    private Parallel.LoopInt _zero = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        zero(_y[i2]);
+      }
+    };
+    private Parallel.LoopInt _cells = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        applyL(i2,_x,_y);
+      }
+    };
+    private Parallel.LoopInt _restrict = new Parallel.LoopInt() {
+      public void compute(int j2) {
+        boolean checker = _checker;
+        float[][] x = _x, y = _y;
+        zero(y[j2]);
+        if (f2==1) {
+          restrict1(f1,checker,x[j2],y[j2],sign(checker,j2));
+        } else {
+          int i2 = 2*j2;
+          if (i2<n2)
+            restrict1(f1,checker,x[i2],y[j2],sign(checker,i2));
+          if (i2-1>=0)
+            restrict1(f1,checker,x[i2-1],y[j2],0.5f*sign(checker,i2-1));
+          if (i2+1<n2)
+            restrict1(f1,checker,x[i2+1],y[j2],0.5f*sign(checker,i2+1));
+        }
+      }
+    };
+    private Parallel.LoopInt _prolong = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        boolean checker = _checker;
+        float[][] x = _x, y = _y;
+        float s = sign(checker,i2);
+        if (f2==1) {
+          prolong1(f1,checker,x[i2],y[i2],s);
+        } else if (i2%2==0) {
+          prolong1(f1,checker,x[i2/2],y[i2],s);
+        } else {
+          prolong1(f1,checker,x[i2/2  ],y[i2],0.5f*s);
+          prolong1(f1,checker,x[i2/2+1],y[i2],0.5f*s);
+        }
+      }
+    };
+
+    // Zeros values at constrained samples.
+    void constrain(float[][] x) {
+      kp.constrain(x);
+    }
+  }
+
+  // Returns coefficients d11, d12 and d22 times squared weights for cells.
+  private static float[][][] coefficients(
+    EigenTensors2 et, float[][] wp, int n1, int n2)
+  {
+    float[][][] c = new float[3][n2][n1];
+    float[] ds = {1.0f,0.0f,1.0f};
+    for (int i2=1; i2<n2; ++i2) {
+      for (int i1=1; i1<n1; ++i1) {
+        if (et!=null) et.getTensor(i1,i2,ds);
+        float wpi = (wp!=null)?wp[i2][i1]:1.0f;
+        float wps = wpi*wpi;
+        c[0][i2][i1] = ds[0]*wps;
+        c[1][i2][i1] = ds[1]*wps;
+        c[2][i2][i1] = ds[2]*wps;
+      }
+    }
+    return c;
+  }
+
+  // Adds the hourglass term that, with the operator L, completes the
+  // bilinear finite-element discretization for one row of cells.
+  static void applyHourglass(
+    float[][] dr, float[] x0, float[] x1, float[] y0, float[] y1)
+  {
+    float[] d11 = dr[0];
+    float[] d22 = dr[2];
+    int n1 = x0.length;
+    for (int i1=1,i1m=0; i1<n1; ++i1,++i1m) {
+      float xh = x0[i1]-x0[i1m]-x1[i1]+x1[i1m];
+      float yh = (d11[i1]+d22[i1])*xh/12.0f;
+      y0[i1 ] += yh;
+      y0[i1m] -= yh;
+      y1[i1 ] -= yh;
+      y1[i1m] += yh;
+    }
+  }
+
+  // Returns -1 for odd i, for checkerboard corrections; 1, otherwise.
+  static float sign(boolean checker, int i) {
+    return (checker && i%2==1)?-1.0f:1.0f;
+  }
+
+  // Adds y = y+s*P'x for one row, for coarsening factor f. For
+  // checkerboard corrections, x[i] is multiplied by (-1)^i.
+  static void restrict1(
+    int f, boolean checker, float[] x, float[] y, float s)
+  {
+    int n = x.length;
+    int m = y.length;
+    if (f==1) {
+      for (int j=0; j<m; ++j)
+        y[j] += s*sign(checker,j)*x[j];
+    } else {
+      float h = (checker)?-0.5f*s:0.5f*s;
+      for (int j=0; j<m; ++j) {
+        int i = 2*j;
+        float yj = (i<n)?s*x[i]:0.0f;
+        if (i>0) yj += h*x[i-1];
+        if (i<n-1) yj += h*x[i+1];
+        y[j] += yj;
+      }
+    }
+  }
+
+  // Adds y = y+s*Px for one row, for coarsening factor f. For
+  // checkerboard corrections, (Px)[i] is multiplied by (-1)^i.
+  static void prolong1(
+    int f, boolean checker, float[] x, float[] y, float s)
+  {
+    int n = y.length;
+    if (f==1) {
+      for (int i=0; i<n; ++i)
+        y[i] += s*sign(checker,i)*x[i];
+    } else {
+      float h = (checker)?-0.5f*s:0.5f*s;
+      for (int i=0; i<n; ++i) {
+        int j = i/2;
+        y[i] += (i%2==0)?s*x[j]:h*(x[j]+x[j+1]);
+      }
+    }
+  }
+
+  // Scales an array, x = s*x.
+  private static void scale(float s, float[][] x) {
+    int n2 = x.length;
+    int n1 = x[0].length;
+    for (int i2=0; i2<n2; ++i2)
+      for (int i1=0; i1<n1; ++i1)
+        x[i2][i1] *= s;
+  }
+
+  // Returns the lower-triangular Cholesky factor of a matrix,
+  // with rows of increasing length.
+  static double[][] cholesky(double[][] a) {
+    int n = a.length;
+    double[][] l = new double[n][];
+    for (int j=0; j<n; ++j) {
+      l[j] = new double[j+1];
+      for (int k=0; k<=j; ++k) {
+        double s = a[j][k];
+        for (int m=0; m<k; ++m)
+          s -= l[j][m]*l[k][m];
+        l[j][k] = (k<j)?s/l[k][k]:Math.sqrt(Math.max(s,Double.MIN_NORMAL));
+      }
+    }
+    return l;
+  }
+}
@@ -0,0 +1,643 @@
+package igi;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * 3D geometric multigrid preconditioner for image-guided interpolation.
+ * Each application of this preconditioner is one V-cycle for the operator
+ * L+alpha*L*L, where L is the weighted anisotropic Laplacian used in 3D
+ * image-guided interpolation, with values at known points constrained.
+ * Screen points on faults are not included in the preconditioner.
+ * <p>
+ * Grids are coarsened, and coarse operators rediscretized, as in
+ * {@link Multigrid2}. The operator L computes gradients from differences
+ * along the four diagonals of each cell, so that L is small not only for
+ * smooth images, but also for smooth images multiplied by any of the
+ * patterns (-1)^(i1+i2), (-1)^(i2+i3) and (-1)^(i1+i3). For the first
+ * pattern, such images have the same low energy as smooth images with
+ * tensor elements d11 and d22 exchanged and with no derivatives in the
+ * 3rd dimension; and likewise for the other patterns. Because the energy
+ * does not depend on how such images vary in that dimension, even
+ * images that vary rapidly in that dimension have low energy.
+ * <p>
+ * Therefore the fine grid has four coarse grids: one for smooth
+ * corrections, with all dimensions coarsened, and one for each pattern,
+ * with the dimension without derivatives not coarsened. Coarse operators
+ * are trilinear finite-element discretizations, which have no such
+ * patterns of low energy, so that each coarse grid has only one coarser
+ * grid. The work for all coarse grids is about that for the fine grid.
+ */
+public class Multigrid3 implements CgSolver.A, CgSolver.BlockA {
+
+  /**
+   * Constructs a multigrid preconditioner.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   * @param alpha balance parameter for the biharmonic term.
+   * @param et 3D structure tensor field; null for the operator with
+   *  all tensor elements equal to one, as in 3D interpolation.
+   * @param wp weights, zeros on faults, ones elsewhere; null for no weights.
+   * @param k1 1st sample indices of known points; null for none.
+   * @param k2 2nd sample indices of known points; null for none.
+   * @param k3 3rd sample indices of known points; null for none.
+   */
+  public Multigrid3(
+    int n1, int n2, int n3, float alpha, EigenTensors3 et, float[][][] wp,
+    float[] k1, float[] k2, float[] k3)
+  {
+    this(n1,n2,n3,alpha,et,wp,k1,k2,k3,false);
+  }
+
+  // As above, but with the trilinear finite-element discretization on 
+  // the finest grid if q1 is true, as for coarse grids.
+  Multigrid3(
+    int n1, int n2, int n3, float alpha, EigenTensors3 et, float[][][] wp,
+    float[] k1, float[] k2, float[] k3, boolean q1)
+  {
+    _fine = new Level(n1,n2,n3,alpha,coefficients(et,wp,n1,n2,n3),
+                      k1,k2,k3,q1,-1);
+    _fine.coarsen();
+  }
+
+  /**
+   * Sets the number of smoothing sweeps before and after each coarse-grid
+   * correction. The default is 2.
+   * @param nsweep number of sweeps.
+   */
+  public void setSweeps(int nsweep) {
+    _nsweep = nsweep;
+  }
+
+  /**
+   * Gets the number of grids in each V-cycle, from finest to coarsest.
+   * @return the number of grids.
+   */
+  public int getLevelCount() {
+    int nlevel = 1;
+    for (Level level=_fine; level.coarse!=null; level=level.coarse[0])
+      ++nlevel;
+    return nlevel;
+  }
+
+  public void apply(Vec vx, Vec vy) {
+    float[][][] x = ((VecArrayFloat3)vx).getArray();
+    copy(x,_fine.b);
+    _fine.constrain(_fine.b);
+    if (vy instanceof VecArrayHalf3) {
+      if (_y==null)
+        _y = new float[_fine.n3][_fine.n2][_fine.n1];
+      _fine.x = _y;
+      cycle(_fine);
+      ((VecArrayHalf3)vy).set(_y);
+    } else {
+      _fine.x = ((VecArrayFloat3)vy).getArray();
+      cycle(_fine);
+    }
+  }
+
+  public void apply(Vec[] vx, Vec[] vy) {
+    int nk = vx.length;
+    for (int ik=0; ik<nk; ++ik)
+      apply(vx[ik],vy[ik]);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NDIRECT = 512; // max samples in coarsest grids
+  private static final float DAMP = 1.2f; // damping times max eigenvalue
+
+  // For smooth corrections and for the three patterns, true for each
+  // dimension in which corrections are multiplied by (-1)^i.
+  private static final boolean[][] CHECKERS = {
+    {false,false,false},
+    {true,true,false},
+    {false,true,true},
+    {true,false,true},
+  };
+
+  private Level _fine; // finest grid
+  private int _nsweep = 2; // number of pre- and post-smoothing sweeps
+  private float[][][] _y; // work array for output in 16-bit floats
+
+  // V-cycle beginning with the specified grid; computes x for b.
+  private void cycle(Level level) {
+    if (level.coarse==null) {
+      level.solveDirect();
+    } else {
+      zero(level.x);
+      for (int isweep=0; isweep<_nsweep; ++isweep)
+        level.sweep();
+      level.residual();
+      for (int ic=0; ic<level.coarse.length; ++ic) {
+        Level coarse = level.coarse[ic];
+        level.restrict(CHECKERS[ic],level.r,coarse.b);
+        cycle(coarse);
+        level.prolong(CHECKERS[ic],coarse.x,level.x);
+      }
+      level.constrain(level.x);
+      for (int isweep=0; isweep<_nsweep; ++isweep)
+        level.sweep();
+    }
+  }
+
+  // One grid, with coefficients, constraints and work arrays.
+  private static class Level {
+    int n1,n2,n3; // numbers of samples
+    float alpha; // balance parameter for biharmonic term
+    float[][][][] c; // coefficients d11, d12, d13, d22, d23, d33 for cells
+    float[] k1,k2,k3; // sample indices of constrained samples
+    KnownPoints kp; // index of constrained samples
+    float[][][] x,b,r,t; // solution, right-hand side and work arrays
+    float[][][] dinv; // damping divided by diagonal of operator
+    double[][] l; // Cholesky factor for direct solve, on coarsest grids
+    double[] ld; // work array for direct solve
+    boolean q1; // true, for trilinear finite-element discretization
+    int keep; // dimension not coarsened, if any; -1, otherwise
+    Level[] coarse; // grids for smooth and pattern corrections
+
+    Level(
+      int n1, int n2, int n3, float alpha, float[][][][] c,
+      float[] k1, float[] k2, float[] k3, boolean q1, int keep)
+    {
+      this.q1 = q1;
+      this.keep = keep;
+      this.n1 = n1;
+      this.n2 = n2;
+      this.n3 = n3;
+      this.alpha = alpha;
+      this.c = c;
+      this.k1 = k1;
+      this.k2 = k2;
+      this.k3 = k3;
+      this.kp = new KnownPoints(k1,k2,k3,n1,n2,n3);
+      b = new float[n3][n2][n1];
+      r = new float[n3][n2][n1];
+      t = new float[n3][n2][n1];
+      ds = new float[n3][6][];
+    }
+
+    // Recursively constructs coarse grids, until grids are small
+    // enough to be solved directly.
+    void coarsen() {
+      if (n1*n2*n3<=NDIRECT || n1<5 && n2<5 && n3<5) {
+        initDirect();
+        return;
+      }
+      initSmoother();
+      coarse = (q1) ?
+        new Level[]{coarseGrid(0,keep)} :
+        new Level[]{
+          coarseGrid(0,-1),coarseGrid(1,2),coarseGrid(2,0),coarseGrid(3,1)};
+      for (Level level:coarse)
+        level.coarsen();
+    }
+
+    // Returns a coarse grid for smooth corrections or for corrections
+    // with one of the patterns, with one dimension perhaps not coarsened.
+    Level coarseGrid(int pattern, int keep) {
+      int f1 = (n1>=5 && keep!=0)?2:1;
+      int f2 = (n2>=5 && keep!=1)?2:1;
+      int f3 = (n3>=5 && keep!=2)?2:1;
+      if (f1*f2*f3==1) {
+        f1 = (n1>=5)?2:1;
+        f2 = (n2>=5)?2:1;
+        f3 = (n3>=5)?2:1;
+      }
+      int m1 = (f1==2)?n1/2+1:n1;
+      int m2 = (f2==2)?n2/2+1:n2;
+      int m3 = (f3==2)?n3/2+1:n3;
+      float[][][][] cc = new float[6][m3][m2][m1];
+      for (int j3=1; j3<m3; ++j3) {
+        int i3l = (f3==2)?2*j3-1:j3, i3u = min(f3*j3,n3-1);
+        for (int j2=1; j2<m2; ++j2) {
+          int i2l = (f2==2)?2*j2-1:j2, i2u = min(f2*j2,n2-1);
+          for (int j1=1; j1<m1; ++j1) {
+            int i1l = (f1==2)?2*j1-1:j1, i1u = min(f1*j1,n1-1);
+            float nc = 0.0f;
+            for (int i3=i3l; i3<=i3u; ++i3) {
+              for (int i2=i2l; i2<=i2u; ++i2) {
+                for (int i1=i1l; i1<=i1u; ++i1) {
+                  for (int ic=0; ic<6; ++ic)
+                    cc[ic][j3][j2][j1] += c[ic][i3][i2][i1];
+                  nc += 1.0f;
+                }
+              }
+            }
+            for (int ic=0; ic<6; ++ic)
+              cc[ic][j3][j2][j1] /= nc;
+          }
+        }
+      }
+      boolean[][][] kc = new boolean[m3][m2][m1];
+      int nk = (k1!=null && k2!=null && k3!=null)?k1.length:0;
+      for (int ik=0; ik<nk; ++ik) {
+        int i1 = (int)k1[ik];
+        int i2 = (int)k2[ik];
+        int i3 = (int)k3[ik];
+        int j1 = i1/f1, j2 = i2/f2, j3 = i3/f3;
+        int j1u = (f1==2 && i1%2==1)?j1+1:j1;
+        int j2u = (f2==2 && i2%2==1)?j2+1:j2;
+        int j3u = (f3==2 && i3%2==1)?j3+1:j3;
+        kc[j3 ][j2 ][j1] = kc[j3 ][j2 ][j1u] = true;
+        kc[j3 ][j2u][j1] = kc[j3 ][j2u][j1u] = true;
+        kc[j3u][j2 ][j1] = kc[j3u][j2 ][j1u] = true;
+        kc[j3u][j2u][j1] = kc[j3u][j2u][j1u] = true;
+      }
+      int mk = 0;
+      for (int j3=0; j3<m3; ++j3)
+        for (int j2=0; j2<m2; ++j2)
+          for (int j1=0; j1<m1; ++j1)
+            if (kc[j3][j2][j1]) ++mk;
+      float[] c1 = new float[mk];
+      float[] c2 = new float[mk];
+      float[] c3 = new float[mk];
+      for (int j3=0,ik=0; j3<m3; ++j3) {
+        for (int j2=0; j2<m2; ++j2) {
+          for (int j1=0; j1<m1; ++j1) {
+            if (kc[j3][j2][j1]) {
+              c1[ik] = j1;
+              c2[ik] = j2;
+              c3[ik] = j3;
+              ++ik;
+            }
+          }
+        }
+      }
+      float f = f1*f2*f3;
+      float s11 = f/(f1*f1), s12 = f/(f1*f2), s13 = f/(f1*f3);
+      float s22 = f/(f2*f2), s23 = f/(f2*f3), s33 = f/(f3*f3);
+      float[][][] d11 = cc[0], d12 = cc[1], d13 = cc[2];
+      float[][][] d22 = cc[3], d23 = cc[4], d33 = cc[5];
+      float[][][] zc = new float[m3][m2][m1];
+      float[][][][] cs;
+      if (pattern==1) {
+        cs = new float[][][][]{
+          mul(s11,d22),mul(s12,d12),zc,mul(s22,d11),zc,zc};
+      } else if (pattern==2) {
+        cs = new float[][][][]{
+          zc,zc,zc,mul(s22,d33),mul(s23,d23),mul(s33,d22)};
+      } else if (pattern==3) {
+        cs = new float[][][][]{
+          mul(s11,d33),zc,mul(s13,d13),zc,zc,mul(s33,d11)};
+      } else {
+        cs = new float[][][][]{
+          mul(s11,d11),mul(s12,d12),mul(s13,d13),
+          mul(s22,d22),mul(s23,d23),mul(s33,d33)};
+      }
+      Level level = new Level(m1,m2,m3,alpha/f,cs,c1,c2,c3,true,keep);
+      level.x = new float[m3][m2][m1];
+      return level;
+    }
+
+    // Computes the damped inverse diagonal used in Jacobi sweeps. Entries
+    // of L are obtained by probing with samples that are three apart,
+    // and the damping is computed from an estimate of the largest
+    // eigenvalue of inv(D)*A, obtained by power iterations.
+    void initSmoother() {
+      final float[][][] d = new float[n3][n2][n1];
+      for (int m3=0; m3<3; ++m3) {
+        for (int m2=0; m2<3; ++m2) {
+          for (int m1=0; m1<3; ++m1) {
+            zero(t);
+            for (int i3=m3; i3<n3; i3+=3)
+              for (int i2=m2; i2<n2; i2+=3)
+                for (int i1=m1; i1<n1; i1+=3)
+                  t[i3][i2][i1] = 1.0f;
+            applyL(t,r);
+            final int p1 = m1, p2 = m2, p3 = m3;
+            Parallel.loop(n3,new Parallel.LoopInt() {
+            public void compute(int i3) {
+              for (int i2=0; i2<n2; ++i2) {
+                float[] d32 = d[i3][i2], r32 = r[i3][i2];
+                for (int i1=0; i1<n1; ++i1) {
+                  float ri = r32[i1];
+                  d32[i1] += alpha*ri*ri;
+                  if (i1%3==p1 && i2%3==p2 && i3%3==p3)
+                    d32[i1] += ri;
+                }
+              }
+            }});
+          }
+        }
+      }
+      dinv = new float[n3][n2][n1];
+      for (int i3=0; i3<n3; ++i3)
+        for (int i2=0; i2<n2; ++i2)
+          for (int i1=0; i1<n1; ++i1)
+            dinv[i3][i2][i1] = (d[i3][i2][i1]>0.0f)?1.0f/d[i3][i2][i1]:0.0f;
+      constrain(dinv);
+      float[][][] v = d;
+      for (int i3=0; i3<n3; ++i3)
+        for (int i2=0; i2<n2; ++i2)
+          for (int i1=0; i1<n1; ++i1)
+            v[i3][i2][i1] = (float)((i1*7+i2*13+i3*17)%11-5);
+      constrain(v);
+      double vnorm = sqrt(sum(mul(v,v)));
+      double emax = 0.0;
+      for (int iter=0; iter<10 && vnorm>0.0; ++iter) {
+        scale((float)(1.0/vnorm),v);
+        applyA(v,r);
+        mul(dinv,r,v);
+        vnorm = sqrt(sum(mul(v,v)));
+        emax = vnorm;
+      }
+      if (emax>0.0)
+        scale((float)(DAMP/emax),dinv);
+    }
+
+    // Computes the Cholesky factor of the operator for direct solves,
+    // with a small shift of the diagonal in case the operator is singular.
+    void initDirect() {
+      int n12 = n1*n2;
+      int n = n12*n3;
+      double[][] a = new double[n][n];
+      double dmax = 0.0;
+      for (int j=0; j<n; ++j) {
+        zero(t);
+        t[j/n12][(j/n1)%n2][j%n1] = 1.0f;
+        constrain(t);
+        applyA(t,r);
+        for (int i=0; i<n; ++i)
+          a[i][j] = r[i/n12][(i/n1)%n2][i%n1];
+        dmax = max(dmax,a[j][j]);
+      }
+      for (int j=0; j<n; ++j)
+        a[j][j] = (a[j][j]>0.0)?a[j][j]+1.0e-6*dmax:1.0;
+      l = Multigrid2.cholesky(a);
+      ld = new double[n];
+    }
+
+    // Solves directly for x on this grid.
+    void solveDirect() {
+      int n12 = n1*n2;
+      int n = n12*n3;
+      double[] y = ld;
+      for (int i=0; i<n; ++i) {
+        double s = b[i/n12][(i/n1)%n2][i%n1];
+        for (int j=0; j<i; ++j)
+          s -= l[i][j]*y[j];
+        y[i] = s/l[i][i];
+      }
+      for (int i=n-1; i>=0; --i) {
+        double s = y[i];
+        for (int j=i+1; j<n; ++j)
+          s -= l[j][i]*y[j];
+        y[i] = s/l[i][i];
+      }
+      for (int i=0; i<n; ++i)
+        x[i/n12][(i/n1)%n2][i%n1] = (float)y[i];
+      constrain(x);
+    }
+
+    // One damped Jacobi sweep, x = x+dinv*(b-Ax).
+    void sweep() {
+      residual();
+      Parallel.loop(n3,_sweep);
+    }
+
+    // Computes residuals r = b-Ax.
+    void residual() {
+      applyA(x,r);
+      Parallel.loop(n3,_residual);
+    }
+
+    // Computes y = A*x = (L+alpha*L*L)*x, constrained.
+    void applyA(float[][][] x, float[][][] y) {
+      if (alpha>0.0f) {
+        applyL(x,t);
+        applyL(t,y);
+        Parallel.loop(n3,_bilaplacian);
+      } else {
+        applyL(x,y);
+      }
+      constrain(y);
+    }
+
+    // Computes y = L*x, without constraints. Slices i3 and i3-1 of y
+    // are updated for each i3, so odd and even i3 are done separately.
+    void applyL(float[][][] x, float[][][] y) {
+      zero(y);
+      _x = x;
+      _y = y;
+      Parallel.loop(1,n3,2,_cells);
+      Parallel.loop(2,n3,2,_cells);
+    }
+
+    // Computes y = y+L*x for cells between slices i3-1 and i3.
+    void applyL(int i3, float[][][] x, float[][][] y) {
+      float[][] dr = ds[i3];
+      for (int i2=1; i2<n2; ++i2) {
+        for (int ic=0; ic<6; ++ic)
+          dr[ic] = c[ic][i3][i2];
+        float[] x00 = x[i3][i2], x01 = x[i3][i2-1];
+        float[] x10 = x[i3-1][i2], x11 = x[i3-1][i2-1];
+        float[] y00 = y[i3][i2], y01 = y[i3][i2-1];
+        float[] y10 = y[i3-1][i2], y11 = y[i3-1][i2-1];
+        Kernels.INSTANCE.applyLhsRow3(dr,0,
+          x00,x01,x10,x11,y00,y01,y10,y11);
+        if (q1)
+          applyHourglass(dr,x00,x01,x10,x11,y00,y01,y10,y11);
+      }
+    }
+
+    // Restriction, y = P'x, for y on a coarse grid. For pattern
+    // corrections, x is multiplied by (-1)^i in dimensions flagged
+    // true in checker before restriction.
+    void restrict(boolean[] checker, float[][][] x, float[][][] y) {
+      _checker = checker;
+      _x = x;
+      _y = y;
+      _f1 = (y[0][0].length==n1)?1:2;
+      _f2 = (y[0].length==n2)?1:2;
+      _f3 = (y.length==n3)?1:2;
+      Parallel.loop(y.length,_restrict);
+    }
+
+    // Prolongation, y = y+Px, for x on a coarse grid. For pattern
+    // corrections, Px is multiplied by (-1)^i in dimensions flagged
+    // true in checker before adding to y.
+    void prolong(boolean[] checker, float[][][] x, float[][][] y) {
+      _checker = checker;
+      _x = x;
+      _y = y;
+      _f1 = (x[0][0].length==n1)?1:2;
+      _f2 = (x[0].length==n2)?1:2;
+      _f3 = (x.length==n3)?1:2;
+      Parallel.loop(n3,_prolong);
+    }
+
+    // Arguments of the current operation, and bodies of loops that use
+    // them, made once so that V-cycles allocate nothing.
+    float[][][] ds; // coefficients for a row of cells, for each slice
+    private float[][][] _x,_y; // input and output arrays
+    private boolean[] _checker; // dimensions with pattern corrections
+    private int _f1,_f2,_f3; // coarsening factors for x or y
+    private Parallel.LoopInt _sweep = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          float[] x32 = x[i3][i2], r32 = r[i3][i2], d32 = dinv[i3][i2];
+          for (int i1=0; i1<n1; ++i1)
+            x32[i1] += d32[i1]*r32[i1];
+        }
+      }
+    };
+    private Parallel.LoopInt _residual = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          float[] b32 = b[i3][i2], r32 = r[i3][i2];
+          for (int i1=0; i1<n1; ++i1)
+            r32[i1] = b32[i1]-r32[i1];
+        }
+      }
+    };
+    private Parallel.LoopInt _bilaplacian = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          float[] y32 = _y[i3][i2], t32 = t[i3][i2];
+          for (int i1=0; i1<n1; ++i1)
+            y32[i1] = t32[i1]+alpha*y32[i1];
+        }
+      }
+    };
+    private Parallel.LoopInt _cells = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        applyL(i3,_x,_y);
+      }
+    };
+    private Parallel.LoopInt _restrict = new Parallel.LoopInt() {
+      public void compute(int j3) {
+        boolean[] checker = _checker;
+        float[][][] x = _x, y = _y;
+        int f1 = _f1, f2 = _f2, f3 = _f3;
+        int m2 = y[0].length;
+        for (int j2=0; j2<m2; ++j2) {
+          zero(y[j3][j2]);
+          for (int i3=f3*j3-1; i3<=f3*j3+1; ++i3) {
+            float w3 = weight(f3,checker[2],i3,j3,n3);
+            if (w3==0.0f) continue;
+            for (int i2=f2*j2-1; i2<=f2*j2+1; ++i2) {
+              float w2 = weight(f2,checker[1],i2,j2,n2);
+              if (w2==0.0f) continue;
+              Multigrid2.restrict1(
+                f1,checker[0],x[i3][i2],y[j3][j2],w3*w2);
+            }
+          }
+        }
+      }
+    };
+    private Parallel.LoopInt _prolong = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        boolean[] checker = _checker;
+        float[][][] x = _x, y = _y;
+        int f1 = _f1, f2 = _f2, f3 = _f3;
+        for (int i2=0; i2<n2; ++i2) {
+          for (int j3=i3/f3; j3<=(i3+1)/f3 && j3<x.length; ++j3) {
+            float w3 = weight(f3,checker[2],i3,j3,n3);
+            if (w3==0.0f) continue;
+            for (int j2=i2/f2; j2<=(i2+1)/f2 && j2<x[0].length; ++j2) {
+              float w2 = weight(f2,checker[1],i2,j2,n2);
+              if (w2==0.0f) continue;
+              Multigrid2.prolong1(
+                f1,checker[0],x[j3][j2],y[i3][i2],w3*w2);
+            }
+          }
+        }
+      }
+    };
+
+    // Zeros values at constrained samples.
+    void constrain(float[][][] x) {
+      kp.constrain(x);
+    }
+  }
+
+  // Returns coefficients d11, d12, d13, d22, d23 and d33 times squared
+  // weights for cells.
+  private static float[][][][] coefficients(
+    EigenTensors3 et, float[][][] wp, int n1, int n2, int n3)
+  {
+    float[][][][] c = new float[6][n3][n2][n1];
+    float[] ds = fillfloat(1.0f,6);
+    for (int i3=1; i3<n3; ++i3) {
+      for (int i2=1; i2<n2; ++i2) {
+        for (int i1=1; i1<n1; ++i1) {
+          if (et!=null) et.getTensor(i1,i2,i3,ds);
+          float wpi = (wp!=null)?wp[i3][i2][i1]:1.0f;
+          float wps = wpi*wpi;
+          for (int ic=0; ic<6; ++ic)
+            c[ic][i3][i2][i1] = ds[ic]*wps;
+        }
+      }
+    }
+    return c;
+  }
+
+  // Returns the weight of fine sample i in the prolongation of coarse
+  // sample j in one dimension, for coarsening factor f; zero if none.
+  private static float weight(int f, boolean checker, int i, int j, int n) {
+    if (i<0 || i>=n)
+      return 0.0f;
+    float s = Multigrid2.sign(checker,i);
+    if (f==1)
+      return (i==j)?s:0.0f;
+    int d = i-2*j;
+    return (d==0)?s:(d==1 || d==-1)?0.5f*s:0.0f;
+  }
+
+  // Adds the hourglass terms that, with the operator L, complete the
+  // trilinear finite-element discretization for one row of cells. The
+  // terms are those for the products of coordinates x1*x2, x2*x3, x1*x3
+  // and x1*x2*x3 in the trilinear interpolant within each cell.
+  static void applyHourglass(float[][] dr,
+    float[] x00, float[] x01, float[] x10, float[] x11,
+    float[] y00, float[] y01, float[] y10, float[] y11)
+  {
+    float[] d11 = dr[0];
+    float[] d12 = dr[1];
+    float[] d13 = dr[2];
+    float[] d22 = dr[3];
+    float[] d23 = dr[4];
+    float[] d33 = dr[5];
+    int n1 = x00.length;
+    for (int i1=1,i1m=0; i1<n1; ++i1,++i1m) {
+      float xp = x00[i1]-x01[i1]-x10[i1]+x11[i1];
+      float xm = x00[i1m]-x01[i1m]-x10[i1m]+x11[i1m];
+      float xq = x00[i1]+x01[i1]-x10[i1]-x11[i1];
+      float xr = x00[i1m]+x01[i1m]-x10[i1m]-x11[i1m];
+      float xs = x00[i1]-x01[i1]+x10[i1]-x11[i1];
+      float xt = x00[i1m]-x01[i1m]+x10[i1m]-x11[i1m];
+      float xe = 0.5f*(xs-xt); // x1*x2
+      float xf = 0.5f*(xp+xm); // x2*x3
+      float xg = 0.5f*(xq-xr); // x1*x3
+      float xh = xp-xm;        // x1*x2*x3
+      float ye = ((d11[i1]+d22[i1])*xe+d13[i1]*xf+d23[i1]*xg)/12.0f;
+      float yf = (d13[i1]*xe+(d22[i1]+d33[i1])*xf+d12[i1]*xg)/12.0f;
+      float yg = (d23[i1]*xe+d12[i1]*xf+(d11[i1]+d33[i1])*xg)/12.0f;
+      float yh = (d11[i1]+d22[i1]+d33[i1])*xh/144.0f;
+      float ype = 0.5f*ye, ypf = 0.5f*yf, ypg = 0.5f*yg;
+      y00[i1 ] += ype+ypf+ypg+yh;
+      y00[i1m] += -ype+ypf-ypg-yh;
+      y01[i1 ] += -ype-ypf+ypg-yh;
+      y01[i1m] += ype-ypf-ypg+yh;
+      y10[i1 ] += ype-ypf-ypg-yh;
+      y10[i1m] += -ype-ypf+ypg+yh;
+      y11[i1 ] += -ype+ypf-ypg+yh;
+      y11[i1m] += ype+ypf+ypg-yh;
+    }
+  }
+
+  // Scales an array, x = s*x.
+  private static void scale(float s, float[][][] x) {
+    int n3 = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          x[i3][i2][i1] *= s;
+  }
+}
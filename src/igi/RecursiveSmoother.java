@@ -0,0 +1,262 @@
+package igi;
+
+import java.util.ArrayList;
+
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * Isotropic smoothing in place with recursive filters, for preconditioning
+ * in a CG solver. For each dimension of an image with n samples, smoothing
+ * solves the tridiagonal system (I+c*D'D)*y = x, where D is the (n-1)*n
+ * matrix of first differences and c = 0.5*sigma*sigma. The system is
+ * solved by a causal and an anti-causal recursion, with coefficients of
+ * its LDL' factorization, which are computed once for each n.
+ * <p>
+ * Away from ends of arrays, this smoothing is the same as that of a
+ * two-sided recursive exponential filter with half-width sigma. Unlike
+ * that filter with zero-slope ends, it is exactly symmetric and positive
+ * definite for arrays of any length, and it preserves constant arrays.
+ * <p>
+ * Smoothing in the 1st dimension is parallel over traces. Smoothing in
+ * the 2nd and 3rd dimensions updates rows of constant i2 or i3, in strips
+ * of i1 that fit in cache, so that inner loops over i1 may be vectorized.
+ * No arrays or other objects are allocated after the first smoothing of
+ * each length, so except as noted, one smoother may be applied by only one
+ * thread at a time.
+ */
+class RecursiveSmoother {
+
+  /**
+   * Constructs a smoother.
+   * @param sigma smoothing half-width, in samples.
+   */
+  RecursiveSmoother(double sigma) {
+    _c = 0.5*sigma*sigma;
+  }
+
+  /**
+   * Smooths a 2D array in place in its 1st dimension.
+   * @param x input and output array.
+   */
+  void apply1(float[][] x) {
+    setFactors(x[0].length);
+    _x2 = x;
+    loop(x.length,_traces2);
+  }
+
+  /**
+   * Smooths a 2D array in place in its 2nd dimension.
+   * @param x input and output array.
+   */
+  void apply2(float[][] x) {
+    setFactors(x.length);
+    _x2 = x;
+    _n1 = x[0].length;
+    loop((_n1+NSTRIP-1)/NSTRIP,_strips2);
+  }
+
+  /**
+   * Smooths a 3D array in place in its 1st dimension.
+   * @param x input and output array.
+   */
+  void apply1(float[][][] x) {
+    setFactors(x[0][0].length);
+    _x3 = x;
+    loop(x.length,_traces3);
+  }
+
+  /**
+   * Smooths a 3D array in place in its 2nd dimension.
+   * @param x input and output array.
+   */
+  void apply2(float[][][] x) {
+    setFactors(x[0].length);
+    _x3 = x;
+    _n1 = x[0][0].length;
+    _ns = (_n1+NSTRIP-1)/NSTRIP;
+    loop(x.length*_ns,_strips32);
+  }
+
+  /**
+   * Smooths a 3D array in place in its 3rd dimension.
+   * @param x input and output array.
+   */
+  void apply3(float[][][] x) {
+    setFactors(x.length);
+    _x3 = x;
+    _n1 = x[0][0].length;
+    _ns = (_n1+NSTRIP-1)/NSTRIP;
+    loop(x[0].length*_ns,_strips33);
+  }
+
+  /**
+   * Smooths a 2D array in place in its 1st dimension, in the calling 
+   * thread. Unlike the methods above, this method may be called by many
+   * threads at once.
+   * @param x input and output array.
+   */
+  void smooth1(float[][] x) {
+    float[][] ef = factors(x[0].length);
+    for (float[] x2:x)
+      solve(ef[0],ef[1],x2);
+  }
+
+  /**
+   * Smooths a 2D array in place in its 2nd dimension, in the calling 
+   * thread. Unlike the methods above, this method may be called by many
+   * threads at once.
+   * @param x input and output array.
+   */
+  void smooth2(float[][] x) {
+    float[][] ef = factors(x.length);
+    int n1 = x[0].length;
+    for (int j1=0; j1<n1; j1+=NSTRIP)
+      solve(ef[0],ef[1],x,j1,Math.min(n1,j1+NSTRIP));
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NSTRIP = 512; // max floats in a strip of i1
+
+  private double _c; // coefficient of D'D
+  private ArrayList<float[][]> _ef = // factors, for each length
+    new ArrayList<float[][]>();
+
+  // Factors and array of the current smoothing, and bodies of loops that
+  // use them, made once so that smoothing allocates nothing.
+  private float[] _e,_f; // factors
+  private float[][] _x2; // 2D array
+  private float[][][] _x3; // 3D array
+  private int _n1,_ns; // number of floats in 1st dimension, and strips
+  private LoopInt _traces2 = new LoopInt() {
+    public void compute(int i2) {
+      solve(_e,_f,_x2[i2]);
+    }
+  };
+  private LoopInt _strips2 = new LoopInt() {
+    public void compute(int is) {
+      int j1 = is*NSTRIP;
+      solve(_e,_f,_x2,j1,Math.min(_n1,j1+NSTRIP));
+    }
+  };
+  private LoopInt _traces3 = new LoopInt() {
+    public void compute(int i3) {
+      float[][] x3 = _x3[i3];
+      for (int i2=0; i2<x3.length; ++i2)
+        solve(_e,_f,x3[i2]);
+    }
+  };
+  private LoopInt _strips32 = new LoopInt() {
+    public void compute(int k) {
+      int i3 = k/_ns;
+      int j1 = (k%_ns)*NSTRIP;
+      solve(_e,_f,_x3[i3],j1,Math.min(_n1,j1+NSTRIP));
+    }
+  };
+  private LoopInt _strips33 = new LoopInt() {
+    public void compute(int k) {
+      int i2 = k/_ns;
+      int j1 = (k%_ns)*NSTRIP;
+      solve(_e,_f,_x3,i2,j1,Math.min(_n1,j1+NSTRIP));
+    }
+  };
+
+  // Sets the factors of the current smoothing for arrays with length n.
+  private void setFactors(int n) {
+    float[][] ef = factors(n);
+    _e = ef[0];
+    _f = ef[1];
+  }
+
+  // Returns arrays {e,f} of coefficients for arrays with length n. With
+  // pivots d[i] of the LDL' factorization of I+c*D'D, e[i] = c/d[i] for
+  // i < n-1 and f[i] = 1/d[i]. Coefficients are computed in double
+  // precision, and are cached for each length; few lengths are cached, 
+  // so they are found by a search that allocates nothing.
+  private synchronized float[][] factors(int n) {
+    int nef = _ef.size();
+    for (int ief=0; ief<nef; ++ief) {
+      float[][] ef = _ef.get(ief);
+      if (ef[1].length==n)
+        return ef;
+    }
+    float[] e = new float[Math.max(0,n-1)];
+    float[] f = new float[n];
+    double c = _c;
+    double d = (n>1)?1.0+c:1.0;
+    f[0] = (float)(1.0/d);
+    for (int i=1; i<n; ++i) {
+      e[i-1] = (float)(c/d);
+      d = ((i<n-1)?1.0+2.0*c:1.0+c)-c*c/d;
+      f[i] = (float)(1.0/d);
+    }
+    float[][] ef = new float[][]{e,f};
+    _ef.add(ef);
+    return ef;
+  }
+
+  // Solves (I+c*D'D)*y = x for one array x, in place.
+  private static void solve(float[] e, float[] f, float[] x) {
+    int n = x.length;
+    for (int i=1; i<n; ++i)
+      x[i] += e[i-1]*x[i-1];
+    x[n-1] *= f[n-1];
+    for (int i=n-2; i>=0; --i)
+      x[i] = f[i]*x[i]+e[i]*x[i+1];
+  }
+
+  // Solves (I+c*D'D)*y = x in the 2nd dimension of a 2D array x, in place,
+  // for the strip of samples with indices j1b <= i1 < j1e.
+  private static void solve(
+    float[] e, float[] f, float[][] x, int j1b, int j1e)
+  {
+    int n = x.length;
+    for (int i=1; i<n; ++i) {
+      float ei = e[i-1];
+      float[] xm = x[i-1];
+      float[] xi = x[i];
+      for (int i1=j1b; i1<j1e; ++i1)
+        xi[i1] += ei*xm[i1];
+    }
+    float fn = f[n-1];
+    float[] xn = x[n-1];
+    for (int i1=j1b; i1<j1e; ++i1)
+      xn[i1] *= fn;
+    for (int i=n-2; i>=0; --i) {
+      float ei = e[i];
+      float fi = f[i];
+      float[] xp = x[i+1];
+      float[] xi = x[i];
+      for (int i1=j1b; i1<j1e; ++i1)
+        xi[i1] = fi*xi[i1]+ei*xp[i1];
+    }
+  }
+
+  // As above, but in the 3rd dimension of a 3D array x, for the samples
+  // with index i2.
+  private static void solve(
+    float[] e, float[] f, float[][][] x, int i2, int j1b, int j1e)
+  {
+    int n = x.length;
+    for (int i=1; i<n; ++i) {
+      float ei = e[i-1];
+      float[] xm = x[i-1][i2];
+      float[] xi = x[i][i2];
+      for (int i1=j1b; i1<j1e; ++i1)
+        xi[i1] += ei*xm[i1];
+    }
+    float fn = f[n-1];
+    float[] xn = x[n-1][i2];
+    for (int i1=j1b; i1<j1e; ++i1)
+      xn[i1] *= fn;
+    for (int i=n-2; i>=0; --i) {
+      float ei = e[i];
+      float fi = f[i];
+      float[] xp = x[i+1][i2];
+      float[] xi = x[i][i2];
+      for (int i1=j1b; i1<j1e; ++i1)
+        xi[i1] = fi*xi[i1]+ei*xp[i1];
+    }
+  }
+}
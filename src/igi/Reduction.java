@@ -0,0 +1,65 @@
+package igi;
+
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * Parallel sums that do not depend on the number of threads. Each index
+ * of a loop, typically a row or slice of an array, is a fixed chunk for
+ * which a partial sum is computed serially. Partial sums are computed in
+ * parallel and stored by index, and are then summed pairwise in order of
+ * their indices, so that the sum is the same, bit for bit, however the
+ * chunks are scheduled on threads.
+ * <p>
+ * Unlike {@link edu.mines.jtk.util.Parallel#reduce}, partial sums are
+ * not boxed, and are never combined in an order that depends on how the
+ * pool of threads splits the loop.
+ */
+class Reduction {
+
+  /**
+   * A partial sum for one index of a loop.
+   */
+  interface Partial {
+
+    /**
+     * Returns the partial sum for the specified index.
+     * @param i the index.
+     * @return the partial sum.
+     */
+    public double compute(int i);
+  }
+
+  /**
+   * Returns the sum of partial sums for indices 0 <= i < n.
+   * @param n the number of indices.
+   * @param p the partial sum for each index.
+   * @return the sum.
+   */
+  static double sum(int n, final Partial p) {
+    if (n<=1)
+      return (n==1)?p.compute(0):0.0;
+    final double[] s = new double[n];
+    loop(n,new LoopInt() {
+    public void compute(int i) {
+      s[i] = p.compute(i);
+    }});
+    return sum(s,0,n);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NSERIAL = 8; // max partial sums summed serially
+
+  // Pairwise sum of the n partial sums beginning with s[j].
+  private static double sum(double[] s, int j, int n) {
+    if (n<=NSERIAL) {
+      double d = 0.0;
+      for (int i=j; i<j+n; ++i)
+        d += s[i];
+      return d;
+    }
+    int m = n/2;
+    return sum(s,j,m)+sum(s,j+m,n-m);
+  }
+}
@@ -0,0 +1,334 @@
+package igi;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * 2D overlapping additive Schwarz preconditioner for image-guided
+ * interpolation. The grid is split into rectangular subdomains that
+ * overlap their neighbors, and each subdomain has its own tensors,
+ * weights and known points, copied from those for the whole grid.
+ * Samples on boundaries of subdomains that are not boundaries of the
+ * grid are constrained to be zero, as are known points, and each
+ * subdomain is solved approximately with one multigrid V-cycle.
+ * Subdomains are solved independently in parallel, and their solutions
+ * are added, with a coarse-grid correction, for the result.
+ * <p>
+ * The coarse grid has every f-th sample of the fine grid in each
+ * dimension with more than f samples, where f is half of the
+ * subdomain size, and fine and coarse grids are related by bilinear
+ * interpolation. Tensors are sampled at coarse samples, and weights are
+ * root-mean-square averages of fine weights near coarse samples, scaled
+ * for the coarse sampling intervals, as in {@link Multigrid2}. The coarse
+ * grid is solved with one V-cycle for the bilinear finite-element 
+ * discretization, which, unlike the discretization on the fine grid, 
+ * has no checkerboard modes that would be amplified by prolongation.
+ * <p>
+ * Each subdomain solve and the coarse-grid correction are symmetric and
+ * positive-semidefinite, so that their sum is symmetric and positive
+ * definite, as required for preconditioning in a CG solver.
+ * <p>
+ * Vectors that wrap work arrays, and bodies of parallel loops, are made
+ * once, so that applications allocate nothing in the preconditioner
+ * itself; one preconditioner may therefore be applied by only one thread
+ * at a time.
+ */
+public class Schwarz2 implements CgSolver.A, CgSolver.BlockA {
+
+  /**
+   * Constructs a Schwarz preconditioner.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param alpha balance parameter for the biharmonic term.
+   * @param et 2D structure tensor field; null for isotropic operator.
+   * @param wp weights, low values near faults, high values elsewhere;
+   *  null for no weights.
+   * @param k1 1st sample indices of known points; null for none.
+   * @param k2 2nd sample indices of known points; null for none.
+   * @param size number of samples in each dimension of subdomains,
+   *  not including overlaps.
+   * @param overlap number of samples by which subdomains are extended
+   *  on each side into their neighbors.
+   */
+  public Schwarz2(
+    final int n1, final int n2, final float alpha,
+    final EigenTensors2 et, final float[][] wp,
+    final float[] k1, final float[] k2, int size, int overlap)
+  {
+    _kp = new KnownPoints(k1,k2,n1,n2);
+    final int[][] r1 = ranges(n1,size,overlap);
+    final int[][] r2 = ranges(n2,size,overlap);
+    final int m1 = r1.length;
+    int m2 = r2.length;
+    _sub = new Subdomain[m1*m2];
+    Parallel.loop(m1*m2,new Parallel.LoopInt() {
+    public void compute(int is) {
+      int[] s1 = r1[is%m1], s2 = r2[is/m1];
+      _sub[is] = new Subdomain(s1[0],s1[1],s2[0],s2[1],
+        n1,n2,alpha,et,wp,k1,k2);
+    }});
+    if (_sub.length>1)
+      _coarse = new Coarse(max(2,size/2),n1,n2,alpha,et,wp,k1,k2);
+    _t = new float[n2][n1];
+  }
+
+  /**
+   * Gets the number of subdomains.
+   * @return the number of subdomains.
+   */
+  public int getSubdomainCount() {
+    return _sub.length;
+  }
+
+  public void apply(Vec vx, Vec vy) {
+    float[][] x = ((VecArrayFloat2)vx).getArray();
+    float[][] y = ((VecArrayFloat2)vy).getArray();
+    copy(x,_t);
+    _kp.constrain(_t);
+    Parallel.loop(_sub.length,_solve);
+    if (_coarse!=null) {
+      _coarse.solve(_t,y);
+    } else {
+      zero(y);
+    }
+    for (Subdomain s:_sub)
+      s.addTo(y);
+    _kp.constrain(y);
+  }
+
+  public void apply(Vec[] vx, Vec[] vy) {
+    int nk = vx.length;
+    for (int ik=0; ik<nk; ++ik)
+      apply(vx[ik],vy[ik]);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private KnownPoints _kp; // samples with known points
+  private Subdomain[] _sub; // overlapping subdomains
+  private Coarse _coarse; // coarse grid; null, for only one subdomain
+  private float[][] _t; // constrained input
+  private Parallel.LoopInt _solve = new Parallel.LoopInt() {
+    public void compute(int is) {
+      _sub[is].solve(_t);
+    }
+  };
+
+  // One subdomain, with its own multigrid solver and work arrays.
+  private static class Subdomain {
+    int b1,b2; // indices of first samples in the grid
+    int l1,l2; // numbers of samples
+    float[][] x,y; // input and output
+    VecArrayFloat2 vx,vy; // vectors that wrap x and y
+    Multigrid2 mg; // solver
+    float[][] yf; // output for the whole grid, in addTo
+
+    Subdomain(
+      int b1, int e1, int b2, int e2, int n1, int n2, float alpha,
+      EigenTensors2 et, float[][] wp, float[] k1, float[] k2)
+    {
+      this.b1 = b1;
+      this.b2 = b2;
+      l1 = e1-b1;
+      l2 = e2-b2;
+      EigenTensors2 es = null;
+      if (et!=null) {
+        es = new EigenTensors2(l1,l2);
+        float[] ds = new float[3];
+        for (int i2=0; i2<l2; ++i2) {
+          for (int i1=0; i1<l1; ++i1) {
+            et.getTensor(b1+i1,b2+i2,ds);
+            es.setTensor(i1,i2,ds);
+          }
+        }
+      }
+      float[][] ws = null;
+      if (wp!=null) {
+        ws = new float[l2][l1];
+        for (int i2=0; i2<l2; ++i2)
+          System.arraycopy(wp[b2+i2],b1,ws[i2],0,l1);
+      }
+      boolean[][] kb = new boolean[l2][l1];
+      int nk = (k1!=null && k2!=null)?k1.length:0;
+      for (int ik=0; ik<nk; ++ik) {
+        int i1 = (int)k1[ik]-b1;
+        int i2 = (int)k2[ik]-b2;
+        if (0<=i1 && i1<l1 && 0<=i2 && i2<l2)
+          kb[i2][i1] = true;
+      }
+      for (int i2=0; i2<l2; ++i2) {
+        kb[i2][0] |= b1>0;
+        kb[i2][l1-1] |= e1<n1;
+      }
+      for (int i1=0; i1<l1; ++i1) {
+        kb[0][i1] |= b2>0;
+        kb[l2-1][i1] |= e2<n2;
+      }
+      int mk = 0;
+      for (int i2=0; i2<l2; ++i2)
+        for (int i1=0; i1<l1; ++i1)
+          if (kb[i2][i1]) ++mk;
+      float[] c1 = new float[mk];
+      float[] c2 = new float[mk];
+      for (int i2=0,ik=0; i2<l2; ++i2) {
+        for (int i1=0; i1<l1; ++i1) {
+          if (kb[i2][i1]) {
+            c1[ik] = i1;
+            c2[ik] = i2;
+            ++ik;
+          }
+        }
+      }
+      mg = new Multigrid2(l1,l2,alpha,es,ws,c1,c2);
+      x = new float[l2][l1];
+      y = new float[l2][l1];
+      vx = new VecArrayFloat2(x);
+      vy = new VecArrayFloat2(y);
+    }
+
+    // Solves for y with input t restricted to this subdomain.
+    void solve(float[][] t) {
+      for (int i2=0; i2<l2; ++i2)
+        System.arraycopy(t[b2+i2],b1,x[i2],0,l1);
+      mg.apply(vx,vy);
+    }
+
+    // Adds y to the output yf for the whole grid.
+    void addTo(float[][] yf) {
+      this.yf = yf;
+      Parallel.loop(l2,add);
+    }
+    Parallel.LoopInt add = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        float[] ys = y[i2];
+        float[] yr = yf[b2+i2];
+        for (int i1=0; i1<l1; ++i1)
+          yr[b1+i1] += ys[i1];
+      }
+    };
+  }
+
+  // Coarse grid, with every f-th sample of the fine grid.
+  private static class Coarse {
+    int f1,f2; // coarsening factors
+    int n1,n2; // numbers of fine samples
+    int m1,m2; // numbers of coarse samples
+    float[][] x,y; // coarse input and output
+    VecArrayFloat2 vx,vy; // vectors that wrap x and y
+    Multigrid2 mg; // solver
+    float[][] t,yf; // fine input and output, in solve
+
+    Coarse(
+      int f, int n1, int n2, float alpha,
+      EigenTensors2 et, float[][] wp, float[] k1, float[] k2)
+    {
+      this.n1 = n1;
+      this.n2 = n2;
+      f1 = (n1>f)?f:1;
+      f2 = (n2>f)?f:1;
+      m1 = (n1-1+f1-1)/f1+1;
+      m2 = (n2-1+f2-1)/f2+1;
+      EigenTensors2 ec = null;
+      if (et!=null) {
+        ec = new EigenTensors2(m1,m2);
+        float[] ds = new float[3];
+        for (int j2=0; j2<m2; ++j2) {
+          for (int j1=0; j1<m1; ++j1) {
+            et.getTensor(min(j1*f1,n1-1),min(j2*f2,n2-1),ds);
+            ec.setTensor(j1,j2,ds);
+          }
+        }
+      }
+      float s = (float)(f1*f2)/(max(f1,f2)*max(f1,f2));
+      float[][] wc = new float[m2][m1];
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          int i1c = min(j1*f1,n1-1), i2c = min(j2*f2,n2-1);
+          float sw = 0.0f, nw = 0.0f;
+          for (int i2=max(0,i2c-f2/2); i2<=min(n2-1,i2c+f2/2); ++i2) {
+            for (int i1=max(0,i1c-f1/2); i1<=min(n1-1,i1c+f1/2); ++i1) {
+              float wpi = (wp!=null)?wp[i2][i1]:1.0f;
+              sw += wpi*wpi;
+              nw += 1.0f;
+            }
+          }
+          wc[j2][j1] = sqrt(s*sw/nw);
+        }
+      }
+      int nk = (k1!=null && k2!=null)?k1.length:0;
+      float[] c1 = new float[nk];
+      float[] c2 = new float[nk];
+      for (int ik=0; ik<nk; ++ik) {
+        c1[ik] = min(m1-1,round(k1[ik]/f1));
+        c2[ik] = min(m2-1,round(k2[ik]/f2));
+      }
+      mg = new Multigrid2(m1,m2,alpha/(f1*f2),ec,wc,c1,c2,true);
+      x = new float[m2][m1];
+      y = new float[m2][m1];
+      vx = new VecArrayFloat2(x);
+      vy = new VecArrayFloat2(y);
+    }
+
+    // Computes y = P*inv(Ac)*P'*t, for prolongation P from the coarse
+    // grid, and the coarse operator Ac.
+    void solve(float[][] t, float[][] yf) {
+      this.t = t;
+      this.yf = yf;
+      Parallel.loop(m2,restrict);
+      mg.apply(vx,vy);
+      Parallel.loop(n2,prolong);
+    }
+    Parallel.LoopInt restrict = new Parallel.LoopInt() {
+      public void compute(int j2) {
+        float[] xj = x[j2];
+        zero(xj);
+        for (int i2=max(0,(j2-1)*f2+1); i2<=min(n2-1,(j2+1)*f2-1); ++i2) {
+          float w2 = weight(f2,i2,j2);
+          for (int i1=0; i1<n1; ++i1) {
+            int j1 = i1/f1;
+            float w1 = weight(f1,i1,j1);
+            xj[j1] += w1*w2*t[i2][i1];
+            if (w1<1.0f)
+              xj[j1+1] += (1.0f-w1)*w2*t[i2][i1];
+          }
+        }
+      }
+    };
+    Parallel.LoopInt prolong = new Parallel.LoopInt() {
+      public void compute(int i2) {
+        int j2 = i2/f2;
+        float w2 = weight(f2,i2,j2);
+        float[] ya = y[j2];
+        float[] yb = (w2<1.0f)?y[j2+1]:ya;
+        float[] yr = yf[i2];
+        for (int i1=0; i1<n1; ++i1) {
+          int j1 = i1/f1;
+          float w1 = weight(f1,i1,j1);
+          float y0 = w2*ya[j1]+(1.0f-w2)*yb[j1];
+          float y1 = (w1<1.0f)?w2*ya[j1+1]+(1.0f-w2)*yb[j1+1]:0.0f;
+          yr[i1] = w1*y0+(1.0f-w1)*y1;
+        }
+      }
+    };
+  }
+
+  // Returns the weight of fine sample i in the prolongation of coarse
+  // sample j in one dimension, for coarsening factor f.
+  static float weight(int f, int i, int j) {
+    return max(0.0f,1.0f-(float)abs(i-j*f)/f);
+  }
+
+  // Returns the first and last+1 indices of overlapping subdomains in
+  // one dimension with n samples.
+  static int[][] ranges(int n, int size, int overlap) {
+    int m = max(1,(n+size-1)/size);
+    int[][] r = new int[m][2];
+    for (int j=0; j<m; ++j) {
+      r[j][0] = max(0,j*n/m-overlap);
+      r[j][1] = min(n,(j+1)*n/m+overlap);
+    }
+    return r;
+  }
+}
@@ -0,0 +1,373 @@
+package igi;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * 3D overlapping additive Schwarz preconditioner for image-guided
+ * interpolation. Subdomains, their solves with {@link Multigrid3}, and
+ * the coarse-grid correction are as in {@link Schwarz2}, with subdomains
+ * that are boxes and with trilinear interpolation between fine and
+ * coarse grids. Screen points on faults are not included in the
+ * preconditioner. As in {@link Schwarz2}, vectors that wrap work arrays,
+ * and bodies of parallel loops, are made once, so that one preconditioner
+ * may be applied by only one thread at a time.
+ */
+public class Schwarz3 implements CgSolver.A, CgSolver.BlockA {
+
+  /**
+   * Constructs a Schwarz preconditioner.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   * @param alpha balance parameter for the biharmonic term.
+   * @param et 3D structure tensor field; null for the operator with
+   *  all tensor elements equal to one, as in 3D interpolation.
+   * @param wp weights, zeros on faults, ones elsewhere; null for no weights.
+   * @param k1 1st sample indices of known points; null for none.
+   * @param k2 2nd sample indices of known points; null for none.
+   * @param k3 3rd sample indices of known points; null for none.
+   * @param size number of samples in each dimension of subdomains,
+   *  not including overlaps.
+   * @param overlap number of samples by which subdomains are extended
+   *  on each side into their neighbors.
+   */
+  public Schwarz3(
+    final int n1, final int n2, final int n3, final float alpha,
+    final EigenTensors3 et, final float[][][] wp,
+    final float[] k1, final float[] k2, final float[] k3,
+    int size, int overlap)
+  {
+    _kp = new KnownPoints(k1,k2,k3,n1,n2,n3);
+    final int[][] r1 = Schwarz2.ranges(n1,size,overlap);
+    final int[][] r2 = Schwarz2.ranges(n2,size,overlap);
+    final int[][] r3 = Schwarz2.ranges(n3,size,overlap);
+    final int m1 = r1.length;
+    final int m2 = r2.length;
+    int m3 = r3.length;
+    _sub = new Subdomain[m1*m2*m3];
+    Parallel.loop(m1*m2*m3,new Parallel.LoopInt() {
+    public void compute(int is) {
+      int[] s1 = r1[is%m1], s2 = r2[is/m1%m2], s3 = r3[is/m1/m2];
+      _sub[is] = new Subdomain(s1[0],s1[1],s2[0],s2[1],s3[0],s3[1],
+        n1,n2,n3,alpha,et,wp,k1,k2,k3);
+    }});
+    if (_sub.length>1)
+      _coarse = new Coarse(max(2,size/2),n1,n2,n3,alpha,et,wp,k1,k2,k3);
+    _t = new float[n3][n2][n1];
+  }
+
+  /**
+   * Gets the number of subdomains.
+   * @return the number of subdomains.
+   */
+  public int getSubdomainCount() {
+    return _sub.length;
+  }
+
+  public void apply(Vec vx, Vec vy) {
+    float[][][] x = ((VecArrayFloat3)vx).getArray();
+    float[][][] t = _t;
+    copy(x,t);
+    _kp.constrain(t);
+    Parallel.loop(_sub.length,_solve);
+    float[][][] y;
+    if (vy instanceof VecArrayHalf3) {
+      if (_y==null)
+        _y = new float[t.length][t[0].length][t[0][0].length];
+      y = _y;
+    } else {
+      y = ((VecArrayFloat3)vy).getArray();
+    }
+    if (_coarse!=null) {
+      _coarse.solve(t,y);
+    } else {
+      zero(y);
+    }
+    for (Subdomain s:_sub)
+      s.addTo(y);
+    _kp.constrain(y);
+    if (y==_y)
+      ((VecArrayHalf3)vy).set(_y);
+  }
+
+  public void apply(Vec[] vx, Vec[] vy) {
+    int nk = vx.length;
+    for (int ik=0; ik<nk; ++ik)
+      apply(vx[ik],vy[ik]);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private KnownPoints _kp; // samples with known points
+  private Subdomain[] _sub; // overlapping subdomains
+  private Coarse _coarse; // coarse grid; null, for only one subdomain
+  private float[][][] _t; // constrained input
+  private float[][][] _y; // work array for output in 16-bit floats
+  private Parallel.LoopInt _solve = new Parallel.LoopInt() {
+    public void compute(int is) {
+      _sub[is].solve(_t);
+    }
+  };
+
+  // One subdomain, with its own multigrid solver and work arrays.
+  private static class Subdomain {
+    int b1,b2,b3; // indices of first samples in the grid
+    int l1,l2,l3; // numbers of samples
+    float[][][] x,y; // input and output
+    VecArrayFloat3 vx,vy; // vectors that wrap x and y
+    Multigrid3 mg; // solver
+    float[][][] yf; // output for the whole grid, in addTo
+
+    Subdomain(
+      int b1, int e1, int b2, int e2, int b3, int e3,
+      int n1, int n2, int n3, float alpha, EigenTensors3 et, float[][][] wp,
+      float[] k1, float[] k2, float[] k3)
+    {
+      this.b1 = b1;
+      this.b2 = b2;
+      this.b3 = b3;
+      l1 = e1-b1;
+      l2 = e2-b2;
+      l3 = e3-b3;
+      EigenTensors3 es = null;
+      if (et!=null) {
+        es = new EigenTensors3(l1,l2,l3,false);
+        float[] ds = new float[6];
+        for (int i3=0; i3<l3; ++i3) {
+          for (int i2=0; i2<l2; ++i2) {
+            for (int i1=0; i1<l1; ++i1) {
+              et.getTensor(b1+i1,b2+i2,b3+i3,ds);
+              es.setTensor(i1,i2,i3,ds);
+            }
+          }
+        }
+      }
+      float[][][] ws = null;
+      if (wp!=null) {
+        ws = new float[l3][l2][l1];
+        for (int i3=0; i3<l3; ++i3)
+          for (int i2=0; i2<l2; ++i2)
+            System.arraycopy(wp[b3+i3][b2+i2],b1,ws[i3][i2],0,l1);
+      }
+      boolean[][][] kb = new boolean[l3][l2][l1];
+      int nk = (k1!=null && k2!=null && k3!=null)?k1.length:0;
+      for (int ik=0; ik<nk; ++ik) {
+        int i1 = (int)k1[ik]-b1;
+        int i2 = (int)k2[ik]-b2;
+        int i3 = (int)k3[ik]-b3;
+        if (0<=i1 && i1<l1 && 0<=i2 && i2<l2 && 0<=i3 && i3<l3)
+          kb[i3][i2][i1] = true;
+      }
+      for (int i3=0; i3<l3; ++i3) {
+        for (int i2=0; i2<l2; ++i2) {
+          kb[i3][i2][0] |= b1>0;
+          kb[i3][i2][l1-1] |= e1<n1;
+        }
+        for (int i1=0; i1<l1; ++i1) {
+          kb[i3][0][i1] |= b2>0;
+          kb[i3][l2-1][i1] |= e2<n2;
+        }
+      }
+      for (int i2=0; i2<l2; ++i2) {
+        for (int i1=0; i1<l1; ++i1) {
+          kb[0][i2][i1] |= b3>0;
+          kb[l3-1][i2][i1] |= e3<n3;
+        }
+      }
+      int mk = 0;
+      for (int i3=0; i3<l3; ++i3)
+        for (int i2=0; i2<l2; ++i2)
+          for (int i1=0; i1<l1; ++i1)
+            if (kb[i3][i2][i1]) ++mk;
+      float[] c1 = new float[mk];
+      float[] c2 = new float[mk];
+      float[] c3 = new float[mk];
+      for (int i3=0,ik=0; i3<l3; ++i3) {
+        for (int i2=0; i2<l2; ++i2) {
+          for (int i1=0; i1<l1; ++i1) {
+            if (kb[i3][i2][i1]) {
+              c1[ik] = i1;
+              c2[ik] = i2;
+              c3[ik] = i3;
+              ++ik;
+            }
+          }
+        }
+      }
+      mg = new Multigrid3(l1,l2,l3,alpha,es,ws,c1,c2,c3);
+      x = new float[l3][l2][l1];
+      y = new float[l3][l2][l1];
+      vx = new VecArrayFloat3(x);
+      vy = new VecArrayFloat3(y);
+    }
+
+    // Solves for y with input t restricted to this subdomain.
+    void solve(float[][][] t) {
+      for (int i3=0; i3<l3; ++i3)
+        for (int i2=0; i2<l2; ++i2)
+          System.arraycopy(t[b3+i3][b2+i2],b1,x[i3][i2],0,l1);
+      mg.apply(vx,vy);
+    }
+
+    // Adds y to the output yf for the whole grid.
+    void addTo(float[][][] yf) {
+      this.yf = yf;
+      Parallel.loop(l3,add);
+    }
+    Parallel.LoopInt add = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int i2=0; i2<l2; ++i2) {
+          float[] ys = y[i3][i2];
+          float[] yr = yf[b3+i3][b2+i2];
+          for (int i1=0; i1<l1; ++i1)
+            yr[b1+i1] += ys[i1];
+        }
+      }
+    };
+  }
+
+  // Coarse grid, with every f-th sample of the fine grid.
+  private static class Coarse {
+    int f1,f2,f3; // coarsening factors
+    int n1,n2,n3; // numbers of fine samples
+    int m1,m2,m3; // numbers of coarse samples
+    float[][][] x,y; // coarse input and output
+    VecArrayFloat3 vx,vy; // vectors that wrap x and y
+    Multigrid3 mg; // solver
+    float[][][] t,yf; // fine input and output, in solve
+
+    Coarse(
+      int f, int n1, int n2, int n3, float alpha,
+      EigenTensors3 et, float[][][] wp, float[] k1, float[] k2, float[] k3)
+    {
+      this.n1 = n1;
+      this.n2 = n2;
+      this.n3 = n3;
+      f1 = (n1>f)?f:1;
+      f2 = (n2>f)?f:1;
+      f3 = (n3>f)?f:1;
+      m1 = (n1-1+f1-1)/f1+1;
+      m2 = (n2-1+f2-1)/f2+1;
+      m3 = (n3-1+f3-1)/f3+1;
+      EigenTensors3 ec = null;
+      if (et!=null) {
+        ec = new EigenTensors3(m1,m2,m3,false);
+        float[] ds = new float[6];
+        for (int j3=0; j3<m3; ++j3) {
+          for (int j2=0; j2<m2; ++j2) {
+            for (int j1=0; j1<m1; ++j1) {
+              et.getTensor(min(j1*f1,n1-1),min(j2*f2,n2-1),
+                           min(j3*f3,n3-1),ds);
+              ec.setTensor(j1,j2,j3,ds);
+            }
+          }
+        }
+      }
+      int fm = max(f1,max(f2,f3));
+      float s = (float)(f1*f2*f3)/(fm*fm);
+      float[][][] wc = new float[m3][m2][m1];
+      for (int j3=0; j3<m3; ++j3) {
+        for (int j2=0; j2<m2; ++j2) {
+          for (int j1=0; j1<m1; ++j1) {
+            int i1c = min(j1*f1,n1-1);
+            int i2c = min(j2*f2,n2-1);
+            int i3c = min(j3*f3,n3-1);
+            float sw = 0.0f, nw = 0.0f;
+            for (int i3=max(0,i3c-f3/2); i3<=min(n3-1,i3c+f3/2); ++i3) {
+              for (int i2=max(0,i2c-f2/2); i2<=min(n2-1,i2c+f2/2); ++i2) {
+                for (int i1=max(0,i1c-f1/2); i1<=min(n1-1,i1c+f1/2); ++i1) {
+                  float wpi = (wp!=null)?wp[i3][i2][i1]:1.0f;
+                  sw += wpi*wpi;
+                  nw += 1.0f;
+                }
+              }
+            }
+            wc[j3][j2][j1] = sqrt(s*sw/nw);
+          }
+        }
+      }
+      int nk = (k1!=null && k2!=null && k3!=null)?k1.length:0;
+      float[] c1 = new float[nk];
+      float[] c2 = new float[nk];
+      float[] c3 = new float[nk];
+      for (int ik=0; ik<nk; ++ik) {
+        c1[ik] = min(m1-1,round(k1[ik]/f1));
+        c2[ik] = min(m2-1,round(k2[ik]/f2));
+        c3[ik] = min(m3-1,round(k3[ik]/f3));
+      }
+      mg = new Multigrid3(m1,m2,m3,alpha/(f1*f2*f3),ec,wc,c1,c2,c3,
+                          true);
+      x = new float[m3][m2][m1];
+      y = new float[m3][m2][m1];
+      vx = new VecArrayFloat3(x);
+      vy = new VecArrayFloat3(y);
+    }
+
+    // Computes y = P*inv(Ac)*P'*t, for prolongation P from the coarse
+    // grid, and the coarse operator Ac.
+    void solve(float[][][] t, float[][][] yf) {
+      this.t = t;
+      this.yf = yf;
+      Parallel.loop(m3,restrict);
+      mg.apply(vx,vy);
+      Parallel.loop(n3,prolong);
+    }
+    Parallel.LoopInt restrict = new Parallel.LoopInt() {
+      public void compute(int j3) {
+        float[][] xj = x[j3];
+        zero(xj);
+        for (int i3=max(0,(j3-1)*f3+1); i3<=min(n3-1,(j3+1)*f3-1); ++i3) {
+          float w3 = Schwarz2.weight(f3,i3,j3);
+          for (int i2=0; i2<n2; ++i2) {
+            int j2 = i2/f2;
+            float w2 = Schwarz2.weight(f2,i2,j2);
+            float[] ti = t[i3][i2];
+            for (int i1=0; i1<n1; ++i1) {
+              int j1 = i1/f1;
+              float w1 = Schwarz2.weight(f1,i1,j1);
+              float ta = w2*w3*ti[i1];
+              float tb = (1.0f-w2)*w3*ti[i1];
+              xj[j2][j1] += w1*ta;
+              if (w1<1.0f)
+                xj[j2][j1+1] += (1.0f-w1)*ta;
+              if (w2<1.0f) {
+                xj[j2+1][j1] += w1*tb;
+                if (w1<1.0f)
+                  xj[j2+1][j1+1] += (1.0f-w1)*tb;
+              }
+            }
+          }
+        }
+      }
+    };
+    Parallel.LoopInt prolong = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        int j3 = i3/f3;
+        float w3 = Schwarz2.weight(f3,i3,j3);
+        float[][] ya = y[j3];
+        float[][] yb = (w3<1.0f)?y[j3+1]:ya;
+        for (int i2=0; i2<n2; ++i2) {
+          int j2 = i2/f2;
+          float w2 = Schwarz2.weight(f2,i2,j2);
+          int k2 = (w2<1.0f)?j2+1:j2;
+          float[] yaa = ya[j2], yab = ya[k2];
+          float[] yba = yb[j2], ybb = yb[k2];
+          float[] yr = yf[i3][i2];
+          for (int i1=0; i1<n1; ++i1) {
+            int j1 = i1/f1;
+            float w1 = Schwarz2.weight(f1,i1,j1);
+            int k1 = (w1<1.0f)?j1+1:j1;
+            float y0 = w3*(w2*yaa[j1]+(1.0f-w2)*yab[j1])+
+                       (1.0f-w3)*(w2*yba[j1]+(1.0f-w2)*ybb[j1]);
+            float y1 = w3*(w2*yaa[k1]+(1.0f-w2)*yab[k1])+
+                       (1.0f-w3)*(w2*yba[k1]+(1.0f-w2)*ybb[k1]);
+            yr[i1] = w1*y0+(1.0f-w1)*y1;
+          }
+        }
+      }
+    };
+  }
+}
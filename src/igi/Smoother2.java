@@ -2,6 +2,7 @@ package igi;
 
 import edu.mines.jtk.dsp.*;
 import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
 
 /**
  * 2D symmetric positive definite smoothing operator 
@@ -23,8 +24,26 @@ public class Smoother2 {
     _et = et;
     _sigma = sigma;
     _scale = 0.5f*sigma*sigma;
-    _ref = new RecursiveExponentialFilter(sigma);
-    _ref.setEdges(_edges);
+    _rs = new RecursiveSmoother(sigma);
+  }
+
+  /**
+   * Sets the degree of a polynomial for smoothing with tensors or weights.
+   * If positive, such smoothing does not solve a linear system with a
+   * local smoothing filter, but instead applies a Chebyshev polynomial
+   * of this degree that approximates the inverse of I+scale*L, where L
+   * is the bilinear finite-element laplacian for tensors scaled by
+   * weights. Each smoothing then costs this number of applications of L.
+   * <p>
+   * For any degree, the polynomial is positive for all eigenvalues of
+   * I+scale*L, which are bounded above by 1+4*scale*dmax, where dmax is
+   * the largest Gershgorin bound on eigenvalues of scaled tensors, so
+   * that smoothing remains symmetric and positive definite.
+   * The default degree is zero, for smoothing with a local smoothing filter.
+   * @param degree the degree; zero, for a local smoothing filter.
+   */
+  public void setDegree(int degree) {
+    _degree = degree;
   }
 
   /**
@@ -34,12 +53,17 @@ public class Smoother2 {
    * @param x input and output after smoothing.
    */
   public void apply(float[][] x) {
-    int n2 = x.length;
-    int n1 = x[0].length;
-    float[][] y = new float[n2][n1];
     if (_et==null&&_wp==null) {
       applyRefSmooth(_sigma,x); //isotropic smoothing, very fast
-    } else if(_et==null&&_wp!=null) {
+      return;
+    }
+    if (_degree>0) {
+      _x1[0] = x;
+      applyPolySmooth(_x1); //anisotropic smoothing, fixed cost
+      return;
+    }
+    float[][] y = work(x);
+    if(_et==null&&_wp!=null) {
       _lsf.applySmoothS(x,y);
       _lsf.apply(_scale,_wp,y,x); //isotropic & spatially variant smoothing
       _lsf.applySmoothS(x,y);
@@ -56,6 +80,24 @@ public class Smoother2 {
     }
   }
 
+  /**
+   * Smoothing preconditioner for a block CG solver, for a block of images
+   * with the same size. Polynomial smoothing is applied to all images 
+   * together, so that the coefficients for each row of cells serve all 
+   * images. Other smoothing is applied to one image at a time; isotropic 
+   * smoothing has only a few coefficients for each dimension, and local 
+   * smoothing filters solve a system for each image.
+   * @param x array[nk][n2][n1] of inputs and outputs after smoothing.
+   */
+  public void apply(float[][][] x) {
+    if (_degree>0 && (_et!=null||_wp!=null)) {
+      applyPolySmooth(x);
+    } else {
+      for (float[][] xk:x)
+        apply(xk);
+    }
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // private
   private float _scale;
@@ -63,12 +105,25 @@ public class Smoother2 {
   private float[][] _wp = null;
   private EigenTensors2 _et = null;
   private LocalSmoothingFilter _lsf = new LocalSmoothingFilter();
-  private RecursiveExponentialFilter _ref; 
-  RecursiveExponentialFilter.Edges _edges =
-      RecursiveExponentialFilter.Edges.OUTPUT_ZERO_SLOPE;
+  private RecursiveSmoother _rs; // isotropic smoothing in place
+  private float[][] _y; // workspace for smoothed images
+  private int _degree; // degree of polynomial smoothing; 0, for none
+  private float[][][] _c; // scaled tensor coefficients for rows of cells
+  private double _emax; // upper bound on eigenvalues of I+scale*L
+  private float[][][] _yk,_dk,_qk; // workspaces for polynomial smoothing
+
+  // Returns the workspace for smoothed images, with the size of x.
+  private float[][] work(float[][] x) {
+    int n2 = x.length;
+    int n1 = x[0].length;
+    if (_y==null || _y.length!=n2 || _y[0].length!=n1)
+      _y = new float[n2][n1];
+    return _y;
+  }
 
   //construct a symmetric positive definite smoothing operator 
-  //with highly efficient recursive exponential filters
+  //with highly efficient recursive filters, applied in place in
+  //palindromic order, so that the product remains symmetric
   private void applyRefSmooth(float sigma, float[][] x) {
     smooth1(sigma,x);
     smooth2(sigma,x);
@@ -76,13 +131,135 @@ public class Smoother2 {
     smooth1(sigma,x);
   }
 
+  // Smoothing with the Chebyshev polynomial p of B = I+scale*L for which
+  // p(e)e best approximates one for eigenvalues e in [1,emax], computed
+  // with Chebyshev iterations for By = x that begin with y = 0. Residuals
+  // r of those iterations are stored in x, for each image x[ik].
+  private void applyPolySmooth(float[][][] x) {
+    init(x[0]);
+    if (_emax<=1.0)
+      return;
+    int nk = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    if (_dk==null || _dk.length!=nk || _dk[0].length!=n2 || 
+        _dk[0][0].length!=n1) {
+      _yk = new float[nk][n2][n1];
+      _dk = new float[nk][n2][n1];
+      _qk = new float[nk][n2][n1];
+    }
+    double theta = 0.5*(_emax+1.0); // center of interval
+    double delta = 0.5*(_emax-1.0); // half-width of interval
+    double sigma = theta/delta;
+    double rho = 1.0/sigma;
+    _x = x;
+    _ri = (float)(1.0/theta);
+    loop(n2,_start);
+    for (int k=0; k<_degree; ++k) {
+      applyL();
+      double rhoNew = 1.0/(2.0*sigma-rho);
+      _a = (float)(rhoNew*rho);
+      _b = (float)(2.0*rhoNew/delta);
+      loop(n2,_step);
+      rho = rhoNew;
+    }
+    for (int ik=0; ik<nk; ++ik)
+      copy(_yk[ik],x[ik]);
+  }
+
+  // Computes tensor coefficients for cells and the bound emax for
+  // polynomial smoothing, if not already computed for the size of x.
+  // Coefficients d11, d12 and d22 for the row of cells i2 are _c[i2].
+  private void init(float[][] x) {
+    int n2 = x.length;
+    int n1 = x[0].length;
+    if (_c!=null && _c.length==n2 && _c[0][0].length==n1)
+      return;
+    _c = new float[n2][3][n1];
+    float[] ds = {1.0f,0.0f,1.0f};
+    float dmax = 0.0f;
+    for (int i2=1; i2<n2; ++i2) {
+      for (int i1=1; i1<n1; ++i1) {
+        if (_et!=null) _et.getTensor(i1,i2,ds);
+        float wpi = (_wp!=null)?_wp[i2][i1]:1.0f;
+        float d11 = _c[i2][0][i1] = ds[0]*wpi;
+        float d12 = _c[i2][1][i1] = ds[1]*wpi;
+        float d22 = _c[i2][2][i1] = ds[2]*wpi;
+        dmax = max(dmax,abs(d11)+abs(d12),abs(d12)+abs(d22));
+      }
+    }
+    _emax = 1.0+4.0*_scale*dmax;
+  }
+
+  // Computes q = L*d, in parallel for odd and then even rows of cells.
+  private void applyL() {
+    int n2 = _c.length;
+    loop(n2,_zero);
+    loop(1,n2,2,_cell);
+    loop(2,n2,2,_cell);
+  }
+
+  // Computes q = q+L*d for the row of cells with index i2, for all 
+  // images, with one pass over the coefficients for that row.
+  private void applyL(int i2) {
+    float[][] dr = _c[i2];
+    for (int ik=0; ik<_x.length; ++ik) {
+      float[][] d = _dk[ik], q = _qk[ik];
+      Kernels.INSTANCE.applyLhsRow2(dr,0,d[i2],d[i2-1],q[i2],q[i2-1]);
+      Multigrid2.applyHourglass(dr,d[i2],d[i2-1],q[i2],q[i2-1]);
+    }
+  }
+
+  // Arguments of the current polynomial smoothing, and bodies of loops
+  // that use them, made once so that smoothing allocates nothing.
+  private float[][][] _x; // residuals r, for each image
+  private float[][][] _x1 = new float[1][][]; // for one image
+  private float _ri,_a,_b; // 1/theta, and factors for directions d
+  private LoopInt _start = new LoopInt() {
+    public void compute(int i2) {
+      for (int ik=0; ik<_x.length; ++ik) {
+        float[] x2 = _x[ik][i2], y2 = _yk[ik][i2], d2 = _dk[ik][i2];
+        int n1 = x2.length;
+        for (int i1=0; i1<n1; ++i1)
+          y2[i1] = d2[i1] = _ri*x2[i1]; // y = d = r/theta
+      }
+    }
+  };
+  private LoopInt _step = new LoopInt() {
+    public void compute(int i2) {
+      for (int ik=0; ik<_x.length; ++ik) {
+        float[] x2 = _x[ik][i2], y2 = _yk[ik][i2];
+        float[] d2 = _dk[ik][i2], q2 = _qk[ik][i2];
+        int n1 = x2.length;
+        for (int i1=0; i1<n1; ++i1) {
+          float r = x2[i1]-d2[i1]-_scale*q2[i1]; // r = r-Bd
+          float di = _a*d2[i1]+_b*r;
+          x2[i1] = r;
+          d2[i1] = di;
+          y2[i1] += di;
+        }
+      }
+    }
+  };
+  private LoopInt _zero = new LoopInt() {
+    public void compute(int i2) {
+      for (int ik=0; ik<_x.length; ++ik)
+        zero(_qk[ik][i2]);
+    }
+  };
+  private LoopInt _cell = new LoopInt() {
+    public void compute(int i2) {
+      applyL(i2);
+    }
+  };
+
   // Smoothing for dimension 1.
   private void smooth1(float sigma, float[][] x) {
-    _ref.apply1(x,x);
+    _rs.apply1(x);
   }
   // Smoothing for dimension 2.
   private void smooth2(float sigma, float[][] x) {
-    _ref.apply2(x,x);
+    _rs.apply2(x);
   }
 
 
@@ -1,6 +1,10 @@
 package igi;
 
+import java.util.ArrayDeque;
+
 import edu.mines.jtk.dsp.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
 
 /**
  * 3D symmetric positive definite smoothing operator 
@@ -22,8 +26,42 @@ public class Smoother3 {
     _et = et;
     _sigma = sigma;
     _scale = 0.5f*sigma*sigma;
-    _ref = new RecursiveExponentialFilter(sigma);
-    _ref.setEdges(_edges);
+    _rs = new RecursiveSmoother(sigma);
+  }
+
+  /**
+   * Sets the degree of a polynomial for smoothing with tensors or weights.
+   * If positive, such smoothing does not solve a linear system with a
+   * local smoothing filter, but instead applies a Chebyshev polynomial
+   * of this degree that approximates the inverse of I+scale*L, where L
+   * is the trilinear finite-element laplacian for tensors scaled by
+   * weights. Each smoothing then costs this number of applications of L,
+   * and requires memory for two floats per sample for work arrays, for
+   * each image in a block; see {@link #apply(float[][][][])}.
+   * Coefficients of L are computed from tensors and weights in each
+   * application, unless cached; see {@link #setCoefficientCache(boolean)}.
+   * <p>
+   * For any degree, the polynomial is positive for all eigenvalues of
+   * I+scale*L, which are bounded above by 1+4*scale*dmax, where dmax is
+   * the largest Gershgorin bound on eigenvalues of scaled tensors, so
+   * that smoothing remains symmetric and positive definite.
+   * The default degree is zero, for smoothing with a local smoothing filter.
+   * @param degree the degree; zero, for a local smoothing filter.
+   */
+  public void setDegree(int degree) {
+    _degree = degree;
+  }
+
+  /**
+   * Sets caching of coefficients for polynomial smoothing. With caching,
+   * weighted tensor coefficients are computed once and stored, instead of 
+   * being computed in every application of L, which requires memory for 
+   * six more floats per sample.
+   * The default is false, for no caching.
+   * @param cache true, to cache coefficients; false, otherwise.
+   */
+  public void setCoefficientCache(boolean cache) {
+    _cache = cache;
   }
 
   /**
@@ -33,13 +71,17 @@ public class Smoother3 {
    * @param x input and output after smoothing.
    */
   public void apply(float[][][] x) {
-    int n3 = x.length;
-    int n2 = x[0].length;
-    int n1 = x[0][0].length;
-    float[][][] y = new float[n3][n2][n1];
     if (_et==null&&_wp==null) {
       applyRefSmooth(_sigma,x); //isotropic smoothing, very fast
-    } else if(_et==null&&_wp!=null) {
+      return;
+    }
+    if (_degree>0) {
+      _x1[0] = x;
+      applyPolySmooth(_x1); //anisotropic smoothing, fixed cost
+      return;
+    }
+    float[][][] y = work(x);
+    if(_et==null&&_wp!=null) {
       _lsf.applySmoothS(x,y);
       _lsf.apply(_scale,_wp,y,x); //isotropic & spatially variant smoothing
     } else if(_et!=null&&_wp==null) {
@@ -51,6 +93,50 @@ public class Smoother3 {
     }
   }
 
+  /**
+   * Smoothing preconditioner for a block CG solver, for a block of images
+   * with the same size. Polynomial smoothing is applied to all images 
+   * together, so that the coefficients for each row of cells, whether 
+   * cached or computed from tensors and weights, serve all images. Other
+   * smoothing is applied to one image at a time; isotropic smoothing has
+   * only a few coefficients for each dimension, and local smoothing 
+   * filters solve a system for each image.
+   * @param x array[nk][n3][n2][n1] of inputs and outputs after smoothing.
+   */
+  public void apply(float[][][][] x) {
+    if (_degree>0 && (_et!=null||_wp!=null)) {
+      applyPolySmooth(x);
+    } else {
+      for (float[][][] xk:x)
+        apply(xk);
+    }
+  }
+
+  /**
+   * Smoothing preconditioner for the CG solver, for a vector off heap.
+   * Isotropic smoothing is applied to slices and planes of the vector,
+   * and polynomial smoothing to a window of slices, so that heap memory
+   * is required only for those slices and planes, which are reused in
+   * subsequent calls. Work vectors for polynomial smoothing are stored 
+   * off heap, in the directory of x, if any. Coefficients, if cached,
+   * are stored on the heap.
+   * Smoothing with tensors or weights requires a positive degree; see
+   * {@link #setDegree(int)}.
+   * @param x input and output after smoothing.
+   * @throws IllegalStateException if smoothing with tensors or weights
+   *  and the degree is zero.
+   */
+  public void apply(VecBufferFloat3 x) {
+    if (_et==null&&_wp==null) {
+      applyRefSmooth(x);
+    } else if (_degree>0) {
+      applyPolySmooth(x);
+    } else {
+      throw new IllegalStateException(
+        "smoothing off heap with tensors or weights requires degree>0");
+    }
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // private
   private float _scale;
@@ -58,12 +144,36 @@ public class Smoother3 {
   private float[][][] _wp = null;
   private EigenTensors3 _et = null;
   private LocalSmoothingFilter _lsf = new LocalSmoothingFilter();
-  private RecursiveExponentialFilter _ref; 
-  RecursiveExponentialFilter.Edges _edges =
-      RecursiveExponentialFilter.Edges.OUTPUT_ZERO_SLOPE;
+  private RecursiveSmoother _rs; // isotropic smoothing in place
+  private float[][][] _y; // workspace for smoothed images
+  private int _degree; // degree of polynomial smoothing; 0, for none
+  private boolean _cache; // true, to cache coefficients
+  private float[][][][] _c; // scaled tensor coefficients, if cached
+  private double _emax; // upper bound on eigenvalues of I+scale*L
+  private int _n1,_n2,_n3; // dimensions for which emax is computed
+  private float[][][][] _yk,_dk; // outputs and directions, for images
+  private VecBufferFloat3 _vd,_vy; // directions and output, off heap
+  private float[][][] _dw; // two slices of directions off heap
+  private float[][] _xw,_yw; // one slice of residuals and output off heap
+  private float[][][][] _q; // two slices of L*d, for each image
+  private float[][][] _cs; // coefficients for one slice of cells
+  private float[][] _ds; // a tensor for each row of cells
+  private ArrayDeque<float[][]> _bufs = // slices and planes off heap
+    new ArrayDeque<float[][]>();
+
+  // Returns the workspace for smoothed images, with the size of x.
+  private float[][][] work(float[][][] x) {
+    int n3 = x.length;
+    int n2 = x[0].length;
+    int n1 = x[0][0].length;
+    if (_y==null || _y.length!=n3 || _y[0].length!=n2 || _y[0][0].length!=n1)
+      _y = new float[n3][n2][n1];
+    return _y;
+  }
 
   //construct a symmetric positive definite smoothing operator 
-  //with highly efficient recursive exponential filters
+  //with highly efficient recursive filters, applied in place in
+  //palindromic order, so that the product remains symmetric
   private void applyRefSmooth(float sigma, float[][][] x) {
     smooth1(sigma,x);
     smooth2(sigma,x);
@@ -73,17 +183,350 @@ public class Smoother3 {
     smooth1(sigma,x);
   }
 
+  // As above, for a vector off heap. Smoothing for dimensions 1 and 2 is
+  // applied to slices with constant i3, and smoothing for dimension 3 is
+  // applied to planes with constant i2.
+  private void applyRefSmooth(final VecBufferFloat3 x) {
+    final int n1 = x.getN1();
+    final int n2 = x.getN2();
+    final int n3 = x.getN3();
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      float[][] s = take(n2,n1);
+      x.getSlice(i3,s);
+      _rs.smooth1(s);
+      _rs.smooth2(s);
+      x.setSlice(i3,s);
+      give(s);
+    }});
+    loop(n2,new LoopInt() {
+    public void compute(int i2) {
+      float[][] p = take(n3,n1);
+      for (int i3=0; i3<n3; ++i3)
+        x.getRow(i2,i3,p[i3]);
+      _rs.smooth2(p);
+      _rs.smooth2(p);
+      for (int i3=0; i3<n3; ++i3)
+        x.setRow(i2,i3,p[i3]);
+      give(p);
+    }});
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      float[][] s = take(n2,n1);
+      x.getSlice(i3,s);
+      _rs.smooth2(s);
+      _rs.smooth1(s);
+      x.setSlice(i3,s);
+      give(s);
+    }});
+  }
+
+  // Takes an m*n array from the buffers, or allocates one if none has
+  // that size. At most one buffer per thread is allocated for each size.
+  private synchronized float[][] take(int m, int n) {
+    for (float[][] b:_bufs) {
+      if (b.length==m && b[0].length==n) {
+        _bufs.remove(b);
+        return b;
+      }
+    }
+    return new float[m][n];
+  }
+
+  // Returns an array to the buffers.
+  private synchronized void give(float[][] b) {
+    _bufs.push(b);
+  }
+
+  // Smoothing with the Chebyshev polynomial p of B = I+scale*L for which
+  // p(e)e best approximates one for eigenvalues e in [1,emax], computed
+  // with Chebyshev iterations for By = x that begin with y = 0. Residuals
+  // r of those iterations are stored in x, for each image x[ik].
+  private void applyPolySmooth(float[][][][] x) {
+    int nk = x.length;
+    int n3 = x[0].length;
+    int n2 = x[0][0].length;
+    int n1 = x[0][0][0].length;
+    init(n1,n2,n3);
+    if (_emax<=1.0)
+      return;
+    if (_dk==null || _dk.length!=nk || _dk[0].length!=n3 ||
+        _dk[0][0].length!=n2 || _dk[0][0][0].length!=n1) {
+      _dk = new float[nk][n3][n2][n1];
+      _yk = new float[nk][n3][n2][n1];
+    }
+    slices(nk,n1,n2);
+    _x = x;
+    applyPoly();
+    for (int ik=0; ik<nk; ++ik)
+      copy(_yk[ik],x[ik]);
+  }
+
+  // As above, for one vector off heap, with directions d and output y off
+  // heap, in the directory of x, if any.
+  private void applyPolySmooth(VecBufferFloat3 x) {
+    int n1 = x.getN1();
+    int n2 = x.getN2();
+    int n3 = x.getN3();
+    init(n1,n2,n3);
+    if (_emax<=1.0)
+      return;
+    if (_vd==null || _vd.getN1()!=n1 || _vd.getN2()!=n2 || 
+        _vd.getN3()!=n3 || _vd.getDirectory()!=x.getDirectory()) {
+      _vd = new VecBufferFloat3(n1,n2,n3,x.getDirectory());
+      _vy = new VecBufferFloat3(n1,n2,n3,x.getDirectory());
+      _dw = new float[2][n2][n1];
+      _xw = new float[n2][n1];
+      _yw = new float[n2][n1];
+    }
+    slices(1,n1,n2);
+    _vx = x;
+    try {
+      applyPoly();
+      for (int i3=0; i3<n3; ++i3) {
+        _vy.getSlice(i3,_yw);
+        x.setSlice(i3,_yw);
+      }
+    } finally {
+      _vx = null;
+    }
+  }
+
+  // Makes arrays of slices for nk images, and two slices of q for each.
+  private void slices(int nk, int n1, int n2) {
+    if (_q==null || _q.length!=nk || _q[0][0].length!=n2 ||
+        _q[0][0][0].length!=n1) {
+      _q = new float[nk][2][n2][n1];
+      _xs = new float[nk][][];
+      _ys = new float[nk][][];
+      _us = new float[nk][][];
+      _d0 = new float[nk][][];
+      _d1 = new float[nk][][];
+    }
+  }
+
+  // Chebyshev iterations for polynomial smoothing, with y and d on the
+  // heap, or off heap if the vector _vx is not null.
+  private void applyPoly() {
+    int n2 = _n2;
+    int n3 = _n3;
+    int nk = _q.length;
+    double theta = 0.5*(_emax+1.0); // center of interval
+    double delta = 0.5*(_emax-1.0); // half-width of interval
+    double sigma = theta/delta;
+    double rho = 1.0/sigma;
+    _ri = (float)(1.0/theta);
+    for (int i3=0; i3<n3; ++i3) {
+      if (_vx==null) {
+        for (int ik=0; ik<nk; ++ik) {
+          _xs[ik] = _x[ik][i3];
+          _ys[ik] = _yk[ik][i3];
+          _us[ik] = _dk[ik][i3];
+        }
+        loop(n2,_start);
+      } else {
+        _vx.getSlice(i3,_xw);
+        _xs[0] = _xw;
+        _ys[0] = _yw;
+        _us[0] = _dw[0];
+        loop(n2,_start);
+        _vy.setSlice(i3,_yw);
+        _vd.setSlice(i3,_dw[0]);
+      }
+    }
+    for (int k=0; k<_degree; ++k) {
+      double rhoNew = 1.0/(2.0*sigma-rho);
+      _a = (float)(rhoNew*rho);
+      _b = (float)(2.0*rhoNew/delta);
+      applyStep();
+      rho = rhoNew;
+    }
+  }
+
+  // Computes the bound emax and work arrays for polynomial smoothing, and
+  // coefficients for cells, if cached, if not already computed for the 
+  // specified dimensions.
+  private void init(final int n1, final int n2, final int n3) {
+    if (_emax>0.0 && _n1==n1 && _n2==n2 && _n3==n3)
+      return;
+    final float[][][][] c = (_cache)?new float[n3][n2][6][n1]:null;
+    final float[] dmax = new float[n3];
+    loop(1,n3,new LoopInt() {
+    public void compute(int i3) {
+      float[] ds = new float[6];
+      float[][] dr = new float[6][n1];
+      for (int i2=1; i2<n2; ++i2) {
+        if (c!=null)
+          dr = c[i3][i2];
+        coefficientsRow(i2,i3,ds,dr);
+        for (int i1=1; i1<n1; ++i1) {
+          float a11 = abs(dr[0][i1]), a12 = abs(dr[1][i1]);
+          float a13 = abs(dr[2][i1]), a22 = abs(dr[3][i1]);
+          float a23 = abs(dr[4][i1]), a33 = abs(dr[5][i1]);
+          dmax[i3] = max(dmax[i3],
+            max(a11+a12+a13,a12+a22+a23,a13+a23+a33));
+        }
+      }
+    }});
+    _c = c;
+    _emax = 1.0+4.0*_scale*max(dmax);
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+    _cs = (_cache)?null:new float[n2][6][n1];
+    _ds = new float[n2][6];
+  }
+
+  // Computes coefficients d11, d12, d13, d22, d23 and d33, scaled by 
+  // weights, for the row of cells with indices i2 and i3, with an array 
+  // ds for one tensor.
+  private void coefficientsRow(int i2, int i3, float[] ds, float[][] dr) {
+    int n1 = dr[0].length;
+    ds[0] = 1.0f; ds[1] = 0.0f; ds[2] = 0.0f;
+    ds[3] = 1.0f; ds[4] = 0.0f; ds[5] = 1.0f;
+    for (int i1=1; i1<n1; ++i1) {
+      if (_et!=null) _et.getTensor(i1,i2,i3,ds);
+      float wpi = (_wp!=null)?_wp[i3][i2][i1]:1.0f;
+      for (int ic=0; ic<6; ++ic)
+        dr[ic][i1] = ds[ic]*wpi;
+    }
+  }
+
+  // One Chebyshev iteration. Slices of q = L*d are computed in a window 
+  // of two slices, for cells between slices i3-1 and i3 in increasing 
+  // order of i3, with rows of cells in parallel, for odd and then even 
+  // rows. Slice i3-1 of q is then complete, and slice i3-1 of d is no 
+  // longer needed for q, so that r, d and y for that slice are updated.
+  // Off heap, slices of d are read into a window of two slices, and each
+  // slice of r, d and y is read and written once.
+  private void applyStep() {
+    int n2 = _n2;
+    int n3 = _n3;
+    int nk = _q.length;
+    if (_vx!=null)
+      _vd.getSlice(0,_dw[0]);
+    for (int i3=1; i3<n3; ++i3) {
+      if (_vx==null) {
+        for (int ik=0; ik<nk; ++ik) {
+          _d0[ik] = _dk[ik][i3];
+          _d1[ik] = _dk[ik][i3-1];
+        }
+      } else {
+        _vd.getSlice(i3,_dw[i3%2]);
+        _d0[0] = _dw[i3%2];
+        _d1[0] = _dw[(i3-1)%2];
+      }
+      _i3 = i3;
+      loop(1,n2,2,_cells);
+      loop(2,n2,2,_cells);
+      update(i3-1);
+    }
+    update(n3-1);
+  }
+
+  // Updates r, d and y for the slice with index i3, for which q is
+  // complete.
+  private void update(int i3) {
+    int nk = _q.length;
+    if (_vx==null) {
+      for (int ik=0; ik<nk; ++ik) {
+        _xs[ik] = _x[ik][i3];
+        _ys[ik] = _yk[ik][i3];
+        _us[ik] = _dk[ik][i3];
+      }
+      _i3 = i3;
+      loop(_n2,_update);
+    } else {
+      _vx.getSlice(i3,_xw);
+      _vy.getSlice(i3,_yw);
+      _xs[0] = _xw;
+      _ys[0] = _yw;
+      _us[0] = _dw[i3%2];
+      _i3 = i3;
+      loop(_n2,_update);
+      _vx.setSlice(i3,_xw);
+      _vy.setSlice(i3,_yw);
+      _vd.setSlice(i3,_dw[i3%2]);
+    }
+  }
+
+  // Computes q = q+L*d for the row of cells with indices i2 and i3, for
+  // all images, with coefficients computed for that row, if not cached.
+  private void applyL(int i2, int i3) {
+    float[][] dr;
+    if (_c!=null) {
+      dr = _c[i3][i2];
+    } else {
+      dr = _cs[i2];
+      coefficientsRow(i2,i3,_ds[i2],dr);
+    }
+    int nk = _q.length;
+    for (int ik=0; ik<nk; ++ik) {
+      float[][] q0 = _q[ik][i3%2], q1 = _q[ik][(i3+1)%2];
+      float[][] d0 = _d0[ik], d1 = _d1[ik];
+      float[] x00 = d0[i2], x01 = d0[i2-1];
+      float[] x10 = d1[i2], x11 = d1[i2-1];
+      float[] y00 = q0[i2], y01 = q0[i2-1];
+      float[] y10 = q1[i2], y11 = q1[i2-1];
+      Kernels.INSTANCE.applyLhsRow3(dr,0,
+        x00,x01,x10,x11,y00,y01,y10,y11);
+      Multigrid3.applyHourglass(dr,x00,x01,x10,x11,y00,y01,y10,y11);
+    }
+  }
+
+  // Arguments of the current polynomial smoothing, and bodies of loops
+  // that use them, made once so that smoothing allocates nothing.
+  private float[][][][] _x; // residuals r, on the heap
+  private float[][][][] _x1 = new float[1][][][]; // for one image
+  private VecBufferFloat3 _vx; // residuals r, off heap; null, if on heap
+  private float _ri,_a,_b; // 1/theta, and factors for directions d
+  private int _i3; // index of the current slice
+  private float[][][] _d0,_d1; // slices i3 and i3-1 of d, for cells
+  private float[][][] _xs,_ys,_us; // slices of r, y and d, for updates
+  private LoopInt _start = new LoopInt() {
+    public void compute(int i2) {
+      for (int ik=0; ik<_xs.length; ++ik) {
+        float[] x2 = _xs[ik][i2], y2 = _ys[ik][i2], d2 = _us[ik][i2];
+        int n1 = x2.length;
+        for (int i1=0; i1<n1; ++i1)
+          y2[i1] = d2[i1] = _ri*x2[i1]; // y = d = r/theta
+      }
+    }
+  };
+  private LoopInt _cells = new LoopInt() {
+    public void compute(int i2) {
+      applyL(i2,_i3);
+    }
+  };
+  private LoopInt _update = new LoopInt() {
+    public void compute(int i2) {
+      for (int ik=0; ik<_xs.length; ++ik) {
+        float[] x2 = _xs[ik][i2], y2 = _ys[ik][i2];
+        float[] d2 = _us[ik][i2], q2 = _q[ik][_i3%2][i2];
+        int n1 = x2.length;
+        for (int i1=0; i1<n1; ++i1) {
+          float r = x2[i1]-d2[i1]-_scale*q2[i1]; // r = r-Bd
+          float di = _a*d2[i1]+_b*r;
+          x2[i1] = r;
+          d2[i1] = di;
+          y2[i1] += di;
+          q2[i1] = 0.0f;
+        }
+      }
+    }
+  };
+
   // Smoothing for dimension 1.
   private void smooth1(float sigma, float[][][] x) {
-    _ref.apply1(x,x);
+    _rs.apply1(x);
   }
   // Smoothing for dimension 2.
   private void smooth2(float sigma, float[][][] x) {
-    _ref.apply2(x,x);
+    _rs.apply2(x);
   }
   // Smoothing for dimension 3.
   private void smooth3(float sigma, float[][][] x) {
-    _ref.apply3(x,x);
+    _rs.apply3(x);
   }
 
 }
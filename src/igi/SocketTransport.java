@@ -0,0 +1,172 @@
+package igi;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport among processes connected by TCP sockets. The process with
+ * rank r listens on the specified port plus r of its host, connects to
+ * all processes with lower ranks, and accepts connections from all
+ * processes with higher ranks. Processes may be started in any order;
+ * connections are retried until the processes they connect to have
+ * started, or until a timeout.
+ * <p>
+ * Several processes on one host, each with a different rank, may be used
+ * for testing distributed solves; for example, with host localhost for
+ * all ranks.
+ */
+public class SocketTransport implements Transport {
+
+  /**
+   * Constructs a transport and connects it to all other processes.
+   * @param rank the rank of this process.
+   * @param hosts array[size] of host names for all processes.
+   * @param port the port on which the process with rank zero listens.
+   * @throws IOException if connections fail.
+   */
+  public SocketTransport(int rank, String[] hosts, int port)
+    throws IOException
+  {
+    int size = hosts.length;
+    _rank = rank;
+    _in = new DataInputStream[size];
+    _out = new DataOutputStream[size];
+    _socket = new Socket[size];
+    ServerSocket ss = new ServerSocket(port+rank);
+    try {
+      for (int r=0; r<rank; ++r) {
+        Socket s = connect(hosts[r],port+r);
+        open(r,s);
+        _out[r].writeInt(rank);
+        _out[r].flush();
+      }
+      for (int n=rank+1; n<size; ++n) {
+        Socket s = ss.accept();
+        // Read the rank without buffering, before streams are opened.
+        int r = new DataInputStream(s.getInputStream()).readInt();
+        open(r,s);
+      }
+    } finally {
+      ss.close();
+    }
+  }
+
+  public int getRank() {
+    return _rank;
+  }
+
+  public int getSize() {
+    return _socket.length;
+  }
+
+  public void send(int rank, float[][] a) {
+    try {
+      DataOutputStream out = _out[rank];
+      for (float[] ai:a) {
+        byte[] b = bytes(ai.length);
+        ByteBuffer.wrap(b).asFloatBuffer().put(ai);
+        out.write(b,0,4*ai.length);
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void receive(int rank, float[][] a) {
+    try {
+      DataInputStream in = _in[rank];
+      for (float[] ai:a) {
+        byte[] b = bytes(ai.length);
+        in.readFully(b,0,4*ai.length);
+        ByteBuffer.wrap(b).asFloatBuffer().get(ai);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public double sum(double v) {
+    try {
+      int size = getSize();
+      if (_rank==0) {
+        double s = v;
+        for (int r=1; r<size; ++r)
+          s += _in[r].readDouble();
+        for (int r=1; r<size; ++r) {
+          _out[r].writeDouble(s);
+          _out[r].flush();
+        }
+        return s;
+      } else {
+        _out[0].writeDouble(v);
+        _out[0].flush();
+        return _in[0].readDouble();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void close() {
+    for (Socket s:_socket) {
+      try {
+        if (s!=null) s.close();
+      } catch (IOException e) {
+        // ignore; nothing more can be done
+      }
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int TIMEOUT = 60000; // ms to wait for connections
+
+  private int _rank;
+  private Socket[] _socket; // sockets, indexed by rank; null for this rank
+  private DataInputStream[] _in;
+  private DataOutputStream[] _out;
+  private byte[] _b = new byte[0]; // buffer for conversion of floats
+
+  // Returns a buffer for at least n floats; only the first 4*n bytes are
+  // used, because the buffer may be longer.
+  private byte[] bytes(int n) {
+    if (_b.length<4*n)
+      _b = new byte[4*n];
+    return _b;
+  }
+
+  // Opens streams for the socket connected to the process with rank r.
+  private void open(int r, Socket s) throws IOException {
+    s.setTcpNoDelay(true);
+    _socket[r] = s;
+    _in[r] = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+    _out[r] = new DataOutputStream(
+      new BufferedOutputStream(s.getOutputStream()));
+  }
+
+  // Connects to a host and port, retrying until the timeout.
+  private static Socket connect(String host, int port) throws IOException {
+    long t = System.currentTimeMillis()+TIMEOUT;
+    while (true) {
+      Socket s = new Socket();
+      try {
+        s.connect(new InetSocketAddress(host,port));
+        return s;
+      } catch (IOException e) {
+        s.close();
+        if (System.currentTimeMillis()>t)
+          throw e;
+      }
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+}
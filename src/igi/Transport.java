@@ -0,0 +1,53 @@
+package igi;
+
+/**
+ * Communication among processes that share one distributed solve. Each
+ * process has a rank, from zero to one less than the number of processes,
+ * and exchanges slices of arrays with other processes, and sums values
+ * contributed by all processes.
+ * <p>
+ * Calls to send and receive for the same pair of processes must be made
+ * in the same order by both processes; and every process must call sum
+ * in the same order, because sums are computed together.
+ */
+public interface Transport {
+
+  /**
+   * Gets the rank of this process.
+   * @return the rank.
+   */
+  public int getRank();
+
+  /**
+   * Gets the number of processes.
+   * @return the number of processes.
+   */
+  public int getSize();
+
+  /**
+   * Sends an array to the process with specified rank.
+   * @param rank the rank of the receiving process.
+   * @param a the array; may be modified after this method returns.
+   */
+  public void send(int rank, float[][] a);
+
+  /**
+   * Receives an array from the process with specified rank.
+   * @param rank the rank of the sending process.
+   * @param a the array to contain the values received.
+   */
+  public void receive(int rank, float[][] a);
+
+  /**
+   * Returns the sum of values contributed by all processes. Values are
+   * summed in the order of ranks, so that all processes get the same sum.
+   * @param v the value contributed by this process.
+   * @return the sum.
+   */
+  public double sum(double v);
+
+  /**
+   * Closes this transport, and releases any resources it holds.
+   */
+  public void close();
+}
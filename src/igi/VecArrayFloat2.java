@@ -6,12 +6,15 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package igi;
 
+import static edu.mines.jtk.util.Parallel.*;
+
 /**
  * A vector represented by a 2D array[n2][n1] of floats.
+ * Vector operations are computed in parallel for rows of the array.
  * @author Dave Hale, Colorado School of Mines
  * @version 2009.09.15
  */
-public class VecArrayFloat2 implements Vec {
+public class VecArrayFloat2 implements VecFused {
 
   /**
    * Constructs a zero vector with specified dimensions.
@@ -63,69 +66,85 @@ public class VecArrayFloat2 implements Vec {
   }
 
   public VecArrayFloat2 clone() {
-    VecArrayFloat2 v = new VecArrayFloat2(_n1,_n2);
-    for (int i2=0; i2<_n2; ++i2)
+    final VecArrayFloat2 v = new VecArrayFloat2(_n1,_n2);
+    loop(_n2,new LoopInt() {
+    public void compute(int i2) {
       System.arraycopy(_a[i2],0,v._a[i2],0,_n1);
+    }});
     return v;
   }
 
   public double dot(Vec vthat) {
-    float[][] athis = _a;
-    float[][] athat = ((VecArrayFloat2)vthat)._a;
-    double sum = 0.0;
-    for (int i2=0; i2<_n2; ++i2) {
-      float[] athis2 = athis[i2];
-      float[] athat2 = athat[i2];
-      for (int i1=0; i1<_n1; ++i1)
-        sum += athis2[i1]*athat2[i1];
-    }
-    return sum;
+    final float[][] athis = _a;
+    final float[][] athat = ((VecArrayFloat2)vthat)._a;
+    return Reduction.sum(_n2,new Reduction.Partial() {
+      public double compute(int i2) {
+        return Kernels.INSTANCE.dot(athis[i2],athat[i2]);
+      }
+    });
   }
 
   public double norm2() {
-    double sum = 0.0;
-    for (int i2=0; i2<_n2; ++i2) {
-      float[] a2 = _a[i2];
-      for (int i1=0; i1<_n1; ++i1) {
-        double ai = a2[i1];
-        sum += ai*ai;
+    double sum = Reduction.sum(_n2,new Reduction.Partial() {
+      public double compute(int i2) {
+        float[] a2 = _a[i2];
+        double s = 0.0;
+        for (int i1=0; i1<_n1; ++i1) {
+          double ai = a2[i1];
+          s += ai*ai;
+        }
+        return s;
       }
-    }
+    });
     return Math.sqrt(sum);
   }
 
   public void zero() {
-    for (int i2=0; i2<_n2; ++i2) {
+    loop(_n2,new LoopInt() {
+    public void compute(int i2) {
       float[] a2 = _a[i2];
-      for (int i1=0; i1<_n1; ++i1) {
+      for (int i1=0; i1<_n1; ++i1)
         a2[i1] = 0.0f;
-      }
-    }
+    }});
   }
 
   public void scale(double s) {
-    for (int i2=0; i2<_n2; ++i2) {
+    final float fs = (float)s;
+    loop(_n2,new LoopInt() {
+    public void compute(int i2) {
       float[] a2 = _a[i2];
-      for (int i1=0; i1<_n1; ++i1) {
-        a2[i1] *= s;
-      }
-    }
+      for (int i1=0; i1<_n1; ++i1)
+        a2[i1] *= fs;
+    }});
   }
 
   public void add(double sthis, Vec vthat, double sthat) {
-    float[][] athis = _a;
-    float[][] athat = ((VecArrayFloat2)vthat)._a;
-    float fthis = (float)sthis;
-    float fthat = (float)sthat;
-    for (int i2=0; i2<_n2; ++i2) {
-      float[] athis2 = athis[i2];
-      float[] athat2 = athat[i2];
-      for (int i1=0; i1<_n1; ++i1) {
-        athis2[i1] = athis2[i1]*fthis+athat2[i1]*fthat;
+    final float[][] athis = _a;
+    final float[][] athat = ((VecArrayFloat2)vthat)._a;
+    final float fthis = (float)sthis;
+    final float fthat = (float)sthat;
+    loop(_n2,new LoopInt() {
+    public void compute(int i2) {
+      Kernels.INSTANCE.axpby(fthat,athat[i2],fthis,athis[i2]);
+    }});
+  }
+
+  public double addNorm2(double sthis, Vec vthat, double sthat) {
+    final float[][] athis = _a;
+    final float[][] athat = ((VecArrayFloat2)vthat)._a;
+    final float fthis = (float)sthis;
+    final float fthat = (float)sthat;
+    return Math.sqrt(Reduction.sum(_n2,new Reduction.Partial() {
+      public double compute(int i2) {
+        return Kernels.INSTANCE.axpbyDot(
+          fthat,athat[i2],fthis,athis[i2],athis[i2]);
       }
-    }
+    }));
   }
 
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
   private float[][] _a;
   private int _n1,_n2;
 }
@@ -14,7 +14,7 @@ import static edu.mines.jtk.util.Parallel.*;
  * @author Dave Hale, Colorado School of Mines
  * @version 2013.01.29
  */
-public class VecArrayFloat3 implements Vec {
+public class VecArrayFloat3 implements VecFused {
 
   /**
    * Constructs a zero vector with specified dimensions.
@@ -83,6 +83,8 @@ public class VecArrayFloat3 implements Vec {
   }
 
   public double dot(Vec vthat) {
+    if (vthat instanceof VecArrayHalf3)
+      return ((VecArrayHalf3)vthat).dot(_a);
     float[][][] athis = _a;
     float[][][] athat = ((VecArrayFloat3)vthat)._a;
     return sdot(athis,athat);
@@ -103,6 +105,10 @@ public class VecArrayFloat3 implements Vec {
   public void add(double sthis, Vec vthat, double sthat) {
     float fthis = (float)sthis;
     float fthat = (float)sthat;
+    if (vthat instanceof VecArrayHalf3) {
+      ((VecArrayHalf3)vthat).addTo(fthis,_a,fthat,null);
+      return;
+    }
     float[][][] athis = _a;
     float[][][] athat = ((VecArrayFloat3)vthat)._a;
     if (fthis==1.0f) {
@@ -114,6 +120,22 @@ public class VecArrayFloat3 implements Vec {
     }
   }
 
+  public double addNorm2(double sthis, Vec vthat, double sthat) {
+    return Math.sqrt(addSumSq(sthis,vthat,sthat));
+  }
+
+  // Computes vthis = vthis*sthis + vthat*sthat and returns the sum of
+  // squares of the updated elements, which distributed vectors add among
+  // processes before taking the square root.
+  double addSumSq(double sthis, Vec vthat, double sthat) {
+    float fthis = (float)sthis;
+    float fthat = (float)sthat;
+    if (vthat instanceof VecArrayHalf3)
+      return ((VecArrayHalf3)vthat).addTo(fthis,_a,fthat,_a);
+    float[][][] athat = ((VecArrayFloat3)vthat)._a;
+    return saxpbyDot(fthat,athat,fthis,_a,_a);
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // private
 
@@ -152,11 +174,7 @@ public class VecArrayFloat3 implements Vec {
 
   // Returns the dot product x'y.
   private double sdot(float[] x, float[] y) {
-    int n1 = x.length;
-    double d = 0.0;
-    for (int i1=0; i1<n1; ++i1)
-      d += x[i1]*y[i1];
-    return d;
+    return Kernels.INSTANCE.dot(x,y);
   }
   private double sdot(float[][] x, float[][] y) {
     int n2 = x.length;
@@ -167,13 +185,10 @@ public class VecArrayFloat3 implements Vec {
   }
   private double sdot(final float[][][] x, final float[][][] y) {
     int n3 = x.length;
-    double d = reduce(n3,new ReduceInt<Double>() {
-      public Double compute(int i3) {
+    double d = Reduction.sum(n3,new Reduction.Partial() {
+      public double compute(int i3) {
         return sdot(x[i3],y[i3]);
       }
-      public Double combine(Double a, Double b) {
-        return a+b;
-      }
     });
     return d;
   }
@@ -199,9 +214,7 @@ public class VecArrayFloat3 implements Vec {
 
   // Computes y = y + a*x.
   private void saxpy(float a, float[] x, float[] y) {
-    int n1 = x.length;
-    for (int i1=0; i1<n1; ++i1)
-      y[i1] += a*x[i1];
+    Kernels.INSTANCE.axpy(a,x,y);
   }
   private void saxpy(float a, float[][] x, float[][] y) {
     int n2 = x.length;
@@ -220,9 +233,7 @@ public class VecArrayFloat3 implements Vec {
 
   // Computes y = x + a*y.
   private void sxpay(float a, float[] x, float[] y) {
-    int n1 = x.length;
-    for (int i1=0; i1<n1; ++i1)
-      y[i1] = a*y[i1]+x[i1];
+    Kernels.INSTANCE.xpay(a,x,y);
   }
   private void sxpay(float a, float[][] x, float[][] y) {
     int n2 = x.length;
@@ -241,9 +252,7 @@ public class VecArrayFloat3 implements Vec {
 
   // Computes y = a*x + b*y.
   private void saxpby(float a, float[] x, float b, float[] y) {
-    int n1 = x.length;
-    for (int i1=0; i1<n1; ++i1)
-      y[i1] = a*x[i1]+b*y[i1];
+    Kernels.INSTANCE.axpby(a,x,b,y);
   }
   private void saxpby(float a, float[][] x, float b, float[][] y) {
     int n2 = x.length;
@@ -259,4 +268,32 @@ public class VecArrayFloat3 implements Vec {
       saxpby(a,x[i3],b,y[i3]);
     }});
   }
+
+  // Computes y = a*x + b*y and returns the dot product y'z.
+  private double saxpbyDot(
+    float a, float[] x, float b, float[] y, float[] z) 
+  {
+    return Kernels.INSTANCE.axpbyDot(a,x,b,y,z);
+  }
+  private double saxpbyDot(
+    float a, float[][] x, float b, float[][] y, float[][] z) 
+  {
+    int n2 = x.length;
+    double d = 0.0;
+    for (int i2=0; i2<n2; ++i2)
+      d += saxpbyDot(a,x[i2],b,y[i2],z[i2]);
+    return d;
+  }
+  private double saxpbyDot(
+    final float a, final float[][][] x, 
+    final float b, final float[][][] y, final float[][][] z)
+  {
+    int n3 = x.length;
+    double d = Reduction.sum(n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        return saxpbyDot(a,x[i3],b,y[i3],z[i3]);
+      }
+    });
+    return d;
+  }
 }
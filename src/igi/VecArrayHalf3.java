@@ -0,0 +1,386 @@
+package igi;
+
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * A vector represented by a 3D array[n3][n2][n1] of 16-bit floats.
+ * Elements are stored as IEEE 754 half-precision floats packed in shorts,
+ * and are widened to floats as they are read. All elements share one scale
+ * factor, which is chosen whenever elements are written so that the largest
+ * element is well within the range of half-precision floats.
+ * <p>
+ * This vector requires half the memory of a vector of floats, but has only
+ * 11 significant bits. Operations with vectors of floats, represented by
+ * {@link VecArrayFloat3}, are supported in both directions, so that this
+ * vector may be used to store some of the vectors in a CG solver.
+ */
+public class VecArrayHalf3 implements Vec {
+
+  /**
+   * Constructs a zero vector with specified dimensions.
+   * @param n1 the number of elements in the 1st dimension.
+   * @param n2 the number of elements in the 2nd dimension.
+   * @param n3 the number of elements in the 3rd dimension.
+   */
+  public VecArrayHalf3(int n1, int n2, int n3) {
+    _h = new short[n3][n2][n1];
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+  }
+
+  /**
+   * Constructs a vector with elements rounded from a vector of floats.
+   * @param v the vector of floats.
+   */
+  public VecArrayHalf3(VecArrayFloat3 v) {
+    this(v.getN1(),v.getN2(),v.getN3());
+    set(v.getArray());
+  }
+
+  /**
+   * Gets the array of shorts wrapped by this vector.
+   * Each short contains the bits of a half-precision float,
+   * which must be multiplied by the scale factor of this vector.
+   * @return the array of shorts; by reference, not by copy.
+   */
+  public short[][][] getArray() {
+    return _h;
+  }
+
+  /**
+   * Gets the factor by which to scale elements stored in this vector.
+   * @return the scale factor.
+   */
+  public float getScale() {
+    return (float)_scale;
+  }
+
+  /**
+   * Gets the number of elements in the 1st array dimension.
+   * @return the number of elements in the 1st dimension.
+   */
+  public int getN1() {
+    return _n1;
+  }
+
+  /**
+   * Gets the number of elements in the 2nd array dimension.
+   * @return the number of elements in the 2nd dimension.
+   */
+  public int getN2() {
+    return _n2;
+  }
+
+  /**
+   * Gets the number of elements in the 3rd array dimension.
+   * @return the number of elements in the 3rd dimension.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Gets elements of this vector widened to floats.
+   * @param a array[n3][n2][n1] of floats to contain the elements.
+   */
+  public void get(final float[][][] a) {
+    final short[][][] h = _h;
+    final float s = (float)_scale;
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<_n2; ++i2) {
+        short[] h32 = h[i3][i2];
+        float[] a32 = a[i3][i2];
+        for (int i1=0; i1<_n1; ++i1)
+          a32[i1] = s*toFloat(h32[i1]);
+      }
+    }});
+  }
+
+  /**
+   * Sets elements of this vector by rounding floats to half precision.
+   * @param a array[n3][n2][n1] of floats.
+   */
+  public void set(final float[][][] a) {
+    final float[] amax = new float[_n3];
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      float ai = 0.0f;
+      for (int i2=0; i2<_n2; ++i2) {
+        float[] a32 = a[i3][i2];
+        for (int i1=0; i1<_n1; ++i1)
+          ai = Math.max(ai,Math.abs(a32[i1]));
+      }
+      amax[i3] = ai;
+    }});
+    double bound = max(amax);
+    final short[][][] h = _h;
+    final float r = rescale(bound);
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<_n2; ++i2) {
+        float[] a32 = a[i3][i2];
+        short[] h32 = h[i3][i2];
+        for (int i1=0; i1<_n1; ++i1)
+          h32[i1] = toHalf(r*a32[i1]);
+      }
+    }});
+    _amax = bound;
+  }
+
+  public double epsilon() {
+    return EPSILON;
+  }
+
+  public VecArrayHalf3 clone() {
+    final VecArrayHalf3 v = new VecArrayHalf3(_n1,_n2,_n3);
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<_n2; ++i2)
+        System.arraycopy(_h[i3][i2],0,v._h[i3][i2],0,_n1);
+    }});
+    v._scale = _scale;
+    v._amax = _amax;
+    return v;
+  }
+
+  public double dot(Vec vthat) {
+    if (vthat instanceof VecArrayFloat3)
+      return dot(((VecArrayFloat3)vthat).getArray());
+    final short[][][] hthis = _h;
+    final short[][][] hthat = ((VecArrayHalf3)vthat)._h;
+    double d = Reduction.sum(_n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        double d = 0.0;
+        for (int i2=0; i2<_n2; ++i2) {
+          short[] hthis32 = hthis[i3][i2];
+          short[] hthat32 = hthat[i3][i2];
+          for (int i1=0; i1<_n1; ++i1)
+            d += toFloat(hthis32[i1])*toFloat(hthat32[i1]);
+        }
+        return d;
+      }
+    });
+    return d*_scale*((VecArrayHalf3)vthat)._scale;
+  }
+
+  public double norm2() {
+    return Math.sqrt(dot(this));
+  }
+
+  public void zero() {
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<_n2; ++i2)
+        java.util.Arrays.fill(_h[i3][i2],(short)0);
+    }});
+    _scale = 1.0;
+    _amax = 0.0;
+  }
+
+  public void scale(double s) {
+    _scale *= s;
+    _amax *= Math.abs(s);
+  }
+
+  public void add(double sthis, Vec vthat, double sthat) {
+    if (vthat instanceof VecArrayFloat3) {
+      addFloat(sthis,((VecArrayFloat3)vthat).getArray(),sthat);
+    } else {
+      addHalf(sthis,(VecArrayHalf3)vthat,sthat);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // package
+
+  // Returns the dot product of this vector with an array of floats.
+  double dot(final float[][][] a) {
+    final short[][][] h = _h;
+    double d = Reduction.sum(_n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        double d = 0.0;
+        for (int i2=0; i2<_n2; ++i2) {
+          short[] h32 = h[i3][i2];
+          float[] a32 = a[i3][i2];
+          for (int i1=0; i1<_n1; ++i1)
+            d += toFloat(h32[i1])*a32[i1];
+        }
+        return d;
+      }
+    });
+    return d*_scale;
+  }
+
+  // Updates an array of floats a = a*sa+v*sv, where v is this vector,
+  // and returns the dot product of the updated array with the array z.
+  // If z is null, the dot product is not computed and zero is returned.
+  double addTo(
+    float sa, final float[][][] a, float sv, final float[][][] z)
+  {
+    final float fa = sa;
+    final float fv = sv*(float)_scale;
+    final short[][][] h = _h;
+    double d = Reduction.sum(_n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        double d = 0.0;
+        for (int i2=0; i2<_n2; ++i2) {
+          short[] h32 = h[i3][i2];
+          float[] a32 = a[i3][i2];
+          for (int i1=0; i1<_n1; ++i1)
+            a32[i1] = a32[i1]*fa+toFloat(h32[i1])*fv;
+          if (z!=null) {
+            float[] z32 = z[i3][i2];
+            for (int i1=0; i1<_n1; ++i1)
+              d += a32[i1]*z32[i1];
+          }
+        }
+        return d;
+      }
+    });
+    return d;
+  }
+
+  /**
+   * Converts a half-precision float to a float.
+   * @param h the bits of the half-precision float.
+   * @return the float.
+   */
+  static float toFloat(short h) {
+    int bits = h&0xffff;
+    int sign = (bits&0x8000)<<16;
+    int e = (bits>>>10)&0x1f;
+    int m = bits&0x3ff;
+    if (e==0) { // zero or subnormal
+      float f = m*SUBNORMAL;
+      return (sign==0)?f:-f;
+    } else if (e==31) { // infinity or NaN
+      return Float.intBitsToFloat(sign|0x7f800000|(m<<13));
+    } else { // normal
+      return Float.intBitsToFloat(sign|((e+112)<<23)|(m<<13));
+    }
+  }
+
+  /**
+   * Converts a float to a half-precision float, rounding to nearest even.
+   * @param f the float.
+   * @return the bits of the half-precision float.
+   */
+  static short toHalf(float f) {
+    int bits = Float.floatToRawIntBits(f);
+    int sign = (bits>>>16)&0x8000;
+    int v = bits&0x7fffffff;
+    if (v>=0x477ff000) { // overflow, infinity or NaN
+      if (v>0x7f800000)
+        return (short)(sign|0x7e00);
+      return (short)(sign|0x7c00);
+    } else if (v<0x38800000) { // subnormal or zero
+      if (v<0x33000000)
+        return (short)sign;
+      int e = v>>>23;
+      int m = (v&0x7fffff)|0x800000;
+      int shift = 126-e;
+      int h = (m+(1<<(shift-1))-1+((m>>shift)&1))>>shift;
+      return (short)(sign|h);
+    } else { // normal
+      v += 0xfff+((v>>>13)&1);
+      return (short)(sign|((v-0x38000000)>>>13));
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Machine epsilon for half-precision floats, 2^(-10).
+  private static final double EPSILON = 1.0/1024.0;
+
+  // Value of the least significant bit of subnormal half floats, 2^(-24).
+  private static final float SUBNORMAL = 1.0f/16777216.0f;
+
+  // Scaled elements are no larger than this value, which is well within
+  // the range of half-precision floats, so that rounding cannot overflow.
+  private static final double HMAX = 16384.0;
+
+  private short[][][] _h;
+  private int _n1,_n2,_n3;
+  private double _scale = 1.0; // scale factor for all elements
+  private double _amax = 0.0; // largest absolute value of all elements
+
+  // Sets the scale factor for elements no larger than the specified bound,
+  // and returns the reciprocal factor by which to scale elements to store.
+  private float rescale(double bound) {
+    _scale = (bound>0.0)?bound/HMAX:1.0;
+    return (float)(1.0/_scale);
+  }
+
+  // Computes vthis = vthis*sthis + a*sa for an array of floats a.
+  private void addFloat(double sthis, final float[][][] a, double sa) {
+    final float fthis = (float)(sthis*_scale);
+    final float fa = (float)sa;
+    final float[] amax = new float[_n3];
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      float ai = 0.0f;
+      for (int i2=0; i2<_n2; ++i2) {
+        float[] a32 = a[i3][i2];
+        for (int i1=0; i1<_n1; ++i1)
+          ai = Math.max(ai,Math.abs(a32[i1]));
+      }
+      amax[i3] = ai;
+    }});
+    double bound = Math.abs(sthis)*_amax+Math.abs(sa)*max(amax);
+    final short[][][] h = _h;
+    final float r = rescale(bound);
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      float ai = 0.0f;
+      for (int i2=0; i2<_n2; ++i2) {
+        short[] h32 = h[i3][i2];
+        float[] a32 = a[i3][i2];
+        for (int i1=0; i1<_n1; ++i1) {
+          float vi = toFloat(h32[i1])*fthis+a32[i1]*fa;
+          h32[i1] = toHalf(r*vi);
+          ai = Math.max(ai,Math.abs(vi));
+        }
+      }
+      amax[i3] = ai;
+    }});
+    _amax = max(amax);
+  }
+
+  // Computes vthis = vthis*sthis + vthat*sthat for a vector of halfs.
+  private void addHalf(double sthis, VecArrayHalf3 vthat, double sthat) {
+    final float fthis = (float)(sthis*_scale);
+    final float fthat = (float)(sthat*vthat._scale);
+    double bound = Math.abs(sthis)*_amax+Math.abs(sthat)*vthat._amax;
+    final short[][][] hthis = _h;
+    final short[][][] hthat = vthat._h;
+    final float r = rescale(bound);
+    final float[] amax = new float[_n3];
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      float ai = 0.0f;
+      for (int i2=0; i2<_n2; ++i2) {
+        short[] hthis32 = hthis[i3][i2];
+        short[] hthat32 = hthat[i3][i2];
+        for (int i1=0; i1<_n1; ++i1) {
+          float vi = toFloat(hthis32[i1])*fthis+toFloat(hthat32[i1])*fthat;
+          hthis32[i1] = toHalf(r*vi);
+          ai = Math.max(ai,Math.abs(vi));
+        }
+      }
+      amax[i3] = ai;
+    }});
+    _amax = max(amax);
+  }
+
+  // Returns the largest of the specified values.
+  private static double max(float[] a) {
+    float amax = 0.0f;
+    for (float ai:a)
+      amax = Math.max(amax,ai);
+    return amax;
+  }
+}
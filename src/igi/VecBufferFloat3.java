@@ -0,0 +1,377 @@
+package igi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * A vector of n1*n2*n3 floats stored contiguously outside the Java heap.
+ * Elements are stored in the order of a 3D array[n3][n2][n1], so that the
+ * element with indices (i1,i2,i3) has the 64-bit index i1+n1*(i2+n2*i3).
+ * Because one direct buffer can hold at most 2^31-1 bytes, elements are
+ * stored in a sequence of direct buffers, each containing whole slices
+ * with constant i3.
+ * <p>
+ * The garbage collector neither copies nor scans these elements, so this
+ * vector may be larger than the Java heap; its size is instead limited
+ * by the JVM option -XX:MaxDirectMemorySize. Memory for the elements is
+ * freed after the vector is no longer referenced.
+ * <p>
+ * Alternatively, elements may be stored in temporary files mapped into
+ * memory, so that the vector may be larger than physical memory. The
+ * operating system then reads pages of elements ahead and writes them
+ * behind as slices are accessed in order, and the speed of operations
+ * depends on the bandwidth of the disk that contains those files.
+ * <p>
+ * Operations are supported only with other vectors of this class. Rows
+ * of elements with constant i2 and i3 are copied to and from arrays of
+ * floats, with which interpolation operators and preconditioners use the
+ * same kernels as for vectors of arrays.
+ */
+public class VecBufferFloat3 implements VecFused {
+
+  /**
+   * Constructs a zero vector with specified dimensions.
+   * @param n1 the number of floats in the 1st dimension.
+   * @param n2 the number of floats in the 2nd dimension.
+   * @param n3 the number of floats in the 3rd dimension.
+   */
+  public VecBufferFloat3(int n1, int n2, int n3) {
+    this(n1,n2,n3,null);
+  }
+
+  /**
+   * Constructs a zero vector with elements stored in temporary files.
+   * Files are deleted when mapped, if possible, or otherwise when the 
+   * JVM exits; disk space is freed after the vector is no longer
+   * referenced. Clones of this vector are stored in the same directory.
+   * @param n1 the number of floats in the 1st dimension.
+   * @param n2 the number of floats in the 2nd dimension.
+   * @param n3 the number of floats in the 3rd dimension.
+   * @param dir directory for files; if null, elements are stored in
+   *  direct buffers in memory.
+   */
+  public VecBufferFloat3(int n1, int n2, int n3, File dir) {
+    long n12 = (long)n1*n2;
+    if (n12>MAX_FLOATS)
+      throw new IllegalArgumentException("n1*n2 = "+n12+" is too large");
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+    _n12 = (int)n12;
+    _dir = dir;
+    _m3 = Math.max(1,Math.min(n3,MAX_FLOATS/Math.max(1,_n12)));
+    int nb = (n3+_m3-1)/_m3;
+    _b = new FloatBuffer[nb];
+    for (int ib=0,i3=0; ib<nb; ++ib,i3+=_m3) {
+      int nf = Math.min(_m3,n3-i3)*_n12;
+      ByteBuffer b = (dir!=null)?map(dir,4*nf):ByteBuffer.allocateDirect(4*nf);
+      _b[ib] = b.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+  }
+
+  /**
+   * Constructs a vector with elements copied from an array of floats.
+   * @param a array[n3][n2][n1] of floats.
+   */
+  public VecBufferFloat3(float[][][] a) {
+    this(a[0][0].length,a[0].length,a.length);
+    set(a);
+  }
+
+  /**
+   * Gets the number of floats in the 1st dimension.
+   * @return the number of floats in the 1st dimension.
+   */
+  public int getN1() {
+    return _n1;
+  }
+
+  /**
+   * Gets the number of floats in the 2nd dimension.
+   * @return the number of floats in the 2nd dimension.
+   */
+  public int getN2() {
+    return _n2;
+  }
+
+  /**
+   * Gets the number of floats in the 3rd dimension.
+   * @return the number of floats in the 3rd dimension.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Gets the number of elements n1*n2*n3 in this vector.
+   * @return the number of elements.
+   */
+  public long getSize() {
+    return (long)_n12*_n3;
+  }
+
+  /**
+   * Gets the directory of files that contain elements of this vector.
+   * @return the directory; null, if elements are stored in memory.
+   */
+  public File getDirectory() {
+    return _dir;
+  }
+
+  /**
+   * Gets the element with specified indices.
+   * @param i1 index in the 1st dimension.
+   * @param i2 index in the 2nd dimension.
+   * @param i3 index in the 3rd dimension.
+   * @return the element.
+   */
+  public float get(int i1, int i2, int i3) {
+    return _b[i3/_m3].get(index(i1,i2,i3));
+  }
+
+  /**
+   * Sets the element with specified indices.
+   * @param i1 index in the 1st dimension.
+   * @param i2 index in the 2nd dimension.
+   * @param i3 index in the 3rd dimension.
+   * @param v the value of the element.
+   */
+  public void set(int i1, int i2, int i3, float v) {
+    _b[i3/_m3].put(index(i1,i2,i3),v);
+  }
+
+  /**
+   * Gets the element with specified 64-bit index i1+n1*(i2+n2*i3).
+   * @param i the index.
+   * @return the element.
+   */
+  public float get(long i) {
+    long nb = (long)_m3*_n12;
+    return _b[(int)(i/nb)].get((int)(i%nb));
+  }
+
+  /**
+   * Sets the element with specified 64-bit index i1+n1*(i2+n2*i3).
+   * @param i the index.
+   * @param v the value of the element.
+   */
+  public void set(long i, float v) {
+    long nb = (long)_m3*_n12;
+    _b[(int)(i/nb)].put((int)(i%nb),v);
+  }
+
+  /**
+   * Gets the row of elements with specified indices i2 and i3.
+   * @param i2 index in the 2nd dimension.
+   * @param i3 index in the 3rd dimension.
+   * @param a array[n1] to contain the elements.
+   */
+  public void getRow(int i2, int i3, float[] a) {
+    row(i2,i3).get(a,0,_n1);
+  }
+
+  /**
+   * Sets the row of elements with specified indices i2 and i3.
+   * @param i2 index in the 2nd dimension.
+   * @param i3 index in the 3rd dimension.
+   * @param a array[n1] of elements.
+   */
+  public void setRow(int i2, int i3, float[] a) {
+    row(i2,i3).put(a,0,_n1);
+  }
+
+  /**
+   * Gets the slice of elements with specified index i3.
+   * @param i3 index in the 3rd dimension.
+   * @param a array[n2][n1] to contain the elements.
+   */
+  public void getSlice(int i3, float[][] a) {
+    FloatBuffer b = row(0,i3);
+    for (int i2=0; i2<_n2; ++i2)
+      b.get(a[i2],0,_n1);
+  }
+
+  /**
+   * Sets the slice of elements with specified index i3.
+   * @param i3 index in the 3rd dimension.
+   * @param a array[n2][n1] of elements.
+   */
+  public void setSlice(int i3, float[][] a) {
+    FloatBuffer b = row(0,i3);
+    for (int i2=0; i2<_n2; ++i2)
+      b.put(a[i2],0,_n1);
+  }
+
+  /**
+   * Gets all elements of this vector.
+   * @param a array[n3][n2][n1] to contain the elements.
+   */
+  public void get(final float[][][] a) {
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      getSlice(i3,a[i3]);
+    }});
+  }
+
+  /**
+   * Sets all elements of this vector.
+   * @param a array[n3][n2][n1] of elements.
+   */
+  public void set(final float[][][] a) {
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      setSlice(i3,a[i3]);
+    }});
+  }
+
+  public double epsilon() {
+    return Math.ulp(1.0f);
+  }
+
+  public VecBufferFloat3 clone() {
+    final VecBufferFloat3 v = new VecBufferFloat3(_n1,_n2,_n3,_dir);
+    int nb = _b.length;
+    loop(nb,new LoopInt() {
+    public void compute(int ib) {
+      FloatBuffer b = _b[ib].duplicate();
+      b.clear();
+      FloatBuffer c = v._b[ib].duplicate();
+      c.clear();
+      c.put(b);
+    }});
+    return v;
+  }
+
+  public double dot(Vec vthat) {
+    final VecBufferFloat3 v = (VecBufferFloat3)vthat;
+    return Reduction.sum(_n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        float[] x = new float[_n1];
+        float[] y = new float[_n1];
+        FloatBuffer bx = row(0,i3);
+        FloatBuffer by = v.row(0,i3);
+        double d = 0.0;
+        for (int i2=0; i2<_n2; ++i2) {
+          bx.get(x);
+          by.get(y);
+          d += Kernels.INSTANCE.dot(x,y);
+        }
+        return d;
+      }
+    });
+  }
+
+  public double norm2() {
+    return Math.sqrt(dot(this));
+  }
+
+  public void zero() {
+    final float[] z = new float[_n1];
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      FloatBuffer b = row(0,i3);
+      for (int i2=0; i2<_n2; ++i2)
+        b.put(z);
+    }});
+  }
+
+  public void scale(double s) {
+    add(s,this,0.0);
+  }
+
+  public void add(double sthis, Vec vthat, double sthat) {
+    addSumSq(sthis,vthat,sthat,false);
+  }
+
+  public double addNorm2(double sthis, Vec vthat, double sthat) {
+    return Math.sqrt(addSumSq(sthis,vthat,sthat,true));
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Maximum number of floats in one direct buffer.
+  private static final int MAX_FLOATS = Integer.MAX_VALUE/4;
+
+  private FloatBuffer[] _b; // buffers, each with _m3 slices, except last
+  private int _n1,_n2,_n3;
+  private int _n12; // number of floats in one slice
+  private int _m3; // number of slices in one buffer
+  private File _dir; // directory of mapped files; null, if none
+
+  // Returns a buffer of nbyte zero bytes mapped from a new temporary file
+  // in the specified directory. The mapping remains valid after the file
+  // is closed and deleted.
+  private static ByteBuffer map(File dir, int nbyte) {
+    try {
+      File f = File.createTempFile("igi",".vec",dir);
+      try {
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        try {
+          raf.setLength(nbyte);
+          return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,nbyte);
+        } finally {
+          raf.close();
+        }
+      } finally {
+        if (!f.delete())
+          f.deleteOnExit();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Index in its buffer of the element with indices (i1,i2,i3).
+  private int index(int i1, int i2, int i3) {
+    return i1+_n1*i2+_n12*(i3%_m3);
+  }
+
+  // Returns a view of the buffer that contains the row with indices i2
+  // and i3, positioned at the beginning of that row. The view may be used
+  // to get or put that row and the following rows in the same slice.
+  private FloatBuffer row(int i2, int i3) {
+    FloatBuffer b = _b[i3/_m3].duplicate();
+    b.position(index(0,i2,i3));
+    return b;
+  }
+
+  // Computes vthis = vthis*sthis + vthat*sthat, one row at a time, and
+  // returns the sum of squares of the updated elements, if requested.
+  private double addSumSq(
+    double sthis, Vec vthat, double sthat, final boolean sumsq)
+  {
+    final float fthis = (float)sthis;
+    final float fthat = (float)sthat;
+    final VecBufferFloat3 v = (VecBufferFloat3)vthat;
+    return Reduction.sum(_n3,new Reduction.Partial() {
+      public double compute(int i3) {
+        Kernels kernels = Kernels.INSTANCE;
+        float[] x = new float[_n1];
+        float[] y = new float[_n1];
+        double d = 0.0;
+        for (int i2=0; i2<_n2; ++i2) {
+          getRow(i2,i3,y);
+          if (v!=VecBufferFloat3.this && fthat!=0.0f)
+            v.getRow(i2,i3,x);
+          else
+            System.arraycopy(y,0,x,0,_n1);
+          if (sumsq) {
+            d += kernels.axpbyDot(fthat,x,fthis,y,y);
+          } else {
+            kernels.axpby(fthat,x,fthis,y);
+          }
+          setRow(i2,i3,y);
+        }
+        return d;
+      }
+    });
+  }
+}
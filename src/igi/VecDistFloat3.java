@@ -0,0 +1,217 @@
+package igi;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * A vector of n1*n2*n3 floats distributed among processes. Each process
+ * owns a slab of slices with contiguous indices i3, and stores those
+ * slices in a local 3D array, with one more slice on each side of the
+ * slab, if that side is not a boundary of the vector. These halo slices
+ * are copies of slices owned by neighboring processes, and are made
+ * current by exchanging slices with those processes.
+ * <p>
+ * Operations on vectors apply only to slices owned by each process, and
+ * do not update halo slices. Dot products and norms are sums over all
+ * processes, so that all processes call these operations together, in
+ * the same order.
+ */
+public class VecDistFloat3 implements VecFused {
+
+  /**
+   * Constructs a zero vector with specified dimensions.
+   * @param t the transport among processes that share this vector.
+   * @param n1 the number of floats in the 1st dimension.
+   * @param n2 the number of floats in the 2nd dimension.
+   * @param n3 the number of floats in the 3rd dimension.
+   */
+  public VecDistFloat3(Transport t, int n1, int n2, int n3) {
+    this(t,n3,new float[localCount(n3,t)][n2][n1]);
+  }
+
+  /**
+   * Constructs a vector that wraps the specified local array of floats.
+   * @param t the transport among processes that share this vector.
+   * @param n3 the number of floats in the 3rd dimension of the vector.
+   * @param a the local array of floats, including halo slices; by
+   *  reference, not by copy.
+   */
+  public VecDistFloat3(Transport t, int n3, float[][][] a) {
+    int rank = t.getRank();
+    int size = t.getSize();
+    if (n3<size)
+      throw new IllegalArgumentException("n3 = "+n3+" < "+size+" processes");
+    int[] o = getOwnedRange(n3,rank,size);
+    int[] l = getLocalRange(n3,rank,size);
+    if (a.length!=l[1]-l[0])
+      throw new IllegalArgumentException(
+        "local array has "+a.length+" slices, not "+(l[1]-l[0]));
+    _t = t;
+    _a = a;
+    _n3 = n3;
+    _i3b = o[0];
+    _i3e = o[1];
+    _j3 = l[0];
+    float[][][] ao = new float[_i3e-_i3b][][];
+    for (int i3=_i3b; i3<_i3e; ++i3)
+      ao[i3-_i3b] = a[i3-_j3];
+    _o = new VecArrayFloat3(ao);
+  }
+
+  /**
+   * Returns the range of slices owned by a process.
+   * @param n3 the number of slices.
+   * @param rank the rank of the process.
+   * @param size the number of processes.
+   * @return array {i3b,i3e} of the first and last+1 indices of slices.
+   */
+  public static int[] getOwnedRange(int n3, int rank, int size) {
+    return new int[]{
+      (int)((long)rank*n3/size),
+      (int)((long)(rank+1)*n3/size)};
+  }
+
+  /**
+   * Returns the range of slices stored by a process, including the halo
+   * slices on each side of the slices it owns.
+   * @param n3 the number of slices.
+   * @param rank the rank of the process.
+   * @param size the number of processes.
+   * @return array {j3b,j3e} of the first and last+1 indices of slices.
+   */
+  public static int[] getLocalRange(int n3, int rank, int size) {
+    int[] o = getOwnedRange(n3,rank,size);
+    return new int[]{Math.max(0,o[0]-1),Math.min(n3,o[1]+1)};
+  }
+
+  /**
+   * Gets the transport among processes that share this vector.
+   * @return the transport.
+   */
+  public Transport getTransport() {
+    return _t;
+  }
+
+  /**
+   * Gets the local array of floats, including halo slices.
+   * @return the local array; by reference, not by copy.
+   */
+  public float[][][] getArray() {
+    return _a;
+  }
+
+  /**
+   * Gets a vector for the slices owned by this process.
+   * @return the vector; its array has slices of the local array by
+   *  reference, not by copy.
+   */
+  public VecArrayFloat3 getOwned() {
+    return _o;
+  }
+
+  /**
+   * Gets the number of floats in the 3rd dimension of this vector.
+   * @return the number of floats in the 3rd dimension.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Gets the index in the 3rd dimension of the first local slice.
+   * @return the index of the first local slice.
+   */
+  public int getLocalBegin() {
+    return _j3;
+  }
+
+  /**
+   * Gets the index in the 3rd dimension of the first owned slice.
+   * @return the index of the first owned slice.
+   */
+  public int getOwnedBegin() {
+    return _i3b;
+  }
+
+  /**
+   * Gets the index in the 3rd dimension of the last owned slice + 1.
+   * @return the index of the last owned slice + 1.
+   */
+  public int getOwnedEnd() {
+    return _i3e;
+  }
+
+  /**
+   * Updates halo slices with copies of slices owned by neighbors.
+   * Neighbors must call this method together.
+   */
+  public void exchange() {
+    int rank = _t.getRank();
+    int size = _t.getSize();
+    // Even ranks first exchange with the next rank, odd ranks with the
+    // previous rank, so that the pairs exchanging in each phase are
+    // disjoint; in each pair, the lower rank sends first.
+    for (int phase=0; phase<2; ++phase) {
+      boolean up = (rank%2==0)==(phase==0);
+      if (up && rank+1<size) {
+        _t.send(rank+1,_a[_i3e-1-_j3]);
+        _t.receive(rank+1,_a[_i3e-_j3]);
+      } else if (!up && rank>0) {
+        _t.receive(rank-1,_a[_i3b-1-_j3]);
+        _t.send(rank-1,_a[_i3b-_j3]);
+      }
+    }
+  }
+
+  public double epsilon() {
+    return Math.ulp(1.0f);
+  }
+
+  public VecDistFloat3 clone() {
+    return new VecDistFloat3(_t,_n3,copy(_a));
+  }
+
+  public double dot(Vec vthat) {
+    return _t.sum(_o.dot(owned(vthat)));
+  }
+
+  public double norm2() {
+    return Math.sqrt(dot(this));
+  }
+
+  public void zero() {
+    _o.zero();
+  }
+
+  public void scale(double s) {
+    _o.scale(s);
+  }
+
+  public void add(double sthis, Vec vthat, double sthat) {
+    _o.add(sthis,owned(vthat),sthat);
+  }
+
+  public double addNorm2(double sthis, Vec vthat, double sthat) {
+    return Math.sqrt(_t.sum(_o.addSumSq(sthis,owned(vthat),sthat)));
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private Transport _t; // transport among processes
+  private float[][][] _a; // local slices, including halos
+  private VecArrayFloat3 _o; // view of owned slices
+  private int _n3; // number of slices in the vector
+  private int _i3b,_i3e; // first and last+1 owned slices
+  private int _j3; // first local slice
+
+  // Number of local slices, including halos, for this process.
+  private static int localCount(int n3, Transport t) {
+    int[] l = getLocalRange(n3,t.getRank(),t.getSize());
+    return l[1]-l[0];
+  }
+
+  // Returns the view of owned slices of a distributed vector.
+  private static VecArrayFloat3 owned(Vec v) {
+    return ((VecDistFloat3)v)._o;
+  }
+}
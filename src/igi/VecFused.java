@@ -0,0 +1,22 @@
+package igi;
+
+/**
+ * An abstract vector with fused operations.
+ * Each fused operation combines an update of this vector with a reduction
+ * over the updated elements, so that both are computed in a single pass 
+ * over the vector elements. Solvers may use these operations when a vector
+ * implements this interface, and otherwise fall back to the equivalent 
+ * sequence of operations in {@link Vec}.
+ */
+public interface VecFused extends Vec {
+
+  /**
+   * Updates this vector by computing vthis = vthis*sthis + vthat*sthat,
+   * and returns the L2 norm of the updated vector.
+   * @param sthis factor by which to scale this vector.
+   * @param vthat that vector.
+   * @param sthat factor by which to scale that vector.
+   * @return the L2 norm of the updated vector.
+   */
+  public double addNorm2(double sthis, Vec vthat, double sthat);
+}
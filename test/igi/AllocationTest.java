@@ -0,0 +1,275 @@
+package igi;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Parallel;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests allocation in CG iterations, for the 2D and 3D interpolation
+ * operators, for preconditioners with polynomial and isotropic
+ * smoothing, and for multigrid and Schwarz preconditioners. Bytes allocated are compared for N and 2N applications or
+ * iterations, so that allocations made once cancel.
+ * <p>
+ * Operators and preconditioners allocate nothing once warm. Their parallel
+ * loops then run serially in the current thread, because tasks of
+ * parallel loops are allocated by the parallel library. CG iterations,
+ * with parallel loops and with vector operations that may be called by
+ * many threads, allocate in all threads only loop bodies, tasks and
+ * partial sums for rows or slices; the bytes that they allocate do not
+ * grow with the number of samples in the 1st dimension.
+ */
+public class AllocationTest {
+
+  @Test
+  public void test2() {
+    check(problem2(N1,0.0f,true,0),problem2(4*N1,0.0f,true,0));
+    check(problem2(N1,1.0f,true,0),problem2(4*N1,1.0f,true,0));
+    check(problem2(N1,0.0f,false,0),problem2(4*N1,0.0f,false,0));
+  }
+
+  @Test
+  public void test3() {
+    check(problem3(N1,0.0f,true),problem3(4*N1,0.0f,true));
+    check(problem3(N1,10.0f,true),problem3(4*N1,10.0f,true));
+    check(problem3(N1,0.0f,false),problem3(4*N1,0.0f,false));
+  }
+
+  @Test
+  public void testChebyshev() {
+    checkSolve(problem2(N1,0.0f,true,4),problem2(4*N1,0.0f,true,4));
+  }
+
+  @Test
+  public void testSchwarz() {
+    float[][] k = samples(N1);
+    checkApply(new Schwarz2(N1,N2,1.0f,tensors2(N1),weights2(N1),
+      k[0],k[1],16,4),new VecArrayFloat2(N1,N2));
+    checkApply(new Schwarz3(N1,N2,N3,0.0f,tensors3(N1),weights3(N1),
+      k[0],k[1],k[2],16,4),new VecArrayFloat3(N1,N2,N3));
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int N1 = 51, N2 = 43, N3 = 17;
+  private static final int NP = 20; // number of known points
+  private static final int NITER = 10; // CG iterations
+  private static final long NSLACK = 256; // bytes per iteration, for noise
+
+  // An operator, a preconditioner, and an initial image with known values.
+  private static class Problem {
+    CgSolver.A a,m;
+    Vec vx0;
+  }
+
+  // Returns a problem for 2D interpolation with n1 samples in the 1st
+  // dimension. If anisotropic, smoothing is polynomial, otherwise
+  // isotropic. If the degree is positive, the preconditioner is instead
+  // a Chebyshev polynomial of that degree without smoothing.
+  private static Problem problem2(
+    int n1, float alpha, boolean aniso, int degree)
+  {
+    EigenTensors2 et = (aniso)?tensors2(n1):null;
+    float[][] wp = (aniso)?weights2(n1):null;
+    VecArrayFloat2 vx = new VecArrayFloat2(n1,N2);
+    KnownPoints kp = knownPoints2(n1);
+    kp.setValues(values(),vx.getArray());
+    Smoother2 s2 = new Smoother2(4.0f,wp,et);
+    s2.setDegree(4);
+    Problem p = new Problem();
+    p.a = new FastImageGuidedInterp.A2(alpha,tensors2(n1),weights2(n1));
+    p.m = (degree>0) ?
+      new Chebyshev(p.a,new FastImageGuidedInterp.M2(kp,null),degree) :
+      new FastImageGuidedInterp.M2(kp,s2);
+    p.vx0 = vx;
+    return p;
+  }
+
+  // As above, for 3D interpolation, without Chebyshev preconditioning.
+  private static Problem problem3(int n1, float alpha, boolean aniso) {
+    EigenTensors3 et = (aniso)?tensors3(n1):null;
+    float[][][] wp = (aniso)?weights3(n1):null;
+    VecArrayFloat3 vx = new VecArrayFloat3(n1,N2,N3);
+    KnownPoints kp = knownPoints3(n1);
+    kp.setValues(values(),vx.getArray());
+    Smoother3 s3 = new Smoother3(4.0f,wp,et);
+    s3.setDegree(4);
+    Problem p = new Problem();
+    p.a = new FastImageGuidedInterp.A3(
+      alpha,tensors3(n1),null,weights3(n1));
+    p.m = new FastImageGuidedInterp.M3(kp,s3);
+    p.vx0 = vx;
+    return p;
+  }
+
+  // Checks allocation by the operator and preconditioner of a problem, and
+  // by CG solves for that problem and a larger one.
+  private static void check(Problem small, Problem large) {
+    checkApply(small.a,small.vx0);
+    checkApply(small.m,small.vx0);
+    checkSolve(small,large);
+  }
+
+  // Checks that applications of an operator allocate nothing once warm.
+  // Objects that the compiler had eliminated are allocated when compiled
+  // code is deoptimized, so the fewest bytes in a few trials are used.
+  private static void checkApply(CgSolver.A a, Vec vx) {
+    Vec vy = vx.clone();
+    Parallel.setParallel(false);
+    try {
+      for (int i=0; i<3; ++i)
+        allocated(a,vx,vy,2*NITER);
+      long nb = Long.MAX_VALUE;
+      for (int i=0; i<3 && nb!=0L; ++i) {
+        long n1 = allocated(a,vx,vy,NITER);
+        long n2 = allocated(a,vx,vy,2*NITER);
+        nb = Math.min(nb,n2-n1);
+      }
+      assertEquals("bytes allocated by "+NITER+" applications",0L,nb);
+    } finally {
+      Parallel.setParallel(true);
+    }
+  }
+
+  // Returns bytes allocated by the current thread in some number of
+  // applications of an operator.
+  private static long allocated(CgSolver.A a, Vec vx, Vec vy, int napply) {
+    long id = Thread.currentThread().getId();
+    long n = THREADS.getThreadAllocatedBytes(id);
+    for (int iapply=0; iapply<napply; ++iapply)
+      a.apply(vx,vy);
+    return THREADS.getThreadAllocatedBytes(id)-n;
+  }
+
+  // Checks that CG iterations, with parallel loops, allocate in all
+  // threads no more bytes for a large problem than for a small problem
+  // with fewer samples in the 1st dimension.
+  private static void checkSolve(Problem small, Problem large) {
+    long ns = allocated(small);
+    long nl = allocated(large);
+    assertTrue("bytes per iteration "+ns+" and "+nl,nl<=ns+NSLACK);
+  }
+
+  // Returns bytes allocated by all threads for one CG iteration, once warm.
+  // As for interpolation, the right-hand side is zero, and the initial
+  // image has known values.
+  private static long allocated(Problem p) {
+    Vec vb = p.vx0.clone();
+    Vec vx = p.vx0.clone();
+    vb.zero();
+    for (int i=0; i<2; ++i)
+      allocated(p,vb,vx,2*NITER);
+    long n1 = allocated(p,vb,vx,NITER);
+    long n2 = allocated(p,vb,vx,2*NITER);
+    return (n2-n1)/NITER;
+  }
+
+  // Returns bytes allocated by all threads in a CG solve with a specified
+  // number of iterations.
+  private static long allocated(Problem p, Vec vb, Vec vx, int niter) {
+    CgSolver cg = new CgSolver(0.0,niter);
+    cg.setReuseWork(true);
+    vx.add(0.0,p.vx0,1.0);
+    HashMap<Long,Long> n = allocated();
+    CgSolver.Info info = cg.solve(STOPPER,p.a,p.m,vb,vx);
+    long nbyte = 0;
+    for (Map.Entry<Long,Long> e:allocated().entrySet()) {
+      Long nb = n.get(e.getKey());
+      nbyte += e.getValue()-((nb!=null)?nb:0L);
+    }
+    assertEquals(niter,info.niter);
+    return nbyte;
+  }
+
+  // Returns bytes allocated by all live threads, by thread id.
+  private static HashMap<Long,Long> allocated() {
+    long[] ids = THREADS.getAllThreadIds();
+    long[] nb = THREADS.getThreadAllocatedBytes(ids);
+    HashMap<Long,Long> n = new HashMap<Long,Long>();
+    for (int i=0; i<ids.length; ++i)
+      if (nb[i]>=0)
+        n.put(ids[i],nb[i]);
+    return n;
+  }
+
+  // Never stops CG iterations.
+  private static final CgSolver.Stopper STOPPER = new CgSolver.Stopper() {
+    public boolean stop(CgSolver.Info info) {
+      return false;
+    }
+  };
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  // Returns anisotropic tensors.
+  private static EigenTensors2 tensors2(int n1) {
+    EigenTensors2 et = new EigenTensors2(n1,N2);
+    float[] a = {1.0f,0.3f,0.2f};
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<n1; ++i1)
+        et.setTensor(i1,i2,a);
+    return et;
+  }
+  private static EigenTensors3 tensors3(int n1) {
+    EigenTensors3 et = new EigenTensors3(n1,N2,N3,false);
+    float[] a = {1.0f,0.2f,0.1f,0.5f,0.1f,0.3f};
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          et.setTensor(i1,i2,i3,a);
+    return et;
+  }
+
+  // Returns weights with a fault of low weights at i2 = N2/2.
+  private static float[][] weights2(int n1) {
+    float[][] wp = new float[N2][n1];
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<n1; ++i1)
+        wp[i2][i1] = (i2==N2/2 && i1<n1/2)?0.1f:1.0f;
+    return wp;
+  }
+  private static float[][][] weights3(int n1) {
+    float[][][] wp = new float[N3][][];
+    for (int i3=0; i3<N3; ++i3)
+      wp[i3] = weights2(n1);
+    return wp;
+  }
+
+  // Returns known points chosen with a fixed seed.
+  private static KnownPoints knownPoints2(int n1) {
+    float[][] k = samples(n1);
+    return new KnownPoints(k[0],k[1],n1,N2);
+  }
+  private static KnownPoints knownPoints3(int n1) {
+    float[][] k = samples(n1);
+    return new KnownPoints(k[0],k[1],k[2],n1,N2,N3);
+  }
+
+  // Returns arrays {k1,k2,k3} of sample indices of known points.
+  private static float[][] samples(int n1) {
+    Random r = new Random(NP);
+    float[][] k = new float[3][NP];
+    for (int ip=0; ip<NP; ++ip) {
+      k[0][ip] = r.nextInt(n1);
+      k[1][ip] = r.nextInt(N2);
+      k[2][ip] = r.nextInt(N3);
+    }
+    return k;
+  }
+
+  // Returns values at known points.
+  private static float[] values() {
+    Random r = new Random(-NP);
+    float[] fx = new float[NP];
+    for (int ip=0; ip<NP; ++ip)
+      fx[ip] = r.nextFloat();
+    return fx;
+  }
+}
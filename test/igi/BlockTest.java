@@ -0,0 +1,175 @@
+package igi;
+
+import java.util.Random;
+
+import edu.mines.jtk.dsp.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that preconditioners applied to blocks of images, which smooth
+ * all images together, compute the same images, bit by bit, as when
+ * applied to one image at a time.
+ */
+public class BlockTest {
+
+  @Test
+  public void testSmoother2() {
+    check(new FastImageGuidedInterp.M2(knownPoints2(),smoother2()),vecs2());
+  }
+
+  @Test
+  public void testSmoother3() {
+    check(new FastImageGuidedInterp.M3(knownPoints3(),smoother3(false)),
+      vecs3());
+    check(new FastImageGuidedInterp.M3(knownPoints3(),smoother3(true)),
+      vecs3());
+  }
+
+  @Test
+  public void testChebyshev() {
+    FastImageGuidedInterp.A2 a2 =
+      new FastImageGuidedInterp.A2(0.5f,tensors2(),weights2(),false);
+    FastImageGuidedInterp.M2 m2 =
+      new FastImageGuidedInterp.M2(knownPoints2(),null);
+    Chebyshev c = new Chebyshev(a2,m2,4);
+    c.setBounds(0.01,20.0);
+    check(c,vecs2());
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int N1 = 29, N2 = 23, N3 = 13;
+  private static final int NK = 3; // number of images
+  private static final int NP = 10; // number of known points
+
+  // Checks that a block of images and single images are preconditioned
+  // the same.
+  private static <M extends CgSolver.A & CgSolver.BlockA> void check(
+    M m, Vec[] vx)
+  {
+    Vec[] vy = new Vec[NK];
+    Vec[] vz = new Vec[NK];
+    for (int ik=0; ik<NK; ++ik) {
+      vy[ik] = vx[ik].clone();
+      vz[ik] = vx[ik].clone();
+    }
+    m.apply(vx,vy);
+    for (int ik=0; ik<NK; ++ik)
+      m.apply(vx[ik],vz[ik]);
+    for (int ik=0; ik<NK; ++ik)
+      assertArrayEquals(bits(vy[ik]),bits(vz[ik]));
+  }
+
+  // Returns the bits of floats in a vector.
+  private static int[] bits(Vec v) {
+    float[][][] a = (v instanceof VecArrayFloat3) ?
+      ((VecArrayFloat3)v).getArray() :
+      new float[][][]{((VecArrayFloat2)v).getArray()};
+    int[] b = new int[a.length*a[0].length*a[0][0].length];
+    int i = 0;
+    for (float[][] a3:a)
+      for (float[] a32:a3)
+        for (float ai:a32)
+          b[i++] = Float.floatToRawIntBits(ai);
+    return b;
+  }
+
+  // Returns random images.
+  private static Vec[] vecs2() {
+    Random r = new Random(2);
+    Vec[] v = new Vec[NK];
+    for (int ik=0; ik<NK; ++ik) {
+      float[][] x = new float[N2][N1];
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          x[i2][i1] = r.nextFloat()-0.5f;
+      v[ik] = new VecArrayFloat2(x);
+    }
+    return v;
+  }
+  private static Vec[] vecs3() {
+    Random r = new Random(3);
+    Vec[] v = new Vec[NK];
+    for (int ik=0; ik<NK; ++ik) {
+      float[][][] x = new float[N3][N2][N1];
+      for (int i3=0; i3<N3; ++i3)
+        for (int i2=0; i2<N2; ++i2)
+          for (int i1=0; i1<N1; ++i1)
+            x[i3][i2][i1] = r.nextFloat()-0.5f;
+      v[ik] = new VecArrayFloat3(x);
+    }
+    return v;
+  }
+
+  // Returns polynomial smoothers with tensors and weights.
+  private static Smoother2 smoother2() {
+    Smoother2 s2 = new Smoother2(4.0f,weights2(),tensors2());
+    s2.setDegree(3);
+    return s2;
+  }
+  private static Smoother3 smoother3(boolean cache) {
+    Smoother3 s3 = new Smoother3(4.0f,weights3(),tensors3());
+    s3.setDegree(3);
+    s3.setCoefficientCache(cache);
+    return s3;
+  }
+
+  // Returns anisotropic tensors.
+  private static EigenTensors2 tensors2() {
+    EigenTensors2 et = new EigenTensors2(N1,N2);
+    float[] a = {1.0f,0.3f,0.2f};
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<N1; ++i1)
+        et.setTensor(i1,i2,a);
+    return et;
+  }
+  private static EigenTensors3 tensors3() {
+    EigenTensors3 et = new EigenTensors3(N1,N2,N3,false);
+    float[] a = {1.0f,0.2f,0.1f,0.5f,0.1f,0.3f};
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          et.setTensor(i1,i2,i3,a);
+    return et;
+  }
+
+  // Returns weights with a fault of low weights at i2 = N2/2.
+  private static float[][] weights2() {
+    float[][] wp = new float[N2][N1];
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<N1; ++i1)
+        wp[i2][i1] = (i2==N2/2 && i1<N1/2)?0.1f:1.0f;
+    return wp;
+  }
+  private static float[][][] weights3() {
+    float[][][] wp = new float[N3][][];
+    for (int i3=0; i3<N3; ++i3)
+      wp[i3] = weights2();
+    return wp;
+  }
+
+  // Returns known points chosen with a fixed seed.
+  private static KnownPoints knownPoints2() {
+    float[][] k = samples();
+    return new KnownPoints(k[0],k[1],N1,N2);
+  }
+  private static KnownPoints knownPoints3() {
+    float[][] k = samples();
+    return new KnownPoints(k[0],k[1],k[2],N1,N2,N3);
+  }
+
+  // Returns arrays {k1,k2,k3} of sample indices of known points.
+  private static float[][] samples() {
+    Random r = new Random(NP);
+    float[][] k = new float[3][NP];
+    for (int ip=0; ip<NP; ++ip) {
+      k[0][ip] = r.nextInt(N1);
+      k[1][ip] = r.nextInt(N2);
+      k[2][ip] = r.nextInt(N3);
+    }
+    return k;
+  }
+}
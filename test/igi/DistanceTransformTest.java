@@ -0,0 +1,169 @@
+package igi;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests exact Euclidean distance transforms by comparison with brute-force
+ * searches for the nearest known points. Nearest samples are compared by
+ * their squared distances, because equidistant known points may be chosen
+ * by either method.
+ */
+public class DistanceTransformTest {
+
+  @Test
+  public void test2() {
+    Random r = new Random(2);
+    for (int i=0; i<20; ++i) {
+      int n1 = 1+r.nextInt(40);
+      int n2 = 1+r.nextInt(40);
+      check2(r,n1,n2,1+r.nextInt(10),false);
+    }
+  }
+
+  @Test
+  public void test3() {
+    Random r = new Random(3);
+    for (int i=0; i<20; ++i) {
+      int n1 = 1+r.nextInt(20);
+      int n2 = 1+r.nextInt(20);
+      int n3 = 1+r.nextInt(20);
+      check3(r,n1,n2,n3,1+r.nextInt(10),false);
+    }
+  }
+
+  @Test
+  public void testBarrier2() {
+    Random r = new Random(4);
+    for (int i=0; i<20; ++i)
+      check2(r,2+r.nextInt(40),3+r.nextInt(40),2+r.nextInt(10),true);
+  }
+
+  @Test
+  public void testBarrier3() {
+    Random r = new Random(5);
+    for (int i=0; i<20; ++i)
+      check3(r,2+r.nextInt(20),3+r.nextInt(20),2+r.nextInt(20),
+        2+r.nextInt(10),true);
+  }
+
+  @Test
+  public void testFar() {
+    // At sample (9119,119), squared distances to the two known points are
+    // 83170322 and 83170324, which are not exact as floats; rounded to
+    // floats, the farther known point would be nearer.
+    float[] k1 = {0.0f,1.0f};
+    float[] k2 = {0.0f,299.0f};
+    check2(k1,k2,9200,300,-1);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // Checks features for np random known points. If a fault is specified,
+  // weights are zero for i2 = n2/2, and samples not on the fault must be
+  // nearest to known points on the same side of the fault, if any.
+  private static void check2(
+    Random r, int n1, int n2, int np, boolean fault)
+  {
+    int f2 = (fault)?n2/2:-1;
+    float[] k1 = new float[np];
+    float[] k2 = new float[np];
+    for (int ip=0; ip<np; ++ip) {
+      k1[ip] = r.nextInt(n1);
+      do {
+        k2[ip] = r.nextInt(n2);
+      } while (k2[ip]==f2);
+    }
+    check2(k1,k2,n1,n2,f2);
+  }
+
+  // Checks features for known points (k1,k2), with a fault at i2 = f2;
+  // or, if f2 is negative, with no fault.
+  private static void check2(
+    float[] k1, float[] k2, int n1, int n2, int f2)
+  {
+    KnownPoints kp = new KnownPoints(k1,k2,n1,n2);
+    float[][] w = null;
+    if (f2>=0) {
+      w = new float[n2][n1];
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          w[i2][i1] = (i2==f2)?0.0f:1.0f;
+    }
+    int[][] g = DistanceTransform.features(kp,w,n1,n2);
+    int[][] k = kp.getSampleIndices();
+    int ns = kp.getSampleCount();
+    for (int i2=0; i2<n2; ++i2) {
+      for (int i1=0; i1<n1; ++i1) {
+        int is = g[i2][i1];
+        assertTrue(is>=0);
+        assertEquals("i1="+i1+" i2="+i2,nearest(k,ns,f2,i1,i2,0),
+          distance(k,is,i1,i2,0));
+      }
+    }
+  }
+
+  // Checks 3D features for np random known points, as in 2D.
+  private static void check3(
+    Random r, int n1, int n2, int n3, int np, boolean fault)
+  {
+    int f2 = (fault)?n2/2:-1;
+    float[] k1 = new float[np];
+    float[] k2 = new float[np];
+    float[] k3 = new float[np];
+    for (int ip=0; ip<np; ++ip) {
+      k1[ip] = r.nextInt(n1);
+      do {
+        k2[ip] = r.nextInt(n2);
+      } while (k2[ip]==f2);
+      k3[ip] = r.nextInt(n3);
+    }
+    KnownPoints kp = new KnownPoints(k1,k2,k3,n1,n2,n3);
+    float[][][] w = null;
+    if (fault) {
+      w = new float[n3][n2][n1];
+      for (int i3=0; i3<n3; ++i3)
+        for (int i2=0; i2<n2; ++i2)
+          for (int i1=0; i1<n1; ++i1)
+            w[i3][i2][i1] = (i2==f2)?0.0f:1.0f;
+    }
+    int[][][] g = DistanceTransform.features(kp,w,n1,n2,n3);
+    int[][] k = kp.getSampleIndices();
+    int ns = kp.getSampleCount();
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          int is = g[i3][i2][i1];
+          assertTrue(is>=0);
+          assertEquals("i1="+i1+" i2="+i2+" i3="+i3,
+            nearest(k,ns,f2,i1,i2,i3),distance(k,is,i1,i2,i3));
+        }
+      }
+    }
+  }
+
+  // Returns the squared distance to the nearest of ns known samples with
+  // indices k, by brute-force search. For samples not on a fault at f2,
+  // only known samples on the same side of the fault are searched, if any.
+  private static long nearest(
+    int[][] k, int ns, int f2, int i1, int i2, int i3)
+  {
+    long dmin = Long.MAX_VALUE;
+    for (int is=0; is<ns; ++is) {
+      if (f2<0 || i2==f2 || (k[1][is]<f2)==(i2<f2))
+        dmin = Math.min(dmin,distance(k,is,i1,i2,i3));
+    }
+    return (dmin<Long.MAX_VALUE)?dmin:nearest(k,ns,-1,i1,i2,i3);
+  }
+
+  // Returns the squared distance from a sample to the known sample is.
+  private static long distance(int[][] k, int is, int i1, int i2, int i3) {
+    long d1 = i1-k[0][is];
+    long d2 = i2-k[1][is];
+    long d3 = (k.length>2)?i3-k[2][is]:0;
+    return d1*d1+d2*d2+d3*d3;
+  }
+}
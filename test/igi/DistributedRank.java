@@ -0,0 +1,205 @@
+package igi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.mines.jtk.dsp.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * One process of a distributed 3D interpolation, for testing distributed
+ * solves on one host. Each process is started with its rank, the number
+ * of processes and a port, and is connected to the other processes by a
+ * {@link SocketTransport} on localhost; the script bin/ranks starts all
+ * processes. Every process interpolates the same synthetic image, with
+ * isotropic tensors, a partial fault of zero weights, and known points
+ * chosen with a fixed seed.
+ * <p>
+ * The process with rank zero gathers the slices owned by all processes,
+ * interpolates the same image in one process, and prints the residuals of
+ * both images for the linear system of the single-process interpolation.
+ * The two images are not compared sample by sample, because the operator
+ * of that system has modes, with signs that alternate between adjacent
+ * samples, for which it is nearly zero; images computed with different
+ * initial images and preconditioners differ in those modes, although both
+ * solve the system. The process exits with status 1 if the residual of the
+ * distributed image exceeds a small fraction of the initial residual.
+ */
+public class DistributedRank {
+
+  /**
+   * Runs one process.
+   * @param args rank, size and port, optionally followed by n1, n2, n3.
+   * @throws IOException if connections among processes fail.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length!=3 && args.length!=6) {
+      System.err.println(
+        "usage: java igi.DistributedRank rank size port [n1 n2 n3]");
+      System.exit(2);
+    }
+    int rank = Integer.parseInt(args[0]);
+    int size = Integer.parseInt(args[1]);
+    int port = Integer.parseInt(args[2]);
+    int n1 = (args.length>3)?Integer.parseInt(args[3]):41;
+    int n2 = (args.length>3)?Integer.parseInt(args[4]):32;
+    int n3 = (args.length>3)?Integer.parseInt(args[5]):24;
+    String[] hosts = new String[size];
+    Arrays.fill(hosts,"localhost");
+    Transport t = new SocketTransport(rank,hosts,port);
+    try {
+      float[][][] y = gather(t,solve(t,n1,n2,n3),n1,n2,n3);
+      if (rank==0) {
+        double ry = residual(y);
+        double rz = residual(solve(n1,n2,n3));
+        System.out.println(
+          "ranks="+size+" n1="+n1+" n2="+n2+" n3="+n3+
+          " residual="+ry+" single-process residual="+rz+
+          " tolerance="+TOLERANCE);
+        if (!(ry<=TOLERANCE))
+          System.exit(1);
+      }
+    } finally {
+      t.close();
+    }
+  }
+
+  // Maximum residual of an interpolated image, as a fraction of the
+  // residual of the image with only known values.
+  static final double TOLERANCE = 0.01;
+
+  // Returns an interpolator for the synthetic image, with tensors for nt
+  // slices. Interpolation is harmonic, with tight stopping criteria, so
+  // that images computed with different preconditioners may be compared.
+  // Smoothing is polynomial, so that preconditioners are fixed symmetric
+  // operators, which do not depend on the accuracy of inner solves of a 
+  // local smoothing filter.
+  static FastImageGuidedInterp interpolator(
+    int n1, int n2, int n3, int nt)
+  {
+    float[][] x = knownPoints(n1,n2,n3);
+    FastImageGuidedInterp fi =
+      new FastImageGuidedInterp(knownValues(),x[0],x[1],x[2]);
+    fi.setTensors(tensors(n1,n2,nt));
+    fi.setBiharmonic3(0.0f);
+    fi.setSmootherDegree(4);
+    fi.setIters(1000,1.0e-6f);
+    return fi;
+  }
+
+  // Returns array {x1,x2,x3} of coordinates of known points, which are
+  // on samples of the synthetic image.
+  static float[][] knownPoints(int n1, int n2, int n3) {
+    Random r = new Random(NP);
+    float[][] x = new float[3][NP];
+    for (int ip=0; ip<NP; ++ip) {
+      x[0][ip] = r.nextInt(n1);
+      x[1][ip] = r.nextInt(n2);
+      x[2][ip] = r.nextInt(n3);
+    }
+    return x;
+  }
+
+  // Returns the known values of the synthetic image.
+  static float[] knownValues() {
+    Random r = new Random(-NP);
+    float[] fx = new float[NP];
+    for (int ip=0; ip<NP; ++ip)
+      fx[ip] = r.nextFloat();
+    return fx;
+  }
+
+  // Returns isotropic tensors.
+  static EigenTensors3 tensors(int n1, int n2, int n3) {
+    EigenTensors3 et = new EigenTensors3(n1,n2,n3,false);
+    float[] a = {1.0f,0.0f,0.0f,1.0f,0.0f,1.0f};
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          et.setTensor(i1,i2,i3,a);
+    return et;
+  }
+
+  // Returns weights with a fault that cuts half of the image at i2 = n2/2.
+  static float[][][] weights(int n1, int n2, int n3) {
+    float[][][] wp = fillfloat(1.0f,n1,n2,n3);
+    for (int i3=0; i3<n3/2; ++i3)
+      fill(0.0f,wp[i3][n2/2]);
+    return wp;
+  }
+
+  // Returns the slices of w stored locally by the process with a rank.
+  static float[][][] localSlices(float[][][] w, int rank, int size) {
+    int[] l = VecDistFloat3.getLocalRange(w.length,rank,size);
+    return Arrays.copyOfRange(w,l[0],l[1]);
+  }
+
+  // Interpolates the synthetic image in the process with the rank of a
+  // transport, and returns the slices owned by that process.
+  static float[][][] solve(Transport t, int n1, int n2, int n3) {
+    float[][][] wp = weights(n1,n2,n3);
+    float[][][] wl = localSlices(wp,t.getRank(),t.getSize());
+    return interpolator(n1,n2,n3,wl.length).apply(t,n3,null,wl);
+  }
+
+  // Interpolates the synthetic image in one process.
+  static float[][][] solve(int n1, int n2, int n3) {
+    return interpolator(n1,n2,n3,n3).apply(null,weights(n1,n2,n3));
+  }
+
+  // Returns the residual of an image for the linear system of harmonic
+  // interpolation in one process, as a fraction of the residual of the
+  // image with known values and zeros elsewhere. Residuals at samples with
+  // known values are ignored.
+  static double residual(float[][][] y) {
+    int n3 = y.length;
+    int n2 = y[0].length;
+    int n1 = y[0][0].length;
+    float[][] x = knownPoints(n1,n2,n3);
+    KnownPoints kp = new KnownPoints(x[0],x[1],x[2],n1,n2,n3);
+    FastImageGuidedInterp.A3 a3 = new FastImageGuidedInterp.A3(
+      0.0f,tensors(n1,n2,n3),null,weights(n1,n2,n3));
+    VecArrayFloat3 y0 = new VecArrayFloat3(n1,n2,n3);
+    kp.setValues(knownValues(),y0.getArray());
+    VecArrayFloat3 ry = new VecArrayFloat3(n1,n2,n3);
+    VecArrayFloat3 r0 = new VecArrayFloat3(n1,n2,n3);
+    a3.apply(new VecArrayFloat3(y),ry);
+    a3.apply(y0,r0);
+    kp.constrain(ry.getArray());
+    kp.constrain(r0.getArray());
+    return ry.norm2()/r0.norm2();
+  }
+
+  // Gathers slices owned by all processes in the process with rank zero,
+  // which returns the image; other processes return null.
+  static float[][][] gather(
+    Transport t, float[][][] yo, int n1, int n2, int n3)
+  {
+    int rank = t.getRank();
+    int size = t.getSize();
+    if (rank>0) {
+      for (float[][] yi:yo)
+        t.send(0,yi);
+      return null;
+    }
+    float[][][] y = new float[n3][][];
+    for (int r=0; r<size; ++r) {
+      int[] o = VecDistFloat3.getOwnedRange(n3,r,size);
+      for (int i3=o[0]; i3<o[1]; ++i3) {
+        if (r==0) {
+          y[i3] = yo[i3];
+        } else {
+          y[i3] = new float[n2][n1];
+          t.receive(r,y[i3]);
+        }
+      }
+    }
+    return y;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int NP = 20; // number of known points
+}
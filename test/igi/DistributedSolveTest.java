@@ -0,0 +1,140 @@
+package igi;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Tests distributed 3D interpolation with processes that are threads of
+ * one JVM, connected by a {@link LoopbackTransport}. Distributed operators
+ * are compared with the single-process operator, and distributed images
+ * with the linear system of the single-process interpolation; see
+ * {@link DistributedRank}.
+ */
+public class DistributedSolveTest {
+
+  @Test(timeout=60000)
+  public void testOperator() {
+    for (int size=1; size<=4; ++size) {
+      checkOperator(size,0.0f);
+      checkOperator(size,50.0f);
+    }
+  }
+
+  @Test(timeout=300000)
+  public void testSolve() {
+    for (int size=1; size<=4; ++size)
+      checkSolve(size);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int N1 = 21, N2 = 16, N3 = 12;
+
+  // Body of a process with a rank.
+  private interface Rank {
+    void run(Transport t);
+  }
+
+  // Runs processes in threads, and rethrows the first error in any thread.
+  // When a thread fails, the other threads are interrupted, so that they
+  // do not wait forever in collective operations for the failed thread.
+  private static void run(int size, final Rank rank) {
+    final LoopbackTransport[] ts = LoopbackTransport.group(size);
+    final Throwable[] e = new Throwable[1];
+    final Thread[] threads = new Thread[size];
+    for (int r=0; r<size; ++r) {
+      final int ir = r;
+      threads[r] = new Thread() {
+        public void run() {
+          try {
+            rank.run(ts[ir]);
+          } catch (Throwable t) {
+            synchronized (e) {
+              if (e[0]!=null)
+                return;
+              e[0] = t;
+            }
+            for (Thread thread:threads)
+              if (thread!=this)
+                thread.interrupt();
+          } finally {
+            ts[ir].close();
+          }
+        }
+      };
+    }
+    for (Thread thread:threads)
+      thread.start();
+    try {
+      for (Thread thread:threads)
+        thread.join();
+    } catch (InterruptedException ie) {
+      for (Thread thread:threads)
+        thread.interrupt();
+      throw new RuntimeException(ie);
+    }
+    if (e[0] instanceof RuntimeException)
+      throw (RuntimeException)e[0];
+    if (e[0] instanceof Error)
+      throw (Error)e[0];
+  }
+
+  // Compares the owned slices of y = Ax for the distributed operator with
+  // those for the single-process operator.
+  private static void checkOperator(final int size, final float alpha) {
+    final float[][][] x = new float[N3][N2][N1];
+    Random r = new Random(size);
+    for (float[][] x3:x)
+      for (float[] x2:x3)
+        for (int i1=0; i1<N1; ++i1)
+          x2[i1] = r.nextFloat()-0.5f;
+    final float[][][] wp = DistributedRank.weights(N1,N2,N3);
+    FastImageGuidedInterp.A3 a3 = new FastImageGuidedInterp.A3(
+      alpha,DistributedRank.tensors(N1,N2,N3),null,wp);
+    VecArrayFloat3 vy = new VecArrayFloat3(N1,N2,N3);
+    a3.apply(new VecArrayFloat3(copy(x)),vy);
+    final float[][][] y = vy.getArray();
+    final float tol = 1.0e-5f*max(abs(y));
+    run(size,new Rank() {
+      public void run(Transport t) {
+        int rank = t.getRank();
+        float[][][] xl = copy(DistributedRank.localSlices(x,rank,size));
+        float[][][] wl = DistributedRank.localSlices(wp,rank,size);
+        VecDistFloat3 vx = new VecDistFloat3(t,N3,xl);
+        VecDistFloat3 vz = new VecDistFloat3(t,N1,N2,N3);
+        FastImageGuidedInterp.A3Dist a3 = new FastImageGuidedInterp.A3Dist(
+          alpha,DistributedRank.tensors(N1,N2,wl.length),null,wl);
+        a3.apply(vx,vz);
+        float[][][] z = vz.getOwned().getArray();
+        int i3b = vz.getOwnedBegin();
+        for (int i3=0; i3<z.length; ++i3)
+          for (int i2=0; i2<N2; ++i2)
+            for (int i1=0; i1<N1; ++i1)
+              assertEquals(y[i3b+i3][i2][i1],z[i3][i2][i1],tol);
+      }
+    });
+  }
+
+  // Checks that the distributed image solves the system of the single-
+  // process interpolation, as well as the single-process image does.
+  private static void checkSolve(int size) {
+    final float[][][][] y = new float[1][][][];
+    run(size,new Rank() {
+      public void run(Transport t) {
+        float[][][] yo = DistributedRank.solve(t,N1,N2,N3);
+        float[][][] yt = DistributedRank.gather(t,yo,N1,N2,N3);
+        if (t.getRank()==0)
+          y[0] = yt;
+      }
+    });
+    double ry = DistributedRank.residual(y[0]);
+    double rz = DistributedRank.residual(DistributedRank.solve(N1,N2,N3));
+    assertTrue("residual "+ry,ry<=DistributedRank.TOLERANCE);
+    assertTrue("single-process residual "+rz,rz<=DistributedRank.TOLERANCE);
+  }
+}
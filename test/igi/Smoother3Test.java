@@ -0,0 +1,100 @@
+package igi;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests polynomial smoothing of vectors off heap, which must equal, bit
+ * by bit, smoothing of the same images on the heap, whether vectors are
+ * stored in direct buffers or in files.
+ */
+public class Smoother3Test {
+
+  @Test
+  public void testOffHeap() throws Exception {
+    float[][][] x = image();
+    float[][][] y = copy(x);
+    smoother(4).apply(y);
+    assertSame(y,offHeap(x,null));
+    File dir = Files.createTempDirectory("igi").toFile();
+    try {
+      assertSame(y,offHeap(x,dir));
+    } finally {
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testDegreeRequired() {
+    VecBufferFloat3 vx = new VecBufferFloat3(image());
+    try {
+      smoother(0).apply(vx);
+      fail("smoothing off heap with degree zero");
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int N1 = 23, N2 = 19, N3 = 17;
+
+  // Returns a smoother with weights and a polynomial of some degree.
+  private static Smoother3 smoother(int degree) {
+    float[][][] wp = new float[N3][N2][N1];
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          wp[i3][i2][i1] = (i2==N2/2 && i3<N3/2)?0.1f:1.0f;
+    Smoother3 s3 = new Smoother3(4.0f,wp,null);
+    s3.setDegree(degree);
+    return s3;
+  }
+
+  // Returns an image smoothed twice off heap, in a vector stored in the
+  // specified directory, if any, so that work vectors are reused.
+  private static float[][][] offHeap(float[][][] x, File dir) {
+    Smoother3 s3 = smoother(4);
+    VecBufferFloat3 vx = new VecBufferFloat3(N1,N2,N3,dir);
+    for (int i=0; i<2; ++i) {
+      vx.set(x);
+      s3.apply(vx);
+    }
+    float[][][] y = new float[N3][N2][N1];
+    vx.get(y);
+    return y;
+  }
+
+  // Returns a random image.
+  private static float[][][] image() {
+    Random r = new Random(N1);
+    float[][][] x = new float[N3][N2][N1];
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          x[i3][i2][i1] = r.nextFloat()-0.5f;
+    return x;
+  }
+
+  // Returns a copy of an image.
+  private static float[][][] copy(float[][][] x) {
+    float[][][] y = new float[N3][N2][];
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        y[i3][i2] = x[i3][i2].clone();
+    return y;
+  }
+
+  // Asserts that two images have the same bits.
+  private static void assertSame(float[][][] x, float[][][] y) {
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          assertEquals(Float.floatToRawIntBits(x[i3][i2][i1]),
+                       Float.floatToRawIntBits(y[i3][i2][i1]));
+  }
+}
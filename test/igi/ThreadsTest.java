@@ -0,0 +1,143 @@
+package igi;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.mines.jtk.dsp.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that interpolated images and iteration counts of CG solves do not
+ * depend on the number of threads used in interpolation. Images are
+ * compared bit by bit. Solves are cascadic, so that they stop when their
+ * residuals are small, and not after a fixed number of iterations.
+ */
+public class ThreadsTest {
+
+  @Test
+  public void test2() {
+    Result r1 = solve2(1);
+    Result r3 = solve2(3);
+    assertEquals(r1.niter,r3.niter);
+    for (int i2=0; i2<N2; ++i2)
+      assertArrayEquals(bits(r1.y2[i2]),bits(r3.y2[i2]));
+  }
+
+  @Test
+  public void test3() {
+    Result r1 = solve3(1);
+    Result r3 = solve3(3);
+    assertEquals(r1.niter,r3.niter);
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        assertArrayEquals(bits(r1.y3[i3][i2]),bits(r3.y3[i3][i2]));
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int N1 = 61, N2 = 47, N3 = 29;
+  private static final int NP = 20; // number of known points
+
+  // An interpolated image and the iteration counts of all solves.
+  private static class Result {
+    float[][] y2;
+    float[][][] y3;
+    ArrayList<Integer> niter = new ArrayList<Integer>();
+  }
+
+  // Returns a 2D image interpolated with some number of threads.
+  private static Result solve2(int nthread) {
+    float[][] x = knownPoints();
+    FastImageGuidedInterp fi =
+      new FastImageGuidedInterp(knownValues(),x[0],x[1]);
+    EigenTensors2 et = new EigenTensors2(N1,N2);
+    float[] a = {1.0f,0.3f,0.2f};
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<N1; ++i1)
+        et.setTensor(i1,i2,a);
+    fi.setTensors(et);
+    fi.setBiharmonic(1.0f);
+    Result r = new Result();
+    configure(fi,nthread,r);
+    float[][] wp = new float[N2][N1];
+    for (int i2=0; i2<N2; ++i2)
+      for (int i1=0; i1<N1; ++i1)
+        wp[i2][i1] = (i2==N2/2 && i1<N1/2)?0.0f:1.0f;
+    r.y2 = fi.grid(new Sampling(N1),new Sampling(N2),wp);
+    fi.setThreads(0);
+    return r;
+  }
+
+  // Returns a 3D image interpolated with some number of threads.
+  private static Result solve3(int nthread) {
+    float[][] x = knownPoints();
+    FastImageGuidedInterp fi =
+      new FastImageGuidedInterp(knownValues(),x[0],x[1],x[2]);
+    EigenTensors3 et = new EigenTensors3(N1,N2,N3,false);
+    float[] a = {1.0f,0.2f,0.1f,0.5f,0.1f,0.3f};
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          et.setTensor(i1,i2,i3,a);
+    fi.setTensors(et);
+    Result r = new Result();
+    configure(fi,nthread,r);
+    float[][][] wp = new float[N3][N2][N1];
+    for (int i3=0; i3<N3; ++i3)
+      for (int i2=0; i2<N2; ++i2)
+        for (int i1=0; i1<N1; ++i1)
+          wp[i3][i2][i1] = (i2==N2/2 && i3<N3/2)?0.0f:1.0f;
+    r.y3 = fi.apply(null,wp);
+    fi.setThreads(0);
+    return r;
+  }
+
+  // Sets threads, cascadic solves, and a listener that records iteration
+  // counts in a result.
+  private static void configure(
+    FastImageGuidedInterp fi, int nthread, final Result r)
+  {
+    fi.setThreads(nthread);
+    fi.setCascade(2,0.1f);
+    fi.setIters(400,0.01f);
+    fi.addListener(new CgSolver.Listener() {
+      public void iterate(int iter, double rnorm, double rsnorm) {
+      }
+      public void done(CgSolver.Info info, CgSolver.Times times) {
+        r.niter.add(info.niter);
+      }
+    });
+  }
+
+  // Returns array {x1,x2,x3} of coordinates of known points.
+  private static float[][] knownPoints() {
+    Random r = new Random(NP);
+    float[][] x = new float[3][NP];
+    for (int ip=0; ip<NP; ++ip) {
+      x[0][ip] = r.nextInt(N1);
+      x[1][ip] = r.nextInt(N2);
+      x[2][ip] = r.nextInt(N3);
+    }
+    return x;
+  }
+
+  // Returns values at known points.
+  private static float[] knownValues() {
+    Random r = new Random(-NP);
+    float[] fx = new float[NP];
+    for (int ip=0; ip<NP; ++ip)
+      fx[ip] = r.nextFloat();
+    return fx;
+  }
+
+  // Returns the bits of floats, so that images are compared exactly.
+  private static int[] bits(float[] y) {
+    int[] b = new int[y.length];
+    for (int i=0; i<y.length; ++i)
+      b[i] = Float.floatToRawIntBits(y[i]);
+    return b;
+  }
+}